@@ -23,15 +23,36 @@ import java.io.File;
 /**
  * TempDirectory caches the directory used for caching file.  It is set up during application
  * initialization.
+ *
+ * A thread may temporarily override the directory with
+ * {@link #setThreadTempDirectory(File)} so that work running concurrently on several threads
+ * can create and clean up its temp files without touching the files of the others.
  */
 public class TempDirectory {
     private static File sTempDirectory = null;
+    private static final ThreadLocal<File> sThreadTempDirectory = new ThreadLocal<File>();
 
     public static void setTempDirectory(Context context) {
         sTempDirectory = context.getCacheDir();
     }
 
+    /**
+     * Sets the temp directory used by the calling thread only. Pass null to go back to the
+     * shared directory.
+     */
+    public static void setThreadTempDirectory(File directory) {
+        if (directory == null) {
+            sThreadTempDirectory.remove();
+        } else {
+            sThreadTempDirectory.set(directory);
+        }
+    }
+
     public static File getTempDirectory() {
+        final File threadTempDirectory = sThreadTempDirectory.get();
+        if (threadTempDirectory != null) {
+            return threadTempDirectory;
+        }
         if (sTempDirectory == null) {
             throw new RuntimeException(
                     "TempDirectory not set.  " +
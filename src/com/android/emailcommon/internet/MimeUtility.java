@@ -21,6 +21,7 @@ import android.util.Base64;
 import android.util.Base64DataException;
 import android.util.Base64InputStream;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.BodyPart;
@@ -28,6 +29,7 @@ import com.android.emailcommon.mail.Message;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Multipart;
 import com.android.emailcommon.mail.Part;
+import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.codec.EncoderUtil;
@@ -35,11 +37,18 @@ import org.apache.james.mime4j.decoder.DecoderUtil;
 import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.CharsetUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -49,6 +58,36 @@ public class MimeUtility {
     public static final String MIME_TYPE_RFC822 = "message/rfc822";
     private final static Pattern PATTERN_CR_OR_LF = Pattern.compile("\r|\n");
 
+    /** Number of raw header values whose decoded form is remembered by {@link #decode} */
+    private static final int DECODED_HEADER_CACHE_SIZE = 256;
+    private static final LruCache<String, String> sDecodedHeaderCache =
+            new LruCache<String, String>(DECODED_HEADER_CACHE_SIZE);
+    /** The decoded header cache statistics are logged once per this many lookups */
+    private static final int DECODED_HEADER_STATS_INTERVAL = 1000;
+    private static final AtomicInteger sDecodedHeaderLookups = new AtomicInteger();
+
+    /** Size of the byte and char buffers used to decode text parts */
+    private static final int TEXT_BUFFER_SIZE = 8 * 1024;
+    /** Upper bound for the capacity reserved for the text of a part before decoding it */
+    private static final int MAX_TEXT_SIZE_HINT = 1024 * 1024;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Declared MIME charset name to Java charset */
+    private static final ConcurrentHashMap<String, Charset> sCharsetCache =
+            new ConcurrentHashMap<String, Charset>();
+
+    /** Decoders are stateful, so they are cached per thread */
+    private static final ThreadLocal<HashMap<Charset, CharsetDecoder>> sDecoders =
+            new ThreadLocal<HashMap<Charset, CharsetDecoder>>() {
+                @Override
+                protected HashMap<Charset, CharsetDecoder> initialValue() {
+                    return new HashMap<Charset, CharsetDecoder>();
+                }
+            };
+
     /**
      * Replace sequences of CRLF+WSP with WSP.  Tries to preserve original string
      * object whenever possible.
@@ -57,6 +96,9 @@ public class MimeUtility {
         if (s == null) {
             return null;
         }
+        if (s.indexOf('\r') == -1 && s.indexOf('\n') == -1) {
+            return s;
+        }
         Matcher patternMatcher = PATTERN_CR_OR_LF.matcher(s);
         if (patternMatcher.find()) {
             patternMatcher.reset();
@@ -65,17 +107,40 @@ public class MimeUtility {
         return s;
     }
 
+    /**
+     * Decodes the RFC 2047 encoded words in a header value. Subjects, display names and file
+     * names repeat across many messages, so recently decoded values are cached.
+     */
     public static String decode(String s) {
         if (s == null) {
             return null;
         }
-        return DecoderUtil.decodeEncodedWords(s);
+        if (s.indexOf("=?") == -1) {
+            return s;
+        }
+        String decoded = sDecodedHeaderCache.get(s);
+        if (decoded == null) {
+            decoded = DecoderUtil.decodeEncodedWords(s);
+            sDecodedHeaderCache.put(s, decoded);
+        }
+        if (sDecodedHeaderLookups.incrementAndGet() % DECODED_HEADER_STATS_INTERVAL == 0
+                && Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, "Decoded header cache: " + getDecodedHeaderCacheStats());
+        }
+        return decoded;
     }
 
     public static String unfoldAndDecode(String s) {
         return decode(unfold(s));
     }
 
+    /**
+     * Returns the size, hit and miss counts and the hit rate of the decoded header cache.
+     */
+    private static String getDecodedHeaderCacheStats() {
+        return sDecodedHeaderCache.toString();
+    }
+
     // TODO implement proper foldAndEncode
     // NOTE: When this really works, we *must* remove all calls to foldAndEncode2() to prevent
     // duplication of encoding.
@@ -218,56 +283,61 @@ public class MimeUtility {
     /**
      * Reads the Part's body and returns a String based on any charset conversion that needed
      * to be done.
+     * <p>
+     * The text is briefly held twice, in the builder it is decoded into and in the returned
+     * String. Callers that combine the text of several parts should use
+     * {@link #appendTextFromPart} into one builder instead.
      * @param part The part containing a body
      * @return a String containing the converted text in the body, or null if there was no text
      * or an error during conversion.
      */
     public static String getTextFromPart(Part part) {
+        final StringBuilder sb = new StringBuilder(getTextSizeHint(part));
+        if (appendTextFromPart(part, sb)) {
+            return sb.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the Part's body and appends its text to the given builder, decoding the charset
+     * directly from the (transfer decoded) body stream so that the text is never held as
+     * an intermediate byte array or String.
+     * @param part The part containing a body
+     * @param sb The builder to append the converted text to. If there is no text or an error
+     * occurs during conversion, the builder is left unchanged.
+     * @return true if the part contained text and it was appended
+     */
+    public static boolean appendTextFromPart(Part part, StringBuilder sb) {
+        final int originalLength = sb.length();
         try {
             if (part != null && part.getBody() != null) {
-                InputStream in = part.getBody().getInputStream();
                 String mimeType = part.getMimeType();
                 if (mimeType != null && MimeUtility.mimeTypeMatches(mimeType, "text/*")) {
-                    /*
-                     * Now we read the part into a buffer for further processing. Because
-                     * the stream is now wrapped we'll remove any transfer encoding at this point.
-                     */
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    IOUtils.copy(in, out);
-                    in.close();
-                    in = null;      // we want all of our memory back, and close might not release
-
                     /*
                      * We've got a text part, so let's see if it needs to be processed further.
                      */
-                    String charset = getHeaderParameter(part.getContentType(), "charset");
-                    if (charset != null) {
-                        /*
-                         * See if there is conversion from the MIME charset to the Java one.
-                         */
-                        charset = CharsetUtil.toJavaCharset(charset);
-                    }
+                    final Charset charset = getCharsetForPart(part);
                     /*
-                     * No encoding, so use us-ascii, which is the standard.
+                     * Because the stream is wrapped we'll remove any transfer encoding as we
+                     * read, and convert straight into the output.
                      */
-                    if (charset == null) {
-                        charset = "ASCII";
+                    final InputStream in = part.getBody().getInputStream();
+                    try {
+                        decodeText(in, charset, sb);
+                    } finally {
+                        in.close();
                     }
-                    /*
-                     * Convert and return as new String
-                     */
-                    String result = out.toString(charset);
-                    out.close();
-                    return result;
+                    return true;
                 }
             }
-
         }
         catch (OutOfMemoryError oom) {
             /*
              * If we are not able to process the body there's nothing we can do about it. Return
              * null and let the upper layers handle the missing content.
              */
+            sb.setLength(originalLength);
             Log.e(LOG_TAG, "Unable to getTextFromPart " + oom.toString());
         }
         catch (Exception e) {
@@ -275,9 +345,140 @@ public class MimeUtility {
              * If we are not able to process the body there's nothing we can do about it. Return
              * null and let the upper layers handle the missing content.
              */
+            sb.setLength(originalLength);
             Log.e(LOG_TAG, "Unable to getTextFromPart " + e.toString());
         }
-        return null;
+        return false;
+    }
+
+    /**
+     * Returns a capacity for a builder holding the text of the given part, estimated from the
+     * part's size and transfer encoding. The decoded bytes bound the number of characters, and
+     * base64 decodes to at most three bytes for every four.
+     */
+    @VisibleForTesting
+    static int getTextSizeHint(Part part) {
+        try {
+            if (part != null && part.getSize() > 0) {
+                int size = part.getSize();
+                final String[] encoding =
+                        part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+                if (encoding != null && "base64".equalsIgnoreCase(
+                        getHeaderParameter(encoding[0], null))) {
+                    size = size / 4 * 3;
+                }
+                return Math.min(size, MAX_TEXT_SIZE_HINT);
+            }
+        } catch (MessagingException e) {
+            // fall through to the default
+        }
+        return TEXT_BUFFER_SIZE;
+    }
+
+    /**
+     * Returns the Java {@link Charset} for the charset declared in the part's content type,
+     * defaulting to US-ASCII. Lookups are cached by the declared name.
+     */
+    private static Charset getCharsetForPart(Part part) throws MessagingException {
+        final String declared = getHeaderParameter(part.getContentType(), "charset");
+        if (declared == null) {
+            /*
+             * No encoding, so use us-ascii, which is the standard.
+             */
+            return US_ASCII;
+        }
+        Charset charset = sCharsetCache.get(declared);
+        if (charset == null) {
+            /*
+             * See if there is conversion from the MIME charset to the Java one.
+             */
+            final String javaName = CharsetUtil.toJavaCharset(declared);
+            charset = javaName != null ? Charset.forName(javaName) : US_ASCII;
+            sCharsetCache.put(declared, charset);
+        }
+        return charset;
+    }
+
+    /**
+     * Returns a reset decoder for the given charset, reusing one per thread and charset.
+     * Malformed input is replaced, matching the behavior of the String constructors.
+     */
+    private static CharsetDecoder getDecoder(Charset charset) {
+        final HashMap<Charset, CharsetDecoder> decoders = sDecoders.get();
+        CharsetDecoder decoder = decoders.get(charset);
+        if (decoder == null) {
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.put(charset, decoder);
+        }
+        return decoder.reset();
+    }
+
+    /**
+     * Decodes all bytes of the stream in the given charset and appends the result to the
+     * builder. Buffers containing only ASCII bytes are appended directly for ASCII compatible
+     * charsets, and ISO-8859-1 is always mapped directly.
+     */
+    /* package */ static void decodeText(InputStream in, Charset charset, StringBuilder sb)
+            throws IOException {
+        final boolean latin1 = ISO_8859_1.equals(charset);
+        final boolean asciiCompatible = latin1 || US_ASCII.equals(charset)
+                || UTF_8.equals(charset);
+        final CharsetDecoder decoder = latin1 ? null : getDecoder(charset);
+        final ByteBuffer bytes = ByteBuffer.allocate(TEXT_BUFFER_SIZE);
+        final CharBuffer chars = CharBuffer.allocate(TEXT_BUFFER_SIZE);
+        final byte[] array = bytes.array();
+
+        int count;
+        while ((count = in.read(array, bytes.position(), bytes.remaining())) != -1) {
+            bytes.position(bytes.position() + count);
+            final int end = bytes.position();
+            if (latin1 || (asciiCompatible && isAscii(array, end))) {
+                // no state is carried over by the decoder when every byte so far is ASCII
+                sb.ensureCapacity(sb.length() + end);
+                for (int i = 0; i < end; i++) {
+                    sb.append((char) (array[i] & 0xff));
+                }
+                bytes.clear();
+                continue;
+            }
+            bytes.flip();
+            decode(decoder, bytes, chars, sb, false);
+            // keep any partial character for the next read
+            bytes.compact();
+        }
+        if (decoder != null) {
+            bytes.flip();
+            decode(decoder, bytes, chars, sb, true);
+            while (decoder.flush(chars).isOverflow()) {
+                drain(chars, sb);
+            }
+            drain(chars, sb);
+        }
+    }
+
+    private static boolean isAscii(byte[] array, int end) {
+        for (int i = 0; i < end; i++) {
+            if (array[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars,
+            StringBuilder sb, boolean endOfInput) {
+        while (decoder.decode(bytes, chars, endOfInput).isOverflow()) {
+            drain(chars, sb);
+        }
+        drain(chars, sb);
+    }
+
+    private static void drain(CharBuffer chars, StringBuilder sb) {
+        chars.flip();
+        sb.append(chars.array(), 0, chars.limit());
+        chars.clear();
     }
 
     /**
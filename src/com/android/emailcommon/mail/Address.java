@@ -19,17 +19,16 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.Html;
 import android.text.TextUtils;
-import android.text.util.Rfc822Token;
-import android.text.util.Rfc822Tokenizer;
 
+import com.android.emailcommon.internet.MimeUtility;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.james.mime4j.codec.EncoderUtil;
-import org.apache.james.mime4j.decoder.DecoderUtil;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -62,29 +61,24 @@ public class Address implements Parcelable {
      */
     private String mSimplifiedName;
 
-    // Regex that matches address surrounded by '<>' optionally. '^<?([^>]+)>?$'
-    private static final Pattern REMOVE_OPTIONAL_BRACKET = Pattern.compile("^<?([^>]+)>?$");
     // Regex that matches personal name surrounded by '""' optionally. '^"?([^"]+)"?$'
     private static final Pattern REMOVE_OPTIONAL_DQUOTE = Pattern.compile("^\"?([^\"]*)\"?$");
     // Regex that matches escaped character '\\([\\"])'
     private static final Pattern UNQUOTE = Pattern.compile("\\\\([\\\\\"])");
-
-    // TODO: LOCAL_PART and DOMAIN_PART_PART are too permissive and can be improved.
-    // TODO: Fix this to better constrain comments.
-    /** Regex for the local part of an email address. */
-    private static final String LOCAL_PART = "[^@]+";
-    /** Regex for each part of the domain part, i.e. the thing between the dots. */
-    private static final String DOMAIN_PART_PART = "[[\\w][\\d]\\-\\(\\)\\[\\]]+";
-    /** Regex for the domain part, which is two or more {@link #DOMAIN_PART_PART} separated by . */
-    private static final String DOMAIN_PART =
-            "(" + DOMAIN_PART_PART + "\\.)+" + DOMAIN_PART_PART;
-
-    /** Pattern to check if an email address is valid. */
-    private static final Pattern EMAIL_ADDRESS =
-            Pattern.compile("\\A" + LOCAL_PART + "@" + DOMAIN_PART + "\\z");
+    // Regex that matches a personal name containing characters that must be quoted
+    private static final Pattern NEEDS_QUOTING = Pattern.compile(".*[\\(\\)<>@,;:\\\\\".\\[\\]].*");
+    // Regex that matches a string surrounded by '""'
+    private static final Pattern QUOTED_STRING = Pattern.compile("^\".*\"$");
 
     private static final Address[] EMPTY_ADDRESS_ARRAY = new Address[0];
 
+    /** Bound on the number of raw addresses remembered by {@link #parse(String)} */
+    private static final int PARSED_ADDRESS_CACHE_SIZE = 1024;
+    /** Raw address to parsed address, or to {@link #INVALID_ADDRESS} */
+    private static final ConcurrentHashMap<String, Address> sParsedAddressCache =
+            new ConcurrentHashMap<String, Address>();
+    private static final Address INVALID_ADDRESS = new Address("", null);
+
     // delimiters are chars that do not appear in an email address, used by fromHeader
     private static final char LIST_DELIMITER_EMAIL = '\1';
     private static final char LIST_DELIMITER_PERSONAL = '\2';
@@ -101,6 +95,11 @@ public class Address implements Parcelable {
         setAddress(address);
     }
 
+    private Address(Address other) {
+        mAddress = other.mAddress;
+        mPersonal = other.mPersonal;
+    }
+
     /**
      * Returns a simplified string for this e-mail address.
      * When a name is known, it will return the first token of that name. Otherwise, it will
@@ -129,31 +128,67 @@ public class Address implements Parcelable {
         return mSimplifiedName;
     }
 
-    public static synchronized Address getEmailAddress(String rawAddress) {
+    public static Address getEmailAddress(String rawAddress) {
         if (TextUtils.isEmpty(rawAddress)) {
             return null;
         }
         String name, address;
-        final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(rawAddress);
-        if (tokens.length > 0) {
-            final String tokenizedName = tokens[0].getName();
-            name = tokenizedName != null ? Html.fromHtml(tokenizedName.trim()).toString()
-                    : "";
-            address = Html.fromHtml(tokens[0].getAddress()).toString();
+        final AddressListScanner scanner = new AddressListScanner(rawAddress);
+        if (scanner.next()) {
+            final String tokenizedName = scanner.getName();
+            name = tokenizedName != null ? fromHtml(tokenizedName.trim()) : "";
+            address = fromHtml(scanner.getAddress());
         } else {
             name = "";
-            address = rawAddress == null ?
-                    "" : Html.fromHtml(rawAddress).toString();
+            address = fromHtml(rawAddress);
         }
         return new Address(address, name);
     }
 
+    /**
+     * Returns the text of the given html, only running the html parser when the string contains
+     * markup, entities or whitespace that html would collapse.
+     */
+    private static String fromHtml(String html) {
+        final int length = html.length();
+        boolean previousSpace = true;
+        for (int i = 0; i < length; i++) {
+            final char c = html.charAt(i);
+            if (c == '<' || c == '>' || c == '&' || (c == ' ' && previousSpace)
+                    || (c != ' ' && Character.isWhitespace(c))) {
+                return Html.fromHtml(html).toString();
+            }
+            previousSpace = c == ' ';
+        }
+        if (previousSpace && length > 0) {
+            return Html.fromHtml(html).toString();
+        }
+        return html;
+    }
+
     public String getAddress() {
         return mAddress;
     }
 
     public void setAddress(String address) {
-        mAddress = REMOVE_OPTIONAL_BRACKET.matcher(address).replaceAll("$1");
+        mAddress = removeOptionalBrackets(address);
+    }
+
+    /**
+     * Removes the angle brackets optionally surrounding an address. Equivalent to replacing
+     * {@code ^<?([^>]+)>?$} with the group, without a regex.
+     */
+    private static String removeOptionalBrackets(String address) {
+        final int length = address.length();
+        int end = length;
+        if (end > 0 && address.charAt(end - 1) == '>') {
+            end--;
+        }
+        final int start = (end > 1 && address.charAt(0) == '<') ? 1 : 0;
+        if (start == end || address.lastIndexOf('>', end - 1) >= start) {
+            return address;
+        }
+        return (start == 0 && end == length) ? address : address.substring(start, end);
     }
 
     /**
@@ -183,9 +218,14 @@ public class Address implements Parcelable {
      */
     public static String decodeAddressPersonal(String personal) {
         if (personal != null) {
-            personal = REMOVE_OPTIONAL_DQUOTE.matcher(personal).replaceAll("$1");
-            personal = UNQUOTE.matcher(personal).replaceAll("$1");
-            personal = DecoderUtil.decodeEncodedWords(personal);
+            // most names have nothing to unquote
+            if (personal.indexOf('"') != -1) {
+                personal = REMOVE_OPTIONAL_DQUOTE.matcher(personal).replaceAll("$1");
+            }
+            if (personal.indexOf('\\') != -1) {
+                personal = UNQUOTE.matcher(personal).replaceAll("$1");
+            }
+            personal = MimeUtility.decode(personal);
             if (personal.length() == 0) {
                 personal = null;
             }
@@ -200,13 +240,10 @@ public class Address implements Parcelable {
     @VisibleForTesting
     public static boolean isAllValid(String addressList) {
         // This code mimics the parse() method below.
-        // I don't know how to better avoid the code-duplication.
         if (addressList != null && addressList.length() > 0) {
-            Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(addressList);
-            for (int i = 0, length = tokens.length; i < length; ++i) {
-                Rfc822Token token = tokens[i];
-                String address = token.getAddress();
-                if (!TextUtils.isEmpty(address) && !isValidAddress(address)) {
+            final AddressListScanner scanner = new AddressListScanner(addressList);
+            while (scanner.next()) {
+                if (!isValidAddress(scanner.getAddress())) {
                     return false;
                 }
             }
@@ -225,21 +262,40 @@ public class Address implements Parcelable {
         if (addressList == null || addressList.length() == 0) {
             return EMPTY_ADDRESS_ARRAY;
         }
-        Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(addressList);
-        ArrayList<Address> addresses = new ArrayList<Address>();
-        for (int i = 0, length = tokens.length; i < length; ++i) {
-            Rfc822Token token = tokens[i];
-            String address = token.getAddress();
-            if (!TextUtils.isEmpty(address)) {
+        final AddressListScanner scanner = new AddressListScanner(addressList);
+        ArrayList<Address> addresses = null;
+        while (scanner.next()) {
+            // Recipient lists repeat the same few addresses over and over, so remember the
+            // result for each raw address, including whether it was invalid.
+            final String rawToken = scanner.getRawToken();
+            Address parsed = sParsedAddressCache.get(rawToken);
+            if (parsed == null) {
+                final String address = scanner.getAddress();
                 if (isValidAddress(address)) {
-                    String name = token.getName();
+                    String name = scanner.getName();
                     if (TextUtils.isEmpty(name)) {
                         name = null;
                     }
-                    addresses.add(new Address(address, name));
+                    parsed = new Address(address, name);
+                } else {
+                    parsed = INVALID_ADDRESS;
+                }
+                if (sParsedAddressCache.size() >= PARSED_ADDRESS_CACHE_SIZE) {
+                    sParsedAddressCache.clear();
+                }
+                sParsedAddressCache.put(rawToken, parsed);
+            }
+            if (parsed != INVALID_ADDRESS) {
+                if (addresses == null) {
+                    addresses = new ArrayList<Address>();
                 }
+                // Addresses are mutable, so callers each get their own copy
+                addresses.add(new Address(parsed));
             }
         }
+        if (addresses == null) {
+            return EMPTY_ADDRESS_ARRAY;
+        }
         return addresses.toArray(new Address[addresses.size()]);
     }
 
@@ -249,7 +305,7 @@ public class Address implements Parcelable {
      */
     @VisibleForTesting
     static boolean isValidAddress(final String address) {
-        return EMAIL_ADDRESS.matcher(address).find();
+        return AddressListScanner.isValidAddress(address);
     }
 
     @Override
@@ -282,7 +338,7 @@ public class Address implements Parcelable {
     @Override
     public String toString() {
         if (mPersonal != null && !mPersonal.equals(mAddress)) {
-            if (mPersonal.matches(".*[\\(\\)<>@,;:\\\\\".\\[\\]].*")) {
+            if (NEEDS_QUOTING.matcher(mPersonal).matches()) {
                 return ensureQuotedString(mPersonal) + " <" + mAddress + ">";
             } else {
                 return mPersonal + " <" + mAddress + ">";
@@ -310,7 +366,7 @@ public class Address implements Parcelable {
         if (s == null) {
             return null;
         }
-        if (!s.matches("^\".*\"$")) {
+        if (!QUOTED_STRING.matcher(s).matches()) {
             return "\"" + s + "\"";
         } else {
             return s;
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.emailcommon.mail;
+
+/**
+ * Single pass scanner over a comma (or semicolon) delimited list of RFC822 addresses.
+ *
+ * It splits the list exactly like {@link android.text.util.Rfc822Tokenizer} does, so the names
+ * and addresses it returns are the same as those of the {@link android.text.util.Rfc822Token}s
+ * the tokenizer would create, but it reuses its buffers between tokens and does not keep the
+ * comments. Instances are cheap and not thread safe; create one per list.
+ *
+ * <pre>
+ * AddressListScanner scanner = new AddressListScanner(list);
+ * while (scanner.next()) {
+ *     use(scanner.getName(), scanner.getAddress());
+ * }
+ * </pre>
+ */
+final class AddressListScanner {
+    private final String mText;
+    private final int mLength;
+    private int mPosition;
+
+    private final StringBuilder mName = new StringBuilder();
+    private final StringBuilder mAddress = new StringBuilder();
+
+    private int mTokenStart;
+    private int mTokenEnd;
+    private String mTokenName;
+    private String mTokenAddress;
+
+    AddressListScanner(String text) {
+        mText = text;
+        mLength = text.length();
+    }
+
+    /**
+     * Advances to the next non-empty token in the list.
+     * @return false if there are no more tokens
+     */
+    boolean next() {
+        while (mPosition < mLength) {
+            scanToken();
+            if (mAddress.length() > 0) {
+                mTokenName = mName.toString();
+                mTokenAddress = mAddress.toString();
+                return true;
+            } else if (mName.length() > 0) {
+                mTokenName = null;
+                mTokenAddress = mName.toString();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the display name of the current token, with unquoted whitespace collapsed and
+     * trimmed. Empty if there is none, or null if the token had no angle bracketed address, in
+     * which case the whole token is returned by {@link #getAddress()}.
+     */
+    String getName() {
+        return mTokenName;
+    }
+
+    /**
+     * @return the address of the current token, never empty.
+     */
+    String getAddress() {
+        return mTokenAddress;
+    }
+
+    /**
+     * @return the unparsed text of the current token, without the delimiter.
+     */
+    String getRawToken() {
+        return mText.substring(mTokenStart, mTokenEnd);
+    }
+
+    /**
+     * Scans from the current position up to and including the next delimiter, filling the name
+     * and address buffers.
+     */
+    private void scanToken() {
+        final String text = mText;
+        final int length = mLength;
+        final StringBuilder name = mName;
+        final StringBuilder address = mAddress;
+        name.setLength(0);
+        address.setLength(0);
+
+        // Unquoted whitespace collapses to a single space between name characters, but is
+        // dropped next to a quoted space and at either end of the name.
+        boolean pendingSpace = false;
+
+        int i = mPosition;
+        while (i < length && text.charAt(i) == ' ') {
+            i++;
+        }
+        mTokenStart = i;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == ',' || c == ';') {
+                break;
+            } else if (c == '"') {
+                i++;
+                while (i < length) {
+                    c = text.charAt(i);
+                    if (c == '"') {
+                        i++;
+                        break;
+                    } else if (c == '\\') {
+                        if (i + 1 < length) {
+                            pendingSpace = appendName(text.charAt(i + 1), pendingSpace);
+                        }
+                        i += 2;
+                    } else {
+                        pendingSpace = appendName(c, pendingSpace);
+                        i++;
+                    }
+                }
+            } else if (c == '(') {
+                // comments are skipped
+                int level = 1;
+                i++;
+                while (i < length && level > 0) {
+                    c = text.charAt(i);
+                    if (c == ')') {
+                        level--;
+                        i++;
+                    } else if (c == '(') {
+                        level++;
+                        i++;
+                    } else if (c == '\\') {
+                        i += 2;
+                    } else {
+                        i++;
+                    }
+                }
+            } else if (c == '<') {
+                i++;
+                while (i < length) {
+                    c = text.charAt(i);
+                    i++;
+                    if (c == '>') {
+                        break;
+                    }
+                    address.append(c);
+                }
+            } else if (c == ' ') {
+                pendingSpace = true;
+                i++;
+            } else {
+                pendingSpace = appendName(c, pendingSpace);
+                i++;
+            }
+        }
+        mTokenEnd = Math.min(i, length);
+        mPosition = i + 1;
+    }
+
+    private boolean appendName(char c, boolean pendingSpace) {
+        final StringBuilder name = mName;
+        if (pendingSpace && c != ' ') {
+            final int length = name.length();
+            if (length > 0 && name.charAt(length - 1) != ' ') {
+                name.append(' ');
+            }
+        }
+        name.append(c);
+        return false;
+    }
+
+    /**
+     * Checks whether a string email address is valid: a non-empty local part without '@',
+     * followed by '@' and two or more non-empty domain parts separated by dots. Domain parts
+     * may contain word characters, '-', '(', ')', '[' and ']'.
+     */
+    static boolean isValidAddress(String address) {
+        final int at = address.indexOf('@');
+        if (at <= 0 || address.indexOf('@', at + 1) != -1) {
+            return false;
+        }
+        final int length = address.length();
+        int parts = 0;
+        int partStart = at + 1;
+        int i = partStart;
+        while (i <= length) {
+            if (i == length || address.charAt(i) == '.') {
+                if (i == partStart) {
+                    return false;
+                }
+                parts++;
+                partStart = ++i;
+            } else {
+                final int codePoint = address.codePointAt(i);
+                if (!isDomainPartCharacter(codePoint)) {
+                    return false;
+                }
+                i += Character.charCount(codePoint);
+            }
+        }
+        return parts >= 2;
+    }
+
+    private static boolean isDomainPartCharacter(int c) {
+        switch (c) {
+            case '-':
+            case '(':
+            case ')':
+            case '[':
+            case ']':
+            case '_':
+                return true;
+        }
+        if (c < 0x80) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+        }
+        // the platform regex treats \w as Unicode word characters
+        switch (Character.getType(c)) {
+            case Character.UPPERCASE_LETTER:
+            case Character.LOWERCASE_LETTER:
+            case Character.TITLECASE_LETTER:
+            case Character.MODIFIER_LETTER:
+            case Character.OTHER_LETTER:
+            case Character.LETTER_NUMBER:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.CONNECTOR_PUNCTUATION:
+                return true;
+            default:
+                return c == 0x200c || c == 0x200d;
+        }
+    }
+}
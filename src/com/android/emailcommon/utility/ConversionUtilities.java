@@ -27,23 +27,17 @@ import java.util.ArrayList;
 
 public class ConversionUtilities {
     /**
-     * Helper function to append text to a StringBuffer, creating it if necessary.
-     * Optimization:  The majority of the time we are *not* appending - we should have a path
-     * that deals with single strings.
+     * Helper function to append the text of a part to a StringBuilder, separating it from
+     * any previous text with a newline. The builder is left unchanged if the part has no text.
      */
-    private static StringBuffer appendTextPart(StringBuffer sb, String newText) {
-        if (newText == null) {
-            return sb;
+    private static void appendTextPart(StringBuilder sb, Part part) {
+        final int length = sb.length();
+        if (length > 0) {
+            sb.append('\n');
         }
-        else if (sb == null) {
-            sb = new StringBuffer(newText);
-        } else {
-            if (sb.length() > 0) {
-                sb.append('\n');
-            }
-            sb.append(newText);
+        if (!MimeUtility.appendTextFromPart(part, sb)) {
+            sb.setLength(length);
         }
-        return sb;
     }
 
     /**
@@ -64,19 +58,19 @@ public class ConversionUtilities {
     public static BodyFieldData parseBodyFields(ArrayList<Part> viewables)
     throws MessagingException {
         final BodyFieldData data = new BodyFieldData();
-        StringBuffer sbHtml = null;
-        StringBuffer sbText = null;
+
+        // The text of each part is decoded straight into the builder of its kind, instead of
+        // into a String per part that is then copied into the combined text
+        final StringBuilder sbHtml = new StringBuilder();
+        final StringBuilder sbText = new StringBuilder();
 
         for (Part viewable : viewables) {
-            String text = MimeUtility.getTextFromPart(viewable);
             // Deploy text as marked by the various tags
-            boolean isHtml = "text/html".equalsIgnoreCase(viewable.getMimeType());
-
             // Most of the time, just process regular body parts
-            if (isHtml) {
-                sbHtml = appendTextPart(sbHtml, text);
+            if (isHtml(viewable)) {
+                appendTextPart(sbHtml, viewable);
             } else {
-                sbText = appendTextPart(sbText, text);
+                appendTextPart(sbText, viewable);
             }
         }
 
@@ -95,4 +89,8 @@ public class ConversionUtilities {
         }
         return data;
     }
+
+    private static boolean isHtml(Part part) throws MessagingException {
+        return "text/html".equalsIgnoreCase(part.getMimeType());
+    }
 }
@@ -21,6 +21,13 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 
 public class ContactInfo {
+    /**
+     * Returned for emails that the {@link NegativeContactCache} reports as having no contact.
+     * The negative cache can be wrong about an email, so this must not be remembered anywhere
+     * else as a missing photo.
+     */
+    public static final ContactInfo UNVERIFIED = new ContactInfo(null);
+
     public final Uri contactUri;
     public final byte[] photoBytes;
     public final Bitmap photo;
@@ -43,6 +50,11 @@ public class ContactInfo {
         this.photo = photo;
     }
 
+    /** Returns false if the contact was not looked up; see {@link #UNVERIFIED}. */
+    public boolean isVerified() {
+        return this != UNVERIFIED;
+    }
+
     @Override
     public String toString() {
         return "{photo=" + (photo != null ? photo : photoBytes) + "}";
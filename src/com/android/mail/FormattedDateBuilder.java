@@ -16,19 +16,79 @@
  */
 package com.android.mail;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
 import android.text.format.DateUtils;
 
+import com.android.mail.utils.LongLruCache;
+import com.google.common.annotations.VisibleForTesting;
+
 import java.util.Calendar;
 import java.util.Formatter;
+import java.util.TimeZone;
 
 /**
  * Convenience class to efficiently make multiple short date strings. Instantiating and reusing
  * one of these builders is faster than repeatedly bringing up all the locale stuff.
- *
+ * <p>
+ * Formatted strings are shared between all builders: strings with a time are cached per minute
+ * and strings with only a date per day, so the rows of a conversation list that share a date
+ * only format it once. Builders themselves are not thread safe.
  */
 public class FormattedDateBuilder {
 
+    /** Formatted strings to keep, by (local minute or day, format flags). */
+    private static final int FORMATTED_CACHE_SIZE = 512;
+
+    private static final Object sCacheLock = new Object();
+    private static final LongLruCache<String> sFormattedCache =
+            new LongLruCache<String>(FORMATTED_CACHE_SIZE);
+    /** Whether the listeners for clock setting changes have been registered. */
+    private static boolean sListening;
+    /** Incremented when the caches are cleared, so strings formatted before are not cached. */
+    private static int sCacheGeneration;
+    private static int sCacheHits;
+    private static int sCacheMisses;
+
+    /** The current day and year, recomputed once a day or when the clock settings change. */
+    private static volatile Boundaries sBoundaries;
+
+    private static final class Boundaries {
+        final TimeZone timeZone;
+        final long todayStart;
+        final long tomorrowStart;
+        final long yearStart;
+        final long nextYearStart;
+
+        Boundaries(long now) {
+            timeZone = TimeZone.getDefault();
+            final Calendar cal = Calendar.getInstance(timeZone);
+            cal.setTimeInMillis(now);
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            todayStart = cal.getTimeInMillis();
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+            tomorrowStart = cal.getTimeInMillis();
+            cal.setTimeInMillis(todayStart);
+            cal.set(Calendar.DAY_OF_YEAR, 1);
+            yearStart = cal.getTimeInMillis();
+            cal.add(Calendar.YEAR, 1);
+            nextYearStart = cal.getTimeInMillis();
+        }
+
+        boolean contains(long now) {
+            return now >= todayStart && now < tomorrowStart;
+        }
+    }
+
     private final StringBuilder sb;
     private final Formatter dateFormatter;
     private final Context mContext;
@@ -37,6 +97,90 @@ public class FormattedDateBuilder {
         mContext = context;
         sb = new StringBuilder();
         dateFormatter = new Formatter(sb);
+        startListening(context);
+    }
+
+    /**
+     * Drops the cached boundaries and strings when the time, time zone, 12/24 hour setting or
+     * locale change, since any of them can change how a date is formatted. The listeners are
+     * registered once, on the application context, and stay registered for the life of the
+     * process, as the cache they clear does.
+     */
+    private static void startListening(Context context) {
+        synchronized (sCacheLock) {
+            if (sListening) {
+                return;
+            }
+            sListening = true;
+        }
+        final Context appContext = context.getApplicationContext();
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_DATE_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                clearCaches();
+            }
+        }, filter);
+        // Settings sends ACTION_TIME_CHANGED when the 12/24 hour setting changes, but other
+        // writers of the setting may not.
+        appContext.getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.TIME_12_24), false,
+                new ContentObserver(new Handler(Looper.getMainLooper())) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clearCaches();
+                    }
+                });
+    }
+
+    @VisibleForTesting
+    static void clearCaches() {
+        synchronized (sCacheLock) {
+            sBoundaries = null;
+            sFormattedCache.evictAll();
+            sCacheGeneration++;
+        }
+    }
+
+    /** Returns the number of strings that were served from the cache. */
+    @VisibleForTesting
+    static int getCacheHitCount() {
+        synchronized (sCacheLock) {
+            return sCacheHits;
+        }
+    }
+
+    /** Returns the number of strings that had to be formatted. */
+    @VisibleForTesting
+    static int getCacheMissCount() {
+        synchronized (sCacheLock) {
+            return sCacheMisses;
+        }
+    }
+
+    private static Boundaries getBoundaries() {
+        final long now = System.currentTimeMillis();
+        Boundaries boundaries = sBoundaries;
+        if (boundaries == null || !boundaries.contains(now)) {
+            boundaries = new Boundaries(now);
+            sBoundaries = boundaries;
+        }
+        return boundaries;
+    }
+
+    /**
+     * Returns a stamp of what {@link #formatShortDateTime} formats against: the current day and
+     * the clock settings. A short date formatted while the stamp was the same is still current.
+     */
+    public static long getShortDateStamp() {
+        final Boundaries boundaries = getBoundaries();
+        synchronized (sCacheLock) {
+            return 31 * boundaries.todayStart + sCacheGeneration;
+        }
     }
 
     /**
@@ -50,9 +194,10 @@ public class FormattedDateBuilder {
      * @return The formatted date
      */
     public CharSequence formatShortDateTime(long when) {
-        if (DateUtils.isToday(when)) {
+        final Boundaries boundaries = getBoundaries();
+        if (isToday(boundaries, when)) {
             return formatDateTime(when, DateUtils.FORMAT_SHOW_TIME);
-        } else if (isCurrentYear(when)) {
+        } else if (isCurrentYear(boundaries, when)) {
             return formatDateTime(when, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_ABBREV_MONTH);
         } else {
             return formatDateTime(when, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_NUMERIC_DATE);
@@ -72,9 +217,10 @@ public class FormattedDateBuilder {
      * @return The formatted date
      */
     public CharSequence formatLongDateTime(long when) {
-        if (DateUtils.isToday(when)) {
+        final Boundaries boundaries = getBoundaries();
+        if (isToday(boundaries, when)) {
             return formatDateTime(when, DateUtils.FORMAT_SHOW_TIME);
-        } else if (isCurrentYear(when)) {
+        } else if (isCurrentYear(boundaries, when)) {
             return getRelativeDateTimeString(mContext, when, DateUtils.DAY_IN_MILLIS,
                     2 * DateUtils.WEEK_IN_MILLIS,
                     DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_ABBREV_MONTH);
@@ -92,11 +238,8 @@ public class FormattedDateBuilder {
      * @return The formatted date
      */
     public CharSequence formatFullDateTime(long when) {
-        sb.setLength(0);
-        DateUtils.formatDateRange(mContext, dateFormatter, when, when,
-                DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE |
+        return formatDateTime(when, DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE |
                 DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_ABBREV_ALL);
-        return sb.toString();
     }
 
     /**
@@ -113,17 +256,48 @@ public class FormattedDateBuilder {
                         formatDateTime(when, DateUtils.FORMAT_SHOW_TIME));
     }
 
-    private boolean isCurrentYear(long when) {
-        final Calendar nowCal = Calendar.getInstance();
-        final Calendar whenCal = Calendar.getInstance();
-        whenCal.setTimeInMillis(when);
-        return (nowCal.get(Calendar.YEAR) == whenCal.get(Calendar.YEAR));
+    private static boolean isToday(Boundaries boundaries, long when) {
+        return when >= boundaries.todayStart && when < boundaries.tomorrowStart;
     }
 
-    private CharSequence formatDateTime(long when, int flags) {
+    private static boolean isCurrentYear(Boundaries boundaries, long when) {
+        return when >= boundaries.yearStart && when < boundaries.nextYearStart;
+    }
+
+    /**
+     * Formats a time, or returns the string cached for its local minute (if the flags show the
+     * time) or local day (if they only show the date).
+     */
+    private String formatDateTime(long when, int flags) {
+        final TimeZone timeZone = getBoundaries().timeZone;
+        final long local = when + timeZone.getOffset(when);
+        final long bucketSize = (flags & DateUtils.FORMAT_SHOW_TIME) != 0
+                ? DateUtils.MINUTE_IN_MILLIS : DateUtils.DAY_IN_MILLIS;
+        long bucket = local / bucketSize;
+        if (local < 0 && local % bucketSize != 0) {
+            bucket--;
+        }
+        final long key = (bucket << 32) | (flags & 0xffffffffL);
+
+        final int generation;
+        synchronized (sCacheLock) {
+            final String cached = sFormattedCache.get(key);
+            if (cached != null) {
+                sCacheHits++;
+                return cached;
+            }
+            sCacheMisses++;
+            generation = sCacheGeneration;
+        }
         sb.setLength(0);
         DateUtils.formatDateRange(mContext, dateFormatter, when, when, flags);
-        return sb.toString();
+        final String formatted = sb.toString();
+        synchronized (sCacheLock) {
+            if (generation == sCacheGeneration) {
+                sFormattedCache.put(key, formatted);
+            }
+        }
+        return formatted;
     }
 
     /**
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.text.format.DateUtils;
+
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the email addresses that have no entry in the contacts provider, so that the
+ * senders of automated mail are not looked up again on every bind. Shared by everything that
+ * queries contacts by email address.
+ * <p>
+ * The addresses are kept in two Bloom filters: new addresses go into the current one, and every
+ * half {@link #TTL_MS} the older filter is dropped, so an address is remembered for between half
+ * and one TTL. A Bloom filter can claim to contain an address that was never added; at the
+ * expected number of addresses this happens for well under 0.1% of them, which then go without a
+ * photo until the next rotation. Both filters are cleared whenever contacts change.
+ */
+public class NegativeContactCache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    @VisibleForTesting
+    static final long TTL_MS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+    /** 8KB per filter, which keeps false positives rare up to a few thousand addresses. */
+    private static final int FILTER_BITS = 1 << 16;
+    private static final int HASH_COUNT = 4;
+
+    private static NegativeContactCache sInstance;
+
+    private long[] mCurrent = new long[FILTER_BITS / 64];
+    private long[] mPrevious = new long[FILTER_BITS / 64];
+    private long mRotatedAtMs;
+
+    private int mChecks;
+    private int mQueriesAvoided;
+    private int mAdded;
+    private int mClears;
+
+    /**
+     * Returns the shared cache, which is cleared when the contacts provider behind the resolver
+     * changes.
+     */
+    public static synchronized NegativeContactCache getInstance(ContentResolver resolver) {
+        if (sInstance == null) {
+            sInstance = new NegativeContactCache(SystemClock.elapsedRealtime());
+            // Without a handler, changes are delivered on a binder thread. The observer does
+            // not keep the resolver.
+            resolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI,
+                    true /* notifyForDescendents */, new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            sInstance.clear();
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    NegativeContactCache(long nowMs) {
+        mRotatedAtMs = nowMs;
+    }
+
+    /**
+     * Returns true if the address is known to have no contact, in which case the caller skips
+     * its query.
+     */
+    public boolean isKnownMissing(String email) {
+        return isKnownMissing(email, SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    synchronized boolean isKnownMissing(String email, long nowMs) {
+        rotateIfNeeded(nowMs);
+        mChecks++;
+        final long hash = hash(email);
+        if (contains(mCurrent, hash) || contains(mPrevious, hash)) {
+            mQueriesAvoided++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that a query found no contact for the address.
+     */
+    public void addMissing(String email) {
+        addMissing(email, SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    synchronized void addMissing(String email, long nowMs) {
+        rotateIfNeeded(nowMs);
+        final long hash = hash(email);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            final int bit = (h1 + i * h2) & (FILTER_BITS - 1);
+            mCurrent[bit >>> 6] |= 1L << bit;
+        }
+        mAdded++;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mCurrent, 0);
+        Arrays.fill(mPrevious, 0);
+        mClears++;
+        LogUtils.d(LOG_TAG, "NegativeContactCache cleared: %s", this);
+    }
+
+    public synchronized int getQueriesAvoided() {
+        return mQueriesAvoided;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NegativeContactCache{checks=" + mChecks + " avoided=" + mQueriesAvoided
+                + " added=" + mAdded + " clears=" + mClears + "}";
+    }
+
+    private void rotateIfNeeded(long nowMs) {
+        final long elapsed = nowMs - mRotatedAtMs;
+        if (elapsed < TTL_MS / 2) {
+            return;
+        }
+        if (elapsed < TTL_MS) {
+            final long[] dropped = mPrevious;
+            Arrays.fill(dropped, 0);
+            mPrevious = mCurrent;
+            mCurrent = dropped;
+        } else {
+            // Both filters are older than the TTL.
+            Arrays.fill(mCurrent, 0);
+            Arrays.fill(mPrevious, 0);
+        }
+        mRotatedAtMs = nowMs;
+    }
+
+    private static boolean contains(long[] filter, long hash) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            final int bit = (h1 + i * h2) & (FILTER_BITS - 1);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Two independent 32 bit hashes of the address, for double hashing. Addresses are not case
+     * folded, since the provider matches them exactly.
+     */
+    private static long hash(String email) {
+        int h1 = 0;
+        int h2 = 0x811c9dc5;
+        for (int i = 0, length = email.length(); i < length; i++) {
+            final char c = email.charAt(i);
+            h1 = 31 * h1 + c;
+            h2 = (h2 ^ c) * 0x01000193;
+        }
+        // Spread the bits of the polynomial hash, and keep the second hash odd so that the
+        // probes never collapse onto one bit.
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        return ((long) (h2 | 1) << 32) | (h1 & 0xffffffffL);
+    }
+}
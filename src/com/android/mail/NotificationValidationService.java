@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.mail;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+
+import com.android.mail.utils.NotificationScheduler;
+
+/**
+ * A service that does nothing. It is started while folder notifications are waiting to be
+ * validated, or being validated, on the threads of the notification scheduler, so that the
+ * process isn't killed once the {@link MailIntentService} that requested them finishes.
+ */
+public class NotificationValidationService extends Service {
+    /** Starts the service while a scheduler has work, and stops it when the work is done. */
+    public static final NotificationScheduler.KeepAlive KEEP_ALIVE =
+            new NotificationScheduler.KeepAlive() {
+                @Override
+                public void acquire(Context context) {
+                    context.startService(new Intent(context, NotificationValidationService.class));
+                }
+
+                @Override
+                public void release(Context context) {
+                    context.stopService(new Intent(context, NotificationValidationService.class));
+                }
+            };
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The validations are lost with the process, and requested again by the next sync.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -112,6 +112,8 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
      *     <li>Both {@link ContactInfo#photoBytes} and {@link ContactInfo#photo} are null -
      *     Photo load failed.</li>
      * </ul>
+     * Emails that the {@link NegativeContactCache} knows to have no contact are not queried, and
+     * map to {@link ContactInfo#UNVERIFIED}, which callers must not cache.
      */
     public static ImmutableMap<String, ContactInfo> loadContactPhotos(
             final ContentResolver resolver, final Set<String> emails, final boolean decodeBitmaps) {
@@ -121,10 +123,26 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
         Trace.beginSection("build first query");
         Map<String, ContactInfo> results = Maps.newHashMap();
 
+        // Skip the emails that were recently found to have no contact.
+        final NegativeContactCache negativeCache = NegativeContactCache.getInstance(resolver);
+        final ArrayList<String> unknownEmails = new ArrayList<String>(emails.size());
+        for (String email : emails) {
+            if (negativeCache.isKnownMissing(email)) {
+                results.put(email, ContactInfo.UNVERIFIED);
+            } else {
+                unknownEmails.add(email);
+            }
+        }
+        if (unknownEmails.isEmpty()) {
+            Trace.endSection();
+            Trace.endSection();
+            return ImmutableMap.copyOf(results);
+        }
+
         // temporary structures
         Map<Long, Pair<String, ContactInfo>> photoIdMap = Maps.newHashMap();
         ArrayList<String> photoIdsAsStrings = new ArrayList<String>();
-        ArrayList<String> emailsList = getTruncatedQueryParams(emails);
+        ArrayList<String> emailsList = getTruncatedQueryParams(unknownEmails);
 
         // Build first query
         StringBuilder query = new StringBuilder()
@@ -174,6 +192,7 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
             for (String email : emailsList) {
                 if (!results.containsKey(email)) {
                     results.put(email, new ContactInfo(null));
+                    negativeCache.addMissing(email);
                 }
             }
 
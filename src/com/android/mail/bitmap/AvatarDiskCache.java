@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.bitmap;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract;
+import android.text.format.DateUtils;
+
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Keeps contact avatars on disk, so that they can be shown after a process start without
+ * querying the contacts provider again. Entries are keyed by (email, size, shape) and hold the
+ * compressed image, or nothing when the contact is known to have no photo.
+ * <p>
+ * The cache is cleared when the contacts provider changes. Since changes made while the process
+ * was not running cannot be observed, the first access of each process checks whether contacts
+ * were updated or deleted since the cache was last validated, which costs one small query
+ * instead of one per avatar. Before JB MR2 the provider does not expose that, and entries simply
+ * expire after a day.
+ * <p>
+ * All methods do disk I/O and must be called on a background thread.
+ */
+public class AvatarDiskCache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    public static final int SHAPE_SQUARE = 0;
+    public static final int SHAPE_CIRCLE = 1;
+
+    /** Returned by {@link #get} for contacts that are known to have no photo. */
+    public static final byte[] NO_PHOTO = new byte[0];
+
+    private static final String DIRECTORY = "avatars";
+    private static final String VALIDATED_FILE = "validated";
+    private static final int MAGIC = 0x41564154; // "AVAT"
+    private static final int VERSION = 1;
+
+    /** Avatars are small, so this holds a few hundred of them. */
+    private static final long MAX_CACHE_BYTES = 2 * 1024 * 1024;
+    /** How long entries are trusted when contact changes cannot be detected. */
+    @VisibleForTesting
+    static final long UNVALIDATED_MAX_AGE_MS = DateUtils.DAY_IN_MILLIS;
+
+    private static final int PNG_QUALITY = 100;
+    private static final int JPEG_QUALITY = 85;
+
+    private static AvatarDiskCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final File mDirectory;
+    private final boolean mCanDetectContactChanges;
+    private boolean mValidated;
+    private long mSizeBytes = -1;
+
+    private int mHits;
+    private int mMisses;
+
+    public static synchronized AvatarDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AvatarDiskCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AvatarDiskCache(Context context) {
+        this(context.getContentResolver(), new File(context.getCacheDir(), DIRECTORY),
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2);
+
+        // Without a handler, changes are delivered on a binder thread, where disk I/O is fine.
+        final ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                LogUtils.d(LOG_TAG, "AvatarDiskCache: contacts changed");
+                clear();
+            }
+        };
+        mResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI,
+                true /* notifyForDescendents */, observer);
+    }
+
+    /**
+     * Creates a cache in the directory, which does not observe contacts. If it can detect
+     * contact changes, it is still validated against the resolver on first access.
+     */
+    @VisibleForTesting
+    AvatarDiskCache(ContentResolver resolver, File directory, boolean canDetectContactChanges) {
+        mResolver = resolver;
+        mDirectory = directory;
+        mCanDetectContactChanges = canDetectContactChanges;
+    }
+
+    /**
+     * @return the cached image, {@link #NO_PHOTO} if the contact has no photo, or null if
+     * nothing is cached
+     */
+    public byte[] get(String email, int width, int height, int shape) {
+        return get(email, width, height, shape, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    synchronized byte[] get(String email, int width, int height, int shape, long nowMs) {
+        validate();
+        final String key = getKey(email, width, height, shape);
+        final File file = getFile(key);
+        if (!file.exists()) {
+            mMisses++;
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+                mMisses++;
+                return null;
+            }
+            final long writtenAt = in.readLong();
+            if (!mCanDetectContactChanges && nowMs - writtenAt > UNVALIDATED_MAX_AGE_MS) {
+                mMisses++;
+                return null;
+            }
+            final int length = in.readInt();
+            final byte[] bytes;
+            if (length == 0) {
+                bytes = NO_PHOTO;
+            } else {
+                bytes = new byte[length];
+                in.readFully(bytes);
+            }
+            mHits++;
+            return bytes;
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "AvatarDiskCache: could not read %s", file);
+            mMisses++;
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Decodes the cached image into {@code out[0]}, which is set to null if the contact is known
+     * to have no photo.
+     *
+     * @return false if nothing usable is cached
+     */
+    public boolean getBitmap(String email, int width, int height, int shape, Bitmap[] out) {
+        final byte[] bytes = get(email, width, height, shape);
+        if (bytes == null) {
+            return false;
+        }
+        out[0] = bytes == NO_PHOTO ? null : BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        return bytes == NO_PHOTO || out[0] != null;
+    }
+
+    /**
+     * Stores an image that is already compressed, or {@link #NO_PHOTO} or null if the contact
+     * has no photo.
+     */
+    public void put(String email, int width, int height, int shape, byte[] bytes) {
+        put(email, width, height, shape, bytes, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    synchronized void put(String email, int width, int height, int shape, byte[] bytes,
+            long nowMs) {
+        validate();
+        if (bytes == null) {
+            bytes = NO_PHOTO;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        final String key = getKey(email, width, height, shape);
+        final File file = getFile(key);
+        final long previousLength = file.length();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeLong(nowMs);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "AvatarDiskCache: could not write %s", file);
+            Closeables.closeQuietly(out);
+            file.delete();
+            return;
+        }
+        if (mSizeBytes >= 0) {
+            mSizeBytes += file.length() - previousLength;
+        }
+        trimToSize();
+    }
+
+    /**
+     * Compresses and stores a bitmap, or records that the contact has no photo if it is null.
+     * Bitmaps with alpha are stored as PNG, others as JPEG.
+     */
+    public void putBitmap(String email, int width, int height, int shape, Bitmap bitmap) {
+        byte[] bytes = NO_PHOTO;
+        if (bitmap != null) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final boolean hasAlpha = bitmap.hasAlpha();
+            if (!bitmap.compress(hasAlpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                    hasAlpha ? PNG_QUALITY : JPEG_QUALITY, out)) {
+                return;
+            }
+            bytes = out.toByteArray();
+        }
+        put(email, width, height, shape, bytes);
+    }
+
+    public synchronized void clear() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!VALIDATED_FILE.equals(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+        mSizeBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AvatarDiskCache{size=" + mSizeBytes + " hits=" + mHits + " misses=" + mMisses
+                + "}";
+    }
+
+    private static String getKey(String email, int width, int height, int shape) {
+        return email.trim().toLowerCase(Locale.US) + '/' + width + 'x' + height + '/' + shape;
+    }
+
+    private File getFile(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void trimToSize() {
+        if (mSizeBytes >= 0 && mSizeBytes <= MAX_CACHE_BYTES) {
+            return;
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size > MAX_CACHE_BYTES) {
+            // Drop the oldest entries, down to three quarters of the limit.
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    final long l = lhs.lastModified();
+                    final long r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                if (size <= MAX_CACHE_BYTES * 3 / 4) {
+                    break;
+                }
+                if (!VALIDATED_FILE.equals(file.getName())) {
+                    size -= file.length();
+                    file.delete();
+                }
+            }
+        }
+        mSizeBytes = size;
+    }
+
+    /**
+     * Clears the cache, once per process, if contacts changed since it was last validated.
+     */
+    private void validate() {
+        if (mValidated) {
+            return;
+        }
+        mValidated = true;
+        if (!mCanDetectContactChanges) {
+            return;
+        }
+        final File validatedFile = new File(mDirectory, VALIDATED_FILE);
+        final long validatedAt = validatedFile.lastModified();
+        final long now = System.currentTimeMillis();
+        if (validatedAt == 0 || contactsChangedSince(validatedAt)) {
+            LogUtils.d(LOG_TAG, "AvatarDiskCache: contacts changed since %d", validatedAt);
+            clear();
+        }
+        try {
+            if (mDirectory.isDirectory() || mDirectory.mkdirs()) {
+                validatedFile.createNewFile();
+                validatedFile.setLastModified(now);
+            }
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "AvatarDiskCache: could not write %s", validatedFile);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private boolean contactsChangedSince(long time) {
+        final String[] args = { Long.toString(time) };
+        return hasRows(ContactsContract.Contacts.CONTENT_URI,
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?", args)
+                || hasRows(ContactsContract.DeletedContacts.CONTENT_URI,
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?", args);
+    }
+
+    private boolean hasRows(Uri uri, String selection, String[] args) {
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(uri, new String[] { ContactsContract.Contacts._ID },
+                    selection, args, null);
+            // Without a cursor we cannot tell, so assume the worst.
+            return cursor == null || cursor.getCount() > 0;
+        } catch (RuntimeException e) {
+            LogUtils.w(LOG_TAG, e, "AvatarDiskCache: could not query %s", uri);
+            return true;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -15,14 +15,13 @@
  */
 package com.android.mail.bitmap;
 
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.Paint.Align;
 import android.graphics.Rect;
-import android.graphics.Typeface;
 
 import com.android.mail.R;
 
@@ -34,24 +33,28 @@ public class ContactDrawable extends AbstractAvatarDrawable {
     private ColorPicker mTileColorPicker;
 
     /** Reusable components to avoid new allocations */
-    private static int sTileLetterFontSize;
+    private static Configuration sConfiguration;
     private static int sTileFontColor;
     private static Bitmap DEFAULT_AVATAR;
+    private static LetterGlyphAtlas sGlyphAtlas;
     private static final Paint sPaint = new Paint();
-    private static final Rect sRect = new Rect();
-    private static final char[] sFirstChar = new char[1];
+    private static final Paint sGlyphPaint = new Paint();
 
     public ContactDrawable(final Resources res) {
         super(res);
 
-        if (sTileLetterFontSize == 0) {
-            sTileLetterFontSize = res.getDimensionPixelSize(R.dimen.tile_letter_font_size_small);
+        // The letter size and the default avatar depend on the density and font scale, so
+        // they are loaded again when the configuration changes.
+        final Configuration configuration = res.getConfiguration();
+        if (sConfiguration == null || sConfiguration.diff(configuration) != 0) {
+            sConfiguration = new Configuration(configuration);
             sTileFontColor = res.getColor(R.color.letter_tile_font_color);
             DEFAULT_AVATAR = BitmapFactory.decodeResource(res, R.drawable.ic_anonymous_avatar_40dp);
+            sGlyphAtlas = LetterGlyphAtlas.get(
+                    res.getDimensionPixelSize(R.dimen.tile_letter_font_size_small));
 
-            sPaint.setTypeface(Typeface.create("sans-serif-light", Typeface.NORMAL));
-            sPaint.setTextAlign(Align.CENTER);
             sPaint.setAntiAlias(true);
+            sGlyphPaint.setFilterBitmap(true);
         }
     }
 
@@ -98,21 +101,14 @@ public class ContactDrawable extends AbstractAvatarDrawable {
         // Draw letter/digit or generic avatar.
         final String displayName = mContactRequest.getDisplayName();
         final char firstChar = displayName.charAt(0);
-        if (isEnglishLetterOrDigit(firstChar)) {
+        if (LetterGlyphAtlas.hasGlyph(firstChar)) {
             // Draw letter or digit.
-            sFirstChar[0] = Character.toUpperCase(firstChar);
-            sPaint.setTextSize(sTileLetterFontSize);
-            sPaint.getTextBounds(sFirstChar, 0, 1, sRect);
-            sPaint.setColor(sTileFontColor);
-            canvas.drawText(sFirstChar, 0, 1, bounds.centerX(),
-                    bounds.centerY() + sRect.height() / 2, sPaint);
+            sGlyphPaint.setColor(sTileFontColor);
+            sGlyphAtlas.drawGlyph(canvas, firstChar, bounds.centerX(),
+                    bounds.centerY(), sGlyphPaint);
         } else {
             drawBitmap(DEFAULT_AVATAR, DEFAULT_AVATAR.getWidth(), DEFAULT_AVATAR.getHeight(),
                     canvas);
         }
     }
-
-    private static boolean isEnglishLetterOrDigit(final char c) {
-        return ('A' <= c && c <= 'Z') || ('a' <= c && c <= 'z') || ('0' <= c && c <= '9');
-    }
 }
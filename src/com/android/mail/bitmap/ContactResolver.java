@@ -18,9 +18,8 @@
 package com.android.mail.bitmap;
 
 import android.content.ContentResolver;
-import android.os.AsyncTask;
-import android.os.AsyncTask.Status;
 import android.os.Handler;
+import android.os.SystemClock;
 
 import com.android.bitmap.BitmapCache;
 import com.android.bitmap.DecodeTask;
@@ -34,17 +33,36 @@ import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.google.common.collect.ImmutableMap;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Batches up ContactRequests so we can efficiently query the contacts provider. Kicks off a
- * ContactResolverTask to query for contact images in the background.
+ * Batches up ContactRequests so we can efficiently query the contacts provider, then decodes
+ * the contact images in the background.
+ *
+ * <p/>
+ * Requests go through two stages. Lookups run one at a time: the requests that arrive while a
+ * lookup is running are merged into a single query once it finishes. Photos that were found are
+ * then decoded on a small pool of threads, and each result is delivered as soon as it is ready.
+ * Requests that are removed (because their row scrolled off screen) before their lookup or
+ * decode starts are dropped, and the results of those removed while being decoded are discarded
+ * rather than delivered or cached. Results are put in the {@link BitmapCache} on the main thread.
+ *
+ * <p/>
+ * With an {@link AvatarDiskCache}, photos (and the absence of one) found by earlier lookups are
+ * read from disk instead, so after a process start avatars appear without querying the contacts
+ * provider.
  */
 public class ContactResolver implements Runnable {
 
@@ -54,19 +72,48 @@ public class ContactResolver implements Runnable {
     private static final int MAXIMUM_PHOTO_SIZE = 96;
     private static final int HALF_MAXIMUM_PHOTO_SIZE = 48;
 
+    /** Decodes are short and allocation heavy, so a few threads are enough to keep up. */
+    private static final int MAX_DECODE_THREADS = 3;
+
+    /** Number of recent decode latencies kept for percentiles, and how often to log them. */
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int LATENCY_LOG_INTERVAL = 100;
+
     protected final ContentResolver mResolver;
     private final BitmapCache mCache;
+    private final AvatarDiskCache mDiskCache;
     /** Insertion ordered set allows us to work from the top down. */
     private final LinkedHashSet<ContactRequestHolder> mBatch;
+    /** The requests of the batch that are being looked up or decoded. */
+    private final HashMap<ContactRequestHolder, PendingRequest> mPending =
+            new HashMap<ContactRequestHolder, PendingRequest>();
+    private boolean mLookupRunning;
 
     private final Handler mHandler = new Handler();
-    private ContactResolverTask mTask;
 
+    private final long[] mDecodeLatenciesUs = new long[LATENCY_SAMPLES];
+    private int mDecodeCount;
 
-    /** Size 1 pool mostly to make systrace output traces on one line. */
-    private static final Executor SMALL_POOL_EXECUTOR = new ThreadPoolExecutor(1, 1,
+    // How long it takes to fill the first screen of avatars.
+    private long mFirstFillStartMs;
+    private boolean mFirstFillReported;
+    private int mFirstFillCount;
+    private final AtomicInteger mDiskHits = new AtomicInteger();
+    private final AtomicInteger mProviderLookups = new AtomicInteger();
+
+    /** Size 1 pool, since every lookup is a single query for all pending requests. */
+    private static final Executor LOOKUP_EXECUTOR = new ThreadPoolExecutor(1, 1,
             1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-    private static final Executor EXECUTOR = SMALL_POOL_EXECUTOR;
+    private static final Executor DECODE_EXECUTOR;
+
+    static {
+        final int threads = Math.max(1, Math.min(MAX_DECODE_THREADS,
+                Runtime.getRuntime().availableProcessors() - 1));
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        DECODE_EXECUTOR = executor;
+    }
 
     public interface ContactDrawableInterface {
         public void onDecodeComplete(final RequestKey key, final ReusableBitmap result);
@@ -75,8 +122,17 @@ public class ContactResolver implements Runnable {
     }
 
     public ContactResolver(final ContentResolver resolver, final BitmapCache cache) {
+        this(resolver, cache, null);
+    }
+
+    /**
+     * @param diskCache where to keep photos between process starts, may be null
+     */
+    public ContactResolver(final ContentResolver resolver, final BitmapCache cache,
+            final AvatarDiskCache diskCache) {
         mResolver = resolver;
         mCache = cache;
+        mDiskCache = diskCache;
         mBatch = new LinkedHashSet<ContactRequestHolder>();
     }
 
@@ -87,42 +143,49 @@ public class ContactResolver implements Runnable {
             return;
         }
 
-        if (mTask != null && mTask.getStatus() == Status.RUNNING) {
+        if (mLookupRunning) {
+            // The requests will be looked up together once the current lookup finishes.
             LogUtils.d(TAG, "ContactResolver << batch skip");
             return;
         }
 
         Trace.beginSection("ContactResolver run");
-        LogUtils.d(TAG, "ContactResolver >> batch start");
-
-        // Make a copy of the batch.
-        LinkedHashSet<ContactRequestHolder> batch = new LinkedHashSet<ContactRequestHolder>(mBatch);
-
-        if (mTask != null) {
-            mTask.cancel(true);
+        final List<PendingRequest> lookup = new ArrayList<PendingRequest>();
+        for (ContactRequestHolder holder : mBatch) {
+            if (!mPending.containsKey(holder)) {
+                final PendingRequest request = new PendingRequest(holder);
+                mPending.put(holder, request);
+                lookup.add(request);
+            }
+        }
+        if (!lookup.isEmpty()) {
+            LogUtils.d(TAG, "ContactResolver >> batch start %d", lookup.size());
+            mLookupRunning = true;
+            LOOKUP_EXECUTOR.execute(new LookupJob(lookup));
         }
-
-        mTask = getContactResolverTask(batch);
-        mTask.executeOnExecutor(EXECUTOR);
         Trace.endSection();
     }
 
-    protected ContactResolverTask getContactResolverTask(
-            LinkedHashSet<ContactRequestHolder> batch) {
-        return new ContactResolverTask(batch, mResolver, mCache, this);
-    }
-
     public BitmapCache getCache() {
         return mCache;
     }
 
     public void add(final ContactRequest request, final ContactDrawableInterface drawable) {
+        if (mFirstFillStartMs == 0) {
+            mFirstFillStartMs = SystemClock.elapsedRealtime();
+        }
         mBatch.add(new ContactRequestHolder(request, drawable));
         notifyBatchReady();
     }
 
     public void remove(final ContactRequest request, final ContactDrawableInterface drawable) {
-        mBatch.remove(new ContactRequestHolder(request, drawable));
+        final ContactRequestHolder holder = new ContactRequestHolder(request, drawable);
+        mBatch.remove(holder);
+        final PendingRequest pending = mPending.remove(holder);
+        if (pending != null) {
+            // Skip its lookup or decode if they have not started yet.
+            pending.cancelled = true;
+        }
     }
 
     /**
@@ -143,57 +206,153 @@ public class ContactResolver implements Runnable {
         mHandler.post(this);
     }
 
+    protected ImmutableMap<String, ContactInfo> loadContactPhotos(Set<String> emails) {
+        if (mResolver == null) {
+            return null;
+        }
+        return SenderInfoLoader.loadContactPhotos(mResolver, emails, false /* decodeBitmaps */);
+    }
+
     /**
-     * This is not a very traditional AsyncTask, in the sense that we do not care about what gets
-     * returned in doInBackground(). Instead, we signal traditional "return values" through
-     * publishProgress().
-     *
-     * <p/>
-     * The reason we do this is because this task is responsible for decoding an entire batch of
-     * ContactRequests. But, we do not want to have to wait to decode all of them before updating
-     * any views. So we must do all the work in doInBackground(),
-     * but upon finishing each individual task, we need to jump out to the UI thread and update
-     * that view.
+     * Returns a percentile of the recent decode latencies, in microseconds, or 0 if nothing has
+     * been decoded yet.
      */
-    public static class ContactResolverTask extends AsyncTask<Void, Result, Void> {
-
-        private final Set<ContactRequestHolder> mContactRequests;
-        private final ContentResolver mResolver;
-        private final BitmapCache mCache;
-        private final ContactResolver mCallback;
-
-        public ContactResolverTask(final Set<ContactRequestHolder> contactRequests,
-                final ContentResolver resolver, final BitmapCache cache,
-                final ContactResolver callback) {
-            mContactRequests = contactRequests;
-            mResolver = resolver;
-            mCache = cache;
-            mCallback = callback;
+    public long getDecodeLatencyPercentileUs(int percentile) {
+        synchronized (mDecodeLatenciesUs) {
+            final int count = Math.min(mDecodeCount, LATENCY_SAMPLES);
+            if (count == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(mDecodeLatenciesUs, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, count * percentile / 100)];
+        }
+    }
+
+    private void recordDecodeLatency(long latencyUs) {
+        final boolean log;
+        synchronized (mDecodeLatenciesUs) {
+            mDecodeLatenciesUs[mDecodeCount % LATENCY_SAMPLES] = latencyUs;
+            mDecodeCount++;
+            log = mDecodeCount % LATENCY_LOG_INTERVAL == 0;
+        }
+        if (log) {
+            LogUtils.i(TAG, "ContactResolver decode latency p50=%dus p90=%dus p99=%dus",
+                    getDecodeLatencyPercentileUs(50), getDecodeLatencyPercentileUs(90),
+                    getDecodeLatencyPercentileUs(99));
+        }
+    }
+
+    /**
+     * Logs how long the first requests took to be resolved, once they all have been.
+     */
+    private void maybeReportFirstFill() {
+        if (mFirstFillReported || mFirstFillStartMs == 0 || mLookupRunning
+                || !mPending.isEmpty()) {
+            return;
+        }
+        mFirstFillReported = true;
+        LogUtils.i(TAG, "ContactResolver first fill: %d avatars in %dms, %d from disk, "
+                + "%d looked up", mFirstFillCount,
+                SystemClock.elapsedRealtime() - mFirstFillStartMs, mDiskHits.get(),
+                mProviderLookups.get());
+    }
+
+    /**
+     * A request on its way through the lookup and decode stages.
+     */
+    private static class PendingRequest {
+        public final ContactRequestHolder holder;
+        /** Set on the main thread when the request is removed from the batch. */
+        public volatile boolean cancelled;
+
+        private PendingRequest(final ContactRequestHolder holder) {
+            this.holder = holder;
+        }
+    }
+
+    /**
+     * Queries the contacts provider for the photos of a batch of requests, and hands the photos
+     * that were found to the decode stage.
+     */
+    private class LookupJob implements Runnable {
+        private final List<PendingRequest> mRequests;
+
+        private LookupJob(final List<PendingRequest> requests) {
+            mRequests = requests;
         }
 
         @Override
-        protected Void doInBackground(final Void... params) {
+        public void run() {
             Trace.beginSection("set up");
-            final Set<String> emails = new HashSet<String>(mContactRequests.size());
-            for (ContactRequestHolder request : mContactRequests) {
-                final String email = request.getEmail();
-                emails.add(email);
+            final Set<String> emails = new HashSet<String>(mRequests.size());
+            final HashMap<String, byte[]> diskPhotos = new HashMap<String, byte[]>();
+            for (PendingRequest request : mRequests) {
+                if (request.cancelled) {
+                    continue;
+                }
+                final String email = request.holder.getEmail();
+                if (mDiskCache != null && !diskPhotos.containsKey(email)
+                        && !emails.contains(email)) {
+                    final byte[] photo = mDiskCache.get(email, MAXIMUM_PHOTO_SIZE,
+                            MAXIMUM_PHOTO_SIZE, AvatarDiskCache.SHAPE_SQUARE);
+                    if (photo != null) {
+                        diskPhotos.put(email, photo);
+                        continue;
+                    }
+                }
+                if (!diskPhotos.containsKey(email)) {
+                    emails.add(email);
+                }
             }
             Trace.endSection();
 
-            Trace.beginSection("load contact photo bytes");
-            // Query the contacts provider for the current batch of emails.
-            final ImmutableMap<String, ContactInfo> contactInfos = loadContactPhotos(emails);
-            Trace.endSection();
+            ImmutableMap<String, ContactInfo> contactInfos = null;
+            if (!emails.isEmpty()) {
+                Trace.beginSection("load contact photo bytes");
+                // Query the contacts provider for the current batch of emails.
+                contactInfos = loadContactPhotos(emails);
+                mProviderLookups.addAndGet(emails.size());
+                Trace.endSection();
+
+                if (contactInfos != null && mDiskCache != null) {
+                    Trace.beginSection("store contact photo bytes");
+                    for (Map.Entry<String, ContactInfo> entry : contactInfos.entrySet()) {
+                        if (!entry.getValue().isVerified()) {
+                            // Only the negative cache said so, which may be wrong.
+                            continue;
+                        }
+                        mDiskCache.put(entry.getKey(), MAXIMUM_PHOTO_SIZE, MAXIMUM_PHOTO_SIZE,
+                                AvatarDiskCache.SHAPE_SQUARE, entry.getValue().photoBytes);
+                    }
+                    Trace.endSection();
+                }
+            }
+
+            for (PendingRequest request : mRequests) {
+                final String email = request.holder.getEmail();
+                if (request.cancelled) {
+                    LogUtils.d(TAG, "ContactResolver  = dropped %s", email);
+                    continue;
+                }
+
+                final byte[] diskPhoto = diskPhotos.get(email);
+                if (diskPhoto != null) {
+                    mDiskHits.incrementAndGet();
+                    if (diskPhoto == AvatarDiskCache.NO_PHOTO) {
+                        LogUtils.d(TAG, "ContactResolver -- none    %s", email);
+                        mHandler.post(new Result(request, null));
+                    } else {
+                        LogUtils.d(TAG, "ContactResolver ++ disk    %s", email);
+                        DECODE_EXECUTOR.execute(new DecodeJob(request, diskPhoto));
+                    }
+                    continue;
+                }
 
-            for (ContactRequestHolder request : mContactRequests) {
-                Trace.beginSection("decode");
-                final String email = request.getEmail();
                 if (contactInfos == null) {
                     // Query failed.
                     LogUtils.d(TAG, "ContactResolver -- failed  %s", email);
-                    publishProgress(new Result(request, null));
-                    Trace.endSection();
+                    mHandler.post(new Result(request, null));
                     continue;
                 }
 
@@ -201,7 +360,16 @@ public class ContactResolver implements Runnable {
                 if (contactInfo == null) {
                     // Request skipped. Try again next batch.
                     LogUtils.d(TAG, "ContactResolver  = skipped %s", email);
-                    Trace.endSection();
+                    mHandler.post(new Result(request, null, false /* completed */));
+                    continue;
+                }
+
+                if (!contactInfo.isVerified()) {
+                    // Only the negative cache knows of no contact, and it may be wrong, so the
+                    // email is looked up again once it has been forgotten there.
+                    LogUtils.d(TAG, "ContactResolver -- missing %s", email);
+                    mHandler.post(new Result(request, null, true /* completed */,
+                            false /* cacheable */));
                     continue;
                 }
 
@@ -210,80 +378,132 @@ public class ContactResolver implements Runnable {
                 if (photo == null) {
                     // No photo bytes found.
                     LogUtils.d(TAG, "ContactResolver -- failed  %s", email);
-                    publishProgress(new Result(request, null));
-                    Trace.endSection();
+                    mHandler.post(new Result(request, null));
                     continue;
                 }
 
                 // Query succeeded. Photo bytes found.
-                request.contactRequest.bytes = photo;
-
-                // Start decode.
                 LogUtils.d(TAG, "ContactResolver ++ found   %s", email);
-                // Synchronously decode the photo bytes. We are already in a background
-                // thread, and we want decodes to finish in order. The decodes are blazing
-                // fast so we don't need to kick off multiple threads.
-                final int width = HALF_MAXIMUM_PHOTO_SIZE >= request.destination.getDecodeWidth()
-                        ? HALF_MAXIMUM_PHOTO_SIZE : MAXIMUM_PHOTO_SIZE;
-                final int height = HALF_MAXIMUM_PHOTO_SIZE >= request.destination.getDecodeHeight()
-                        ? HALF_MAXIMUM_PHOTO_SIZE : MAXIMUM_PHOTO_SIZE;
-                final DecodeTask.DecodeOptions opts = new DecodeTask.DecodeOptions(
-                        width, height, 1 / 2f, DecodeTask.DecodeOptions.STRATEGY_ROUND_NEAREST);
-                final ReusableBitmap result = new DecodeTask(request.contactRequest, opts, null,
-                        null, mCache).decode();
-                request.contactRequest.bytes = null;
-
-                // Decode success.
-                publishProgress(new Result(request, result));
-                Trace.endSection();
+                DECODE_EXECUTOR.execute(new DecodeJob(request, photo));
             }
 
-            return null;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Lookup completed. Start the next batch with whatever has been added since.
+                    mLookupRunning = false;
+                    maybeReportFirstFill();
+                    notifyBatchReady();
+                }
+            });
         }
+    }
 
-        protected ImmutableMap<String, ContactInfo> loadContactPhotos(Set<String> emails) {
-            if (mResolver == null) {
-                return null;
-            }
-            return SenderInfoLoader.loadContactPhotos(mResolver, emails, false /* decodeBitmaps */);
+    /**
+     * Decodes the photo bytes of one request and delivers the result.
+     */
+    private class DecodeJob implements Runnable {
+        private final PendingRequest mRequest;
+        private final byte[] mPhoto;
+
+        private DecodeJob(final PendingRequest request, final byte[] photo) {
+            mRequest = request;
+            mPhoto = photo;
         }
 
-        /**
-         * We use progress updates to jump to the UI thread so we can decode the batch
-         * incrementally.
-         */
         @Override
-        protected void onProgressUpdate(final Result... values) {
-            final ContactRequestHolder request = values[0].request;
-            final ReusableBitmap bitmap = values[0].bitmap;
-
-            // DecodeTask does not add null results to the cache.
-            if (bitmap == null && mCache != null) {
-                // Cache null result.
-                mCache.put(request.contactRequest, null);
+        public void run() {
+            final ContactRequestHolder request = mRequest.holder;
+            if (mRequest.cancelled) {
+                LogUtils.d(TAG, "ContactResolver  = dropped %s", request.getEmail());
+                return;
             }
 
-            request.destination.onDecodeComplete(request.contactRequest, bitmap);
-        }
+            Trace.beginSection("decode");
+            final long start = System.nanoTime();
+            final int width = HALF_MAXIMUM_PHOTO_SIZE >= request.destination.getDecodeWidth()
+                    ? HALF_MAXIMUM_PHOTO_SIZE : MAXIMUM_PHOTO_SIZE;
+            final int height = HALF_MAXIMUM_PHOTO_SIZE >= request.destination.getDecodeHeight()
+                    ? HALF_MAXIMUM_PHOTO_SIZE : MAXIMUM_PHOTO_SIZE;
+            final ReusableBitmap result = decodePhoto(request.contactRequest, mPhoto, width,
+                    height);
+            recordDecodeLatency((System.nanoTime() - start) / 1000);
+            Trace.endSection();
 
-        @Override
-        protected void onPostExecute(final Void aVoid) {
-            // Batch completed. Start next batch.
-            mCallback.notifyBatchReady();
+            if (mRequest.cancelled) {
+                // Removed while it was being decoded.
+                LogUtils.d(TAG, "ContactResolver  = dropped %s", request.getEmail());
+                return;
+            }
+            // Decode success.
+            mHandler.post(new Result(mRequest, result));
         }
     }
 
     /**
-     * Wrapper for the ContactRequest and its decoded bitmap. This class is used to pass results
-     * to onProgressUpdate().
+     * Decodes the photo of a request. Called on a decode thread. The result is not put in the
+     * cache: that is left to the main thread, once it knows the request still wants it.
+     */
+    protected ReusableBitmap decodePhoto(final ContactRequest request, final byte[] photo,
+            final int width, final int height) {
+        request.bytes = photo;
+        final DecodeTask.DecodeOptions opts = new DecodeTask.DecodeOptions(
+                width, height, 1 / 2f, DecodeTask.DecodeOptions.STRATEGY_ROUND_NEAREST);
+        final ReusableBitmap result = new DecodeTask(request, opts, null, null,
+                null /* cache */).decode();
+        request.bytes = null;
+        return result;
+    }
+
+    /**
+     * Delivers the outcome of a request on the main thread.
      */
-    private static class Result {
-        public final ContactRequestHolder request;
-        public final ReusableBitmap bitmap;
+    private class Result implements Runnable {
+        private final PendingRequest mRequest;
+        private final ReusableBitmap mBitmap;
+        /** False if the request was not looked up and should be tried again. */
+        private final boolean mCompleted;
+        /** False if the result must not be kept in the bitmap cache. */
+        private final boolean mCacheable;
+
+        private Result(final PendingRequest request, final ReusableBitmap bitmap) {
+            this(request, bitmap, true /* completed */, true /* cacheable */);
+        }
+
+        private Result(final PendingRequest request, final ReusableBitmap bitmap,
+                final boolean completed) {
+            this(request, bitmap, completed, true /* cacheable */);
+        }
+
+        private Result(final PendingRequest request, final ReusableBitmap bitmap,
+                final boolean completed, final boolean cacheable) {
+            mRequest = request;
+            mBitmap = bitmap;
+            mCompleted = completed;
+            mCacheable = cacheable;
+        }
+
+        @Override
+        public void run() {
+            final ContactRequestHolder request = mRequest.holder;
+            if (mPending.get(request) == mRequest) {
+                mPending.remove(request);
+            }
+            if (!mCompleted || mRequest.cancelled) {
+                // Removed from the batch after the result was posted; it is not wanted anymore.
+                return;
+            }
 
-        private Result(final ContactRequestHolder request, final ReusableBitmap bitmap) {
-            this.request = request;
-            this.bitmap = bitmap;
+            if (mCache != null && mCacheable) {
+                // Cache the result, including a null one.
+                mCache.put(request.contactRequest, mBitmap);
+            }
+
+            request.destination.onDecodeComplete(request.contactRequest, mBitmap);
+            if (!mFirstFillReported) {
+                mFirstFillCount++;
+                maybeReportFirstFill();
+            }
         }
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.bitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Align;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+/**
+ * The letters and digits of letter tiles, rendered once per font size into a single alpha
+ * bitmap. Drawing a tile's letter is then a blit of one cell, tinted by the paint color, instead
+ * of measuring and rasterizing the glyph on every draw.
+ * <p>
+ * Only the glyphs are kept: the tile backgrounds are plain fills that are cheaper to draw than
+ * to copy, and storing every (glyph, color) pair would multiply the memory by the palette size.
+ * A few font sizes are kept at a time, so the atlas for a new density or font scale replaces
+ * the least recently used one.
+ * <p>
+ * Notification tiles are drawn off the main thread, so lookups and draws are synchronized; they
+ * are not contended in practice.
+ */
+public class LetterGlyphAtlas {
+    private static final String GLYPHS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    private static final int COLUMNS = 6;
+
+    /** Font sizes in use at once, e.g. list tiles and smaller tiles. */
+    private static final int MAX_ATLASES = 3;
+    private static final LetterGlyphAtlas[] sAtlases = new LetterGlyphAtlas[MAX_ATLASES];
+
+    private static Typeface sTypeface;
+
+    private final int mFontSize;
+    private final int mCellSize;
+    private final Bitmap mBitmap;
+    private final Rect mSrc = new Rect();
+    private final Rect mDst = new Rect();
+
+    /**
+     * Returns the atlas for a font size in pixels, rendering it if needed.
+     */
+    public static synchronized LetterGlyphAtlas get(int fontSize) {
+        int found = -1;
+        for (int i = 0; i < MAX_ATLASES; i++) {
+            if (sAtlases[i] != null && sAtlases[i].mFontSize == fontSize) {
+                found = i;
+                break;
+            }
+        }
+        final LetterGlyphAtlas atlas;
+        if (found >= 0) {
+            atlas = sAtlases[found];
+        } else {
+            // The evicted atlas is not recycled, since a drawable may still hold it.
+            atlas = new LetterGlyphAtlas(fontSize);
+            found = MAX_ATLASES - 1;
+        }
+        // Keep the most recently used atlas first.
+        System.arraycopy(sAtlases, 0, sAtlases, 1, found);
+        sAtlases[0] = atlas;
+        return atlas;
+    }
+
+    /**
+     * Returns true for the characters that have a glyph in the atlas.
+     */
+    public static boolean hasGlyph(char c) {
+        return ('A' <= c && c <= 'Z') || ('a' <= c && c <= 'z') || ('0' <= c && c <= '9');
+    }
+
+    private LetterGlyphAtlas(int fontSize) {
+        mFontSize = fontSize;
+        if (sTypeface == null) {
+            sTypeface = Typeface.create("sans-serif-light", Typeface.NORMAL);
+        }
+        final Paint paint = new Paint();
+        paint.setTypeface(sTypeface);
+        paint.setTextAlign(Align.CENTER);
+        paint.setAntiAlias(true);
+        paint.setTextSize(fontSize);
+
+        // Glyphs are centered in their cells, and none extends more than 3/4 of the font size
+        // from its center. The size is even, so that the center of a cell is on a pixel
+        // boundary and a glyph centered on a whole pixel is copied without resampling.
+        final int cellSize = (int) Math.ceil(fontSize * 1.5f) + 2;
+        mCellSize = cellSize + (cellSize & 1);
+        final int rows = (GLYPHS.length() + COLUMNS - 1) / COLUMNS;
+        mBitmap = Bitmap.createBitmap(COLUMNS * mCellSize, rows * mCellSize,
+                Bitmap.Config.ALPHA_8);
+        final Canvas canvas = new Canvas(mBitmap);
+        final Rect bounds = new Rect();
+        final char[] glyph = new char[1];
+        for (int i = 0; i < GLYPHS.length(); i++) {
+            glyph[0] = GLYPHS.charAt(i);
+            paint.getTextBounds(glyph, 0, 1, bounds);
+            // The same placement the tiles used when they drew their letters directly.
+            final float centerX = (i % COLUMNS) * mCellSize + mCellSize / 2f;
+            final float centerY = (i / COLUMNS) * mCellSize + mCellSize / 2f;
+            canvas.drawText(glyph, 0, 1, centerX, centerY + (bounds.bottom - bounds.top) / 2,
+                    paint);
+        }
+    }
+
+    /**
+     * Draws the upper case glyph of a letter or digit centered on a point, in the color and
+     * alpha of the paint. The point is rounded to a whole pixel, so that the glyph is copied
+     * pixel for pixel, without blurring, unless the canvas is scaled.
+     */
+    public synchronized void drawGlyph(Canvas canvas, char c, float centerX, float centerY,
+            Paint paint) {
+        final int index = GLYPHS.indexOf(Character.toUpperCase(c));
+        if (index < 0) {
+            return;
+        }
+        final int left = (index % COLUMNS) * mCellSize;
+        final int top = (index / COLUMNS) * mCellSize;
+        mSrc.set(left, top, left + mCellSize, top + mCellSize);
+        final int dstLeft = Math.round(centerX) - mCellSize / 2;
+        final int dstTop = Math.round(centerY) - mCellSize / 2;
+        mDst.set(dstLeft, dstTop, dstLeft + mCellSize, dstTop + mCellSize);
+        canvas.drawBitmap(mBitmap, mSrc, mDst, paint);
+    }
+
+    public int getByteCount() {
+        return mBitmap.getRowBytes() * mBitmap.getHeight();
+    }
+}
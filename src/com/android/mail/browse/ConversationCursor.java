@@ -522,6 +522,13 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             return mRowCache.get(getPosition()).conversation;
         }
 
+        /**
+         * Returns the cached data of the given row, without moving the cursor.
+         */
+        public UnderlyingRowData getRowData(int position) {
+            return mRowCache.get(position);
+        }
+
         public void cacheConversation(Conversation conversation) {
             final UnderlyingRowData rowData = mRowCache.get(getPosition());
             if (rowData.conversation == null) {
@@ -1372,6 +1379,29 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         return result;
     }
 
+    /**
+     * Returns the Conversation at the given position if it has already been cached and has no
+     * pending local changes, or null otherwise. Unlike {@link #getCachedConversation()}, this does
+     * not move the cursor.
+     */
+    public Conversation peekCachedConversation(int position) {
+        // With rows deleted locally, positions no longer map directly to underlying rows.
+        if (mUnderlyingCursor == null || mDeletedCount > 0 || position < 0
+                || position >= getCount()) {
+            return null;
+        }
+        final UnderlyingRowData rowData = mUnderlyingCursor.getRowData(position);
+        if (rowData.conversation == null) {
+            return null;
+        }
+        synchronized (mCacheMapLock) {
+            if (mCacheMap.containsKey(rowData.innerUri)) {
+                return null;
+            }
+        }
+        return rowData.conversation;
+    }
+
     /**
      * Notifies the provider of the position of the conversation being accessed by the UI
      */
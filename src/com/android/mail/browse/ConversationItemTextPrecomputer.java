@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.support.v4.text.BidiFormatter;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.TextPaint;
+import android.text.TextUtils;
+
+import com.android.mail.FormattedDateBuilder;
+import com.android.mail.providers.Account;
+import com.android.mail.providers.Conversation;
+import com.android.mail.providers.ConversationInfo;
+import com.android.mail.providers.Folder;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Builds the text of conversation list rows on a background thread, a few rows ahead of the
+ * scroll position. The sender line, message info, date, subject and snippet of each row are
+ * formatted and the sender line is measured, and the result is attached to the row's
+ * {@link ConversationItemViewModel}. When the row is bound, {@link ConversationItemView} picks the
+ * text up instead of formatting it on the UI thread, as long as the conversation has not changed
+ * in the meantime.
+ * <p>
+ * Also keeps track of the time spent binding rows and of how often the precomputed text was used.
+ */
+public class ConversationItemTextPrecomputer {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** Rows to precompute past the last bound row, in the direction of the scroll. */
+    private static final int LOOKAHEAD_ROWS = 10;
+
+    /** Bound rows between two stats log lines. */
+    private static final int STATS_LOG_INTERVAL = 200;
+
+    private static final Executor EXECUTOR = new ThreadPoolExecutor(1, 1,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * The text of one row. It is not modified once built: a row may be bound to several views
+     * at once, such as while it animates, so each bind gets its own copies of the spans, which
+     * the views style further.
+     */
+    static final class RowText {
+        // What the text was built from.
+        private final Conversation mConversation;
+        private final int mConversationInfoHash;
+        private final boolean mRead;
+        private final int mSendingState;
+        private final String mSubjectString;
+        private final long mDateMs;
+        private final boolean mHasAttachments;
+        private final boolean mShowToHeader;
+        /** See {@link FormattedDateBuilder#getShortDateStamp()}. */
+        private final long mDateStamp;
+
+        private final SpannableStringBuilder mMessageInfo;
+        private final ArrayList<SpannableString> mStyledNames;
+        private final ArrayList<String> mDisplayableNames;
+        private final String mAvatarName;
+        private final String mAvatarEmailAddress;
+        final CharSequence dateText;
+        private final Spannable mSubject;
+        private final Spannable mSnippet;
+
+        /** The font size {@link #mSendersText} was measured at, or 0 if it wasn't built. */
+        private final float mSendersFontSize;
+        /** The sender line, with nothing elided. */
+        private final SpannableStringBuilder mSendersText;
+        /** The width {@link #mSendersText} needs to be displayed without eliding anything. */
+        private final float mSendersTextWidth;
+
+        @VisibleForTesting
+        RowText(Conversation conv, boolean showToHeader, SpannableStringBuilder messageInfo,
+                ArrayList<SpannableString> styledNames, ArrayList<String> displayableNames,
+                ConversationItemViewModel.SenderAvatarModel avatar, long dateStamp,
+                CharSequence dateText, Spannable subject, Spannable snippet,
+                float sendersFontSize, SpannableStringBuilder sendersText,
+                float sendersTextWidth) {
+            mConversation = conv;
+            mConversationInfoHash = conv.conversationInfo.hashCode();
+            mRead = conv.read;
+            mSendingState = conv.sendingState;
+            mSubjectString = conv.subject;
+            mDateMs = conv.dateMs;
+            mHasAttachments = conv.hasAttachments;
+            mShowToHeader = showToHeader;
+            mDateStamp = dateStamp;
+            mMessageInfo = messageInfo;
+            mStyledNames = styledNames;
+            mDisplayableNames = displayableNames;
+            mAvatarName = avatar.getName();
+            mAvatarEmailAddress = avatar.getEmailAddress();
+            this.dateText = dateText;
+            mSubject = subject;
+            mSnippet = snippet;
+            mSendersFontSize = sendersFontSize;
+            mSendersText = sendersText;
+            mSendersTextWidth = sendersTextWidth;
+        }
+
+        /**
+         * @return true if this text was built from the same data as the given conversation
+         * would display.
+         */
+        boolean matches(Conversation conv, boolean showToHeader) {
+            if (conv == null || conv.conversationInfo == null || showToHeader != mShowToHeader) {
+                return false;
+            }
+            if (conv == mConversation) {
+                return true;
+            }
+            return conv.conversationInfo.hashCode() == mConversationInfoHash
+                    && conv.read == mRead
+                    && conv.sendingState == mSendingState
+                    && conv.dateMs == mDateMs
+                    && conv.hasAttachments == mHasAttachments
+                    && TextUtils.equals(conv.subject, mSubjectString);
+        }
+
+        /**
+         * The date shows the time of day of today's conversations and only the date of older
+         * ones, so it stays current until the day or the clock settings change.
+         */
+        boolean isDateTextFresh() {
+            return FormattedDateBuilder.getShortDateStamp() == mDateStamp;
+        }
+
+        /**
+         * @return true if the whole sender line, measured at the given font size, fits in the
+         * given width.
+         */
+        boolean sendersTextFits(float fontSize, int width) {
+            return mSendersText != null && fontSize == mSendersFontSize
+                    && mSendersTextWidth <= width;
+        }
+
+        int getStyledMessageInfoStringOffset() {
+            return mSendersText.length() - mMessageInfo.length();
+        }
+
+        /** Returns a copy of the whole sender line, for a view to style. */
+        SpannableStringBuilder copySendersText() {
+            return new SpannableStringBuilder(mSendersText);
+        }
+
+        /** Returns a copy of the styled subject, for a view to style. */
+        Spannable copySubject() {
+            return new SpannableString(mSubject);
+        }
+
+        /** Returns a copy of the snippet, for a view to style. */
+        Spannable copySnippet() {
+            return new SpannableString(mSnippet);
+        }
+
+        /**
+         * Copies the sender fields of this text to the model.
+         */
+        void applyTo(ConversationItemViewModel header) {
+            header.messageInfoString = new SpannableStringBuilder(mMessageInfo);
+            header.styledNames.clear();
+            for (SpannableString name : mStyledNames) {
+                header.styledNames.add(new SpannableString(name));
+            }
+            header.displayableNames.clear();
+            header.displayableNames.addAll(mDisplayableNames);
+            header.mSenderAvatarModel.clear();
+            if (mAvatarEmailAddress != null) {
+                header.mSenderAvatarModel.populate(mAvatarName, mAvatarEmailAddress);
+            }
+        }
+    }
+
+    /** The rows to precompute, and what to precompute them for. */
+    private static final class Batch {
+        final List<Conversation> conversations;
+        final Account account;
+        final boolean showToHeader;
+        final BidiFormatter bidiFormatter;
+        final float sendersFontSize;
+
+        Batch(List<Conversation> conversations, Account account, boolean showToHeader,
+                BidiFormatter bidiFormatter, float sendersFontSize) {
+            this.conversations = conversations;
+            this.account = account;
+            this.showToHeader = showToHeader;
+            this.bidiFormatter = bidiFormatter;
+            this.sendersFontSize = sendersFontSize;
+        }
+    }
+
+    private final Context mContext;
+    private final TextPaint mPaint = new TextPaint();
+    private final FormattedDateBuilder mDateBuilder;
+    private final float[] mSendersWidth = new float[1];
+
+    private final AtomicReference<Batch> mPendingBatch = new AtomicReference<Batch>();
+    private final AtomicBoolean mWorkerScheduled = new AtomicBoolean();
+    private final AtomicInteger mPrecomputedRows = new AtomicInteger();
+
+    private volatile float mSendersFontSize;
+
+    private int mLastBoundPosition = -1;
+
+    // Bind stats, only touched on the UI thread.
+    private int mHits;
+    private int mMisses;
+    private long mTotalBindTimeNs;
+    private long mMaxBindTimeNs;
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            Batch batch;
+            while ((batch = mPendingBatch.getAndSet(null)) != null) {
+                for (Conversation conv : batch.conversations) {
+                    if (mPendingBatch.get() != null) {
+                        // The list has scrolled on; these rows may not be next anymore.
+                        break;
+                    }
+                    precompute(conv, batch);
+                }
+            }
+            mWorkerScheduled.set(false);
+            if (mPendingBatch.get() != null && mWorkerScheduled.compareAndSet(false, true)) {
+                EXECUTOR.execute(this);
+            }
+        }
+    };
+
+    public ConversationItemTextPrecomputer(Context context) {
+        mContext = context.getApplicationContext();
+        mDateBuilder = new FormattedDateBuilder(mContext);
+        mPaint.setAntiAlias(true);
+    }
+
+    /**
+     * Returns the precomputed text of a row, if it is still valid for the row's conversation.
+     */
+    static RowText getRowText(ConversationItemViewModel header, boolean showToHeader) {
+        final RowText rowText = header.precomputedText;
+        return rowText != null && rowText.matches(header.conversation, showToHeader)
+                ? rowText : null;
+    }
+
+    /**
+     * Sets the font size of the sender line, so that it can be measured ahead of time.
+     */
+    void setSendersFontSize(float fontSize) {
+        mSendersFontSize = fontSize;
+    }
+
+    /**
+     * Queues the rows following the one the cursor is positioned on, in the direction the list
+     * is scrolling, for precomputation. Rows queued earlier that have not been handled yet are
+     * dropped. Must be called on the UI thread, after binding the row at the cursor position.
+     * The cursor is not moved: only rows whose conversations it has already cached are queued.
+     */
+    public void onRowBound(ConversationCursor cursor, Account account, Folder folder,
+            BidiFormatter bidiFormatter) {
+        if (cursor == null || account == null || folder == null) {
+            return;
+        }
+        final int position = cursor.getPosition();
+        final int step = position < mLastBoundPosition ? -1 : 1;
+        mLastBoundPosition = position;
+
+        final boolean showToHeader = folder.shouldShowRecipients();
+        final String accountName = account.getEmailAddress();
+        List<Conversation> conversations = null;
+        for (int i = 1; i <= LOOKAHEAD_ROWS; i++) {
+            // Building a conversation here would cost the UI thread what we are trying to save.
+            final Conversation conv = cursor.peekCachedConversation(position + i * step);
+            if (conv == null || conv.conversationInfo == null) {
+                continue;
+            }
+            final ConversationItemViewModel header =
+                    ConversationItemViewModel.forConversationIdOrNull(accountName, conv.id);
+            if (header != null && header.precomputedText != null
+                    && header.precomputedText.matches(conv, showToHeader)) {
+                continue;
+            }
+            if (conversations == null) {
+                conversations = new ArrayList<Conversation>(LOOKAHEAD_ROWS);
+            }
+            conversations.add(conv);
+        }
+
+        if (conversations != null) {
+            mPendingBatch.set(new Batch(conversations, account, showToHeader, bidiFormatter,
+                    mSendersFontSize));
+            if (mWorkerScheduled.compareAndSet(false, true)) {
+                EXECUTOR.execute(mWorker);
+            }
+        }
+    }
+
+    /**
+     * Drops the rows that are queued for precomputation.
+     */
+    public void cancel() {
+        mPendingBatch.set(null);
+    }
+
+    /**
+     * Builds the text of a row on the worker thread.
+     * <p>
+     * The style spans are the ones {@link SendersView} and {@link ConversationItemView} share
+     * with the UI thread. Sharing them is safe: the UI thread creates them before it binds the
+     * first row, and so before any row is precomputed, and later replaces them rather than
+     * modifying them. The text only wraps them or attaches them to Spannables of its own, and
+     * {@link android.text.style.TextAppearanceSpan} keeps its attributes in final fields, so
+     * this thread always sees a whole span, whether the old or the new one.
+     */
+    private void precompute(Conversation conv, Batch batch) {
+        final ConversationInfo conversationInfo = conv.conversationInfo;
+        if (conversationInfo == null) {
+            return;
+        }
+        final SpannableStringBuilder messageInfo =
+                SendersView.createMessageInfo(mContext, conv, true);
+        final int maxChars = ConversationItemViewCoordinates.getSendersLength(mContext,
+                conv.hasAttachments);
+        final ArrayList<SpannableString> styledNames = new ArrayList<SpannableString>();
+        final ArrayList<String> displayableNames = new ArrayList<String>();
+        final ConversationItemViewModel.SenderAvatarModel avatar =
+                new ConversationItemViewModel.SenderAvatarModel();
+        SendersView.format(mContext, conversationInfo, messageInfo.toString(), maxChars,
+                styledNames, displayableNames, avatar, batch.account, batch.showToHeader, true);
+
+        // Stamped before formatting, so that a day or settings change in between makes the date
+        // stale rather than current.
+        final long dateStamp = FormattedDateBuilder.getShortDateStamp();
+        final CharSequence dateText = mDateBuilder.formatShortDateTime(conv.dateMs);
+        final Spannable subject = ConversationItemView.createSubjectText(mContext,
+                batch.bidiFormatter, conv.subject, null /* badgeText */, !conv.read,
+                null /* badgeSpanDimensions */);
+        final Spannable snippet = new SpannableString(conv.getSnippet());
+
+        SpannableStringBuilder sendersText = null;
+        float sendersTextWidth = 0;
+        final float fontSize = batch.sendersFontSize;
+        if (fontSize > 0) {
+            mPaint.setTextSize(fontSize);
+            mPaint.setTypeface(Typeface.DEFAULT);
+            sendersText = ConversationItemView.elideParticipants(styledNames, messageInfo,
+                    batch.showToHeader, mPaint, Integer.MAX_VALUE, mSendersWidth);
+            sendersTextWidth = mSendersWidth[0];
+        }
+
+        final RowText rowText = new RowText(conv, batch.showToHeader, messageInfo, styledNames,
+                displayableNames, avatar, dateStamp, dateText, subject, snippet, fontSize,
+                sendersText, sendersTextWidth);
+        ConversationItemViewModel.forConversationId(batch.account.getEmailAddress(), conv.id)
+                .precomputedText = rowText;
+        mPrecomputedRows.incrementAndGet();
+    }
+
+    /**
+     * Records the time it took to bind and lay out the text of a row. Must be called on the UI
+     * thread.
+     * @param bindTimeNs the time spent
+     * @param precomputed whether the precomputed text of the row was used
+     */
+    void recordBind(long bindTimeNs, boolean precomputed) {
+        if (precomputed) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        mTotalBindTimeNs += bindTimeNs;
+        mMaxBindTimeNs = Math.max(mMaxBindTimeNs, bindTimeNs);
+        if ((mHits + mMisses) % STATS_LOG_INTERVAL == 0) {
+            LogUtils.d(LOG_TAG, "Conversation row binds: %s", this);
+        }
+    }
+
+    /**
+     * @return the fraction of bound rows that used precomputed text
+     */
+    public float getHitRate() {
+        final int binds = mHits + mMisses;
+        return binds == 0 ? 0 : (float) mHits / binds;
+    }
+
+    /**
+     * @return the average time spent binding and laying out the text of a row, in microseconds
+     */
+    public long getAverageBindTimeUs() {
+        final int binds = mHits + mMisses;
+        return binds == 0 ? 0 : mTotalBindTimeNs / binds / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("binds=%d hitRate=%.2f bindTime avg=%dus max=%dus precomputed=%d",
+                mHits + mMisses, getHitRate(), getAverageBindTimeUs(), mMaxBindTimeNs / 1000,
+                mPrecomputedRows.get());
+    }
+}
@@ -46,7 +46,6 @@ import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.TextUtils;
 import android.text.TextUtils.TruncateAt;
-import android.text.format.DateUtils;
 import android.text.style.BackgroundColorSpan;
 import android.text.style.CharacterStyle;
 import android.text.style.ForegroundColorSpan;
@@ -60,6 +59,7 @@ import android.view.ViewParent;
 import android.view.animation.DecelerateInterpolator;
 import android.widget.TextView;
 
+import com.android.mail.FormattedDateBuilder;
 import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.bitmap.CheckableContactFlipDrawable;
@@ -181,6 +181,10 @@ public class ConversationItemView extends View
     private final Context mContext;
 
     private ConversationItemViewModel mHeader;
+    /** The precomputed text of {@link #mHeader}, if it was still valid when bound. */
+    private ConversationItemTextPrecomputer.RowText mRowText;
+    /** Time spent in the last {@link #bind}, until its layout is recorded; -1 otherwise. */
+    private long mBindTimeNs = -1;
     private boolean mDownEvent;
     private boolean mChecked = false;
     private ConversationCheckedSet mCheckedConversationSet;
@@ -212,6 +216,7 @@ public class ConversationItemView extends View
     /** The bitmap to use, or <code>null</code> for the default */
     private Bitmap mPhotoBitmap = null;
     private Rect mPhotoRect = new Rect();
+    private final FormattedDateBuilder mDateBuilder;
 
     /**
      * A listener for clicks on the various areas of a conversation item.
@@ -241,6 +246,12 @@ public class ConversationItemView extends View
         private final BidiFormatter mFormatter;
         private int mFoldersCount;
 
+        /** The width of the displayed folder names and of their chips, for these coordinates. */
+        private int[] mTextWidths = new int[0];
+        private int[] mChipWidths = new int[0];
+        private int mChipCount;
+        private ConversationItemViewCoordinates mChipsCoordinates;
+
         public ConversationItemFolderDisplayer(Context context, BidiFormatter formatter) {
             super(context);
             mFormatter = formatter;
@@ -263,12 +274,14 @@ public class ConversationItemView extends View
                 final int ignoreFolderType) {
             super.loadConversationFolders(conv, ignoreFolderUri, ignoreFolderType);
             mFoldersCount = mFoldersSortedSet.size();
+            mChipsCoordinates = null;
         }
 
         @Override
         public void reset() {
             super.reset();
             mFoldersCount = 0;
+            mChipsCoordinates = null;
         }
 
         public boolean hasVisibleFolders() {
@@ -279,20 +292,46 @@ public class ConversationItemView extends View
          * @return how much total space the folders list requires.
          */
         private int measureFolders(ConversationItemViewCoordinates coordinates) {
-            final int[] measurements = measureFolderDimen(
-                    mFoldersSortedSet, coordinates.folderCellWidth, coordinates.folderLayoutWidth,
-                    mFolderDrawableResources.folderInBetweenPadding,
-                    mFolderDrawableResources.folderHorizontalPadding, sFoldersMaxCount,
-                    sFoldersPaint);
-            return sumWidth(measurements);
+            layoutChips(coordinates);
+            return sumWidth();
+        }
+
+        /**
+         * Computes the width of the chips from the cached width of the folder names, so that
+         * no text is measured for labels that were shown before.
+         */
+        private void layoutChips(ConversationItemViewCoordinates coordinates) {
+            final int count = Math.min(sFoldersMaxCount, mFoldersSortedSet.size());
+            if (mTextWidths.length < count) {
+                mTextWidths = new int[count];
+                mChipWidths = new int[count];
+            }
+            if (count > 0) {
+                sFoldersPaint.setTextSize(coordinates.foldersFontSize);
+                sFoldersPaint.setTypeface(coordinates.foldersTypeface);
+            }
+            int index = 0;
+            for (Folder folder : mFoldersSortedSet) {
+                if (index == count) {
+                    break;
+                }
+                mTextWidths[index] = getTextWidth(folder, sFoldersPaint);
+                mChipWidths[index] = mTextWidths[index];
+                index++;
+            }
+            measureFolderDimen(mChipWidths, count, coordinates.folderCellWidth,
+                    coordinates.folderLayoutWidth, mFolderDrawableResources.folderInBetweenPadding,
+                    mFolderDrawableResources.folderHorizontalPadding);
+            mChipCount = count;
+            mChipsCoordinates = coordinates;
         }
 
-        private int sumWidth(int[] arr) {
+        private int sumWidth() {
             int sum = 0;
-            for (int i : arr) {
-                sum += i;
+            for (int i = 0; i < mChipCount; i++) {
+                sum += mChipWidths[i];
             }
-            return sum + (arr.length - 1) * mFolderDrawableResources.folderInBetweenPadding;
+            return sum + (mChipCount - 1) * mFolderDrawableResources.folderInBetweenPadding;
         }
 
         public void drawFolders(Canvas canvas, ConversationItemViewCoordinates coordinates,
@@ -301,11 +340,9 @@ public class ConversationItemView extends View
                 return;
             }
 
-            final int[] measurements = measureFolderDimen(
-                    mFoldersSortedSet, coordinates.folderCellWidth, coordinates.folderLayoutWidth,
-                    mFolderDrawableResources.folderInBetweenPadding,
-                    mFolderDrawableResources.folderHorizontalPadding, sFoldersMaxCount,
-                    sFoldersPaint);
+            if (mChipsCoordinates != coordinates) {
+                layoutChips(coordinates);
+            }
 
             final int right = coordinates.foldersRight;
             final int y = coordinates.foldersY;
@@ -315,8 +352,8 @@ public class ConversationItemView extends View
 
             // Initialize space and cell size based on the current mode.
             final Paint.FontMetricsInt fm = sFoldersPaint.getFontMetricsInt();
-            final int foldersCount = measurements.length;
-            final int width = sumWidth(measurements);
+            final int foldersCount = mChipCount;
+            final int width = sumWidth();
             final int height = fm.bottom - fm.top;
             int xStart = (isRtl) ? coordinates.snippetX + width : right - width;
 
@@ -326,12 +363,15 @@ public class ConversationItemView extends View
                     break;
                 }
 
-                final int actualStart = isRtl ? xStart - measurements[index] : xStart;
-                drawFolder(canvas, actualStart, y, measurements[index], height, folder,
+                final int actualStart = isRtl ? xStart - mChipWidths[index] : xStart;
+                drawFolder(canvas, actualStart, y, mChipWidths[index], height, folder.name,
+                        mTextWidths[index],
+                        folder.getForegroundColor(mFolderDrawableResources.defaultFgColor),
+                        folder.getBackgroundColor(mFolderDrawableResources.defaultBgColor),
                         mFolderDrawableResources, mFormatter, sFoldersPaint);
 
                 // Increment the starting position accordingly for the next item
-                final int usedWidth = measurements[index++] +
+                final int usedWidth = mChipWidths[index++] +
                         mFolderDrawableResources.folderInBetweenPadding;
                 xStart += (isRtl) ? -usedWidth : usedWidth;
             }
@@ -356,6 +396,7 @@ public class ConversationItemView extends View
         setClickable(true);
         setLongClickable(true);
         mContext = context.getApplicationContext();
+        mDateBuilder = new FormattedDateBuilder(mContext);
         final Resources res = mContext.getResources();
         mTabletDevice = Utils.useTabletUI(res);
         mListCollapsible = !res.getBoolean(R.bool.is_tablet_landscape);
@@ -472,11 +513,16 @@ public class ConversationItemView extends View
             final boolean swipeEnabled, final boolean importanceMarkersEnabled,
             final boolean showChevronsEnabled, final AnimatedAdapter adapter) {
         Utils.traceBeginSection("CIVC.bind");
-        bind(ConversationItemViewModel.forConversation(mAccount.getEmailAddress(), conversation),
-                activity, null /* conversationItemAreaClickListener */,
+        final long start = System.nanoTime();
+        final ConversationItemViewModel header =
+                ConversationItemViewModel.forConversation(mAccount.getEmailAddress(), conversation);
+        mRowText = ConversationItemTextPrecomputer.getRowText(header,
+                folder.shouldShowRecipients());
+        bind(header, activity, null /* conversationItemAreaClickListener */,
                 set, folder, checkboxOrSenderImage, swipeEnabled, importanceMarkersEnabled,
                 showChevronsEnabled, adapter, -1 /* backgroundOverrideResId */,
                 null /* photoBitmap */, false /* useFullMargins */, true /* mDividerEnabled */);
+        mBindTimeNs = System.nanoTime() - start;
         Utils.traceEndSection();
     }
 
@@ -486,6 +532,8 @@ public class ConversationItemView extends View
             final Folder folder, final int checkboxOrSenderImage, final AnimatedAdapter adapter,
             final int backgroundOverrideResId, final Bitmap photoBitmap) {
         Utils.traceBeginSection("CIVC.bindAd");
+        mRowText = null;
+        mBindTimeNs = -1;
         bind(conversationItemViewModel, activity, conversationItemAreaClickListener, null /* set */,
                 folder, checkboxOrSenderImage, true /* swipeEnabled */,
                 false /* importanceMarkersEnabled */, false /* showChevronsEnabled */,
@@ -570,8 +618,11 @@ public class ConversationItemView extends View
 
         if (mHeader.showDateText) {
             Utils.traceBeginSection("relative time");
-            mHeader.dateText = DateUtils.getRelativeTimeSpanString(mContext,
-                    mHeader.conversation.dateMs);
+            if (mRowText != null && mRowText.isDateTextFresh()) {
+                mHeader.dateText = mRowText.dateText;
+            } else {
+                mHeader.dateText = mDateBuilder.formatShortDateTime(mHeader.conversation.dateMs);
+            }
             Utils.traceEndSection();
         } else {
             mHeader.dateText = "";
@@ -697,6 +748,7 @@ public class ConversationItemView extends View
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         startTimer(PERF_TAG_LAYOUT);
         Utils.traceBeginSection("CIVC.layout");
+        final long start = System.nanoTime();
 
         super.onLayout(changed, left, top, right, bottom);
 
@@ -720,6 +772,13 @@ public class ConversationItemView extends View
         mHeader.validate();
         Utils.traceEndSection();
 
+        if (mBindTimeNs >= 0) {
+            // Only the first layout after a bind counts towards the bind time of the row.
+            mAdapter.getTextPrecomputer().recordBind(mBindTimeNs + System.nanoTime() - start,
+                    mRowText != null);
+            mBindTimeNs = -1;
+        }
+
         pauseTimer(PERF_TAG_LAYOUT);
         if (sTimer != null && ++sLayoutCount >= PERF_LAYOUT_ITERATIONS) {
             sTimer.dumpResults();
@@ -778,20 +837,24 @@ public class ConversationItemView extends View
             mHeader.sendersDisplayText = new SpannableStringBuilder(mHeader.sendersText);
             loadImages();
         } else if (mHeader.conversation.conversationInfo != null) {
-            Context context = getContext();
-            mHeader.messageInfoString = SendersView
-                    .createMessageInfo(context, mHeader.conversation, true);
-            final int maxChars = ConversationItemViewCoordinates.getSendersLength(context,
-                    mHeader.conversation.hasAttachments);
-
-            mHeader.mSenderAvatarModel.clear();
-            mHeader.displayableNames.clear();
-            mHeader.styledNames.clear();
-
-            SendersView.format(context, mHeader.conversation.conversationInfo,
-                    mHeader.messageInfoString.toString(), maxChars, mHeader.styledNames,
-                    mHeader.displayableNames, mHeader.mSenderAvatarModel,
-                    mAccount, mDisplayedFolder.shouldShowRecipients(), true);
+            if (mRowText != null) {
+                mRowText.applyTo(mHeader);
+            } else {
+                Context context = getContext();
+                mHeader.messageInfoString = SendersView
+                        .createMessageInfo(context, mHeader.conversation, true);
+                final int maxChars = ConversationItemViewCoordinates.getSendersLength(context,
+                        mHeader.conversation.hasAttachments);
+
+                mHeader.mSenderAvatarModel.clear();
+                mHeader.displayableNames.clear();
+                mHeader.styledNames.clear();
+
+                SendersView.format(context, mHeader.conversation.conversationInfo,
+                        mHeader.messageInfoString.toString(), maxChars, mHeader.styledNames,
+                        mHeader.displayableNames, mHeader.mSenderAvatarModel,
+                        mAccount, mDisplayedFolder.shouldShowRecipients(), true);
+            }
 
             // If we have displayable senders, load their thumbnails
             loadImages();
@@ -876,24 +939,23 @@ public class ConversationItemView extends View
     }
 
     private void createSubject(final boolean isUnread) {
-        final String badgeText = mHeader.badgeText == null ? "" : mHeader.badgeText;
-        String subject = filterTag(getContext(), mHeader.conversation.subject);
-        subject = mAdapter.getBidiFormatter().unicodeWrap(subject);
-        subject = Conversation.getSubjectForDisplay(mContext, badgeText, subject);
-        final Spannable displayedStringBuilder = new SpannableString(subject);
-
-        // since spans affect text metrics, add spans to the string before measure/layout or eliding
-
-        final int badgeTextLength = formatBadgeText(displayedStringBuilder, badgeText);
-
-        if (!TextUtils.isEmpty(subject)) {
-            displayedStringBuilder.setSpan(TextAppearanceSpan.wrap(
-                    isUnread ? sSubjectTextUnreadSpan : sSubjectTextReadSpan),
-                    badgeTextLength, subject.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        final Spannable displayedStringBuilder;
+        final int badgeTextLength;
+        if (mRowText != null && TextUtils.isEmpty(mHeader.badgeText)) {
+            // The precomputed subject was styled for the same read state, without a badge.
+            displayedStringBuilder = mRowText.copySubject();
+            badgeTextLength = 0;
+        } else {
+            displayedStringBuilder = createSubjectText(mContext, mAdapter.getBidiFormatter(),
+                    mHeader.conversation.subject, mHeader.badgeText, isUnread, this);
+            badgeTextLength = mHeader.badgeText == null ? 0 : mHeader.badgeText.length();
         }
+
         if (isActivated() && showActivatedText()) {
             displayedStringBuilder.setSpan(sActivatedTextSpan, badgeTextLength,
                     displayedStringBuilder.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+        } else {
+            displayedStringBuilder.removeSpan(sActivatedTextSpan);
         }
 
         final int subjectWidth = mCoordinates.subjectWidth;
@@ -905,9 +967,39 @@ public class ConversationItemView extends View
         mSubjectTextView.setText(displayedStringBuilder);
     }
 
+    /**
+     * Builds the styled subject of a row. Safe to call from any thread once the item view
+     * resources are loaded.
+     *
+     * @param badgeSpanDimensions may be null if there is no badge text
+     */
+    static Spannable createSubjectText(Context context, BidiFormatter bidiFormatter,
+            String rawSubject, String badgeText, boolean isUnread,
+            BadgeSpan.BadgeSpanDimensions badgeSpanDimensions) {
+        if (badgeText == null) {
+            badgeText = "";
+        }
+        String subject = filterTag(context, rawSubject);
+        subject = bidiFormatter.unicodeWrap(subject);
+        subject = Conversation.getSubjectForDisplay(context, badgeText, subject);
+        final Spannable displayedStringBuilder = new SpannableString(subject);
+
+        // since spans affect text metrics, add spans to the string before measure/layout or eliding
+
+        final int badgeTextLength =
+                formatBadgeText(displayedStringBuilder, badgeText, badgeSpanDimensions);
+
+        if (!TextUtils.isEmpty(subject)) {
+            displayedStringBuilder.setSpan(TextAppearanceSpan.wrap(
+                    isUnread ? sSubjectTextUnreadSpan : sSubjectTextReadSpan),
+                    badgeTextLength, subject.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return displayedStringBuilder;
+    }
+
     private void createSnippet() {
-        final String snippet = mHeader.conversation.getSnippet();
-        final Spannable displayedStringBuilder = new SpannableString(snippet);
+        final Spannable displayedStringBuilder = mRowText != null ? mRowText.copySnippet()
+                : new SpannableString(mHeader.conversation.getSnippet());
 
         // measure the width of the folders which overlap the snippet view
         final int folderWidth = mHeader.folderDisplayer.measureFolders(mCoordinates);
@@ -922,14 +1014,16 @@ public class ConversationItemView extends View
         mSnippetTextView.setText(displayedStringBuilder);
     }
 
-    private int formatBadgeText(Spannable displayedStringBuilder, String badgeText) {
+    private static int formatBadgeText(Spannable displayedStringBuilder, String badgeText,
+            BadgeSpan.BadgeSpanDimensions badgeSpanDimensions) {
         final int badgeTextLength = (badgeText != null) ? badgeText.length() : 0;
         if (!TextUtils.isEmpty(badgeText)) {
             displayedStringBuilder.setSpan(TextAppearanceSpan.wrap(sBadgeTextSpan),
                     0, badgeTextLength, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             displayedStringBuilder.setSpan(TextAppearanceSpan.wrap(sBadgeBackgroundSpan),
                     0, badgeTextLength, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            displayedStringBuilder.setSpan(new BadgeSpan(displayedStringBuilder, this),
+            displayedStringBuilder.setSpan(new BadgeSpan(displayedStringBuilder,
+                    badgeSpanDimensions),
                     0, badgeTextLength, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
 
@@ -1028,7 +1122,17 @@ public class ConversationItemView extends View
             mHeader.sendersDisplayLayout = new StaticLayout(mHeader.sendersDisplayText, sPaint,
                     mSendersWidth, Alignment.ALIGN_NORMAL, 1, 0, true);
         } else {
-            final SpannableStringBuilder participantText = elideParticipants(mHeader.styledNames);
+            mAdapter.getTextPrecomputer().setSendersFontSize(mCoordinates.sendersFontSize);
+            final SpannableStringBuilder participantText;
+            if (mRowText != null
+                    && mRowText.sendersTextFits(mCoordinates.sendersFontSize, mSendersWidth)) {
+                // Nothing needs eliding, so the precomputed line is what we would build here.
+                participantText = mRowText.copySendersText();
+                mHeader.styledMessageInfoStringOffset =
+                        mRowText.getStyledMessageInfoStringOffset();
+            } else {
+                participantText = elideParticipants(mHeader.styledNames);
+            }
             layoutParticipantText(participantText);
         }
 
@@ -1040,6 +1144,23 @@ public class ConversationItemView extends View
     // 2) If senders do not fit, ellipsize the last one that does fit, and stop
     // appending new senders
     SpannableStringBuilder elideParticipants(List<SpannableString> parts) {
+        final SpannableStringBuilder builder = elideParticipants(parts, mHeader.messageInfoString,
+                mDisplayedFolder.shouldShowRecipients(), sPaint, mSendersWidth, null);
+        mHeader.styledMessageInfoStringOffset = builder.length()
+                - (mHeader.messageInfoString != null ? mHeader.messageInfoString.length() : 0);
+        return builder;
+    }
+
+    /**
+     * Builds the sender line of a row, eliding senders that do not fit in the given width. Safe
+     * to call from any thread with a paint of its own.
+     *
+     * @param paint the paint to measure with, set up with the senders font size
+     * @param outWidth if not null, receives the width of the line
+     */
+    static SpannableStringBuilder elideParticipants(List<SpannableString> parts,
+            SpannableStringBuilder messageInfoString, boolean showToHeader, TextPaint paint,
+            int sendersWidth, float[] outWidth) {
         final SpannableStringBuilder builder = new SpannableStringBuilder();
         float totalWidth = 0;
         boolean ellipsize = false;
@@ -1047,31 +1168,30 @@ public class ConversationItemView extends View
         boolean skipToHeader = false;
 
         // start with "To: " if we're showing recipients
-        if (mDisplayedFolder.shouldShowRecipients() && !parts.isEmpty()) {
+        if (showToHeader && !parts.isEmpty()) {
             final SpannableString toHeader = SendersView.getFormattedToHeader();
             CharacterStyle[] spans = toHeader.getSpans(0, toHeader.length(),
                     CharacterStyle.class);
             // There is only 1 character style span; make sure we apply all the
             // styles to the paint object before measuring.
             if (spans.length > 0) {
-                spans[0].updateDrawState(sPaint);
+                spans[0].updateDrawState(paint);
             }
-            totalWidth += sPaint.measureText(toHeader.toString());
+            totalWidth += paint.measureText(toHeader.toString());
             builder.append(toHeader);
             skipToHeader = true;
         }
 
-        final SpannableStringBuilder messageInfoString = mHeader.messageInfoString;
         if (!TextUtils.isEmpty(messageInfoString)) {
             CharacterStyle[] spans = messageInfoString.getSpans(0, messageInfoString.length(),
                     CharacterStyle.class);
             // There is only 1 character style span; make sure we apply all the
             // styles to the paint object before measuring.
             if (spans.length > 0) {
-                spans[0].updateDrawState(sPaint);
+                spans[0].updateDrawState(paint);
             }
             // Paint the message info string to see if we lose space.
-            float messageInfoWidth = sPaint.measureText(messageInfoString.toString());
+            float messageInfoWidth = paint.measureText(messageInfoString.toString());
             totalWidth += messageInfoWidth;
         }
         SpannableString prevSender = null;
@@ -1088,7 +1208,7 @@ public class ConversationItemView extends View
             CharacterStyle[] spans = sender.getSpans(0, sender.length(), CharacterStyle.class);
             // There is only 1 character style span.
             if (spans.length > 0) {
-                spans[0].updateDrawState(sPaint);
+                spans[0].updateDrawState(paint);
             }
             // If there are already senders present in this string, we need to
             // make sure we prepend the dividing token
@@ -1104,18 +1224,18 @@ public class ConversationItemView extends View
             prevSender = sender;
 
             if (spans.length > 0) {
-                spans[0].updateDrawState(sPaint);
+                spans[0].updateDrawState(paint);
             }
             // Measure the width of the current sender and make sure we have space
-            width = (int) sPaint.measureText(sender.toString());
-            if (width + totalWidth > mSendersWidth) {
+            width = (int) paint.measureText(sender.toString());
+            if (width + totalWidth > sendersWidth) {
                 // The text is too long, new line won't help. We have to
                 // ellipsize text.
                 ellipsize = true;
-                width = mSendersWidth - totalWidth; // ellipsis width?
+                width = sendersWidth - totalWidth; // ellipsis width?
                 ellipsizedText = copyStyles(spans,
-                        TextUtils.ellipsize(sender, sPaint, width, TruncateAt.END));
-                width = (int) sPaint.measureText(ellipsizedText.toString());
+                        TextUtils.ellipsize(sender, paint, width, TruncateAt.END));
+                width = (int) paint.measureText(ellipsizedText.toString());
             } else {
                 ellipsizedText = null;
             }
@@ -1129,10 +1249,12 @@ public class ConversationItemView extends View
             }
             builder.append(fragmentDisplayText);
         }
-        mHeader.styledMessageInfoStringOffset = builder.length();
         if (!TextUtils.isEmpty(messageInfoString)) {
             builder.append(messageInfoString);
         }
+        if (outWidth != null) {
+            outWidth[0] = totalWidth;
+        }
         return builder;
     }
 
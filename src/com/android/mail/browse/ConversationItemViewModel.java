@@ -17,6 +17,7 @@
 
 package com.android.mail.browse;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.text.SpannableString;
@@ -24,8 +25,7 @@ import android.text.SpannableStringBuilder;
 import android.text.StaticLayout;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
-import android.util.LruCache;
-import android.util.Pair;
+import android.util.DisplayMetrics;
 
 import com.android.mail.R;
 import com.android.mail.providers.Conversation;
@@ -33,6 +33,8 @@ import com.android.mail.providers.Folder;
 import com.android.mail.providers.ParticipantInfo;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.FolderUri;
+import com.android.mail.utils.LongLruCache;
+import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 
@@ -45,17 +47,35 @@ import java.util.List;
  * associated with a conversation and is cached to improve the relayout time.
  */
 public class ConversationItemViewModel {
-    private static final int MAX_CACHE_SIZE = 100;
+    private static final int DEFAULT_CACHE_SIZE = 100;
+    private static final int MIN_CACHE_SIZE = 50;
+    private static final int MAX_CACHE_SIZE = 500;
+    /** Screens worth of rows to keep models for, at the default memory class. */
+    private static final int SCREENS_TO_CACHE = 4;
+    /** The shortest a conversation row gets. */
+    private static final int MIN_ROW_HEIGHT_DP = 64;
+    /** The memory class at which {@link #SCREENS_TO_CACHE} applies. */
+    private static final int BASELINE_MEMORY_CLASS = 64;
+
+    /** Guards the model cache, which the text precomputer also reads from its thread. */
+    private static final Object sCacheLock = new Object();
 
-    @VisibleForTesting
-    static LruCache<Pair<String, Long>, ConversationItemViewModel> sConversationHeaderMap
-        = new LruCache<Pair<String, Long>, ConversationItemViewModel>(MAX_CACHE_SIZE);
+    /**
+     * The cached models of all accounts, under one size limit, keyed by
+     * {@link #getCacheKey(String, long)}. The keys of different accounts may collide, so each
+     * model records the account it belongs to.
+     */
+    private static LongLruCache<ConversationItemViewModel> sCache =
+            new LongLruCache<ConversationItemViewModel>(DEFAULT_CACHE_SIZE);
 
     /**
      * The Folder associated with the cache of models.
      */
     private static Folder sCachedModelsFolder;
 
+    /** The account of the conversation this model was cached for. */
+    private String mAccount;
+
     // The hashcode used to detect if the conversation has changed.
     private int mDataHashCode;
     private int mLayoutHashCode;
@@ -117,6 +137,12 @@ public class ConversationItemViewModel {
 
     private String mContentDescription;
 
+    /**
+     * Text built ahead of time by {@link ConversationItemTextPrecomputer}, possibly on another
+     * thread. Only valid while it matches {@link #conversation}.
+     */
+    volatile ConversationItemTextPrecomputer.RowText precomputedText;
+
     /**
      * The email address and name of the sender whose avatar will be drawn as a conversation icon.
      */
@@ -143,9 +169,10 @@ public class ConversationItemViewModel {
      */
     @VisibleForTesting
     static ConversationItemViewModel forConversationIdOrNull(String account, long conversationId) {
-        final Pair<String, Long> key = new Pair<String, Long>(account, conversationId);
-        synchronized(sConversationHeaderMap) {
-            return sConversationHeaderMap.get(key);
+        synchronized (sCacheLock) {
+            final ConversationItemViewModel header =
+                    sCache.get(getCacheKey(account, conversationId));
+            return header != null && Objects.equal(header.mAccount, account) ? header : null;
         }
     }
 
@@ -168,26 +195,73 @@ public class ConversationItemViewModel {
 
     /**
      * Returns the view model for a conversation. If this is the first time
-     * call, a new view model will be returned. Note: this should only be called
-     * from the UI thread.
+     * call, a new view model will be returned. Note: apart from
+     * {@link ConversationItemTextPrecomputer}, which only sets {@link #precomputedText},
+     * this should only be called from the UI thread.
      *
      * @param account the account contains this conversation
      * @param conversationId the Id of this conversation
      * @return the view model for this conversation
      */
     static ConversationItemViewModel forConversationId(String account, long conversationId) {
-        synchronized(sConversationHeaderMap) {
-            ConversationItemViewModel header =
-                    forConversationIdOrNull(account, conversationId);
-            if (header == null) {
-                final Pair<String, Long> key = new Pair<String, Long>(account, conversationId);
+        synchronized (sCacheLock) {
+            final long key = getCacheKey(account, conversationId);
+            ConversationItemViewModel header = sCache.get(key);
+            if (header == null || !Objects.equal(header.mAccount, account)) {
+                // A model of another account with a colliding key is replaced.
                 header = new ConversationItemViewModel();
-                sConversationHeaderMap.put(key, header);
+                header.mAccount = account;
+                sCache.put(key, header);
             }
             return header;
         }
     }
 
+    /**
+     * Returns the key of a conversation in the model cache. The keys of the conversations of one
+     * account are distinct.
+     */
+    private static long getCacheKey(String account, long conversationId) {
+        final long accountHash = account != null ? account.hashCode() : 0;
+        return conversationId ^ (accountHash << 32);
+    }
+
+    /**
+     * Sizes the model cache to hold a few screens worth of rows, more on devices with a larger
+     * memory class and less on low RAM devices. The size is shared by all accounts. The cache
+     * is cleared if the size changes.
+     */
+    public static void initializeCacheSize(Context context) {
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        final float rowsPerScreen = Math.max(metrics.widthPixels, metrics.heightPixels)
+                / (MIN_ROW_HEIGHT_DP * metrics.density);
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        // This will be null when running unit tests
+        final int memoryClass = am != null ? am.getMemoryClass() : BASELINE_MEMORY_CLASS;
+        int size = (int) (rowsPerScreen * SCREENS_TO_CACHE * memoryClass / BASELINE_MEMORY_CLASS);
+        if (Utils.isLowRamDevice(context)) {
+            size /= 2;
+        }
+        size = Math.max(MIN_CACHE_SIZE, Math.min(MAX_CACHE_SIZE, size));
+        synchronized (sCacheLock) {
+            if (size != sCache.capacity()) {
+                sCache = new LongLruCache<ConversationItemViewModel>(size);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static int getCacheSize() {
+        synchronized (sCacheLock) {
+            return sCache.capacity();
+        }
+    }
+
+    private static void clearCacheLocked() {
+        sCache.evictAll();
+    }
+
     /**
      * Returns the hashcode to compare if the data in the header is valid.
      */
@@ -208,6 +282,16 @@ public class ConversationItemViewModel {
         return Objects.hashCode(mDataHashCode, viewWidth, standardScaledDimen, gadgetMode);
     }
 
+    /**
+     * Marks the data and layout of this header as stale, so that they are recomputed the next
+     * time it is laid out.
+     */
+    void invalidate() {
+        // -1 is the data hash of a header without a date, which a laid out header never is.
+        mDataHashCode = -1;
+        mContentDescription = null;
+    }
+
     /**
      * Marks this header as having valid data and layout.
      */
@@ -309,20 +393,56 @@ public class ConversationItemViewModel {
      */
 
     public static void onAccessibilityUpdated() {
-        sConversationHeaderMap.evictAll();
+        synchronized (sCacheLock) {
+            clearCacheLocked();
+        }
     }
 
     /**
-     * Clear cached header model objects when the folder changes.
+     * Invalidate cached header model objects when the folder changes. The models are kept, since
+     * conversations are often in more than one folder and their senders and subject do not
+     * depend on the folder. Only the models of conversations that are in the old or new folder
+     * are invalidated, as the folder being viewed is left out of their folder chips.
      */
-    public static void onFolderUpdated(Folder folder) {
-        final FolderUri old = sCachedModelsFolder != null
-                ? sCachedModelsFolder.folderUri : FolderUri.EMPTY;
+    public static void onFolderUpdated(final Folder folder) {
+        final Folder oldFolder = sCachedModelsFolder;
+        final FolderUri old = oldFolder != null ? oldFolder.folderUri : FolderUri.EMPTY;
         final FolderUri newUri = folder != null ? folder.folderUri : FolderUri.EMPTY;
         if (!old.equals(newUri)) {
             sCachedModelsFolder = folder;
-            sConversationHeaderMap.evictAll();
+            synchronized (sCacheLock) {
+                sCache.visitAll(new LongLruCache.EntryVisitor<ConversationItemViewModel>() {
+                    @Override
+                    public boolean visit(long key, ConversationItemViewModel header) {
+                        if (header.conversation != null
+                                && (isInFolder(header.conversation, oldFolder)
+                                        || isInFolder(header.conversation, folder))) {
+                            header.invalidate();
+                        }
+                        return true;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns whether viewing the folder hides one of the conversation's folder chips: the folder
+     * itself, or any inbox when the folder is an inbox.
+     */
+    @VisibleForTesting
+    static boolean isInFolder(Conversation conversation, Folder folder) {
+        if (folder == null) {
+            return false;
+        }
+        final boolean isInbox = folder.isInbox();
+        for (Folder rawFolder : conversation.getRawFolders()) {
+            if (folder.folderUri.equals(rawFolder.folderUri)
+                    || (isInbox && rawFolder.isType(UIProvider.FolderType.INBOX))) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.app.ListFragment;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.android.mail.R;
+import com.android.mail.ui.AccountFeedbackActivity;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.MimeType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the messages of several EML files opened at once, whose headers are parsed by an
+ * {@link EmlBatchImporter}. Selecting a message opens its file in the {@link EmlViewerActivity}.
+ */
+public class EmlBatchFragment extends ListFragment implements EmlBatchImporter.Callback {
+    private static final String ARG_EML_FILE_URIS = "eml_file_uris";
+    private static final String ARG_ACCOUNT_URI = "account_uri";
+
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** A parsed file, as listed. */
+    private static class ImportedEml {
+        final Uri emlFileUri;
+        final String subject;
+        final String from;
+
+        ImportedEml(Uri emlFileUri, String subject, String from) {
+            this.emlFileUri = emlFileUri;
+            this.subject = subject;
+            this.from = from;
+        }
+    }
+
+    private final List<ImportedEml> mImported = new ArrayList<ImportedEml>();
+    /** The application context, as the fragment outlives its activities. */
+    private Context mContext;
+    private EmlBatchImporter mImporter;
+    private ArrayAdapter<ImportedEml> mAdapter;
+
+    public static EmlBatchFragment newInstance(ArrayList<Uri> emlFileUris, Uri accountUri) {
+        final EmlBatchFragment fragment = new EmlBatchFragment();
+        final Bundle args = new Bundle(2);
+        args.putParcelableArrayList(ARG_EML_FILE_URIS, emlFileUris);
+        args.putParcelable(ARG_ACCOUNT_URI, accountUri);
+        fragment.setArguments(args);
+        return fragment;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // Keep parsing across configuration changes instead of starting the batch over.
+        setRetainInstance(true);
+        final List<Uri> emlFileUris = getArguments().getParcelableArrayList(ARG_EML_FILE_URIS);
+        mContext = getActivity().getApplicationContext();
+        // Only the summary of each file is listed, and a file is parsed in full when opened.
+        mImporter = new EmlBatchImporter(mContext, this, true /* headersOnly */);
+        mImporter.importFiles(emlFileUris);
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        mAdapter = new ArrayAdapter<ImportedEml>(getActivity(),
+                android.R.layout.simple_list_item_2, android.R.id.text1, mImported) {
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                final View view = super.getView(position, convertView, parent);
+                final ImportedEml imported = getItem(position);
+                ((TextView) view.findViewById(android.R.id.text1)).setText(imported.subject);
+                ((TextView) view.findViewById(android.R.id.text2)).setText(imported.from);
+                return view;
+            }
+        };
+        setListAdapter(mAdapter);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mImporter.cancel();
+    }
+
+    @Override
+    public void onListItemClick(ListView l, View v, int position, long id) {
+        final Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setClass(getActivity(), EmlViewerActivity.class);
+        intent.setDataAndType(mImported.get(position).emlFileUri,
+                MimeType.EML_ATTACHMENT_CONTENT_TYPE);
+        intent.putExtra(AccountFeedbackActivity.EXTRA_ACCOUNT_URI,
+                getArguments().getParcelable(ARG_ACCOUNT_URI));
+        startActivity(intent);
+    }
+
+    @Override
+    public void onMessageImported(Uri emlFileUri, ConversationMessage message, long latencyMs) {
+        final ImportedEml imported;
+        if (message == null) {
+            imported = new ImportedEml(emlFileUri, emlFileUri.getLastPathSegment(),
+                    mContext.getString(R.string.eml_loader_error_toast));
+        } else {
+            imported = new ImportedEml(emlFileUri, !TextUtils.isEmpty(message.subject)
+                    ? message.subject : mContext.getString(R.string.no_subject),
+                    message.getFrom());
+        }
+        mImported.add(imported);
+        if (mAdapter != null) {
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    @Override
+    public void onImportFinished(EmlBatchImporter.Stats stats) {
+        LogUtils.i(LOG_TAG, "Listed %d eml files", mImported.size());
+    }
+}
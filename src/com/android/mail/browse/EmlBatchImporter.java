@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses a batch of EML files into {@link ConversationMessage}s on a bounded pool of threads.
+ * Each file is parsed in its own temp directory (see
+ * {@link EmlMessageLoader#loadEmlMessage(Context, Uri)}), so files never see each other's temp
+ * files. Results are delivered on the main thread as each file completes, in completion order.
+ * <p>
+ * An importer created to parse headers only reads each file up to the end of its headers, and
+ * delivers messages with no body or attachments, which is enough to list the files.
+ * <p>
+ * {@link #cancel()} lets the files being parsed finish, and discards their messages along with
+ * the attachment files they cached, rather than interrupting a parse halfway.
+ */
+public class EmlBatchImporter {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** Parsing is mostly I/O and allocation bound, so more threads than this rarely help. */
+    private static final int MAX_CONCURRENT_IMPORTS = 4;
+
+    public interface Callback {
+        /**
+         * Called on the main thread when a file has been parsed.
+         * @param emlFileUri the file
+         * @param message the parsed message, or null if the file could not be read or parsed
+         * @param latencyMs the time spent parsing this file
+         */
+        void onMessageImported(Uri emlFileUri, ConversationMessage message, long latencyMs);
+
+        /**
+         * Called on the main thread once every file of the batch has been handled.
+         */
+        void onImportFinished(Stats stats);
+    }
+
+    /**
+     * Throughput and latency for a batch.
+     */
+    public static class Stats {
+        public final int imported;
+        public final int failed;
+        public final long elapsedMs;
+        public final long totalLatencyMs;
+        public final long maxLatencyMs;
+
+        private Stats(int imported, int failed, long elapsedMs, long totalLatencyMs,
+                long maxLatencyMs) {
+            this.imported = imported;
+            this.failed = failed;
+            this.elapsedMs = elapsedMs;
+            this.totalLatencyMs = totalLatencyMs;
+            this.maxLatencyMs = maxLatencyMs;
+        }
+
+        public float getFilesPerSecond() {
+            return (imported + failed) * 1000f / Math.max(1, elapsedMs);
+        }
+
+        public long getAverageLatencyMs() {
+            final int count = imported + failed;
+            return count == 0 ? 0 : totalLatencyMs / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("imported=%d failed=%d elapsed=%dms rate=%.1f/s " +
+                    "latency avg=%dms max=%dms", imported, failed, elapsedMs,
+                    getFilesPerSecond(), getAverageLatencyMs(), maxLatencyMs);
+        }
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final boolean mHeadersOnly;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicInteger mRemaining = new AtomicInteger();
+    private final AtomicInteger mImported = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicLong mTotalLatencyMs = new AtomicLong();
+    private final AtomicLong mMaxLatencyMs = new AtomicLong();
+    private long mStartTime;
+
+    private volatile boolean mCancelled;
+
+    public EmlBatchImporter(Context context, Callback callback) {
+        this(context, callback, false);
+    }
+
+    /**
+     * @param headersOnly whether to parse only the headers of each file
+     */
+    public EmlBatchImporter(Context context, Callback callback, boolean headersOnly) {
+        this(context, callback, Math.min(MAX_CONCURRENT_IMPORTS,
+                Runtime.getRuntime().availableProcessors()), headersOnly);
+    }
+
+    public EmlBatchImporter(Context context, Callback callback, int concurrency) {
+        this(context, callback, concurrency, false);
+    }
+
+    public EmlBatchImporter(Context context, Callback callback, int concurrency,
+            boolean headersOnly) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+        mHeadersOnly = headersOnly;
+        final int threads = Math.max(1, concurrency);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts parsing the given files. Must be called on the main thread, and only once per
+     * importer.
+     */
+    public void importFiles(Collection<Uri> emlFileUris) {
+        TempDirectory.setTempDirectory(mContext);
+        mStartTime = SystemClock.elapsedRealtime();
+        mRemaining.set(emlFileUris.size());
+        if (emlFileUris.isEmpty()) {
+            finish();
+            return;
+        }
+        for (final Uri uri : emlFileUris) {
+            mExecutor.execute(new ImportJob(uri));
+        }
+    }
+
+    /**
+     * Stops parsing files that have not been started yet. Files already being parsed are
+     * finished and their messages discarded. No further callbacks are made. Must be called on
+     * the main thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mExecutor.getQueue().clear();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Waits for the files being parsed to be finished after {@link #cancel()} or once the batch
+     * has finished.
+     */
+    @VisibleForTesting
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    private void finish() {
+        final Stats stats = new Stats(mImported.get(), mFailed.get(),
+                SystemClock.elapsedRealtime() - mStartTime, mTotalLatencyMs.get(),
+                mMaxLatencyMs.get());
+        LogUtils.i(LOG_TAG, "EmlBatchImporter finished: %s", stats);
+        mExecutor.shutdown();
+        if (!mCancelled) {
+            mCallback.onImportFinished(stats);
+        }
+    }
+
+    private class ImportJob implements Runnable {
+        private final Uri mEmlFileUri;
+
+        private ImportJob(Uri emlFileUri) {
+            mEmlFileUri = emlFileUri;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            final ConversationMessage message = mHeadersOnly
+                    ? EmlMessageLoader.loadEmlHeaders(mContext, mEmlFileUri)
+                    : EmlMessageLoader.loadEmlMessage(mContext, mEmlFileUri);
+            final long latency = SystemClock.elapsedRealtime() - start;
+            if (mCancelled) {
+                EmlMessageLoader.discardMessage(mContext, message);
+                return;
+            }
+
+            if (message != null) {
+                mImported.incrementAndGet();
+            } else {
+                mFailed.incrementAndGet();
+            }
+            mTotalLatencyMs.addAndGet(latency);
+            long max;
+            while (latency > (max = mMaxLatencyMs.get())
+                    && !mMaxLatencyMs.compareAndSet(max, latency)) {
+                // retry
+            }
+            LogUtils.d(LOG_TAG, "EmlBatchImporter parsed %s in %dms", mEmlFileUri, latency);
+
+            mMainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled) {
+                        EmlMessageLoader.discardMessage(mContext, message);
+                        return;
+                    }
+                    mCallback.onMessageImported(mEmlFileUri, message, latency);
+                    if (mRemaining.decrementAndGet() == 0) {
+                        finish();
+                    }
+                }
+            });
+        }
+    }
+}
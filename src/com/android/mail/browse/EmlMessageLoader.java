@@ -29,8 +29,10 @@ import com.android.mail.ui.MailAsyncTaskLoader;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -40,6 +42,9 @@ import java.io.InputStream;
 public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
     private static final String LOG_TAG = LogTag.getLogTag();
 
+    /** Prefix of the per-file directories holding temp files created during parsing */
+    private static final String TEMP_NAMESPACE_PREFIX = "emlparse";
+
     private Uri mEmlFileUri;
 
     public EmlMessageLoader(Context context, Uri emlFileUri) {
@@ -51,20 +56,56 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
     public ConversationMessage loadInBackground() {
         final Context context = getContext();
         TempDirectory.setTempDirectory(context);
+        return loadEmlMessage(context, mEmlFileUri);
+    }
+
+    /**
+     * Builds a ConversationMessage from the EML file at the given Uri. Temp files created during
+     * parsing go into a directory private to this call, which is removed afterwards, so this
+     * may safely be called for several files at once on different threads.
+     * @return the message, or null if the file could not be read or parsed
+     */
+    public static ConversationMessage loadEmlMessage(Context context, Uri emlFileUri) {
+        return loadEmlMessage(context, emlFileUri, false);
+    }
+
+    /**
+     * Builds a ConversationMessage from the headers of the EML file at the given Uri, such as
+     * its subject, senders and date. The rest of the file is not read, so the message has no
+     * body or attachments.
+     * @return the message, or null if the file could not be read or parsed
+     */
+    public static ConversationMessage loadEmlHeaders(Context context, Uri emlFileUri) {
+        return loadEmlMessage(context, emlFileUri, true);
+    }
+
+    private static ConversationMessage loadEmlMessage(Context context, Uri emlFileUri,
+            boolean headersOnly) {
         final ContentResolver resolver = context.getContentResolver();
         final InputStream stream;
         try {
-            stream = resolver.openInputStream(mEmlFileUri);
+            final InputStream fileStream = resolver.openInputStream(emlFileUri);
+            stream = headersOnly ? new HeaderInputStream(fileStream) : fileStream;
         } catch (FileNotFoundException e) {
-            LogUtils.e(LOG_TAG, e, "Could not find eml file at uri: %s", mEmlFileUri);
+            LogUtils.e(LOG_TAG, e, "Could not find eml file at uri: %s", emlFileUri);
+            return null;
+        }
+
+        final File tempDirectory;
+        try {
+            tempDirectory = createTempNamespace();
+        } catch (IOException e) {
+            LogUtils.e(LOG_TAG, e, "Could not create temp directory for eml file");
+            closeQuietly(stream);
             return null;
         }
+        TempDirectory.setThreadTempDirectory(tempDirectory);
 
         final MimeMessage mimeMessage;
         ConversationMessage convMessage;
         try {
             mimeMessage = new MimeMessage(stream);
-            convMessage = new ConversationMessage(context, mimeMessage, mEmlFileUri);
+            convMessage = new ConversationMessage(context, mimeMessage, emlFileUri);
         } catch (IOException e) {
             LogUtils.e(LOG_TAG, e, "Could not read eml file");
             return null;
@@ -72,40 +113,131 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
             LogUtils.e(LOG_TAG, e, "Error in parsing eml file");
             return null;
         } finally {
-            try {
-                stream.close();
-            } catch (IOException e) {
+            if (!closeQuietly(stream)) {
                 convMessage = null;
             }
 
             // delete temp files created during parsing
-            final File[] cacheFiles = TempDirectory.getTempDirectory().listFiles();
-            for (final File file : cacheFiles) {
-                if (file.getName().startsWith("body")) {
+            TempDirectory.setThreadTempDirectory(null);
+            final File[] cacheFiles = tempDirectory.listFiles();
+            if (cacheFiles != null) {
+                for (final File file : cacheFiles) {
                     final boolean deleted = file.delete();
                     if (!deleted) {
                         LogUtils.d(LOG_TAG, "Failed to delete temp file" + file.getName());
                     }
                 }
             }
+            tempDirectory.delete();
         }
 
         return convMessage;
     }
 
+    /**
+     * Creates a new, empty directory under the shared temp directory to hold the temp files
+     * of a single eml file.
+     */
+    private static File createTempNamespace() throws IOException {
+        final File directory = File.createTempFile(TEMP_NAMESPACE_PREFIX, null,
+                TempDirectory.getTempDirectory());
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Ends a message stream at the empty line that ends its headers.
+     */
+    private static class HeaderInputStream extends FilterInputStream {
+        /** Whether nothing but a carriage return was read since the last line feed. */
+        private boolean mLineEmpty = true;
+        private boolean mEnded;
+
+        private HeaderInputStream(InputStream in) {
+            super(new BufferedInputStream(in));
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mEnded) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b == '\n') {
+                mEnded = mLineEmpty;
+                mLineEmpty = true;
+            } else if (b != '\r') {
+                mLineEmpty = false;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = 0;
+            while (read < count) {
+                final int b = read();
+                if (b == -1) {
+                    break;
+                }
+                buffer[offset + read++] = (byte) b;
+            }
+            return read == 0 && count > 0 ? -1 : read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = 0;
+            while (skipped < count && read() != -1) {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static boolean closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * Helper function to take care of releasing resources associated
      * with an actively loaded data set.
      */
     @Override
     protected void onDiscardResult(ConversationMessage message) {
+        discardMessage(getContext(), message);
+    }
+
+    /**
+     * Releases the resources of a message built by {@link #loadEmlMessage(Context, Uri)} that
+     * is no longer needed. May be called on any thread.
+     * @param message the message, or null if none was built
+     */
+    public static void discardMessage(Context context, ConversationMessage message) {
         // if this eml message had attachments, start a service to clean up the cache files
-        if (message.attachmentListUri != null) {
+        if (message != null && message.attachmentListUri != null) {
             final Intent intent = new Intent(Intent.ACTION_DELETE);
-            intent.setClass(getContext(), EmlTempFileDeletionService.class);
+            intent.setClass(context, EmlTempFileDeletionService.class);
             intent.setData(message.attachmentListUri);
 
-            getContext().startService(intent);
+            context.startService(intent);
         }
     }
 }
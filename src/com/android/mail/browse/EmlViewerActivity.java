@@ -18,7 +18,9 @@
 package com.android.mail.browse;
 
 import android.app.FragmentTransaction;
+import android.content.ClipData;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 
 import com.android.mail.R;
@@ -28,6 +30,8 @@ import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MimeType;
 
+import java.util.ArrayList;
+
 public class EmlViewerActivity extends AccountFeedbackActivity {
     private static final String LOG_TAG = LogTag.getLogTag();
 
@@ -42,7 +46,17 @@ public class EmlViewerActivity extends AccountFeedbackActivity {
         final String type = intent.getType();
 
         if (savedInstanceState == null) {
-            if (Intent.ACTION_VIEW.equals(action) &&
+            final ArrayList<Uri> emlFileUris = getEmlFileUris(intent);
+            if (Intent.ACTION_VIEW.equals(action) && MimeType.isEmlMimeType(type)
+                    && emlFileUris.size() > 1) {
+                // Several files were opened at once, such as a selection from a mailbox export
+                final FragmentTransaction transaction = getFragmentManager().beginTransaction();
+                transaction.add(R.id.root, EmlBatchFragment.newInstance(
+                        emlFileUris, mAccountUri), FRAGMENT_TAG);
+                transaction.commit();
+                Analytics.getInstance().sendEvent("eml_viewer", "batch", null,
+                        emlFileUris.size());
+            } else if (Intent.ACTION_VIEW.equals(action) &&
                     MimeType.isEmlMimeType(type)) {
                 final FragmentTransaction transaction = getFragmentManager().beginTransaction();
                 transaction.add(R.id.root, EmlMessageViewFragment.newInstance(
@@ -58,4 +72,24 @@ public class EmlViewerActivity extends AccountFeedbackActivity {
             }
         }
     }
+
+    /**
+     * Returns the files of the intent: those of its clip data, if any, or its data.
+     */
+    private static ArrayList<Uri> getEmlFileUris(Intent intent) {
+        final ArrayList<Uri> uris = new ArrayList<Uri>();
+        final ClipData clipData = intent.getClipData();
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                final Uri uri = clipData.getItemAt(i).getUri();
+                if (uri != null) {
+                    uris.add(uri);
+                }
+            }
+        }
+        if (uris.isEmpty() && intent.getData() != null) {
+            uris.add(intent.getData());
+        }
+        return uris;
+    }
 }
@@ -27,6 +27,7 @@ import android.support.v4.text.BidiFormatter;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
+import android.text.SpannedString;
 import android.text.TextUtils;
 import android.text.style.CharacterStyle;
 import android.text.style.TextAppearanceSpan;
@@ -37,20 +38,19 @@ import com.android.mail.providers.Conversation;
 import com.android.mail.providers.ConversationInfo;
 import com.android.mail.providers.ParticipantInfo;
 import com.android.mail.providers.UIProvider;
+import com.android.mail.utils.LongLruCache;
 import com.android.mail.utils.ObjectCache;
 import com.google.common.base.Objects;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 public class SendersView {
     /** The maximum number of senders to display for a given conversation */
     private static final int MAX_SENDER_COUNT = 4;
 
-    private static final Integer DOES_NOT_EXIST = -5;
+    private static final int DOES_NOT_EXIST = -5;
     // FIXME(ath): make all of these statics instance variables, and have callers hold onto this
     // instance as long as appropriate (e.g. activity lifetime).
     // no need to listen for configuration changes.
@@ -77,24 +77,275 @@ public class SendersView {
     private static TextAppearanceSpan sMessageInfoUnreadStyleSpan;
     private static BidiFormatter sBidiFormatter;
 
-    // We only want to have at most 2 Priority to length maps.  This will handle the case where
+    // We only want to keep at most 2 scratch spaces.  This will handle the case where
     // there is a widget installed on the launcher while the user is scrolling in the app
-    private static final int MAX_PRIORITY_LENGTH_MAP_LIST = 2;
+    private static final int MAX_FORMAT_SCRATCH_LIST = 2;
 
-    // Cache of priority to length maps.  We can't just use a single instance as it may be
-    // modified from different threads
-    private static final ObjectCache<Map<Integer, Integer>> PRIORITY_LENGTH_MAP_CACHE =
-            new ObjectCache<Map<Integer, Integer>>(
-                    new ObjectCache.Callback<Map<Integer, Integer>>() {
+    // Cache of scratch spaces for formatting senders.  We can't just use a single instance as it
+    // may be modified from different threads
+    private static final ObjectCache<FormatScratch> FORMAT_SCRATCH_CACHE =
+            new ObjectCache<FormatScratch>(
+                    new ObjectCache.Callback<FormatScratch>() {
                         @Override
-                        public Map<Integer, Integer> newInstance() {
-                            return Maps.newHashMap();
+                        public FormatScratch newInstance() {
+                            return new FormatScratch();
                         }
                         @Override
-                        public void onObjectReleased(Map<Integer, Integer> object) {
+                        public void onObjectReleased(FormatScratch object) {
                             object.clear();
                         }
-                    }, MAX_PRIORITY_LENGTH_MAP_LIST);
+                    }, MAX_FORMAT_SCRATCH_LIST);
+
+    /**
+     * The working state of {@link #handlePriority}, kept between calls so that formatting does
+     * not allocate beyond its output.
+     */
+    private static final class FormatScratch {
+        /** (priority << 32 | participant index) of each participant, to sort by priority. */
+        long[] priorityOrder = new long[16];
+
+        /** The names shown so far and the index of the participant they were last shown for. */
+        String[] shownNames = new String[16];
+        int[] shownPositions = new int[16];
+        int shownCount;
+
+        final ArrayList<String> senderEmails = new ArrayList<String>(MAX_SENDER_COUNT + 1);
+
+        // Wrapped style spans by participant index. A span can only be set once per Spannable,
+        // so the senders that end up in one line each need their own wrapper, but the wrappers
+        // themselves are stateless and can be shared between lines.
+        private CharacterStyle mReadStyle;
+        private CharacterStyle mUnreadStyle;
+        private CharacterStyle[] mReadStyles = new CharacterStyle[16];
+        private CharacterStyle[] mUnreadStyles = new CharacterStyle[16];
+
+        long[] getPriorityOrder(int size) {
+            if (priorityOrder.length < size) {
+                priorityOrder = new long[Math.max(size, priorityOrder.length * 2)];
+            }
+            return priorityOrder;
+        }
+
+        int getShownPosition(String name) {
+            for (int i = 0; i < shownCount; i++) {
+                if (TextUtils.equals(shownNames[i], name)) {
+                    return shownPositions[i];
+                }
+            }
+            return DOES_NOT_EXIST;
+        }
+
+        void putShownPosition(String name, int position) {
+            for (int i = 0; i < shownCount; i++) {
+                if (TextUtils.equals(shownNames[i], name)) {
+                    shownPositions[i] = position;
+                    return;
+                }
+            }
+            if (shownCount == shownNames.length) {
+                shownNames = Arrays.copyOf(shownNames, shownCount * 2);
+                shownPositions = Arrays.copyOf(shownPositions, shownCount * 2);
+            }
+            shownNames[shownCount] = name;
+            shownPositions[shownCount] = position;
+            shownCount++;
+        }
+
+        CharacterStyle getStyle(CharacterStyle readStyle, CharacterStyle unreadStyle,
+                boolean read, int index) {
+            if (readStyle != mReadStyle || unreadStyle != mUnreadStyle) {
+                mReadStyle = readStyle;
+                mUnreadStyle = unreadStyle;
+                Arrays.fill(mReadStyles, null);
+                Arrays.fill(mUnreadStyles, null);
+            }
+            if (index >= mReadStyles.length) {
+                final int length = Math.max(index + 1, mReadStyles.length * 2);
+                mReadStyles = Arrays.copyOf(mReadStyles, length);
+                mUnreadStyles = Arrays.copyOf(mUnreadStyles, length);
+            }
+            final CharacterStyle[] styles = read ? mReadStyles : mUnreadStyles;
+            CharacterStyle style = styles[index];
+            if (style == null) {
+                style = CharacterStyle.wrap(read ? readStyle : unreadStyle);
+                styles[index] = style;
+            }
+            return style;
+        }
+
+        void clear() {
+            Arrays.fill(shownNames, 0, shownCount, null);
+            shownCount = 0;
+            senderEmails.clear();
+        }
+    }
+
+    /**
+     * Remembers the senders formatted for recently seen conversations, so that formatting the
+     * same conversation again with the same parameters only copies the result. Each caller gets
+     * its own copy of the lines, which it may style further. Entries are found by a hash of the
+     * participants, including whether they have read the conversation, and checked against a copy
+     * of them. Thread safe.
+     */
+    public static final class FormatCache {
+        private final LongLruCache<FormattedSenders> mEntries;
+        private int mHits;
+        private int mMisses;
+
+        public FormatCache(int capacity) {
+            mEntries = new LongLruCache<FormattedSenders>(capacity);
+        }
+
+        private static long getKey(int participantsHash, int maxChars, boolean showToHeader) {
+            return ((long) participantsHash << 32) | ((maxChars << 1) & 0xffffffffL)
+                    | (showToHeader ? 1 : 0);
+        }
+
+        synchronized FormattedSenders get(int participantsHash, int maxChars,
+                boolean showToHeader) {
+            final FormattedSenders entry =
+                    mEntries.get(getKey(participantsHash, maxChars, showToHeader));
+            if (entry == null) {
+                mMisses++;
+            } else {
+                mHits++;
+            }
+            return entry;
+        }
+
+        synchronized void put(FormattedSenders entry) {
+            mEntries.put(getKey(entry.participantsHash, entry.maxChars, entry.showToHeader),
+                    entry);
+        }
+
+        public synchronized void clear() {
+            mEntries.evictAll();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "FormatCache{size=" + mEntries.size() + " hits=" + mHits + " misses="
+                    + mMisses + "}";
+        }
+    }
+
+    /**
+     * Hashes the fields of the participants that formatting depends on, without the allocations
+     * of {@link List#hashCode()} and {@link ParticipantInfo#hashCode()}.
+     */
+    private static int hashParticipants(List<ParticipantInfo> participantInfos) {
+        int hash = 1;
+        for (int i = 0, size = participantInfos.size(); i < size; i++) {
+            final ParticipantInfo info = participantInfos.get(i);
+            hash = 31 * hash + (info.name == null ? 0 : info.name.hashCode());
+            hash = 31 * hash + (info.email == null ? 0 : info.email.hashCode());
+            hash = 31 * hash + info.priority;
+            hash = 31 * hash + (info.readConversation ? 1231 : 1237);
+        }
+        return hash;
+    }
+
+    /** The output of one call to {@link #handlePriority}, and what it depends on. */
+    private static final class FormattedSenders {
+        final int participantsHash;
+        final int maxChars;
+        final boolean showToHeader;
+        final String messageInfo;
+        final Account account;
+        final CharacterStyle unreadStyleSpan;
+        final CharacterStyle readStyleSpan;
+        // ParticipantInfo is mutable, so keep a copy of the fields that were formatted
+        final String[] participantNames;
+        final String[] participantEmails;
+        final int[] participantPriorities;
+        final boolean[] participantsRead;
+
+        /** Immutable copies, as the lines handed out can be styled further by their callers. */
+        final SpannedString[] styledSenders;
+        /** Null if the senders were not selected. */
+        final String[] displayableSenderNames;
+        /** Null if the avatar was not selected. */
+        final String avatarName;
+        final String avatarEmailAddress;
+        final boolean selectedAvatar;
+
+        FormattedSenders(int participantsHash, List<ParticipantInfo> participantInfos,
+                int maxChars, boolean showToHeader, String messageInfo, Account account,
+                CharacterStyle unreadStyleSpan, CharacterStyle readStyleSpan,
+                List<SpannableString> styledSenders, int firstSender,
+                List<String> displayableSenderNames, int firstName,
+                ConversationItemViewModel.SenderAvatarModel senderAvatarModel) {
+            this.participantsHash = participantsHash;
+            final int participantCount = participantInfos.size();
+            participantNames = new String[participantCount];
+            participantEmails = new String[participantCount];
+            participantPriorities = new int[participantCount];
+            participantsRead = new boolean[participantCount];
+            for (int i = 0; i < participantCount; i++) {
+                final ParticipantInfo info = participantInfos.get(i);
+                participantNames[i] = info.name;
+                participantEmails[i] = info.email;
+                participantPriorities[i] = info.priority;
+                participantsRead[i] = info.readConversation;
+            }
+            this.maxChars = maxChars;
+            this.showToHeader = showToHeader;
+            this.messageInfo = messageInfo;
+            this.account = account;
+            this.unreadStyleSpan = unreadStyleSpan;
+            this.readStyleSpan = readStyleSpan;
+            this.styledSenders = new SpannedString[styledSenders.size() - firstSender];
+            for (int i = 0; i < this.styledSenders.length; i++) {
+                final SpannableString sender = styledSenders.get(firstSender + i);
+                this.styledSenders[i] = sender == null ? null : new SpannedString(sender);
+            }
+            this.displayableSenderNames = displayableSenderNames == null ? null
+                    : displayableSenderNames.subList(firstName, displayableSenderNames.size())
+                            .toArray(new String[displayableSenderNames.size() - firstName]);
+            selectedAvatar = senderAvatarModel != null;
+            avatarName = selectedAvatar ? senderAvatarModel.getName() : null;
+            avatarEmailAddress = selectedAvatar ? senderAvatarModel.getEmailAddress() : null;
+        }
+
+        boolean matches(List<ParticipantInfo> participantInfos, String messageInfo,
+                Account account, CharacterStyle unreadStyleSpan, CharacterStyle readStyleSpan,
+                boolean selectSenders, boolean selectAvatar) {
+            final int participantCount = participantInfos.size();
+            if (participantCount != participantNames.length) {
+                return false;
+            }
+            for (int i = 0; i < participantCount; i++) {
+                final ParticipantInfo info = participantInfos.get(i);
+                if (!TextUtils.equals(participantNames[i], info.name)
+                        || !TextUtils.equals(participantEmails[i], info.email)
+                        || participantPriorities[i] != info.priority
+                        || participantsRead[i] != info.readConversation) {
+                    return false;
+                }
+            }
+            return TextUtils.equals(this.messageInfo, messageInfo)
+                    && this.account == account
+                    && this.unreadStyleSpan == unreadStyleSpan
+                    && this.readStyleSpan == readStyleSpan
+                    && (displayableSenderNames != null) == selectSenders
+                    && selectedAvatar == selectAvatar;
+        }
+
+        void copyTo(List<SpannableString> styledSenders, List<String> displayableSenderNames,
+                ConversationItemViewModel.SenderAvatarModel senderAvatarModel) {
+            for (SpannedString sender : this.styledSenders) {
+                styledSenders.add(sender == null ? null : new SpannableString(sender));
+            }
+            if (displayableSenderNames != null) {
+                for (String name : this.displayableSenderNames) {
+                    displayableSenderNames.add(name);
+                }
+            }
+            if (senderAvatarModel != null && avatarEmailAddress != null) {
+                senderAvatarModel.populate(avatarName, avatarEmailAddress);
+            }
+        }
+    }
 
     public static Typeface getTypeface(boolean isUnread) {
         return isUnread ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT;
@@ -235,11 +486,53 @@ public class SendersView {
             ArrayList<String> displayableSenderNames,
             ConversationItemViewModel.SenderAvatarModel senderAvatarModel,
             Account account, final boolean showToHeader, final boolean resourceCachingRequired) {
+        format(context, conversationInfo, messageInfo, maxChars, styledSenders,
+                displayableSenderNames, senderAvatarModel, account, showToHeader,
+                resourceCachingRequired, null /* cache */);
+    }
+
+    /**
+     * Like {@link #format(Context, ConversationInfo, String, int, ArrayList, ArrayList,
+     * ConversationItemViewModel.SenderAvatarModel, Account, boolean, boolean)}, but reuses the
+     * senders formatted earlier for the same conversation if the cache has them.
+     *
+     * @param cache may be null
+     */
+    public static void format(Context context, ConversationInfo conversationInfo,
+            String messageInfo, int maxChars, ArrayList<SpannableString> styledSenders,
+            ArrayList<String> displayableSenderNames,
+            ConversationItemViewModel.SenderAvatarModel senderAvatarModel,
+            Account account, final boolean showToHeader, final boolean resourceCachingRequired,
+            FormatCache cache) {
         try {
             getSenderResources(context, resourceCachingRequired);
-            format(context, conversationInfo, messageInfo, maxChars, styledSenders,
+            if (cache == null) {
+                handlePriority(maxChars, messageInfo, conversationInfo, styledSenders,
+                        displayableSenderNames, senderAvatarModel, account,
+                        sUnreadStyleSpan, sReadStyleSpan, showToHeader);
+                return;
+            }
+
+            final List<ParticipantInfo> participantInfos = conversationInfo.participantInfos;
+            final int participantsHash = hashParticipants(participantInfos);
+            final boolean selectSenders = displayableSenderNames != null;
+            final boolean selectAvatar = senderAvatarModel != null;
+            final FormattedSenders cached = cache.get(participantsHash, maxChars, showToHeader);
+            if (cached != null && cached.matches(participantInfos, messageInfo, account,
+                    sUnreadStyleSpan, sReadStyleSpan, selectSenders, selectAvatar)) {
+                cached.copyTo(styledSenders, displayableSenderNames, senderAvatarModel);
+                return;
+            }
+
+            final int firstSender = styledSenders.size();
+            final int firstName = selectSenders ? displayableSenderNames.size() : 0;
+            handlePriority(maxChars, messageInfo, conversationInfo, styledSenders,
                     displayableSenderNames, senderAvatarModel, account,
-                    sUnreadStyleSpan, sReadStyleSpan, showToHeader, resourceCachingRequired);
+                    sUnreadStyleSpan, sReadStyleSpan, showToHeader);
+            cache.put(new FormattedSenders(participantsHash, participantInfos, maxChars,
+                    showToHeader, messageInfo, account, sUnreadStyleSpan, sReadStyleSpan,
+                    styledSenders, firstSender, displayableSenderNames, firstName,
+                    senderAvatarModel));
         } finally {
             if (!resourceCachingRequired) {
                 clearResourceCache();
@@ -272,9 +565,27 @@ public class SendersView {
             ConversationItemViewModel.SenderAvatarModel senderAvatarModel,
             Account account, final TextAppearanceSpan unreadStyleSpan,
             final CharacterStyle readStyleSpan, final boolean showToHeader) {
+        final FormatScratch scratch = FORMAT_SCRATCH_CACHE.get();
+        try {
+            handlePriority(maxChars, messageInfoString, conversationInfo, styledSenders,
+                    displayableSenderNames, senderAvatarModel, account, unreadStyleSpan,
+                    readStyleSpan, showToHeader, scratch);
+        } finally {
+            FORMAT_SCRATCH_CACHE.release(scratch);
+        }
+    }
+
+    private static void handlePriority(int maxChars, String messageInfoString,
+            ConversationInfo conversationInfo, ArrayList<SpannableString> styledSenders,
+            ArrayList<String> displayableSenderNames,
+            ConversationItemViewModel.SenderAvatarModel senderAvatarModel,
+            Account account, final TextAppearanceSpan unreadStyleSpan,
+            final CharacterStyle readStyleSpan, final boolean showToHeader,
+            FormatScratch scratch) {
         final boolean shouldSelectSenders = displayableSenderNames != null;
         final boolean shouldSelectAvatar = senderAvatarModel != null;
-        int maxPriorityToInclude = -1; // inclusive
+        final List<ParticipantInfo> participantInfos = conversationInfo.participantInfos;
+        final int participantCount = participantInfos.size();
         int numCharsUsed = messageInfoString.length(); // draft, number drafts,
                                                        // count
         int numSendersUsed = 0;
@@ -284,44 +595,45 @@ public class SendersView {
             numCharsToRemovePerWord = numCharsUsed - maxChars;
         }
 
-        final Map<Integer, Integer> priorityToLength = PRIORITY_LENGTH_MAP_CACHE.get();
-        try {
-            priorityToLength.clear();
-            int senderLength;
-            for (ParticipantInfo info : conversationInfo.participantInfos) {
-                final String senderName = info.name;
-                senderLength = !TextUtils.isEmpty(senderName) ? senderName.length() : 0;
-                priorityToLength.put(info.priority, senderLength);
-                maxFoundPriority = Math.max(maxFoundPriority, info.priority);
-            }
-            while (maxPriorityToInclude < maxFoundPriority) {
-                if (priorityToLength.containsKey(maxPriorityToInclude + 1)) {
-                    int length = numCharsUsed + priorityToLength.get(maxPriorityToInclude + 1);
-                    if (numCharsUsed > 0)
-                        length += 2;
-                    // We must show at least two senders if they exist. If we don't
-                    // have space for both
-                    // then we will truncate names.
-                    if (length > maxChars && numSendersUsed >= 2) {
-                        break;
-                    }
-                    numCharsUsed = length;
-                    numSendersUsed++;
-                }
-                maxPriorityToInclude++;
+        // Include priorities from 0 up while their senders fit, always including at least two
+        // senders. Sorting the participants by priority visits each priority once; when several
+        // participants share a priority, the length of the last one counts.
+        final long[] priorityOrder = scratch.getPriorityOrder(participantCount);
+        for (int i = 0; i < participantCount; i++) {
+            final int priority = participantInfos.get(i).priority;
+            maxFoundPriority = Math.max(maxFoundPriority, priority);
+            priorityOrder[i] = ((long) priority << 32) | i;
+        }
+        Arrays.sort(priorityOrder, 0, participantCount);
+        int maxPriorityToInclude = maxFoundPriority; // inclusive
+        for (int k = 0; k < participantCount; k++) {
+            final int priority = (int) (priorityOrder[k] >> 32);
+            if (priority < 0 || (k + 1 < participantCount
+                    && (int) (priorityOrder[k + 1] >> 32) == priority)) {
+                continue;
             }
-        } finally {
-            PRIORITY_LENGTH_MAP_CACHE.release(priorityToLength);
+            final String senderName = participantInfos.get((int) priorityOrder[k]).name;
+            int length = numCharsUsed + (!TextUtils.isEmpty(senderName) ? senderName.length() : 0);
+            if (numCharsUsed > 0)
+                length += 2;
+            // We must show at least two senders if they exist. If we don't
+            // have space for both
+            // then we will truncate names.
+            if (length > maxChars && numSendersUsed >= 2) {
+                maxPriorityToInclude = priority - 1;
+                break;
+            }
+            numCharsUsed = length;
+            numSendersUsed++;
         }
 
         SpannableString spannableDisplay;
         boolean appendedElided = false;
-        final Map<String, Integer> displayHash = Maps.newHashMap();
-        final List<String> senderEmails = Lists.newArrayListWithExpectedSize(MAX_SENDER_COUNT);
+        final List<String> senderEmails = scratch.senderEmails;
         String firstSenderEmail = null;
         String firstSenderName = null;
-        for (int i = 0; i < conversationInfo.participantInfos.size(); i++) {
-            final ParticipantInfo currentParticipant = conversationInfo.participantInfos.get(i);
+        for (int i = 0; i < participantCount; i++) {
+            final ParticipantInfo currentParticipant = participantInfos.get(i);
             final String currentEmail = currentParticipant.email;
 
             final String currentName = currentParticipant.name;
@@ -336,14 +648,10 @@ public class SendersView {
             }
 
             final int priority = currentParticipant.priority;
-            final CharacterStyle style = CharacterStyle.wrap(currentParticipant.readConversation ?
-                    readStyleSpan : unreadStyleSpan);
             if (priority <= maxPriorityToInclude) {
-                spannableDisplay = new SpannableString(sBidiFormatter.unicodeWrap(nameString));
                 // Don't duplicate senders; leave the first instance, unless the
                 // current instance is also unread.
-                int oldPos = displayHash.containsKey(currentName) ? displayHash
-                        .get(currentName) : DOES_NOT_EXIST;
+                int oldPos = scratch.getShownPosition(currentName);
                 // If this sender doesn't exist OR the current message is
                 // unread, add the sender.
                 if (oldPos == DOES_NOT_EXIST || !currentParticipant.readConversation) {
@@ -358,14 +666,19 @@ public class SendersView {
                             displayableSenderNames.remove(currentName);
                         }
                     }
-                    displayHash.put(currentName, i);
-                    spannableDisplay.setSpan(style, 0, spannableDisplay.length(), 0);
+                    scratch.putShownPosition(currentName, i);
+                    spannableDisplay = new SpannableString(sBidiFormatter.unicodeWrap(nameString));
+                    spannableDisplay.setSpan(scratch.getStyle(readStyleSpan, unreadStyleSpan,
+                            currentParticipant.readConversation, i),
+                            0, spannableDisplay.length(), 0);
                     styledSenders.add(spannableDisplay);
                 }
             } else {
                 if (!appendedElided) {
                     spannableDisplay = new SpannableString(sElidedString);
-                    spannableDisplay.setSpan(style, 0, spannableDisplay.length(), 0);
+                    spannableDisplay.setSpan(scratch.getStyle(readStyleSpan, unreadStyleSpan,
+                            currentParticipant.readConversation, i),
+                            0, spannableDisplay.length(), 0);
                     appendedElided = true;
                     styledSenders.add(spannableDisplay);
                 }
@@ -416,8 +729,8 @@ public class SendersView {
         // if all messages in the thread were read, we must search for an appropriate avatar
         if (shouldSelectAvatar && senderAvatarModel.isNotPopulated()) {
             // search for the last sender that is not the current account
-            for (int i = conversationInfo.participantInfos.size() - 1; i >= 0; i--) {
-                final ParticipantInfo participant = conversationInfo.participantInfos.get(i);
+            for (int i = participantCount - 1; i >= 0; i--) {
+                final ParticipantInfo participant = participantInfos.get(i);
                 // empty name implies it is the current account and should not be chosen
                 if (!TextUtils.isEmpty(participant.name)) {
                     // use the participant name in place of unusable email addresses
@@ -49,6 +49,10 @@ class FolderDrawerItem extends DrawerItem {
         final FolderItemView folderItemView;
         if (convertView != null) {
             folderItemView = (FolderItemView) convertView;
+            if (folderItemView.isBoundTo(mFolder, null /* parentUri */)) {
+                // Nothing that the view shows changed since it was bound.
+                return folderItemView;
+            }
         } else {
             folderItemView =
                     (FolderItemView) mInflater.inflate(R.layout.folder_item, parent, false);
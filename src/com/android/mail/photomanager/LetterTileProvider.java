@@ -20,14 +20,12 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Paint.Align;
-import android.graphics.Rect;
-import android.graphics.Typeface;
-import android.text.TextPaint;
+import android.graphics.Paint;
 import android.text.TextUtils;
 
 import com.android.mail.R;
 import com.android.mail.bitmap.ColorPicker;
+import com.android.mail.bitmap.LetterGlyphAtlas;
 import com.android.mail.ui.ImageCanvas.Dimensions;
 import com.android.mail.utils.BitmapUtil;
 import com.android.mail.utils.LogTag;
@@ -46,14 +44,11 @@ public class LetterTileProvider {
     private final Bitmap mDefaultBitmap;
     private final Bitmap[] mBitmapBackgroundCache;
     private final Bitmap[] mDefaultBitmapCache;
-    private final Typeface mSansSerifLight;
-    private final Rect mBounds;
     private final int mTileLetterFontSize;
     private final int mTileLetterFontSizeSmall;
     private final int mTileFontColor;
-    private final TextPaint mPaint = new TextPaint();
+    private final Paint mPaint = new Paint();
     private final Canvas mCanvas = new Canvas();
-    private final char[] mFirstChar = new char[1];
 
     private static final int POSSIBLE_BITMAP_SIZES = 3;
     private final ColorPicker mTileColorPicker;
@@ -66,12 +61,8 @@ public class LetterTileProvider {
         mTileLetterFontSize = res.getDimensionPixelSize(R.dimen.tile_letter_font_size_small);
         mTileLetterFontSizeSmall = res.getDimensionPixelSize(R.dimen.tile_letter_font_size_tiny);
         mTileFontColor = res.getColor(R.color.letter_tile_font_color);
-        mSansSerifLight = Typeface.create("sans-serif-light", Typeface.NORMAL);
-        mBounds = new Rect();
-        mPaint.setTypeface(mSansSerifLight);
         mPaint.setColor(mTileFontColor);
-        mPaint.setTextAlign(Align.CENTER);
-        mPaint.setAntiAlias(true);
+        mPaint.setFilterBitmap(true);
         mBitmapBackgroundCache = new Bitmap[POSSIBLE_BITMAP_SIZES];
 
         mDefaultBitmap = BitmapFactory.decodeResource(res, R.drawable.ic_anonymous_avatar_40dp);
@@ -99,13 +90,11 @@ public class LetterTileProvider {
 
         // If its a valid English alphabet letter,
         // draw the letter on top of the color
-        if (isEnglishLetterOrDigit(firstChar)) {
-            mFirstChar[0] = Character.toUpperCase(firstChar);
-            mPaint.setTextSize(
-                    dimensions.fontSize > 0 ? dimensions.fontSize : getFontSize(dimensions.scale));
-            mPaint.getTextBounds(mFirstChar, 0, 1, mBounds);
-            c.drawText(mFirstChar, 0, 1, 0 + dimensions.width / 2,
-                    0 + dimensions.height / 2 + (mBounds.bottom - mBounds.top) / 2, mPaint);
+        if (LetterGlyphAtlas.hasGlyph(firstChar)) {
+            final int fontSize =
+                    dimensions.fontSize > 0 ? dimensions.fontSize : getFontSize(dimensions.scale);
+            LetterGlyphAtlas.get(fontSize).drawGlyph(c, firstChar, dimensions.width / 2,
+                    dimensions.height / 2, mPaint);
         } else { // draw the generic icon on top
             c.drawBitmap(getBitmap(dimensions, true /* getDefault */), 0, 0, null);
         }
@@ -113,12 +102,6 @@ public class LetterTileProvider {
         return bitmap;
     }
 
-    private static boolean isEnglishLetterOrDigit(char c) {
-        return ('A' <= c && c <= 'Z')
-                || ('a' <= c && c <= 'z')
-                || ('0' <= c && c <= '9');
-    }
-
     private Bitmap getBitmap(final Dimensions d, boolean getDefault) {
         if (d.width <= 0 || d.height <= 0) {
             LogUtils.w(TAG,
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.net.Uri;
+
+import com.android.mail.providers.MailAppProvider.AccountCacheEntry;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The accounts that {@link MailAppProvider} last knew of, kept in a binary file so that they can
+ * be listed right after the process starts. Each account is stored as the values of its
+ * {@link UIProvider#ACCOUNTS_PROJECTION} columns: reading it back parses nothing, and the
+ * {@link Account} and its {@link Settings} are only built when something asks for them.
+ * <p>
+ * A file written with different columns is ignored, and the accounts are loaded from their
+ * providers as usual.
+ */
+class AccountCacheFile {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final int MAGIC = 0x41434346;
+    private static final int VERSION = 1;
+    private static final int NULL_STRING = -1;
+
+    private final File mFile;
+
+    AccountCacheFile(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns a hash of the contents of accounts, to tell whether they need to be written again.
+     */
+    static int getContentHash(List<AccountCacheEntry> entries) {
+        int hash = 0;
+        for (AccountCacheEntry entry : entries) {
+            hash = hash * 31 + Arrays.hashCode(entry.getValues());
+            hash = hash * 31 + (entry.mAccountsQueryUri != null
+                    ? entry.mAccountsQueryUri.hashCode() : 0);
+        }
+        return hash;
+    }
+
+    /**
+     * Reads the accounts.
+     *
+     * @return the accounts in the order they were written, or null if the file doesn't exist or
+     * is unusable
+     */
+    List<AccountCacheEntry> read() {
+        if (!mFile.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            final String[] columns = new String[in.readInt()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = in.readUTF();
+            }
+            if (!Arrays.equals(columns, UIProvider.ACCOUNTS_PROJECTION)) {
+                LogUtils.i(LOG_TAG, "Ignoring the account cache of different columns");
+                return null;
+            }
+            final boolean[] intColumns = getIntColumns();
+            final int uriColumn =
+                    MailAppProvider.getAccountColumnIndex(UIProvider.AccountColumns.URI);
+            final int count = in.readInt();
+            final List<AccountCacheEntry> entries = new ArrayList<AccountCacheEntry>(count);
+            for (int i = 0; i < count; i++) {
+                final String queryUri = readString(in);
+                final Object[] values = new Object[columns.length];
+                for (int column = 0; column < values.length; column++) {
+                    values[column] = intColumns[column] ? (Object) in.readInt() : readString(in);
+                }
+                entries.add(new AccountCacheEntry(Uri.parse((String) values[uriColumn]), values,
+                        queryUri != null ? Uri.parse(queryUri) : null));
+            }
+            return entries;
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to read the account cache");
+        } catch (RuntimeException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to read the account cache");
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the file with the accounts. The file is written next to it, then renamed, so
+     * that a process that dies while writing leaves the previous accounts.
+     */
+    void write(List<AccountCacheEntry> entries) {
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        final boolean[] intColumns = getIntColumns();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(UIProvider.ACCOUNTS_PROJECTION.length);
+            for (String column : UIProvider.ACCOUNTS_PROJECTION) {
+                out.writeUTF(column);
+            }
+            out.writeInt(entries.size());
+            for (AccountCacheEntry entry : entries) {
+                writeString(out, entry.mAccountsQueryUri != null
+                        ? entry.mAccountsQueryUri.toString() : null);
+                final Object[] values = entry.getValues();
+                for (int column = 0; column < values.length; column++) {
+                    if (intColumns[column]) {
+                        out.writeInt((Integer) values[column]);
+                    } else {
+                        writeString(out, (String) values[column]);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to write the account cache");
+            Closeables.closeQuietly(out);
+            tempFile.delete();
+            mFile.delete();
+        }
+    }
+
+    /**
+     * Returns whether each column of {@link UIProvider#ACCOUNTS_PROJECTION} holds an integer,
+     * rather than a string.
+     */
+    static boolean[] getIntColumns() {
+        final boolean[] intColumns = new boolean[UIProvider.ACCOUNTS_PROJECTION.length];
+        for (int i = 0; i < intColumns.length; i++) {
+            intColumns[i] = UIProvider.ACCOUNTS_COLUMNS.get(UIProvider.ACCOUNTS_PROJECTION[i])
+                    == Integer.class;
+        }
+        return intColumns;
+    }
+
+    /** Strings are written as UTF-8 bytes: signatures may be longer than writeUTF allows. */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_STRING);
+            return;
+        }
+        final byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
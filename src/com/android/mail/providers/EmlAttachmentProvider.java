@@ -37,18 +37,20 @@ import com.android.mail.R;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MimeType;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A {@link ContentProvider} for attachments created from eml files.
@@ -59,6 +61,9 @@ import java.util.Map;
  * exception of the attachment raw data which is stored in the cache). When
  * the process is killed, all of the attachments disappear if they still
  * exist.
+ *
+ * Updating the attachment list uri with an external destination saves every
+ * attachment in the list in one operation.
  */
 public class EmlAttachmentProvider extends ContentProvider {
     private static final String LOG_TAG = LogTag.getLogTag();
@@ -71,9 +76,13 @@ public class EmlAttachmentProvider extends ContentProvider {
     private static final int ATTACHMENT_BY_CID = 2;
 
     /**
-     * The buffer size used to copy data from cache to sd card.
+     * The number of bytes handed to {@link FileChannel#transferTo} at a time when
+     * copying data from cache to sd card. Progress is reported between chunks.
      */
-    private static final int BUFFER_SIZE = 4096;
+    private static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    /** Minimum interval in ms between progress notifications while saving an attachment */
+    private static final long PROGRESS_NOTIFY_INTERVAL = 250;
 
     /** Any IO reads should be limited to this timeout */
     private static final long READ_TIMEOUT = 3600 * 1000;
@@ -85,13 +94,64 @@ public class EmlAttachmentProvider extends ContentProvider {
     /**
      * Map that contains a mapping from an attachment list uri to a list of uris.
      */
-    private Map<Uri, List<Uri>> mUriListMap;
+    private ConcurrentMap<Uri, List<Uri>> mUriListMap;
 
     /**
      * Map that contains a mapping from an attachment uri to an {@link Attachment} object.
      */
     private Map<Uri, Attachment> mUriAttachmentMap;
 
+    /** Attachments may be saved by concurrent calls, which share the progress throttle. */
+    private final ProgressThrottle mProgressThrottle =
+            new ProgressThrottle(PROGRESS_NOTIFY_INTERVAL);
+
+    /**
+     * Lets through one progress notification per interval, whichever thread asks for it.
+     */
+    @VisibleForTesting
+    static final class ProgressThrottle {
+        private final long mInterval;
+        private final AtomicLong mLastNotifyTime;
+
+        ProgressThrottle(long interval) {
+            mInterval = interval;
+            mLastNotifyTime = new AtomicLong(-interval);
+        }
+
+        /**
+         * Returns whether a notification may be sent at the time, and if so records it.
+         */
+        boolean tryNotify(long now) {
+            final long last = mLastNotifyTime.get();
+            return now - last >= mInterval && mLastNotifyTime.compareAndSet(last, now);
+        }
+
+        /** Records a notification that was sent regardless of the throttle. */
+        void onNotified(long now) {
+            mLastNotifyTime.set(now);
+        }
+    }
+
+    /** Bytes and time spent saving attachments to external storage, by any thread. */
+    private final SaveThroughput mSaveThroughput = new SaveThroughput();
+
+    /**
+     * Totals of the attachments saved to external storage, for throughput logging.
+     */
+    @VisibleForTesting
+    static final class SaveThroughput {
+        private long mBytes;
+        private long mElapsedMs;
+
+        synchronized void add(long bytes, long elapsedMs) {
+            mBytes += bytes;
+            mElapsedMs += elapsedMs;
+        }
+
+        synchronized long getBytesPerSecond() {
+            return EmlAttachmentProvider.getBytesPerSecond(mBytes, mElapsedMs);
+        }
+    }
 
     @Override
     public boolean onCreate() {
@@ -109,8 +169,9 @@ public class EmlAttachmentProvider extends ContentProvider {
         mDownloadManager =
                 (DownloadManager) getContext().getSystemService(Context.DOWNLOAD_SERVICE);
 
-        mUriListMap = Maps.newHashMap();
-        mUriAttachmentMap = Maps.newHashMap();
+        // eml files may be parsed concurrently, see EmlBatchImporter
+        mUriListMap = new ConcurrentHashMap<Uri, List<Uri>>();
+        mUriAttachmentMap = new ConcurrentHashMap<Uri, Attachment>();
         return true;
     }
 
@@ -188,8 +249,11 @@ public class EmlAttachmentProvider extends ContentProvider {
             // get list of attachment uris, creating if necessary
             List<Uri> list = mUriListMap.get(listUri);
             if (list == null) {
-                list = Lists.newArrayList();
-                mUriListMap.put(listUri, list);
+                final List<Uri> newList = new CopyOnWriteArrayList<Uri>();
+                list = mUriListMap.putIfAbsent(listUri, newList);
+                if (list == null) {
+                    list = newList;
+                }
             }
 
             list.add(uri);
@@ -223,6 +287,8 @@ public class EmlAttachmentProvider extends ContentProvider {
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
+            case ATTACHMENT_LIST:
+                return copyAttachments(uri, values);
             case ATTACHMENT:
                 return copyAttachment(uri, values);
             default:
@@ -275,17 +341,58 @@ public class EmlAttachmentProvider extends ContentProvider {
                 .add(attachment.partId);                            // partId (same as RFC822 cid)
     }
 
+    /**
+     * Copies all attachments in the attachment list at the specified {@link Uri}
+     * from cache to the external downloads directory (usually the sd card).
+     * @return the number of attachments affected.
+     */
+    private int copyAttachments(Uri listUri, ContentValues values) {
+        final List<Uri> attachmentUris = mUriListMap.get(listUri);
+        if (attachmentUris == null) {
+            return 0;
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        long bytes = 0;
+        int count = 0;
+        for (final Uri attachmentUri : attachmentUris) {
+            final long size = saveAttachment(attachmentUri, values, true);
+            if (size >= 0) {
+                bytes += size;
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            logThroughput("batch of " + count, bytes, SystemClock.elapsedRealtime() - start);
+        }
+        // Progress within the batch was throttled: one notification reports its outcome.
+        getContext().getContentResolver().notifyChange(listUri, null, false);
+        return count;
+    }
+
     /**
      * Copies an attachment at the specified {@link Uri}
      * from cache to the external downloads directory (usually the sd card).
      * @return the number of attachments affected. Should be 1 or 0.
      */
     private int copyAttachment(Uri uri, ContentValues values) {
+        return saveAttachment(uri, values, false) >= 0 ? 1 : 0;
+    }
+
+    /**
+     * Saves an attachment to the external downloads directory.
+     *
+     * @param inBatch whether the attachment is saved as part of its list, in which case the
+     * caller notifies the list when the batch completes, and progress is only ever throttled
+     * @return the number of bytes saved, or -1 if the attachment wasn't saved
+     */
+    private long saveAttachment(Uri uri, ContentValues values, boolean inBatch) {
         final Integer newState = values.getAsInteger(UIProvider.AttachmentColumns.STATE);
         final Integer newDestination =
                 values.getAsInteger(UIProvider.AttachmentColumns.DESTINATION);
         if (newState == null && newDestination == null) {
-            return 0;
+            return -1;
         }
 
         final int destination = newDestination != null ?
@@ -299,12 +406,12 @@ public class EmlAttachmentProvider extends ContentProvider {
         // and return if so (we shouldn't ever be here)
 
         // if the call was not to save to sd or already saved to sd, just bail out
-        if (!saveToSd || attachment.isSavedToExternal()) {
-            return 0;
+        if (attachment == null || !saveToSd || attachment.isSavedToExternal()) {
+            return -1;
         }
 
 
-        // 2. copy file
+        // 2. move or copy file
         final String oldFilePath = getFilePath(uri);
 
         // update the destination before getting the new file path
@@ -312,70 +419,116 @@ public class EmlAttachmentProvider extends ContentProvider {
         attachment.destination = UIProvider.AttachmentDestination.EXTERNAL;
         final String newFilePath = getFilePath(uri);
 
-        InputStream inputStream = null;
-        OutputStream outputStream = null;
+        final File oldFile = new File(oldFilePath);
+        final File newFile = new File(newFilePath);
+        final Uri listUri = getListUriFromAttachmentUri(uri);
+
+        attachment.state = UIProvider.AttachmentState.DOWNLOADING;
+        attachment.downloadedSize = 0;
+        notifyProgress(listUri, !inBatch);
 
+        final long start = SystemClock.elapsedRealtime();
+        long size;
         try {
-            try {
-                inputStream = new FileInputStream(oldFilePath);
-            } catch (FileNotFoundException e) {
-                LogUtils.e(LOG_TAG, "File not found for file %s", oldFilePath);
-                return 0;
-            }
-            try {
-                outputStream = new FileOutputStream(newFilePath);
-            } catch (FileNotFoundException e) {
-                LogUtils.e(LOG_TAG, "File not found for file %s", newFilePath);
-                return 0;
-            }
-            try {
-                final long now = SystemClock.elapsedRealtime();
-                final byte data[] = new byte[BUFFER_SIZE];
-                int size = 0;
-                while (true) {
-                    final int len = inputStream.read(data);
-                    if (len != -1) {
-                        outputStream.write(data, 0, len);
-
-                        size += len;
-                    } else {
-                        break;
-                    }
-                    if (SystemClock.elapsedRealtime() - now > READ_TIMEOUT) {
-                        throw new IOException("Timed out copying attachment.");
+            // a rename is free when the cache and the downloads directory share a
+            // filesystem, otherwise fall back to letting the kernel copy the data
+            if (oldFile.renameTo(newFile)) {
+                size = newFile.length();
+            } else {
+                size = transferFile(oldFile, newFile, attachment, new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyProgress(listUri, false);
                     }
-                }
+                });
+                // delete old file
+                oldFile.delete();
+            }
+        } catch (FileNotFoundException e) {
+            LogUtils.e(LOG_TAG, "File not found for file %s or %s", oldFilePath, newFilePath);
+            restoreToCache(attachment, listUri, inBatch);
+            return -1;
+        } catch (IOException e) {
+            // Error writing file, delete partial file
+            LogUtils.e(LOG_TAG, e, "Cannot write to file %s", newFilePath);
+            newFile.delete();
+            restoreToCache(attachment, listUri, inBatch);
+            return -1;
+        }
 
-                // if the attachment is an APK, change contentUri to be a direct file uri
-                if (MimeType.isInstallable(attachment.getContentType())) {
-                    attachment.contentUri = Uri.parse("file://" + newFilePath);
-                }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        mSaveThroughput.add(size, elapsed);
+        logThroughput(attachment.getName(), size, elapsed);
 
-                // 3. add file to download manager
+        attachment.state = UIProvider.AttachmentState.SAVED;
+        attachment.downloadedSize = (int) size;
 
-                try {
-                    // TODO - make a better description
-                    final String description = attachment.getName();
-                    mDownloadManager.addCompletedDownload(attachment.getName(),
-                            description, true, attachment.getContentType(),
-                            newFilePath, size, false);
-                }
-                catch (IllegalArgumentException e) {
-                    // Even if we cannot save the download to the downloads app,
-                    // (likely due to a bad mimeType), we still want to save it.
-                    LogUtils.e(LOG_TAG, e, "Failed to save download to Downloads app.");
+        // if the attachment is an APK, change contentUri to be a direct file uri
+        if (MimeType.isInstallable(attachment.getContentType())) {
+            attachment.contentUri = Uri.parse("file://" + newFilePath);
+        }
+
+        // 3. add file to download manager
+
+        try {
+            // TODO - make a better description
+            final String description = attachment.getName();
+            mDownloadManager.addCompletedDownload(attachment.getName(),
+                    description, true, attachment.getContentType(),
+                    newFilePath, size, false);
+        }
+        catch (IllegalArgumentException e) {
+            // Even if we cannot save the download to the downloads app,
+            // (likely due to a bad mimeType), we still want to save it.
+            LogUtils.e(LOG_TAG, e, "Failed to save download to Downloads app.");
+        }
+        final Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+        intent.setData(Uri.parse("file://" + newFilePath));
+        getContext().sendBroadcast(intent);
+
+        // 4. notify that the list of attachments has changed so the UI will update
+        if (!inBatch) {
+            getContext().getContentResolver().notifyChange(listUri, null, false);
+        }
+        return size;
+    }
+
+    /**
+     * Copies the contents of one file into another with {@link FileChannel#transferTo},
+     * updating {@link Attachment#downloadedSize} as chunks complete.
+     * @param onProgress run after each chunk is copied
+     * @return the number of bytes copied.
+     */
+    @VisibleForTesting
+    static long transferFile(File from, File to, Attachment attachment, Runnable onProgress)
+            throws IOException {
+        FileInputStream inputStream = null;
+        FileOutputStream outputStream = null;
+        try {
+            inputStream = new FileInputStream(from);
+            outputStream = new FileOutputStream(to);
+            final FileChannel in = inputStream.getChannel();
+            final FileChannel out = outputStream.getChannel();
+
+            final long start = SystemClock.elapsedRealtime();
+            final long size = in.size();
+            long position = 0;
+            while (position < size) {
+                final long transferred = in.transferTo(position,
+                        Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of file copying attachment.");
                 }
-                final Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-                intent.setData(Uri.parse("file://" + newFilePath));
-                getContext().sendBroadcast(intent);
+                position += transferred;
 
-                // 4. delete old file
-                new File(oldFilePath).delete();
-            } catch (IOException e) {
-                // Error writing file, delete partial file
-                LogUtils.e(LOG_TAG, e, "Cannot write to file %s", newFilePath);
-                new File(newFilePath).delete();
+                attachment.downloadedSize = (int) position;
+                onProgress.run();
+
+                if (SystemClock.elapsedRealtime() - start > READ_TIMEOUT) {
+                    throw new IOException("Timed out copying attachment.");
+                }
             }
+            return position;
         } finally {
             try {
                 if (inputStream != null) {
@@ -390,11 +543,48 @@ public class EmlAttachmentProvider extends ContentProvider {
             } catch (IOException e) {
             }
         }
+    }
+
+    /**
+     * Puts an attachment that failed to save back into the cache, where its data still lives.
+     */
+    private void restoreToCache(Attachment attachment, Uri listUri, boolean inBatch) {
+        attachment.destination = UIProvider.AttachmentDestination.CACHE;
+        attachment.state = UIProvider.AttachmentState.SAVED;
+        attachment.downloadedSize = attachment.size;
+        notifyProgress(listUri, !inBatch);
+    }
+
+    /**
+     * Notifies observers of the attachment list that the state or
+     * {@link UIProvider.AttachmentColumns#DOWNLOADED_SIZE} of an attachment changed.
+     * Progress updates are throttled to {@link #PROGRESS_NOTIFY_INTERVAL} unless forced.
+     */
+    private void notifyProgress(Uri listUri, boolean force) {
+        final long now = SystemClock.elapsedRealtime();
+        if (force) {
+            mProgressThrottle.onNotified(now);
+        } else if (!mProgressThrottle.tryNotify(now)) {
+            return;
+        }
+        getContext().getContentResolver().notifyChange(listUri, null, false);
+    }
+
+    private void logThroughput(String what, long bytes, long elapsedMs) {
+        LogUtils.d(LOG_TAG, "Saved %s: %d bytes in %d ms (%d B/s), total %d B/s", what, bytes,
+                elapsedMs, getBytesPerSecond(bytes, elapsedMs), getBytesPerSecond());
+    }
+
+    /**
+     * Returns the average rate at which this provider has saved attachments to external
+     * storage, in bytes per second.
+     */
+    public long getBytesPerSecond() {
+        return mSaveThroughput.getBytesPerSecond();
+    }
 
-        // 5. notify that the list of attachments has changed so the UI will update
-        getContext().getContentResolver().notifyChange(
-                getListUriFromAttachmentUri(uri), null, false);
-        return 1;
+    private static long getBytesPerSecond(long bytes, long elapsedMs) {
+        return bytes * 1000 / Math.max(1, elapsedMs);
     }
 
     @Override
@@ -46,7 +46,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Pattern;
 
 /**
  * A folder is a collection of conversations, and perhaps other folders.
@@ -56,8 +55,6 @@ public class Folder implements Parcelable, Comparable<Folder> {
 
     @Deprecated
     public static final String SPLITTER = "^*^";
-    @Deprecated
-    private static final Pattern SPLITTER_REGEX = Pattern.compile("\\^\\*\\^");
 
     private static final String FOLDER_UNINITIALIZED = "Uninitialized!";
 
@@ -378,23 +375,22 @@ public class Folder implements Parcelable, Comparable<Folder> {
     public Folder(Cursor cursor) {
         id = cursor.getInt(UIProvider.FOLDER_ID_COLUMN);
         persistentId = cursor.getString(UIProvider.FOLDER_PERSISTENT_ID_COLUMN);
-        folderUri =
-                new FolderUri(Uri.parse(cursor.getString(UIProvider.FOLDER_URI_COLUMN)));
+        // The uris of a folder are shared with the folders of previous loads of the cursor.
+        folderUri = FolderUriInterner.getFolderUri(cursor.getString(UIProvider.FOLDER_URI_COLUMN));
         name = cursor.getString(UIProvider.FOLDER_NAME_COLUMN);
         capabilities = cursor.getInt(UIProvider.FOLDER_CAPABILITIES_COLUMN);
         // 1 for true, 0 for false.
         hasChildren = cursor.getInt(UIProvider.FOLDER_HAS_CHILDREN_COLUMN) == 1;
         syncWindow = cursor.getInt(UIProvider.FOLDER_SYNC_WINDOW_COLUMN);
-        String convList = cursor.getString(UIProvider.FOLDER_CONVERSATION_LIST_URI_COLUMN);
-        conversationListUri = !TextUtils.isEmpty(convList) ? Uri.parse(convList) : null;
-        String childList = cursor.getString(UIProvider.FOLDER_CHILD_FOLDERS_LIST_COLUMN);
-        childFoldersListUri = (hasChildren && !TextUtils.isEmpty(childList)) ? Uri.parse(childList)
+        conversationListUri =
+                getValidUri(cursor.getString(UIProvider.FOLDER_CONVERSATION_LIST_URI_COLUMN));
+        childFoldersListUri = hasChildren
+                ? getValidUri(cursor.getString(UIProvider.FOLDER_CHILD_FOLDERS_LIST_COLUMN))
                 : null;
         unseenCount = cursor.getInt(UIProvider.FOLDER_UNSEEN_COUNT_COLUMN);
         unreadCount = cursor.getInt(UIProvider.FOLDER_UNREAD_COUNT_COLUMN);
         totalCount = cursor.getInt(UIProvider.FOLDER_TOTAL_COUNT_COLUMN);
-        String refresh = cursor.getString(UIProvider.FOLDER_REFRESH_URI_COLUMN);
-        refreshUri = !TextUtils.isEmpty(refresh) ? Uri.parse(refresh) : null;
+        refreshUri = getValidUri(cursor.getString(UIProvider.FOLDER_REFRESH_URI_COLUMN));
         syncStatus = cursor.getInt(UIProvider.FOLDER_SYNC_STATUS_COLUMN);
         lastSyncResult = cursor.getInt(UIProvider.FOLDER_LAST_SYNC_RESULT_COLUMN);
         type = cursor.getInt(UIProvider.FOLDER_TYPE_COLUMN);
@@ -407,13 +403,12 @@ public class Folder implements Parcelable, Comparable<Folder> {
         if (!TextUtils.isEmpty(fgColor)) {
             fgColorInt = Integer.parseInt(fgColor);
         }
-        String loadMore = cursor.getString(UIProvider.FOLDER_LOAD_MORE_URI_COLUMN);
-        loadMoreUri = !TextUtils.isEmpty(loadMore) ? Uri.parse(loadMore) : null;
+        loadMoreUri = getValidUri(cursor.getString(UIProvider.FOLDER_LOAD_MORE_URI_COLUMN));
         hierarchicalDesc = cursor.getString(UIProvider.FOLDER_HIERARCHICAL_DESC_COLUMN);
         lastMessageTimestamp = cursor.getLong(UIProvider.FOLDER_LAST_MESSAGE_TIMESTAMP_COLUMN);
         // A null parent URI means that this is a top-level folder.
         final String parentString = cursor.getString(UIProvider.FOLDER_PARENT_URI_COLUMN);
-        parent = parentString == null ? Uri.EMPTY : Uri.parse(parentString);
+        parent = parentString == null ? Uri.EMPTY : FolderUriInterner.getUri(parentString);
         final int unreadSendersColumn =
                 cursor.getColumnIndex(UIProvider.FolderColumns.UNREAD_SENDERS);
         if (unreadSendersColumn != -1) {
@@ -441,7 +436,8 @@ public class Folder implements Parcelable, Comparable<Folder> {
     public Folder(Parcel in, ClassLoader loader) {
         id = in.readInt();
         persistentId = in.readString();
-        folderUri = new FolderUri((Uri) in.readParcelable(loader));
+        final Uri uri = in.readParcelable(loader);
+        folderUri = uri != null ? FolderUriInterner.getFolderUri(uri) : new FolderUri(null);
         name = in.readString();
         capabilities = in.readInt();
         // 1 for true, 0 for false.
@@ -887,10 +883,10 @@ public class Folder implements Parcelable, Comparable<Folder> {
             id = Integer.valueOf(inString.substring(0, indexOf));
         } else {
             // If no separator was found, we can't parse this folder and the
-            // TextUtils.split call would also fail. Return null.
+            // split would also fail. Return null.
             return null;
         }
-        final String[] split = TextUtils.split(inString, SPLITTER_REGEX);
+        final String[] split = split(inString);
         if (split.length < 20) {
             LogUtils.e(LOG_TAG, "split.length %d", split.length);
             return null;
@@ -927,11 +923,37 @@ public class Folder implements Parcelable, Comparable<Folder> {
         return f;
     }
 
+    /**
+     * Splits a string at each {@link #SPLITTER}, keeping empty strings, as
+     * {@link TextUtils#split(String, java.util.regex.Pattern)} does, without compiling and
+     * running a regular expression.
+     */
+    @VisibleForTesting
+    static String[] split(String string) {
+        if (string.isEmpty()) {
+            return new String[0];
+        }
+        int count = 1;
+        for (int index = string.indexOf(SPLITTER); index != -1;
+                index = string.indexOf(SPLITTER, index + SPLITTER.length())) {
+            count++;
+        }
+        final String[] split = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            final int end = string.indexOf(SPLITTER, start);
+            split[i] = string.substring(start, end);
+            start = end + SPLITTER.length();
+        }
+        split[count - 1] = string.substring(start);
+        return split;
+    }
+
     private static Uri getValidUri(String uri) {
         if (TextUtils.isEmpty(uri)) {
             return null;
         }
-        return Uri.parse(uri);
+        return FolderUriInterner.getUri(uri);
     }
 
     public static final boolean isRoot(Folder folder) {
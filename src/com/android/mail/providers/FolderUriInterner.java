@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.net.Uri;
+
+import com.android.mail.utils.FolderUri;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shares the uris of the {@link Folder}s built for the same folder by each reload of a folder
+ * cursor, or from parcels. The folders of a reload then reuse the {@link Uri}s and
+ * {@link FolderUri}s of the previous one, along with the comparison uris that each
+ * {@link FolderUri} builds when it is first hashed or compared.
+ * <p>
+ * A uri is only kept while a folder uses it: the uri string is the weak key, and the uri, which
+ * holds on to its string, is weakly referenced.
+ */
+final class FolderUriInterner {
+    private static final Map<String, WeakReference<FolderUri>> sFolderUris =
+            new WeakHashMap<String, WeakReference<FolderUri>>();
+    private static final Map<String, WeakReference<Uri>> sUris =
+            new WeakHashMap<String, WeakReference<Uri>>();
+
+    private FolderUriInterner() {}
+
+    /**
+     * Returns the folder uri for the uri string.
+     */
+    static FolderUri getFolderUri(String uriString) {
+        synchronized (sFolderUris) {
+            final FolderUri folderUri = get(sFolderUris, uriString);
+            if (folderUri != null) {
+                return folderUri;
+            }
+        }
+        return putFolderUri(new FolderUri(getUri(uriString)));
+    }
+
+    /**
+     * Returns the folder uri for a uri, such as one read from a parcel.
+     */
+    static FolderUri getFolderUri(Uri uri) {
+        final String uriString = uri.toString();
+        synchronized (sFolderUris) {
+            final FolderUri folderUri = get(sFolderUris, uriString);
+            if (folderUri != null) {
+                return folderUri;
+            }
+        }
+        return putFolderUri(new FolderUri(uri));
+    }
+
+    /**
+     * Returns the uri parsed from the string.
+     */
+    static Uri getUri(String uriString) {
+        synchronized (sUris) {
+            Uri uri = get(sUris, uriString);
+            if (uri == null) {
+                uri = Uri.parse(uriString);
+                sUris.put(uriString, new WeakReference<Uri>(uri));
+            }
+            return uri;
+        }
+    }
+
+    private static FolderUri putFolderUri(FolderUri folderUri) {
+        // The key is the string that the uri holds on to, which keeps the entry while the uri is
+        // used. A uri that was parsed from a string returns that string.
+        final String uriString = folderUri.fullUri.toString();
+        synchronized (sFolderUris) {
+            // Another thread may have added the uri meanwhile.
+            final FolderUri existing = get(sFolderUris, uriString);
+            if (existing != null) {
+                return existing;
+            }
+            sFolderUris.put(uriString, new WeakReference<FolderUri>(folderUri));
+            return folderUri;
+        }
+    }
+
+    private static <T> T get(Map<String, WeakReference<T>> map, String key) {
+        final WeakReference<T> reference = map.get(key);
+        return reference != null ? reference.get() : null;
+    }
+}
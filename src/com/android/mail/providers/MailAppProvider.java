@@ -31,7 +31,9 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import com.android.mail.R;
 import com.android.mail.providers.UIProvider.AccountCursorExtraKeys;
@@ -40,6 +42,7 @@ import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MatrixCursorWithExtra;
 import com.android.mail.utils.RankedComparator;
 import com.google.android.mail.common.base.Function;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -49,8 +52,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -70,7 +77,9 @@ public abstract class MailAppProvider extends ContentProvider
         implements OnLoadCompleteListener<Cursor>{
 
     private static final String SHARED_PREFERENCES_NAME = "MailAppProvider";
+    /** The accounts as JSON, from before they were kept in {@link #ACCOUNT_CACHE_FILE_NAME}. */
     private static final String ACCOUNT_LIST_KEY = "accountList";
+    private static final String ACCOUNT_CACHE_FILE_NAME = "account_cache";
     private static final String LAST_VIEWED_ACCOUNT_KEY = "lastViewedAccount";
     private static final String LAST_SENT_FROM_ACCOUNT_KEY = "lastSendFromAccount";
 
@@ -86,6 +95,12 @@ public abstract class MailAppProvider extends ContentProvider
     private final LinkedHashMap<Uri, AccountCacheEntry> mAccountCache =
             new LinkedHashMap<Uri, AccountCacheEntry>();
 
+    /**
+     * The values of the cached accounts, sorted the way {@link #query} lists them, or null until
+     * a query needs them after the accounts changed. Guarded by {@link #mAccountCache}.
+     */
+    private Object[][] mAccountRows;
+
     private final Map<Uri, CursorLoader> mCursorLoaderMap = Maps.newHashMap();
     /**
      * When there is more than one {@link CursorLoader} we are considered finished only when all
@@ -106,6 +121,21 @@ public abstract class MailAppProvider extends ContentProvider
 
     private SharedPreferences mSharedPrefs;
 
+    private AccountCacheFile mAccountCacheFile;
+    /** The content hash of the accounts in the cache file. Main thread only. */
+    private int mCachedAccountsHash;
+
+    /** The index of each column in {@link UIProvider#ACCOUNTS_PROJECTION}. */
+    private static final Map<String, Integer> ACCOUNT_COLUMN_INDICES;
+
+    static {
+        final String[] columns = UIProvider.ACCOUNTS_PROJECTION;
+        ACCOUNT_COLUMN_INDICES = new HashMap<String, Integer>(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            ACCOUNT_COLUMN_INDICES.put(columns[i], i);
+        }
+    }
+
     /**
      * Allows the implementing provider to specify the authority for this provider. Email and Gmail
      * must specify different authorities.
@@ -150,6 +180,8 @@ public abstract class MailAppProvider extends ContentProvider
         sAuthority = getAuthority();
         sInstance = this;
         mResolver = getContext().getContentResolver();
+        mAccountCacheFile = new AccountCacheFile(
+                new File(getContext().getFilesDir(), ACCOUNT_CACHE_FILE_NAME));
 
         // Load the previously saved account list
         loadCachedAccountList();
@@ -201,34 +233,72 @@ public abstract class MailAppProvider extends ContentProvider
         final Bundle extras = new Bundle();
         extras.putInt(AccountCursorExtraKeys.ACCOUNTS_LOADED, allAccountsLoaded() ? 1 : 0);
 
-        final List<AccountCacheEntry> accountList;
+        final MatrixCursor cursor =
+                newAccountCursor(getAccountRows(), resultProjection, extras);
+        cursor.setNotificationUri(mResolver, getAccountsUri());
+        return cursor;
+    }
+
+    /**
+     * Returns the values of the cached accounts in the order they are listed, sorting them if
+     * the accounts changed since the last query. The rows must not be modified.
+     */
+    private Object[][] getAccountRows() {
         synchronized (mAccountCache) {
-            accountList = Lists.newArrayList(mAccountCache.values());
+            if (mAccountRows == null) {
+                mAccountRows = buildAccountRows(mAccountCache.values(), mAccountComparator);
+            }
+            return mAccountRows;
         }
+    }
 
+    /**
+     * Returns the values of the columns of {@link UIProvider#ACCOUNTS_PROJECTION} of each of the
+     * accounts, sorted with the comparator.
+     */
+    @VisibleForTesting
+    static Object[][] buildAccountRows(Collection<AccountCacheEntry> accounts,
+            Comparator<AccountCacheEntry> comparator) {
+        final List<AccountCacheEntry> accountList = Lists.newArrayList(accounts);
         // The order in which providers respond will affect the order of accounts. Because
-        // mAccountComparator only compares mAccountsQueryUri it will ensure that they are always
+        // the comparator only compares mAccountsQueryUri it will ensure that they are always
         // sorted first based on that and later based on order returned by each provider.
-        Collections.sort(accountList, mAccountComparator);
+        Collections.sort(accountList, comparator);
 
-        final MatrixCursor cursor =
-                new MatrixCursorWithExtra(resultProjection, accountList.size(), extras);
-
-        for (AccountCacheEntry accountEntry : accountList) {
-            final Account account = accountEntry.mAccount;
-            final MatrixCursor.RowBuilder builder = cursor.newRow();
-            final Map<String, Object> accountValues = account.getValueMap();
-
-            for (final String columnName : resultProjection) {
-                if (accountValues.containsKey(columnName)) {
-                    builder.add(accountValues.get(columnName));
-                } else {
-                    throw new IllegalStateException("Unexpected column: " + columnName);
-                }
+        final Object[][] rows = new Object[accountList.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            // The values of cached accounts are served without building their Account.
+            rows[i] = accountList.get(i).getValues();
+        }
+        return rows;
+    }
+
+    /**
+     * Returns a cursor of the columns of the projection of the rows from
+     * {@link #buildAccountRows}.
+     */
+    @VisibleForTesting
+    static MatrixCursor newAccountCursor(Object[][] rows, String[] projection, Bundle extras) {
+        final MatrixCursor cursor = new MatrixCursorWithExtra(projection, rows.length, extras);
+        if (Arrays.equals(projection, UIProvider.ACCOUNTS_PROJECTION)) {
+            // MatrixCursor copies the rows it adds.
+            for (Object[] row : rows) {
+                cursor.addRow(row);
             }
+            return cursor;
         }
 
-        cursor.setNotificationUri(mResolver, getAccountsUri());
+        final int[] columnIndices = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnIndices[i] = getAccountColumnIndex(projection[i]);
+        }
+        final Object[] values = new Object[projection.length];
+        for (Object[] row : rows) {
+            for (int i = 0; i < columnIndices.length; i++) {
+                values[i] = row[columnIndices[i]];
+            }
+            cursor.addRow(values);
+        }
         return cursor;
     }
 
@@ -304,9 +374,10 @@ public abstract class MailAppProvider extends ContentProvider
 
     private void addAccountImpl(Uri key, AccountCacheEntry accountEntry) {
         synchronized (mAccountCache) {
-            LogUtils.v(LOG_TAG, "adding account %s", accountEntry.mAccount);
+            LogUtils.v(LOG_TAG, "adding account %s", accountEntry.mAccountUri);
             // LinkedHashMap will not change the iteration order when re-inserting a key
             mAccountCache.put(key, accountEntry);
+            mAccountRows = null;
         }
     }
 
@@ -353,6 +424,54 @@ public abstract class MailAppProvider extends ContentProvider
     }
 
     private void loadCachedAccountList() {
+        final long start = SystemClock.elapsedRealtime();
+        List<AccountCacheEntry> accounts = mAccountCacheFile.read();
+        final boolean legacy = accounts == null;
+        if (legacy) {
+            accounts = loadLegacyAccountList();
+            if (accounts == null) {
+                return;
+            }
+        }
+
+        // Accounts of the same provider share its authority, which is checked once.
+        final Map<String, Boolean> availableProviders = new HashMap<String, Boolean>();
+        for (AccountCacheEntry accountEntry : accounts) {
+            final String authority = accountEntry.mAccountUri.getAuthority();
+            Boolean available =
+                    authority != null ? availableProviders.get(authority) : Boolean.FALSE;
+            if (available == null) {
+                final ContentProviderClient client =
+                        mResolver.acquireContentProviderClient(authority);
+                available = client != null;
+                if (client != null) {
+                    client.release();
+                }
+                availableProviders.put(authority, available);
+            }
+            if (available) {
+                addAccountImpl(accountEntry.mAccountUri, accountEntry);
+            } else {
+                LogUtils.e(LOG_TAG, "Dropping account without provider: %s",
+                        accountEntry.mAccountUri);
+            }
+        }
+        LogUtils.i(LOG_TAG, "Loaded %d cached accounts in %dms%s", accounts.size(),
+                SystemClock.elapsedRealtime() - start, legacy ? " from preferences" : "");
+        if (legacy) {
+            // Move the accounts to the cache file.
+            cacheAccountList();
+            getPreferences().edit().remove(ACCOUNT_LIST_KEY).apply();
+        } else {
+            mCachedAccountsHash = AccountCacheFile.getContentHash(accounts);
+        }
+        broadcastAccountChange();
+    }
+
+    /**
+     * Reads the accounts that earlier versions kept as JSON in the preferences.
+     */
+    private List<AccountCacheEntry> loadLegacyAccountList() {
         JSONArray accounts = null;
         try {
             final String accountsJson = getPreferences().getString(ACCOUNT_LIST_KEY, null);
@@ -364,39 +483,33 @@ public abstract class MailAppProvider extends ContentProvider
         }
 
         if (accounts == null) {
-            return;
+            return null;
         }
 
+        final List<AccountCacheEntry> entries = Lists.newArrayList();
         for (int i = 0; i < accounts.length(); i++) {
             try {
                 final AccountCacheEntry accountEntry = new AccountCacheEntry(
                         accounts.getJSONObject(i));
 
-                if (accountEntry.mAccount.settings == null) {
+                if (accountEntry.getAccount().settings == null) {
                     LogUtils.e(LOG_TAG, "Dropping account that doesn't specify settings");
                     continue;
                 }
-
-                Account account = accountEntry.mAccount;
-                ContentProviderClient client =
-                        mResolver.acquireContentProviderClient(account.uri);
-                if (client != null) {
-                    client.release();
-                    addAccountImpl(account.uri, accountEntry);
-                } else {
-                    LogUtils.e(LOG_TAG, "Dropping account without provider: %s",
-                            account.getEmailAddress());
-                }
-
+                entries.add(accountEntry);
             } catch (Exception e) {
                 // Unable to create account object, skip to next
                 LogUtils.e(LOG_TAG, e,
                         "Unable to create account object from serialized form");
             }
         }
-        broadcastAccountChange();
+        return entries;
     }
 
+    /**
+     * Writes the accounts to the cache file if they changed since it was written. Called on the
+     * main thread; the file is written in the background.
+     */
     private void cacheAccountList() {
         final List<AccountCacheEntry> accountList;
 
@@ -404,14 +517,29 @@ public abstract class MailAppProvider extends ContentProvider
             accountList = ImmutableList.copyOf(mAccountCache.values());
         }
 
-        final JSONArray arr = new JSONArray();
-        for (AccountCacheEntry accountEntry : accountList) {
-            arr.put(accountEntry.toJSONObject());
+        final int hash = AccountCacheFile.getContentHash(accountList);
+        if (hash == mCachedAccountsHash) {
+            return;
         }
+        mCachedAccountsHash = hash;
+        final AccountCacheFile file = mAccountCacheFile;
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                file.write(accountList);
+            }
+        });
+    }
 
-        final SharedPreferences.Editor editor = getPreferences().edit();
-        editor.putString(ACCOUNT_LIST_KEY, arr.toString());
-        editor.apply();
+    /**
+     * Returns the index of a column in {@link UIProvider#ACCOUNTS_PROJECTION}.
+     */
+    static int getAccountColumnIndex(String column) {
+        final Integer index = ACCOUNT_COLUMN_INDICES.get(column);
+        if (index == null) {
+            throw new IllegalStateException("Unexpected column: " + column);
+        }
+        return index;
     }
 
     private SharedPreferences getPreferences() {
@@ -428,7 +556,7 @@ public abstract class MailAppProvider extends ContentProvider
             synchronized(provider.mAccountCache) {
                 AccountCacheEntry entry = provider.mAccountCache.get(accountUri);
                 if (entry != null) {
-                    return entry.mAccount;
+                    return entry.getAccount();
                 }
             }
         }
@@ -459,7 +587,7 @@ public abstract class MailAppProvider extends ContentProvider
         final Set<Uri> previousQueryUriSet = Sets.newHashSet();
         for (AccountCacheEntry entry : accountList) {
             if (accountsQueryUri.equals(entry.mAccountsQueryUri)) {
-                previousQueryUriSet.add(entry.mAccount.uri);
+                previousQueryUriSet.add(entry.mAccountUri);
             }
         }
 
@@ -488,6 +616,7 @@ public abstract class MailAppProvider extends ContentProvider
                     // removing the existing item will prevent LinkedHashMap from preserving the
                     // original insertion order
                     mAccountCache.remove(accountUri);
+                    mAccountRows = null;
                 }
             }
             addAccountImpl(account, accountsQueryUri, false /* don't notify */);
@@ -503,6 +632,7 @@ public abstract class MailAppProvider extends ContentProvider
                     LogUtils.d(LOG_TAG, "Removing account %s", accountUri);
                     mAccountCache.remove(accountUri);
                 }
+                mAccountRows = null;
             }
         }
         broadcastAccountChange();
@@ -523,19 +653,33 @@ public abstract class MailAppProvider extends ContentProvider
     /**
      * Object that allows the Account Cache provider to associate the account with the content
      * provider uri that originated that account.
+     * <p>
+     * An entry read from the {@link AccountCacheFile} only has the values of the account's
+     * columns: its {@link Account}, with all of its uris and {@link Settings}, is built the first
+     * time it is asked for.
      */
-    private static class AccountCacheEntry {
-        final Account mAccount;
+    static final class AccountCacheEntry {
+        final Uri mAccountUri;
         final Uri mAccountsQueryUri;
+        /** The values of {@link UIProvider#ACCOUNTS_PROJECTION}, or null until needed. */
+        private Object[] mValues;
+        private Account mAccount;
 
         private static final String KEY_ACCOUNT = "acct";
         private static final String KEY_QUERY_URI = "queryUri";
 
         public AccountCacheEntry(Account account, Uri accountQueryUri) {
+            mAccountUri = account.uri;
             mAccount = account;
             mAccountsQueryUri = accountQueryUri;
         }
 
+        AccountCacheEntry(Uri accountUri, Object[] values, Uri accountQueryUri) {
+            mAccountUri = accountUri;
+            mValues = values;
+            mAccountsQueryUri = accountQueryUri;
+        }
+
         public AccountCacheEntry(JSONObject o) throws JSONException {
             mAccount = Account.newInstance(o.getString(KEY_ACCOUNT));
             if (mAccount == null) {
@@ -547,6 +691,7 @@ public abstract class MailAppProvider extends ContentProvider
                 throw new IllegalArgumentException("AccountCacheEntry de-serializing failed. "
                         + "Settings could not be created from the JSONObject: " + o);
             }
+            mAccountUri = mAccount.uri;
             final String uriStr = o.optString(KEY_QUERY_URI, null);
             if (uriStr != null) {
                 mAccountsQueryUri = Uri.parse(uriStr);
@@ -555,15 +700,42 @@ public abstract class MailAppProvider extends ContentProvider
             }
         }
 
-        public JSONObject toJSONObject() {
-            try {
-                return new JSONObject()
-                .put(KEY_ACCOUNT, mAccount.serialize())
-                .putOpt(KEY_QUERY_URI, mAccountsQueryUri);
-            } catch (JSONException e) {
-                // shouldn't happen
-                throw new IllegalArgumentException(e);
+        synchronized Account getAccount() {
+            if (mAccount == null) {
+                final MatrixCursor cursor = new MatrixCursor(UIProvider.ACCOUNTS_PROJECTION, 1);
+                cursor.addRow(mValues);
+                cursor.moveToFirst();
+                mAccount = Account.builder().buildFrom(cursor);
+                cursor.close();
             }
+            return mAccount;
+        }
+
+        /**
+         * Returns the values of the columns of the account: strings for the string columns, and
+         * integers for the others.
+         */
+        synchronized Object[] getValues() {
+            if (mValues == null) {
+                final Map<String, Object> valueMap = mAccount.getValueMap();
+                final boolean[] intColumns = AccountCacheFile.getIntColumns();
+                final String[] columns = UIProvider.ACCOUNTS_PROJECTION;
+                final Object[] values = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    final Object value = valueMap.get(columns[i]);
+                    if (intColumns[i]) {
+                        values[i] = value instanceof Number ? ((Number) value).intValue() : 0;
+                    } else {
+                        values[i] = value != null ? value.toString() : null;
+                    }
+                }
+                mValues = values;
+            }
+            return mValues;
+        }
+
+        synchronized boolean isAccountBuilt() {
+            return mAccount != null;
         }
     }
 }
@@ -41,7 +41,9 @@ import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.bitmap.ContactResolver;
 import com.android.mail.browse.ConversationCursor;
+import com.android.mail.browse.ConversationItemTextPrecomputer;
 import com.android.mail.browse.ConversationItemView;
+import com.android.mail.browse.ConversationItemViewModel;
 import com.android.mail.browse.ConversationItemViewCoordinates.CoordinatesCache;
 import com.android.mail.browse.SwipeableConversationItemView;
 import com.android.mail.providers.Account;
@@ -207,6 +209,8 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
 
     private final BidiFormatter mBidiFormatter = BidiFormatter.getInstance();
 
+    private final ConversationItemTextPrecomputer mTextPrecomputer;
+
     /**
      * @return <code>true</code> if a relevant part of the account has changed, <code>false</code>
      *         otherwise
@@ -253,6 +257,8 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
             SwipeableListView listView, final List<ConversationSpecialItemView> specialViews) {
         super(context, -1, cursor, UIProvider.CONVERSATION_PROJECTION, null, 0);
         mContext = context;
+        mTextPrecomputer = new ConversationItemTextPrecomputer(context);
+        ConversationItemViewModel.initializeCacheSize(context);
         mBatchConversations = batch;
         setAccount(mAccountListener.initialize(activity.getAccountController()));
         mActivity = activity;
@@ -302,6 +308,7 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
     }
 
     public final void destroy() {
+        mTextPrecomputer.cancel();
         // Set a null cursor in the adapter
         swapCursor(null);
         mAccountListener.unregisterAndDestroy();
@@ -557,6 +564,7 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
         }
         final View v = createConversationItemView((SwipeableConversationItemView) convertView,
                 mContext, conv);
+        mTextPrecomputer.onRowBound(cursor, mAccount, mFolder, mBidiFormatter);
         Utils.traceEndSection();
         return v;
     }
@@ -662,6 +670,10 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
         return mBidiFormatter;
     }
 
+    public ConversationItemTextPrecomputer getTextPrecomputer() {
+        return mTextPrecomputer;
+    }
+
     public SwipeableListView getListView() {
         return mListView;
     }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.util.SparseArray;
+
+import com.android.mail.providers.Folder;
+import com.android.mail.utils.FolderUri;
+import com.google.common.base.Objects;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The items that the drawer shows for folders, by folder uri and drawer item category, kept
+ * across reloads of the folder cursor. A folder whose contents didn't change keeps its item, so
+ * that a sync that changes the unread count of one folder allocates one item rather than one per
+ * folder.
+ * <p>
+ * Items are requested between {@link #beginUpdate()} and {@link #endUpdate()}; the items of the
+ * folders that were not requested during an update are dropped. Main thread only.
+ */
+final class DrawerFolderItemCache<T> {
+    /** Creates the item of a folder. */
+    interface ItemFactory<T> {
+        T newItem(Folder folder, int itemCategory);
+    }
+
+    private static final class Entry<T> {
+        final Folder folder;
+        final T item;
+
+        Entry(Folder folder, T item) {
+            this.folder = folder;
+            this.item = item;
+        }
+    }
+
+    private final ItemFactory<T> mFactory;
+    /** The items by category, then by folder uri. */
+    private SparseArray<Map<FolderUri, Entry<T>>> mEntries =
+            new SparseArray<Map<FolderUri, Entry<T>>>();
+    /** The items of the previous update, while an update is in progress. */
+    private SparseArray<Map<FolderUri, Entry<T>>> mPreviousEntries;
+    private int mCreated;
+    private int mReused;
+
+    DrawerFolderItemCache(ItemFactory<T> factory) {
+        mFactory = factory;
+    }
+
+    void beginUpdate() {
+        mPreviousEntries = mEntries;
+        mEntries = new SparseArray<Map<FolderUri, Entry<T>>>();
+    }
+
+    void endUpdate() {
+        mPreviousEntries = null;
+    }
+
+    /**
+     * Returns the item of the folder from the previous update if the folder has the same contents
+     * as it did then, or a new item.
+     */
+    T getItem(Folder folder, int itemCategory) {
+        final Entry<T> previous = getEntry(mPreviousEntries, folder.folderUri, itemCategory);
+        final Entry<T> entry;
+        if (previous != null && hasSameContents(previous.folder, folder)) {
+            entry = previous;
+            mReused++;
+        } else {
+            entry = new Entry<T>(folder, mFactory.newItem(folder, itemCategory));
+            mCreated++;
+        }
+        Map<FolderUri, Entry<T>> entries = mEntries.get(itemCategory);
+        if (entries == null) {
+            entries = new HashMap<FolderUri, Entry<T>>(previous != null
+                    ? mPreviousEntries.get(itemCategory).size() : 16);
+            mEntries.put(itemCategory, entries);
+        }
+        entries.put(folder.folderUri, entry);
+        return entry.item;
+    }
+
+    void clear() {
+        mEntries.clear();
+    }
+
+    /** Returns the number of items created, as opposed to reused. */
+    int getCreatedCount() {
+        return mCreated;
+    }
+
+    int getReusedCount() {
+        return mReused;
+    }
+
+    private static <T> Entry<T> getEntry(SparseArray<Map<FolderUri, Entry<T>>> entries,
+            FolderUri folderUri, int itemCategory) {
+        if (entries == null) {
+            return null;
+        }
+        final Map<FolderUri, Entry<T>> categoryEntries = entries.get(itemCategory);
+        return categoryEntries != null ? categoryEntries.get(folderUri) : null;
+    }
+
+    /**
+     * Returns whether the folders have the same values: an item keeps its folder, which is what
+     * the drawer hands out when the item is clicked.
+     */
+    static boolean hasSameContents(Folder a, Folder b) {
+        return a == b || (a.id == b.id
+                && a.capabilities == b.capabilities
+                && a.hasChildren == b.hasChildren
+                && a.syncWindow == b.syncWindow
+                && a.unseenCount == b.unseenCount
+                && a.unreadCount == b.unreadCount
+                && a.totalCount == b.totalCount
+                && a.syncStatus == b.syncStatus
+                && a.lastSyncResult == b.lastSyncResult
+                && a.type == b.type
+                && a.iconResId == b.iconResId
+                && a.notificationIconResId == b.notificationIconResId
+                && a.lastMessageTimestamp == b.lastMessageTimestamp
+                && Objects.equal(a.folderUri, b.folderUri)
+                && Objects.equal(a.name, b.name)
+                && Objects.equal(a.persistentId, b.persistentId)
+                && Objects.equal(a.bgColor, b.bgColor)
+                && Objects.equal(a.fgColor, b.fgColor)
+                && Objects.equal(a.hierarchicalDesc, b.hierarchicalDesc)
+                && Objects.equal(a.unreadSenders, b.unreadSenders)
+                && Objects.equal(a.conversationListUri, b.conversationListUri)
+                && Objects.equal(a.childFoldersListUri, b.childFoldersListUri)
+                && Objects.equal(a.refreshUri, b.refreshUri)
+                && Objects.equal(a.loadMoreUri, b.loadMoreUri)
+                && Objects.equal(a.parent, b.parent));
+    }
+}
@@ -24,6 +24,7 @@ import android.graphics.LinearGradient;
 import android.graphics.Paint;
 import android.graphics.RectF;
 import android.graphics.Shader;
+import android.graphics.Typeface;
 import android.support.v4.text.BidiFormatter;
 
 import com.android.mail.R;
@@ -32,7 +33,9 @@ import com.android.mail.providers.Folder;
 import com.android.mail.providers.UIProvider.FolderType;
 import com.android.mail.utils.FolderUri;
 import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LongLruCache;
 import com.android.mail.utils.Utils;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Sets;
 
 import java.util.NavigableSet;
@@ -49,6 +52,27 @@ public abstract class FolderDisplayer {
     protected final FolderDrawableResources mFolderDrawableResources =
             new FolderDrawableResources();
 
+    /** The number of folder names whose measured width is remembered. */
+    private static final int TEXT_WIDTH_CACHE_SIZE = 256;
+
+    /**
+     * The measured width of folder names, by folder id and name hash, shared by all chips. A
+     * user's labels are few and appear on many conversations, so each name is usually measured
+     * once.
+     */
+    private static final LongLruCache<TextWidth> sTextWidths =
+            new LongLruCache<TextWidth>(TEXT_WIDTH_CACHE_SIZE);
+    /** The number of folder names measured, guarded by {@link #sTextWidths}. */
+    private static int sTextMeasureCount;
+
+    /** The width of a folder name, and the font that it was measured with. */
+    private static final class TextWidth {
+        String name;
+        float textSize;
+        Typeface typeface;
+        int width;
+    }
+
     public static class FolderDrawableResources {
         public int defaultFgColor;
         public int defaultBgColor;
@@ -108,6 +132,50 @@ public abstract class FolderDisplayer {
         mFoldersSortedSet.clear();
     }
 
+    /**
+     * Returns the width of a folder's name in the current font of the paint, measuring it only
+     * if it was not measured with this font before.
+     */
+    public static int getTextWidth(Folder folder, Paint paint) {
+        final float textSize = paint.getTextSize();
+        final Typeface typeface = paint.getTypeface();
+        // Folders parsed from a conversation may not all have ids.
+        final long key = ((long) folder.id << 32) | (folder.name.hashCode() & 0xffffffffL);
+        synchronized (sTextWidths) {
+            TextWidth textWidth = sTextWidths.get(key);
+            if (textWidth != null && textWidth.textSize == textSize
+                    && textWidth.typeface == typeface && textWidth.name.equals(folder.name)) {
+                return textWidth.width;
+            }
+            if (textWidth == null) {
+                textWidth = new TextWidth();
+                sTextWidths.put(key, textWidth);
+            }
+            textWidth.name = folder.name;
+            textWidth.textSize = textSize;
+            textWidth.typeface = typeface;
+            textWidth.width = (int) paint.measureText(folder.name);
+            sTextMeasureCount++;
+            return textWidth.width;
+        }
+    }
+
+    @VisibleForTesting
+    static int getTextMeasureCount() {
+        synchronized (sTextWidths) {
+            return sTextMeasureCount;
+        }
+    }
+
+    /**
+     * Forgets the measured folder names, for example when the folders may have been renamed.
+     */
+    public static void clearTextWidths() {
+        synchronized (sTextWidths) {
+            sTextWidths.evictAll();
+        }
+    }
+
     /**
      * Helper function to calculate exactly how much space the displayed folders should take.
      * @param folders the set of folders to display.
@@ -128,22 +196,41 @@ public abstract class FolderDisplayer {
             return new int[0];
         }
 
-        // This variable is calculated based on the number of folders we are displaying
-        final int maxAllowedCellSize = Math.min(maxCellWidth, (maxLayoutWidth -
-                (numDisplayedFolders - 1) * foldersInBetweenPadding) / numDisplayedFolders);
         final int[] measurements = new int[numDisplayedFolders];
-
         int count = 0;
-        int missingWidth = 0;
-        int extraWidth = 0;
         for (Folder f : folders) {
             if (count > numDisplayedFolders - 1) {
                 break;
             }
+            measurements[count++] = (int) paint.measureText(f.name);
+        }
+        measureFolderDimen(measurements, numDisplayedFolders, maxCellWidth, maxLayoutWidth,
+                foldersInBetweenPadding, foldersHorizontalPadding);
+        return measurements;
+    }
 
-            final String folderString = f.name;
-            final int neededWidth = (int) paint.measureText(folderString) +
-                    2 * foldersHorizontalPadding;
+    /**
+     * Calculates the width of each folder chip from the width of the folder names, like
+     * {@link #measureFolderDimen(Set, int, int, int, int, int, Paint)} but without measuring
+     * any text.
+     * @param widths the width of the names of the displayed folders, replaced by the width of
+     *        their chips.
+     * @param count the number of displayed folders.
+     */
+    public static void measureFolderDimen(int[] widths, int count, int maxCellWidth,
+            int maxLayoutWidth, int foldersInBetweenPadding, int foldersHorizontalPadding) {
+        if (count == 0) {
+            return;
+        }
+
+        // This variable is calculated based on the number of folders we are displaying
+        final int maxAllowedCellSize = Math.min(maxCellWidth, (maxLayoutWidth -
+                (count - 1) * foldersInBetweenPadding) / count);
+
+        int missingWidth = 0;
+        int extraWidth = 0;
+        for (int i = 0; i < count; i++) {
+            final int neededWidth = widths[i] + 2 * foldersHorizontalPadding;
 
             if (neededWidth > maxAllowedCellSize) {
                 // What we can take from others is the minimum of the width we need to borrow
@@ -152,32 +239,28 @@ public abstract class FolderDisplayer {
                         maxCellWidth - maxAllowedCellSize);
                 final int extraWidthLeftover = extraWidth - borrowedWidth;
                 if (extraWidthLeftover >= 0) {
-                    measurements[count] = Math.min(neededWidth, maxCellWidth);
+                    widths[i] = Math.min(neededWidth, maxCellWidth);
                     extraWidth = extraWidthLeftover;
                 } else {
-                    measurements[count] = maxAllowedCellSize + extraWidth;
+                    widths[i] = maxAllowedCellSize + extraWidth;
                     extraWidth = 0;
                 }
                 missingWidth = -extraWidthLeftover;
             } else {
                 extraWidth = maxAllowedCellSize - neededWidth;
-                measurements[count] = neededWidth;
+                widths[i] = neededWidth;
                 if (missingWidth > 0) {
                     if (extraWidth >= missingWidth) {
-                        measurements[count - 1] += missingWidth;
+                        widths[i - 1] += missingWidth;
                         extraWidth -= missingWidth;
                     } else {
-                        measurements[count - 1] += extraWidth;
+                        widths[i - 1] += extraWidth;
                         extraWidth = 0;
                     }
                 }
                 missingWidth = 0;
             }
-
-            count++;
         }
-
-        return measurements;
     }
 
     public static void drawFolder(Canvas canvas, float x, float y, int width, int height,
@@ -191,6 +274,17 @@ public abstract class FolderDisplayer {
     public static void drawFolder(Canvas canvas, float x, float y, int width, int height,
             String name, int fgColor, int bgColor, FolderDisplayer.FolderDrawableResources res,
             BidiFormatter formatter, Paint paint) {
+        drawFolder(canvas, x, y, width, height, name, (int) paint.measureText(name), fgColor,
+                bgColor, res, formatter, paint);
+    }
+
+    /**
+     * Draws a folder chip whose name is already known to be textLength wide in the font of the
+     * paint.
+     */
+    public static void drawFolder(Canvas canvas, float x, float y, int width, int height,
+            String name, int textLength, int fgColor, int bgColor,
+            FolderDisplayer.FolderDrawableResources res, BidiFormatter formatter, Paint paint) {
         canvas.save();
         canvas.translate(x, y + res.folderVerticalOffset);
 
@@ -206,7 +300,6 @@ public abstract class FolderDisplayer {
         paint.setStyle(Paint.Style.FILL);
 
         // Compute the text/gradient indices
-        final int textLength = (int) paint.measureText(name);
         final int gradientX0;
         final int gradientX1;
         final int textX;
@@ -20,6 +20,7 @@ import android.graphics.Color;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.RoundRectShape;
 import android.graphics.drawable.shapes.Shape;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.ImageView;
@@ -32,6 +33,7 @@ import com.android.mail.utils.FolderUri;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.Utils;
+import com.google.common.base.Objects;
 
 /**
  * The view for each folder in the folder list.
@@ -42,6 +44,9 @@ public class FolderItemView extends LinearLayout {
     private static float[] sUnseenCornerRadii;
 
     private Folder mFolder;
+    private FolderUri mParentUri;
+    /** Whether {@link #overrideUnreadCount} changed the count that {@link #bind} showed. */
+    private boolean mUnreadCountOverridden;
     private TextView mFolderTextView;
     private TextView mUnreadCountTextView;
     private TextView mUnseenCountTextView;
@@ -104,11 +109,27 @@ public class FolderItemView extends LinearLayout {
                 && a.name.equals(b.name)
                 && a.hasChildren == b.hasChildren
                 && a.unseenCount == b.unseenCount
-                && a.unreadCount == b.unreadCount));
+                && a.unreadCount == b.unreadCount
+                && a.totalCount == b.totalCount
+                && a.capabilities == b.capabilities
+                && a.type == b.type
+                && a.iconResId == b.iconResId
+                && TextUtils.equals(a.bgColor, b.bgColor)));
+    }
+
+    /**
+     * Returns whether the view already shows the folder as {@link #bind} and {@link #setIcon}
+     * would, so that it doesn't need to be bound again.
+     */
+    public boolean isBoundTo(final Folder folder, final FolderUri parentUri) {
+        return mFolder != null && !mUnreadCountOverridden && areSameViews(mFolder, folder)
+                && Objects.equal(mParentUri, parentUri);
     }
 
     public void bind(final Folder folder, final FolderUri parentUri) {
         mFolder = folder;
+        mParentUri = parentUri;
+        mUnreadCountOverridden = false;
 
         mFolderTextView.setText(folder.name);
 
@@ -168,6 +189,7 @@ public class FolderItemView extends LinearLayout {
     public final void overrideUnreadCount(int count) {
         LogUtils.e(LOG_TAG, "FLF->FolderItem.getFolderView: unread count mismatch found (%s vs %d)",
                 mUnreadCountTextView.getText(), count);
+        mUnreadCountOverridden = true;
         setUnreadCount(count);
     }
 
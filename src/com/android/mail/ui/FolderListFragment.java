@@ -30,6 +30,7 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.widget.DrawerLayout;
 import android.text.TextUtils;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -44,6 +45,7 @@ import com.android.bitmap.UnrefedBitmapCache;
 import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.bitmap.AccountAvatarDrawable;
+import com.android.mail.bitmap.AvatarDiskCache;
 import com.android.mail.bitmap.ContactResolver;
 import com.android.mail.browse.MergedAdapter;
 import com.android.mail.content.ObjectCursor;
@@ -324,7 +326,7 @@ public class FolderListFragment extends ListFragment implements
                 AVATAR_IMAGES_PREVIEWS_CACHE_NON_POOLED_FRACTION,
                 AVATAR_IMAGES_PREVIEWS_CACHE_NULL_CAPACITY);
         mContactResolver = new ContactResolver(getActivity().getContentResolver(),
-                mImagesCache);
+                mImagesCache, AvatarDiskCache.getInstance(getActivity()));
 
         if (mMiniDrawerEnabled) {
             setupMiniDrawerAccountsAdapter();
@@ -879,6 +881,16 @@ public class FolderListFragment extends ListFragment implements
         private final boolean mIsDivided;
         /** All the items */
         private List<DrawerItem> mItemList = new ArrayList<>();
+        /** The folder items, reused across folder list changes for unchanged folders. */
+        private final DrawerFolderItemCache<DrawerItem> mFolderItems =
+                new DrawerFolderItemCache<>(new DrawerFolderItemCache.ItemFactory<DrawerItem>() {
+                    @Override
+                    public DrawerItem newItem(Folder folder, int itemCategory) {
+                        return DrawerItem.ofFolder(mActivity, folder, itemCategory);
+                    }
+                });
+        /** The header items by string resource, which don't change. */
+        private final SparseArray<DrawerItem> mHeaderItems = new SparseArray<>();
         /** Cursor into the folder list. This might be null. */
         private ObjectCursor<Folder> mCursor = null;
         /** Cursor into the all folder list. This might be null. */
@@ -979,7 +991,10 @@ public class FolderListFragment extends ListFragment implements
          */
         private void rebuildFolderList() {
             final boolean oldInboxPresent = mInboxPresent;
+            final List<DrawerItem> oldItemList = mItemList;
+            mFolderItems.beginUpdate();
             mItemList = recalculateListFolders();
+            mFolderItems.endUpdate();
             if (mAccountController != null && mInboxPresent && !oldInboxPresent) {
                 // We didn't have an inbox folder before, but now we do. This can occur when
                 // setting up a new account. We automatically create the "starred" virtual
@@ -988,10 +1003,38 @@ public class FolderListFragment extends ListFragment implements
                 // user will need to manually switch to the inbox. See b/13793316
                 mAccountController.switchToDefaultInboxOrChangeAccount(mCurrentAccount);
             }
-            // Ask the list to invalidate its views.
+            if (isSameDisplay(oldItemList, mItemList)) {
+                // The rows show what they did: only the folders behind them changed.
+                return;
+            }
+            // Ask the list to invalidate its views. Rows whose folder didn't change keep their
+            // views as they are.
             notifyDataSetChanged();
         }
 
+        /**
+         * Returns whether the lists of items would show the same rows.
+         */
+        private boolean isSameDisplay(List<DrawerItem> a, List<DrawerItem> b) {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (int i = 0; i < a.size(); i++) {
+                final DrawerItem itemA = a.get(i);
+                final DrawerItem itemB = b.get(i);
+                if (itemA == itemB) {
+                    continue;
+                }
+                if (itemA.getType() != DrawerItem.VIEW_FOLDER
+                        || itemB.getType() != DrawerItem.VIEW_FOLDER
+                        || itemA.mItemCategory != itemB.mItemCategory
+                        || !FolderItemView.areSameViews(itemA.mFolder, itemB.mFolder)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * Recalculates the system, recent and user label lists.
          * This method modifies all the three lists on every single invocation.
@@ -1026,11 +1069,9 @@ public class FolderListFragment extends ListFragment implements
                 if (!isFolderTypeExcluded(f)) {
                     // Prioritize inboxes
                     if (f.isInbox()) {
-                        inboxFolders.add(DrawerItem.ofFolder(
-                                mActivity, f, DrawerItem.FOLDER_OTHER));
+                        inboxFolders.add(mFolderItems.getItem(f, DrawerItem.FOLDER_OTHER));
                     } else {
-                        allFoldersList.add(
-                                DrawerItem.ofFolder(mActivity, f, DrawerItem.FOLDER_OTHER));
+                        allFoldersList.add(mFolderItems.getItem(f, DrawerItem.FOLDER_OTHER));
                     }
                 }
             } while (mCursor.moveToNext());
@@ -1048,11 +1089,9 @@ public class FolderListFragment extends ListFragment implements
                 final Folder f = mCursor.getModel();
                 if (!isFolderTypeExcluded(f)) {
                     if (f.isInbox()) {
-                        inboxFolders.add(DrawerItem.ofFolder(
-                                mActivity, f, DrawerItem.FOLDER_INBOX));
+                        inboxFolders.add(mFolderItems.getItem(f, DrawerItem.FOLDER_INBOX));
                     } else {
-                        allFoldersList.add(DrawerItem.ofFolder(
-                                mActivity, f, DrawerItem.FOLDER_OTHER));
+                        allFoldersList.add(mFolderItems.getItem(f, DrawerItem.FOLDER_OTHER));
                     }
                 }
             } while (mCursor.moveToNext());
@@ -1116,13 +1155,26 @@ public class FolderListFragment extends ListFragment implements
         private void addFolderDivision(List<DrawerItem> destination, List<DrawerItem> source,
                 int headerStringResource) {
             if (source.size() > 0) {
-                if(headerStringResource != BLANK_HEADER_RESOURCE) {
-                    destination.add(DrawerItem.ofHeader(mActivity, headerStringResource));
+                destination.add(getHeaderItem(headerStringResource));
+                destination.addAll(source);
+            }
+        }
+
+        /**
+         * Returns the header item for the string resource, or a blank header item for
+         * {@link FolderAdapter#BLANK_HEADER_RESOURCE}.
+         */
+        private DrawerItem getHeaderItem(int headerStringResource) {
+            DrawerItem item = mHeaderItems.get(headerStringResource);
+            if (item == null) {
+                if (headerStringResource != BLANK_HEADER_RESOURCE) {
+                    item = DrawerItem.ofHeader(mActivity, headerStringResource);
                 } else {
-                    destination.add(DrawerItem.ofBlankHeader(mActivity));
+                    item = DrawerItem.ofBlankHeader(mActivity);
                 }
-                destination.addAll(source);
+                mHeaderItems.put(headerStringResource, item);
             }
+            return item;
         }
 
         /**
@@ -1145,10 +1197,10 @@ public class FolderListFragment extends ListFragment implements
             }
 
             if (recentFolderList.size() > 0) {
-                destination.add(DrawerItem.ofHeader(mActivity, R.string.recent_folders_heading));
+                destination.add(getHeaderItem(R.string.recent_folders_heading));
                 // Recent folders are not queried for position.
                 for (Folder f : recentFolderList) {
-                    destination.add(DrawerItem.ofFolder(mActivity, f, DrawerItem.FOLDER_RECENT));
+                    destination.add(mFolderItems.getItem(f, DrawerItem.FOLDER_RECENT));
                 }
             }
         }
@@ -1199,6 +1251,7 @@ public class FolderListFragment extends ListFragment implements
         @Override
         public final void destroy() {
             mRecentFolderObserver.unregisterAndDestroy();
+            mFolderItems.clear();
         }
     }
 
@@ -41,6 +41,7 @@ import com.android.bitmap.UnrefedBitmapCache;
 import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.analytics.AnalyticsTimer;
+import com.android.mail.bitmap.AvatarDiskCache;
 import com.android.mail.bitmap.ContactResolver;
 import com.android.mail.compose.ComposeActivity;
 import com.android.mail.providers.Account;
@@ -463,7 +464,7 @@ public class MailActivity extends AbstractMailActivity implements ControllableAc
 
     @Override
     public ContactResolver getContactResolver(ContentResolver resolver, BitmapCache bitmapCache) {
-        return new ContactResolver(resolver, bitmapCache);
+        return new ContactResolver(resolver, bitmapCache, AvatarDiskCache.getInstance(this));
     }
 
     @Override
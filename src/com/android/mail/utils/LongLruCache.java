@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import java.util.Arrays;
+
+/**
+ * A fixed capacity LRU cache keyed by primitive longs. All storage is allocated up front: entries
+ * live in parallel arrays, are found through an open addressing table with linear probing, and
+ * are kept in recency order by a doubly linked list of array indices. Lookups, insertions and
+ * evictions do not allocate.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @param <V> the type of the values
+ */
+public final class LongLruCache<V> {
+    private static final int NONE = -1;
+
+    /**
+     * Visits the entries of a cache, see {@link #visitAll(EntryVisitor)}.
+     */
+    public interface EntryVisitor<V> {
+        /**
+         * @return false to remove the entry from the cache
+         */
+        boolean visit(long key, V value);
+    }
+
+    private final int mCapacity;
+
+    // Entry storage, indexed by slot.
+    private final long[] mKeys;
+    private final Object[] mValues;
+    // Recency list, most recently used first. Free slots are chained through mNext.
+    private final int[] mPrev;
+    private final int[] mNext;
+    private int mHead = NONE;
+    private int mTail = NONE;
+    private int mFree;
+
+    // Hash table of slot + 1, so that 0 marks an empty bucket.
+    private final int[] mTable;
+    private final int mMask;
+
+    private int mSize;
+
+    /**
+     * @param capacity the maximum number of entries; the least recently used entry is evicted
+     * to make room for new ones
+     */
+    public LongLruCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mPrev = new int[capacity];
+        mNext = new int[capacity];
+        // Keep the load factor at or below 1/2 so probe sequences stay short.
+        int tableSize = Integer.highestOneBit(capacity) << 2;
+        mTable = new int[tableSize];
+        mMask = tableSize - 1;
+        resetFreeList();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value for a key and marks it as the most recently used, or returns null.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final int bucket = findBucket(key);
+        if (bucket == NONE) {
+            return null;
+        }
+        final int slot = mTable[bucket] - 1;
+        moveToFront(slot);
+        return (V) mValues[slot];
+    }
+
+    /**
+     * Returns true if the cache has a value for the key, without changing its recency.
+     */
+    public boolean containsKey(long key) {
+        return findBucket(key) != NONE;
+    }
+
+    /**
+     * Sets the value for a key and marks it as the most recently used, evicting the least
+     * recently used entry if the cache is full.
+     *
+     * @return the previous value for the key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        final int bucket = findBucket(key);
+        if (bucket != NONE) {
+            final int slot = mTable[bucket] - 1;
+            final V previous = (V) mValues[slot];
+            mValues[slot] = value;
+            moveToFront(slot);
+            return previous;
+        }
+        if (mSize == mCapacity) {
+            removeSlot(mTail);
+        }
+        final int slot = mFree;
+        mFree = mNext[slot];
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        linkFirst(slot);
+        int i = hash(key) & mMask;
+        while (mTable[i] != 0) {
+            i = (i + 1) & mMask;
+        }
+        mTable[i] = slot + 1;
+        mSize++;
+        return null;
+    }
+
+    /**
+     * Removes the value for a key.
+     *
+     * @return the removed value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        final int bucket = findBucket(key);
+        if (bucket == NONE) {
+            return null;
+        }
+        final int slot = mTable[bucket] - 1;
+        final V value = (V) mValues[slot];
+        removeSlot(slot);
+        return value;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void evictAll() {
+        Arrays.fill(mTable, 0);
+        Arrays.fill(mValues, null);
+        mHead = NONE;
+        mTail = NONE;
+        mSize = 0;
+        resetFreeList();
+    }
+
+    /**
+     * Visits every entry, from the most to the least recently used, removing the entries for
+     * which the visitor returns false. Recency is not changed. The visitor may not modify the
+     * cache.
+     */
+    @SuppressWarnings("unchecked")
+    public void visitAll(EntryVisitor<V> visitor) {
+        int slot = mHead;
+        while (slot != NONE) {
+            final int next = mNext[slot];
+            if (!visitor.visit(mKeys[slot], (V) mValues[slot])) {
+                removeSlot(slot);
+            }
+            slot = next;
+        }
+    }
+
+    private void resetFreeList() {
+        for (int i = 0; i < mCapacity; i++) {
+            mNext[i] = i + 1 < mCapacity ? i + 1 : NONE;
+        }
+        mFree = 0;
+    }
+
+    private static int hash(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private int findBucket(long key) {
+        int i = hash(key) & mMask;
+        int entry;
+        while ((entry = mTable[i]) != 0) {
+            if (mKeys[entry - 1] == key) {
+                return i;
+            }
+            i = (i + 1) & mMask;
+        }
+        return NONE;
+    }
+
+    private void removeSlot(int slot) {
+        deleteBucket(findBucket(mKeys[slot]));
+        unlink(slot);
+        mValues[slot] = null;
+        mNext[slot] = mFree;
+        mFree = slot;
+        mSize--;
+    }
+
+    /**
+     * Empties a bucket, shifting back the entries that follow it in the probe sequence so that
+     * no tombstones are needed.
+     */
+    private void deleteBucket(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mMask;
+            final int entry = mTable[i];
+            if (entry == 0) {
+                break;
+            }
+            final int home = hash(mKeys[entry - 1]) & mMask;
+            // The entry can move into the hole unless its home bucket lies cyclically in
+            // (hole, i].
+            final boolean stays = hole <= i ? (hole < home && home <= i)
+                    : (hole < home || home <= i);
+            if (!stays) {
+                mTable[hole] = entry;
+                hole = i;
+            }
+        }
+        mTable[hole] = 0;
+    }
+
+    private void moveToFront(int slot) {
+        if (slot != mHead) {
+            unlink(slot);
+            linkFirst(slot);
+        }
+    }
+
+    private void linkFirst(int slot) {
+        mPrev[slot] = NONE;
+        mNext[slot] = mHead;
+        if (mHead != NONE) {
+            mPrev[mHead] = slot;
+        }
+        mHead = slot;
+        if (mTail == NONE) {
+            mTail = slot;
+        }
+    }
+
+    private void unlink(int slot) {
+        final int prev = mPrev[slot];
+        final int next = mNext[slot];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+}
@@ -76,7 +76,8 @@ public class NotificationActionUtils {
     /**
      * If an undo notification is displayed, its timestamp
      * ({@link android.app.Notification.Builder#setWhen(long)}) is stored here so we can use it for
-     * the original notification if the action is undone.
+     * the original notification if the action is undone. Notifications are validated on a pool
+     * of threads, so every access must be synchronized on it.
      */
     public static final SparseLongArray sNotificationTimestamps = new SparseLongArray();
 
@@ -800,7 +801,9 @@ public class NotificationActionUtils {
         notificationManager.notify(notificationId, notification);
 
         sUndoNotifications.put(notificationId, notificationAction);
-        sNotificationTimestamps.put(notificationId, notificationAction.getWhen());
+        synchronized (sNotificationTimestamps) {
+            sNotificationTimestamps.put(notificationId, notificationAction.getWhen());
+        }
     }
 
     /**
@@ -839,7 +842,9 @@ public class NotificationActionUtils {
         final int notificationId = NotificationUtils.getNotificationId(
                 account.getAccountManagerAccount(), folder);
         removeUndoNotification(context, notificationId, true);
-        sNotificationTimestamps.delete(notificationId);
+        synchronized (sNotificationTimestamps) {
+            sNotificationTimestamps.delete(notificationId);
+        }
         processDestructiveAction(context, notificationAction);
     }
 
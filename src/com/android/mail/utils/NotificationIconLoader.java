@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.text.TextUtils;
+
+import com.android.mail.NegativeContactCache;
+import com.android.mail.R;
+import com.android.mail.bitmap.AvatarDiskCache;
+import com.android.mail.photo.ContactFetcher;
+import com.android.mail.photomanager.LetterTileProvider;
+import com.android.mail.ui.ImageCanvas.Dimensions;
+import com.android.mail.utils.NotificationUtils.ContactIconInfo;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.Closeables;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the contact icons of notifications, scaled and framed the way notifications show them,
+ * and keeps them in memory by sender and size, so that notifications that are rebuilt don't
+ * decode and frame them again.
+ * <p>
+ * {@link #prefetch} loads the icons of all of the senders of a notification at once: the
+ * senders that are neither in memory nor on disk are looked up with a single contacts query,
+ * and their photos are decoded and framed in parallel.
+ * <p>
+ * Icons are kept by source as well as by sender: the photos that a {@link ContactFetcher} finds
+ * for an account are kept apart from those of the contacts provider, which may have none for
+ * the same sender. Only what was actually looked up is written to disk.
+ */
+public class NotificationIconLoader {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** The senders of a few digests. */
+    private static final int MAX_ICONS = 64;
+    /** Decodes are short and allocation heavy, so a few threads are enough to keep up. */
+    private static final int MAX_DECODE_THREADS = 3;
+    /** How long a prefetch waits; icons that are not ready by then are loaded when needed. */
+    private static final long PREFETCH_TIMEOUT_MS = 5000;
+
+    /** The sizes that notifications show contact icons at. */
+    static final class Sizes {
+        final int iconWidth;
+        final int iconHeight;
+        final int wearableBgWidth;
+        final int wearableBgHeight;
+
+        Sizes(Resources res) {
+            iconWidth = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+            iconHeight = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+            wearableBgWidth = res.getDimensionPixelSize(R.dimen.wearable_background_width);
+            wearableBgHeight = res.getDimensionPixelSize(R.dimen.wearable_background_height);
+        }
+    }
+
+    /** The loaded icons of a sender. Not modified once cached. */
+    static final class Icon {
+        /** Where the photo came from; see {@link #getSource}. */
+        final String source;
+        /** The framed photo, or null if the sender has none. */
+        final Bitmap photo;
+        final Bitmap wearableBg;
+        /** The framed letter tile, drawn for {@link #tileName} when there is no photo. */
+        final Bitmap tile;
+        final String tileName;
+
+        Icon(String source, Bitmap photo, Bitmap wearableBg, Bitmap tile, String tileName) {
+            this.source = source;
+            this.photo = photo;
+            this.wearableBg = wearableBg;
+            this.tile = tile;
+            this.tileName = tileName;
+        }
+    }
+
+    private static final LruCache<String, Icon> sIcons = new LruCache<String, Icon>(MAX_ICONS);
+    private static boolean sObserverRegistered;
+    private static LetterTileProvider sLetterTileProvider;
+
+    private static final Executor DECODE_EXECUTOR;
+
+    static {
+        final int threads = Math.max(1, Math.min(MAX_DECODE_THREADS,
+                Runtime.getRuntime().availableProcessors() - 1));
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        DECODE_EXECUTOR = executor;
+    }
+
+    /**
+     * Returns the icons of a sender, loading them if they are not in memory. The photo is read
+     * from the {@link AvatarDiskCache}, or else from the contact fetcher or the contacts
+     * provider.
+     */
+    static Icon getIcon(Context context, String accountName, String address, Sizes sizes,
+            ContactFetcher contactFetcher) {
+        registerObserver(context);
+        final String source = getSource(accountName, contactFetcher);
+        Icon icon = sIcons.getElement(getKey(source, address, sizes));
+        if (icon == null) {
+            icon = loadFromDisk(context, source, address, sizes);
+        }
+        if (icon == null) {
+            final ContactIconInfo info;
+            if (contactFetcher != null) {
+                info = contactFetcher.getContactPhoto(context, accountName, address,
+                        sizes.iconWidth, sizes.iconHeight, sizes.wearableBgWidth,
+                        sizes.wearableBgHeight);
+            } else {
+                info = NotificationUtils.getContactInfo(context, address, sizes.iconWidth,
+                        sizes.iconHeight, sizes.wearableBgWidth, sizes.wearableBgHeight);
+            }
+            icon = store(context, source, address, sizes, info);
+        }
+        return icon;
+    }
+
+    /**
+     * Returns the framed letter tile of a sender that has no photo, drawing it if the icons of
+     * the sender don't have one for its display name yet.
+     */
+    static Bitmap getLetterTile(Context context, Icon icon, String displayName, String address,
+            Sizes sizes) {
+        if (icon.tile != null && TextUtils.equals(icon.tileName, displayName)) {
+            return icon.tile;
+        }
+        final Dimensions dimensions = new Dimensions(sizes.iconWidth, sizes.iconHeight,
+                Dimensions.SCALE_ONE);
+        Bitmap tile;
+        synchronized (NotificationIconLoader.class) {
+            if (sLetterTileProvider == null) {
+                sLetterTileProvider = new LetterTileProvider(context.getResources());
+            }
+            tile = sLetterTileProvider.getLetterTile(dimensions, displayName, address);
+            // The provider draws every tile into the same bitmap.
+            if (tile != null) {
+                // Only turn the square letter tile into a circle for L and later
+                tile = Utils.isRunningLOrLater() ? BitmapUtil.frameBitmapInCircle(tile)
+                        : tile.copy(tile.getConfig(), false);
+            }
+        }
+        if (tile != null) {
+            sIcons.putElement(getKey(icon.source, address, sizes),
+                    new Icon(icon.source, icon.photo, icon.wearableBg, tile, displayName));
+        }
+        return tile;
+    }
+
+    /**
+     * Loads the icons of senders that are not in memory yet, and waits for them to be loaded.
+     */
+    public static void prefetch(final Context context, final String accountName,
+            Collection<String> addresses, final ContactFetcher contactFetcher) {
+        registerObserver(context);
+        final long start = SystemClock.elapsedRealtime();
+        final Sizes sizes = new Sizes(context.getResources());
+        final String source = getSource(accountName, contactFetcher);
+        final Set<String> missing = new LinkedHashSet<String>();
+        int diskHits = 0;
+        for (String address : addresses) {
+            if (TextUtils.isEmpty(address) || missing.contains(address)
+                    || sIcons.getElement(getKey(source, address, sizes)) != null) {
+                continue;
+            }
+            if (loadFromDisk(context, source, address, sizes) != null) {
+                diskHits++;
+            } else {
+                missing.add(address);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        // The contacts provider is queried once for the senders that are not known to be
+        // missing, and the fetcher is asked for each of them in parallel.
+        final Map<String, List<Long>> contactIds;
+        final Set<String> knownMissing = new HashSet<String>();
+        if (contactFetcher == null) {
+            final NegativeContactCache negativeCache =
+                    NegativeContactCache.getInstance(context.getContentResolver());
+            final List<String> lookups = new ArrayList<String>(missing.size());
+            for (String address : missing) {
+                if (negativeCache.isKnownMissing(address)) {
+                    knownMissing.add(address);
+                } else {
+                    lookups.add(address);
+                }
+            }
+            contactIds = findContacts(context, lookups);
+            if (contactIds == null) {
+                // The query failed; the icons are loaded one at a time when needed.
+                return;
+            }
+            for (String address : lookups) {
+                if (!contactIds.containsKey(address)) {
+                    negativeCache.addMissing(address);
+                }
+            }
+        } else {
+            contactIds = null;
+        }
+
+        final CountDownLatch loaded = new CountDownLatch(missing.size());
+        for (final String address : missing) {
+            DECODE_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final ContactIconInfo info;
+                        if (contactFetcher != null) {
+                            info = contactFetcher.getContactPhoto(context, accountName, address,
+                                    sizes.iconWidth, sizes.iconHeight, sizes.wearableBgWidth,
+                                    sizes.wearableBgHeight);
+                        } else if (knownMissing.contains(address)) {
+                            // As NotificationUtils.getContactInfo does for a single sender.
+                            info = new ContactIconInfo();
+                            info.verified = false;
+                        } else {
+                            info = decodeContactPhoto(context.getContentResolver(),
+                                    contactIds.get(address), sizes.iconWidth, sizes.iconHeight,
+                                    sizes.wearableBgWidth, sizes.wearableBgHeight);
+                        }
+                        store(context, source, address, sizes, info);
+                    } catch (RuntimeException e) {
+                        LogUtils.w(LOG_TAG, e, "Unable to load the notification icon");
+                    } finally {
+                        loaded.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            if (!loaded.await(PREFETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                LogUtils.w(LOG_TAG, "Timed out prefetching notification icons");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LogUtils.d(LOG_TAG, "Prefetched %d notification icons in %dms, %d from disk",
+                missing.size(), SystemClock.elapsedRealtime() - start, diskHits);
+    }
+
+    /**
+     * Finds the contacts of email addresses with a single query.
+     *
+     * @return the ids of the contacts of each address that has any, or null if the query failed
+     */
+    static Map<String, List<Long>> findContacts(Context context, Collection<String> addresses) {
+        final Map<String, List<Long>> contactIds = new HashMap<String, List<Long>>();
+        if (addresses.isEmpty()) {
+            return contactIds;
+        }
+        final String[] questionMarks = new String[addresses.size()];
+        Arrays.fill(questionMarks, "?");
+        final String where = Email.DATA1 + " IN (" + TextUtils.join(",", questionMarks) + ")";
+
+        final ContentResolver resolver = context.getContentResolver();
+        final Cursor c = resolver.query(Email.CONTENT_URI,
+                new String[] {Email.DATA1, Email.CONTACT_ID}, where,
+                addresses.toArray(new String[addresses.size()]), null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            while (c.moveToNext()) {
+                final String address = c.getString(0);
+                List<Long> ids = contactIds.get(address);
+                if (ids == null) {
+                    ids = new ArrayList<Long>(1);
+                    contactIds.put(address, ids);
+                }
+                ids.add(c.getLong(1));
+            }
+        } finally {
+            c.close();
+        }
+        return contactIds;
+    }
+
+    /**
+     * Decodes the first photo of the contacts, scaled to the icon and wearable background
+     * sizes.
+     */
+    static ContactIconInfo decodeContactPhoto(ContentResolver resolver, List<Long> contactIds,
+            int idealIconWidth, int idealIconHeight, int idealWearableBgWidth,
+            int idealWearableBgHeight) {
+        final ContactIconInfo contactIconInfo = new ContactIconInfo();
+        if (contactIds == null) {
+            return contactIconInfo;
+        }
+        for (final long id : contactIds) {
+            final Uri contactUri = ContentUris.withAppendedId(
+                    ContactsContract.Contacts.CONTENT_URI, id);
+            final InputStream inputStream = ContactsContract.Contacts.openContactPhotoInputStream(
+                    resolver, contactUri, true /*preferHighres*/);
+
+            if (inputStream != null) {
+                try {
+                    final Bitmap source = BitmapFactory.decodeStream(inputStream);
+                    if (source != null) {
+                        // We should scale this image to fit the intended size
+                        contactIconInfo.icon = Bitmap.createScaledBitmap(source, idealIconWidth,
+                                idealIconHeight, true);
+
+                        contactIconInfo.wearableBg = Bitmap.createScaledBitmap(source,
+                                idealWearableBgWidth, idealWearableBgHeight, true);
+                    }
+
+                    if (contactIconInfo.icon != null) {
+                        break;
+                    }
+                } finally {
+                    Closeables.closeQuietly(inputStream);
+                }
+            }
+        }
+        return contactIconInfo;
+    }
+
+    /**
+     * Returns where the photos of senders come from: the contacts provider, which is the empty
+     * string, or the contact fetcher of an account.
+     */
+    private static String getSource(String accountName, ContactFetcher contactFetcher) {
+        return contactFetcher != null ? accountName : "";
+    }
+
+    private static String getKey(String source, String address, Sizes sizes) {
+        return source + " " + address + " " + sizes.iconWidth + "x" + sizes.iconHeight;
+    }
+
+    /**
+     * Returns the address that the photos of a sender are kept under in the disk cache. Those of
+     * the contacts provider are kept under the plain address, like {@link
+     * com.android.mail.bitmap.ContactResolver} keeps them, and those of a fetcher under the
+     * account too; a '/' doesn't appear in an email address.
+     */
+    private static String getDiskAddress(String source, String address) {
+        return source.isEmpty() ? address : source + '/' + address;
+    }
+
+    private static int getShape() {
+        return Utils.isRunningLOrLater()
+                ? AvatarDiskCache.SHAPE_CIRCLE : AvatarDiskCache.SHAPE_SQUARE;
+    }
+
+    /**
+     * Reads the photos found earlier, already framed, or the knowledge that there is none, from
+     * the disk cache into memory.
+     */
+    private static Icon loadFromDisk(Context context, String source, String address,
+            Sizes sizes) {
+        final AvatarDiskCache diskCache = AvatarDiskCache.getInstance(context);
+        final String diskAddress = getDiskAddress(source, address);
+        final Bitmap[] cachedIcon = new Bitmap[1];
+        final Bitmap[] cachedWearableBg = new Bitmap[1];
+        if (diskCache.getBitmap(diskAddress, sizes.iconWidth, sizes.iconHeight, getShape(),
+                cachedIcon) && diskCache.getBitmap(diskAddress, sizes.wearableBgWidth,
+                sizes.wearableBgHeight, AvatarDiskCache.SHAPE_SQUARE, cachedWearableBg)) {
+            final Icon icon = new Icon(source, cachedIcon[0], cachedWearableBg[0], null, null);
+            sIcons.putElement(getKey(source, address, sizes), icon);
+            return icon;
+        }
+        return null;
+    }
+
+    /**
+     * Frames a loaded photo and keeps it in memory, and on disk if the sender was looked up.
+     * A fetcher returns no photo both for a sender that has none and when it fails, so only its
+     * photos are written to disk.
+     */
+    private static Icon store(Context context, String source, String address, Sizes sizes,
+            ContactIconInfo info) {
+        Bitmap photo = info != null ? info.icon : null;
+        final Bitmap wearableBg = info != null ? info.wearableBg : null;
+        // Only turn the square photo into a circle for L and later
+        if (photo != null && Utils.isRunningLOrLater()) {
+            photo = BitmapUtil.frameBitmapInCircle(photo);
+        }
+        if (info != null && info.verified && (photo != null || source.isEmpty())) {
+            final AvatarDiskCache diskCache = AvatarDiskCache.getInstance(context);
+            final String diskAddress = getDiskAddress(source, address);
+            diskCache.putBitmap(diskAddress, sizes.iconWidth, sizes.iconHeight, getShape(),
+                    photo);
+            diskCache.putBitmap(diskAddress, sizes.wearableBgWidth, sizes.wearableBgHeight,
+                    AvatarDiskCache.SHAPE_SQUARE, wearableBg);
+        }
+        final Icon icon = new Icon(source, photo, wearableBg, null, null);
+        sIcons.putElement(getKey(source, address, sizes), icon);
+        return icon;
+    }
+
+    /** Forgets the icons in memory. */
+    @VisibleForTesting
+    static void clearIcons() {
+        synchronized (sIcons) {
+            sIcons.clear();
+        }
+    }
+
+    /** Forgets the icons in memory when contacts change, like the disk cache does. */
+    private static synchronized void registerObserver(Context context) {
+        if (sObserverRegistered) {
+            return;
+        }
+        sObserverRegistered = true;
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                ContactsContract.Contacts.CONTENT_URI, true /* notifyForDescendents */,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clearIcons();
+                    }
+                });
+    }
+}
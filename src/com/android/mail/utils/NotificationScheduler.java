@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.Context;
+
+import com.android.mail.photo.ContactFetcher;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces requests to validate folder notifications. The requests for a folder that arrive
+ * within a short window, e.g. while several accounts sync at once, are validated once at the
+ * end of it, and different folders are validated in parallel on a small pool. A folder is never
+ * validated by two threads at once: requests that arrive while it is being validated wait for
+ * the validation to finish.
+ * <p>
+ * A request with the unread and unseen counts that its folder was last validated with is
+ * skipped, unless it needs the user's attention. Resends don't know the counts, and always
+ * validate.
+ * <p>
+ * The validations run after the request returns, so the scheduler holds a {@link KeepAlive}
+ * from its first request until it has no more work.
+ *
+ * @param <K> the key of a folder notification
+ */
+public class NotificationScheduler<K> {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** Validates the notification of a folder. Called on a thread of the pool. */
+    public interface Validator<K> {
+        void validate(Context context, K key, boolean getAttention,
+                boolean ignoreUnobtrusiveSetting, ContactFetcher contactFetcher);
+    }
+
+    /**
+     * Keeps the process alive while the scheduler has work. Acquired when a request arrives at
+     * an idle scheduler, and released when its last validation finishes. Both are called with
+     * the scheduler locked, so that they are called in order.
+     */
+    public interface KeepAlive {
+        void acquire(Context context);
+        void release(Context context);
+    }
+
+    /** Counts of the requests that a scheduler received, and what became of them. */
+    public static final class Stats {
+        public final int requested;
+        /** Requests merged into one for the same folder that was still waiting. */
+        public final int coalesced;
+        /** Validations not run because the counts of their folder had not changed. */
+        public final int skipped;
+        public final int executed;
+
+        private Stats(int requested, int coalesced, int skipped, int executed) {
+            this.requested = requested;
+            this.coalesced = coalesced;
+            this.skipped = skipped;
+            this.executed = executed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requested=%d coalesced=%d skipped=%d executed=%d",
+                    requested, coalesced, skipped, executed);
+        }
+    }
+
+    private static final class Request {
+        Context context;
+        /** False for resends, which don't know the counts. */
+        boolean counted;
+        int unreadCount;
+        int unseenCount;
+        boolean getAttention;
+        boolean ignoreUnobtrusiveSetting;
+        ContactFetcher contactFetcher;
+    }
+
+    private final Validator<K> mValidator;
+    private final KeepAlive mKeepAlive;
+    private final long mDebounceMs;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    private final Map<K, Request> mPending = new HashMap<K, Request>();
+    private final Set<K> mRunning = new HashSet<K>();
+    /** The unread and unseen counts that each folder was last validated with. */
+    private final Map<K, Long> mValidatedCounts = new HashMap<K, Long>();
+
+    /** The context that the keep alive was acquired with, or null if it isn't held. */
+    private Context mKeepAliveContext;
+
+    private int mRequested;
+    private int mCoalesced;
+    private int mSkipped;
+    private int mExecuted;
+
+    public NotificationScheduler(Validator<K> validator, int threads, long debounceMs) {
+        this(validator, null, threads, debounceMs);
+    }
+
+    public NotificationScheduler(Validator<K> validator, KeepAlive keepAlive, int threads,
+            long debounceMs) {
+        mValidator = validator;
+        mKeepAlive = keepAlive;
+        mDebounceMs = debounceMs;
+        mExecutor = new ScheduledThreadPoolExecutor(Math.max(1, threads));
+        mExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Requests a validation of a folder whose unread and unseen counts were updated.
+     */
+    public void requestValidation(Context context, K key, int unreadCount, int unseenCount,
+            boolean getAttention, boolean ignoreUnobtrusiveSetting,
+            ContactFetcher contactFetcher) {
+        final Request request = new Request();
+        request.context = context.getApplicationContext();
+        request.counted = true;
+        request.unreadCount = unreadCount;
+        request.unseenCount = unseenCount;
+        request.getAttention = getAttention;
+        request.ignoreUnobtrusiveSetting = ignoreUnobtrusiveSetting;
+        request.contactFetcher = contactFetcher;
+        schedule(key, request);
+    }
+
+    /**
+     * Requests a validation of a folder whose conversations may have changed, e.g. after one was
+     * marked read from its notification.
+     */
+    public void requestResend(Context context, K key, boolean getAttention,
+            boolean ignoreUnobtrusiveSetting, ContactFetcher contactFetcher) {
+        final Request request = new Request();
+        request.context = context.getApplicationContext();
+        request.getAttention = getAttention;
+        request.ignoreUnobtrusiveSetting = ignoreUnobtrusiveSetting;
+        request.contactFetcher = contactFetcher;
+        schedule(key, request);
+    }
+
+    /**
+     * Forgets the counts that a folder was validated with, so that its next request is
+     * validated. Called when its notification is cancelled.
+     */
+    public synchronized void forget(K key) {
+        mValidatedCounts.remove(key);
+    }
+
+    public synchronized void forgetAll() {
+        mValidatedCounts.clear();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mRequested, mCoalesced, mSkipped, mExecuted);
+    }
+
+    /**
+     * Waits until no validation is waiting or running, or the timeout elapses.
+     *
+     * @return true if the scheduler is idle
+     */
+    @VisibleForTesting
+    synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!mPending.isEmpty() || !mRunning.isEmpty()) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private synchronized void schedule(K key, Request request) {
+        mRequested++;
+        final Request pending = mPending.get(key);
+        if (pending != null) {
+            mCoalesced++;
+            // A resend merged into a count update makes it a resend.
+            if (pending.counted && request.counted) {
+                pending.unreadCount = request.unreadCount;
+                pending.unseenCount = request.unseenCount;
+            } else {
+                pending.counted = false;
+            }
+            pending.getAttention |= request.getAttention;
+            pending.ignoreUnobtrusiveSetting |= request.ignoreUnobtrusiveSetting;
+            pending.contactFetcher = request.contactFetcher;
+            return;
+        }
+        if (mKeepAliveContext == null && mKeepAlive != null) {
+            mKeepAliveContext = request.context;
+            mKeepAlive.acquire(mKeepAliveContext);
+        }
+        mPending.put(key, request);
+        if (!mRunning.contains(key)) {
+            post(key);
+        }
+    }
+
+    private void post(final K key) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runValidation(key);
+            }
+        }, mDebounceMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void runValidation(K key) {
+        final Request request;
+        final boolean skip;
+        synchronized (this) {
+            request = mPending.remove(key);
+            if (request == null) {
+                return;
+            }
+            mRunning.add(key);
+            final Long validatedCounts = mValidatedCounts.get(key);
+            skip = request.counted && !request.getAttention && validatedCounts != null
+                    && validatedCounts == getCounts(request);
+            if (skip) {
+                mSkipped++;
+            } else {
+                mExecuted++;
+            }
+        }
+
+        try {
+            if (!skip) {
+                mValidator.validate(request.context, key, request.getAttention,
+                        request.ignoreUnobtrusiveSetting, request.contactFetcher);
+            }
+        } catch (RuntimeException e) {
+            LogUtils.e(LOG_TAG, e, "Unable to validate notification");
+        } finally {
+            synchronized (this) {
+                if (!skip) {
+                    if (request.counted) {
+                        mValidatedCounts.put(key, getCounts(request));
+                    } else {
+                        mValidatedCounts.remove(key);
+                    }
+                }
+                mRunning.remove(key);
+                if (mPending.containsKey(key)) {
+                    post(key);
+                }
+                if (mPending.isEmpty() && mRunning.isEmpty() && mKeepAliveContext != null) {
+                    mKeepAlive.release(mKeepAliveContext);
+                    mKeepAliveContext = null;
+                }
+                LogUtils.d(LOG_TAG, "NotificationScheduler: %s", getStats());
+                notifyAll();
+            }
+        }
+    }
+
+    private static long getCounts(Request request) {
+        return ((long) request.unreadCount << 32) | (request.unseenCount & 0xffffffffL);
+    }
+}
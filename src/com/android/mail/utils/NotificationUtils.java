@@ -18,7 +18,6 @@ package com.android.mail.utils;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -29,9 +28,9 @@ import android.graphics.BitmapFactory;
 import android.net.MailTo;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.AsyncTask;
 import android.os.Looper;
-import android.provider.ContactsContract;
-import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.text.BidiFormatter;
@@ -43,13 +42,14 @@ import android.text.SpannedString;
 import android.text.TextUtils;
 import android.text.style.CharacterStyle;
 import android.text.style.TextAppearanceSpan;
-import android.util.Pair;
 import android.util.SparseArray;
 
 import com.android.emailcommon.mail.Address;
 import com.android.mail.EmailAddress;
 import com.android.mail.MailIntentService;
+import com.android.mail.NegativeContactCache;
 import com.android.mail.NotificationActionIntentService;
+import com.android.mail.NotificationValidationService;
 import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.browse.ConversationItemView;
@@ -57,33 +57,41 @@ import com.android.mail.browse.MessageCursor;
 import com.android.mail.browse.SendersView;
 import com.android.mail.compose.ComposeActivity;
 import com.android.mail.photo.ContactFetcher;
-import com.android.mail.photomanager.LetterTileProvider;
 import com.android.mail.preferences.AccountPreferences;
 import com.android.mail.preferences.FolderPreferences;
 import com.android.mail.preferences.MailPrefs;
 import com.android.mail.providers.Account;
 import com.android.mail.providers.Conversation;
 import com.android.mail.providers.Folder;
+import com.android.mail.providers.MailAppProvider;
 import com.android.mail.providers.Message;
+import com.android.mail.providers.ParticipantInfo;
 import com.android.mail.providers.UIProvider;
-import com.android.mail.ui.ImageCanvas.Dimensions;
 import com.android.mail.utils.NotificationActionUtils.NotificationAction;
 import com.google.android.mail.common.html.parser.HTML;
 import com.google.android.mail.common.html.parser.HTML4;
 import com.google.android.mail.common.html.parser.HtmlDocument;
 import com.google.android.mail.common.html.parser.HtmlTree;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
 
-import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -91,6 +99,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NotificationUtils {
     public static final String LOG_TAG = "NotifUtils";
@@ -101,7 +110,16 @@ public class NotificationUtils {
 
     /** Contains a list of <(account, label), unread conversations> */
     private static NotificationMap sActiveNotificationMap = null;
+    /**
+     * When the notification map was first loaded in this process, until the first notification
+     * is posted.
+     */
+    private static volatile long sFirstMapLoadTime = -1;
 
+    /**
+     * Decoded resource icons. Guards itself and {@link #sDefaultWearableBg}, since notifications
+     * are validated on a pool of threads.
+     */
     private static final SparseArray<Bitmap> sNotificationIcons = new SparseArray<Bitmap>();
     private static WeakReference<Bitmap> sDefaultWearableBg = new WeakReference<Bitmap>(null);
 
@@ -121,7 +139,32 @@ public class NotificationUtils {
 
     // Maps summary notification to conversation notification ids.
     private static Map<NotificationKey, Set<Integer>> sConversationNotificationMap =
-            new HashMap<NotificationKey, Set<Integer>>();
+            new ConcurrentHashMap<NotificationKey, Set<Integer>>();
+
+    /** The number of values that {@link #getConversationStates} stores per conversation. */
+    private static final int STATE_SIZE = 4;
+
+    // Maps summary notification to the fingerprint of what it was last posted with.
+    private static Map<NotificationKey, NotifiedConversations> sNotifiedConversations =
+            new ConcurrentHashMap<NotificationKey, NotifiedConversations>();
+
+    /** How long requests to validate a folder notification are collected before validating. */
+    private static final long VALIDATION_DEBOUNCE_MS = 300;
+    /** Folder notifications validated at once, each making a few provider queries. */
+    private static final int MAX_VALIDATION_THREADS = 2;
+
+    private static final NotificationScheduler<NotificationKey> sScheduler =
+            new NotificationScheduler<NotificationKey>(
+                    new NotificationScheduler.Validator<NotificationKey>() {
+                        @Override
+                        public void validate(Context context, NotificationKey key,
+                                boolean getAttention, boolean ignoreUnobtrusiveSetting,
+                                ContactFetcher contactFetcher) {
+                            validateNotifications(context, key.folder, key.account, getAttention,
+                                    ignoreUnobtrusiveSetting, key, contactFetcher);
+                        }
+                    }, NotificationValidationService.KEEP_ALIVE, MAX_VALIDATION_THREADS,
+                    VALIDATION_DEBOUNCE_MS);
 
     /**
      * Clears all notifications in response to the user tapping "Clear" in the status bar.
@@ -131,6 +174,8 @@ public class NotificationUtils {
         final NotificationMap notificationMap = getNotificationMap(context);
         notificationMap.clear();
         notificationMap.saveNotificationMap(context);
+        sNotifiedConversations.clear();
+        sScheduler.forgetAll();
     }
 
     /**
@@ -138,6 +183,7 @@ public class NotificationUtils {
      */
     private static synchronized NotificationMap getNotificationMap(Context context) {
         if (sActiveNotificationMap == null) {
+            sFirstMapLoadTime = SystemClock.elapsedRealtime();
             sActiveNotificationMap = new NotificationMap();
 
             // populate the map from the cached data
@@ -150,12 +196,38 @@ public class NotificationUtils {
      * Class representing the existing notifications, and the number of unread and
      * unseen conversations that triggered each.
      */
-    private static final class NotificationMap {
+    @VisibleForTesting
+    static final class NotificationMap {
 
         private static final String NOTIFICATION_PART_SEPARATOR = " ";
         private static final int NUM_NOTIFICATION_PARTS= 4;
-        private final ConcurrentHashMap<NotificationKey, Pair<Integer, Integer>> mMap =
-            new ConcurrentHashMap<NotificationKey, Pair<Integer, Integer>>();
+
+        /** The snapshot of the map, in the files directory of the app. */
+        private static final String SNAPSHOT_FILE_NAME = "notification_map";
+        private static final int SNAPSHOT_MAGIC = 0x4e4d4150;
+        /** The version of the layout of the snapshot, and of the keys in it. */
+        private static final int SNAPSHOT_VERSION = 2;
+
+        /** The counts of a notification, and the key with the account and folder to show. */
+        private static final class Entry {
+            public final NotificationKey key;
+            public final int unread;
+            public final int unseen;
+
+            public Entry(NotificationKey key, int unread, int unseen) {
+                this.key = key;
+                this.unread = unread;
+                this.unseen = unseen;
+            }
+        }
+
+        // Keys are equal for any state of their account and folder, so the latest key is kept in
+        // the entry, where it can be replaced along with the counts.
+        private final ConcurrentHashMap<NotificationKey, Entry> mMap =
+            new ConcurrentHashMap<NotificationKey, Entry>();
+
+        /** Whether a write of the snapshot is scheduled that hasn't read the map yet. */
+        private final AtomicBoolean mSnapshotScheduled = new AtomicBoolean();
 
         /**
          * Returns the number of key values pairs in the inner map.
@@ -165,20 +237,23 @@ public class NotificationUtils {
         }
 
         /**
-         * Returns a set of key values.
+         * Returns a set of key values, with the accounts and folders they were last stored with.
          */
         public Set<NotificationKey> keySet() {
-            return mMap.keySet();
+            final Set<NotificationKey> keys = Sets.newHashSetWithExpectedSize(mMap.size());
+            for (Entry entry : mMap.values()) {
+                keys.add(entry.key);
+            }
+            return keys;
         }
 
         /**
-         * Remove the key from the inner map and return its value.
+         * Remove the key from the inner map.
          *
          * @param key The key {@link NotificationKey} to be removed.
-         * @return The value associated with this key.
          */
-        public Pair<Integer, Integer> remove(NotificationKey key) {
-            return mMap.remove(key);
+        public void remove(NotificationKey key) {
+            mMap.remove(key);
         }
 
         /**
@@ -202,31 +277,50 @@ public class NotificationUtils {
          * Returns the unread count for the given NotificationKey.
          */
         public Integer getUnread(NotificationKey key) {
-            final Pair<Integer, Integer> value = mMap.get(key);
-            return value != null ? value.first : null;
+            final Entry entry = mMap.get(key);
+            return entry != null ? entry.unread : null;
         }
 
         /**
          * Returns the unread unseen count for the given NotificationKey.
          */
         public Integer getUnseen(NotificationKey key) {
-            final Pair<Integer, Integer> value = mMap.get(key);
-            return value != null ? value.second : null;
+            final Entry entry = mMap.get(key);
+            return entry != null ? entry.unseen : null;
         }
 
         /**
          * Store the unread and unseen value for the given NotificationKey
          */
         public void put(NotificationKey key, int unread, int unseen) {
-            final Pair<Integer, Integer> value =
-                    new Pair<Integer, Integer>(Integer.valueOf(unread), Integer.valueOf(unseen));
-            mMap.put(key, value);
+            mMap.put(key, new Entry(key, unread, unseen));
         }
 
         /**
-         * Populates the notification map with previously cached data.
+         * Populates the notification map with previously cached data. The snapshot written by
+         * {@link #saveNotificationMap} is read without querying the providers, and its accounts
+         * and folders are refreshed in the background. Without a snapshot of this version of the
+         * app, the map is rebuilt from the preferences with a query per account and folder.
          */
         public synchronized void loadNotificationMap(final Context context) {
+            final long startTime = SystemClock.elapsedRealtime();
+            if (loadSnapshot(context)) {
+                LogUtils.i(LOG_TAG, "Loaded %d notifications from the snapshot in %dms", size(),
+                        SystemClock.elapsedRealtime() - startTime);
+                // The accounts and folders may have changed while the process was not running.
+                final Context appContext = context.getApplicationContext();
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (refreshKeys(appContext.getContentResolver(),
+                                MailAppProvider.getAccountsUri())) {
+                            saveNotificationMap(appContext);
+                        }
+                    }
+                });
+                return;
+            }
+
             final MailPrefs mailPrefs = MailPrefs.get(context);
             final Set<String> notificationSet = mailPrefs.getActiveNotificationSet();
             if (notificationSet != null) {
@@ -282,6 +376,9 @@ public class NotificationUtils {
                     }
                 }
             }
+            LogUtils.i(LOG_TAG, "Loaded %d notifications from the preferences in %dms", size(),
+                    SystemClock.elapsedRealtime() - startTime);
+            scheduleSnapshot(context);
         }
 
         /**
@@ -302,6 +399,323 @@ public class NotificationUtils {
             }
             final MailPrefs mailPrefs = MailPrefs.get(context);
             mailPrefs.cacheActiveNotificationSet(notificationSet);
+            scheduleSnapshot(context);
+        }
+
+        private boolean loadSnapshot(Context context) {
+            final File file = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+            if (!file.isFile()) {
+                return false;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (readSnapshot(in, getSnapshotAppVersion(context))) {
+                    return true;
+                }
+            } catch (IOException e) {
+                LogUtils.w(LOG_TAG, e, "Unable to read the notification map snapshot");
+            } catch (RuntimeException e) {
+                LogUtils.w(LOG_TAG, e, "Unable to read the notification map snapshot");
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+            clear();
+            return false;
+        }
+
+        /**
+         * Schedules a write of the snapshot. The saves made until the write starts are written
+         * together, with the map as it is then.
+         */
+        private void scheduleSnapshot(Context context) {
+            if (!mSnapshotScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            final Context appContext = context.getApplicationContext();
+            // A serial executor, so that writes don't share the temporary file.
+            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSnapshotScheduled.set(false);
+                    writeSnapshot(appContext);
+                }
+            });
+        }
+
+        private void writeSnapshot(Context context) {
+            final File file = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+            final File tempFile = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tempFile)));
+                writeSnapshot(out, getSnapshotAppVersion(context));
+                out.close();
+                out = null;
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tempFile);
+                }
+            } catch (IOException e) {
+                LogUtils.w(LOG_TAG, e, "Unable to write the notification map snapshot");
+                Closeables.closeQuietly(out);
+                tempFile.delete();
+                file.delete();
+            }
+        }
+
+        /**
+         * Writes the entries of the map. The folders hold resource ids, which only the version
+         * of the app that wrote them can use, so the snapshot records that version.
+         */
+        @VisibleForTesting
+        void writeSnapshot(DataOutputStream out, String appVersion) throws IOException {
+            final List<Entry> entries = new ArrayList<Entry>(mMap.values());
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeUTF(appVersion);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeInt(entry.unread);
+                out.writeInt(entry.unseen);
+                writeKey(out, entry.key);
+            }
+        }
+
+        /**
+         * Reads the entries written by {@link #writeSnapshot(DataOutputStream, String)} into the
+         * map.
+         *
+         * @return false if the snapshot is of another format or version of the app
+         */
+        @VisibleForTesting
+        boolean readSnapshot(DataInputStream in, String appVersion) throws IOException {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION
+                    || !appVersion.equals(in.readUTF())) {
+                return false;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final int unread = in.readInt();
+                final int unseen = in.readInt();
+                put(readKey(in), unread, unseen);
+            }
+            return true;
+        }
+
+        private static String getSnapshotAppVersion(Context context) {
+            final String versionCode = Utils.getVersionCode(context);
+            return versionCode != null ? versionCode : "";
+        }
+
+        /**
+         * Writes the account of the key as {@link Account#serialize} does, and the fields of its
+         * folder one by one.
+         */
+        private static void writeKey(DataOutputStream out, NotificationKey key)
+                throws IOException {
+            writeString(out, key.account.serialize());
+            final Folder folder = key.folder;
+            out.writeInt(folder.id);
+            writeString(out, folder.persistentId);
+            writeUri(out, folder.folderUri.fullUri);
+            writeString(out, folder.name);
+            out.writeInt(folder.capabilities);
+            out.writeBoolean(folder.hasChildren);
+            out.writeInt(folder.syncWindow);
+            writeUri(out, folder.conversationListUri);
+            writeUri(out, folder.childFoldersListUri);
+            out.writeInt(folder.unseenCount);
+            out.writeInt(folder.unreadCount);
+            out.writeInt(folder.totalCount);
+            writeUri(out, folder.refreshUri);
+            out.writeInt(folder.syncStatus);
+            out.writeInt(folder.lastSyncResult);
+            out.writeInt(folder.type);
+            out.writeInt(folder.iconResId);
+            writeString(out, folder.bgColor);
+            writeString(out, folder.fgColor);
+            writeUri(out, folder.loadMoreUri);
+            writeString(out, folder.hierarchicalDesc);
+            writeUri(out, folder.parent);
+            out.writeLong(folder.lastMessageTimestamp);
+            writeString(out, folder.unreadSenders);
+        }
+
+        private static NotificationKey readKey(DataInputStream in) throws IOException {
+            final String serializedAccount = readString(in);
+            final Account account =
+                    serializedAccount != null ? Account.newInstance(serializedAccount) : null;
+            if (account == null) {
+                throw new IOException("Unable to read the account of a notification");
+            }
+            // The arguments are evaluated, and so read, in order.
+            final Folder folder = new Folder.Builder()
+                    .setId(in.readInt())
+                    .setPersistentId(readString(in))
+                    .setUri(readUri(in))
+                    .setName(readString(in))
+                    .setCapabilities(in.readInt())
+                    .setHasChildren(in.readBoolean())
+                    .setSyncWindow(in.readInt())
+                    .setConversationListUri(readUri(in))
+                    .setChildFoldersListUri(readUri(in))
+                    .setUnseenCount(in.readInt())
+                    .setUnreadCount(in.readInt())
+                    .setTotalCount(in.readInt())
+                    .setRefreshUri(readUri(in))
+                    .setSyncStatus(in.readInt())
+                    .setLastSyncResult(in.readInt())
+                    .setType(in.readInt())
+                    .setIconResId(in.readInt())
+                    .setBgColor(readString(in))
+                    .setFgColor(readString(in))
+                    .setLoadMoreUri(readUri(in))
+                    .setHierarchicalDesc(readString(in))
+                    .setParent(readUri(in))
+                    .setLastMessageTimestamp(in.readLong())
+                    .setUnreadSenders(readString(in))
+                    .build();
+            return new NotificationKey(account, folder);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                // Unlike writeUTF(), not limited to 64KB, which a serialized account may exceed.
+                final byte[] bytes = value.getBytes(Charsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, Charsets.UTF_8);
+        }
+
+        private static void writeUri(DataOutputStream out, Uri uri) throws IOException {
+            writeString(out, uri != null ? uri.toString() : null);
+        }
+
+        private static Uri readUri(DataInputStream in) throws IOException {
+            final String uri = readString(in);
+            return uri != null ? Uri.parse(uri) : null;
+        }
+
+        /**
+         * Replaces the accounts and folders of the snapshot with their current state, in one
+         * query for the accounts and one for the folders of each account. Entries whose account
+         * or folder no longer exists are dropped, as when the map is rebuilt from the
+         * preferences. Entries that are put or removed meanwhile are left as they are.
+         *
+         * @return true if the map changed
+         */
+        @VisibleForTesting
+        boolean refreshKeys(ContentResolver resolver, Uri accountsUri) {
+            final Cursor accountCursor = resolver.query(accountsUri,
+                    UIProvider.ACCOUNTS_PROJECTION, null, null, null);
+            if (accountCursor == null) {
+                LogUtils.w(LOG_TAG, "Unable to refresh the accounts of the notification map");
+                return false;
+            }
+            final Map<Uri, Account> accounts = new HashMap<Uri, Account>();
+            try {
+                while (accountCursor.moveToNext()) {
+                    final Account account = Account.builder().buildFrom(accountCursor);
+                    accounts.put(account.uri, account);
+                }
+            } finally {
+                accountCursor.close();
+            }
+
+            final Map<Uri, List<Entry>> entriesByAccount = new HashMap<Uri, List<Entry>>();
+            for (Entry entry : mMap.values()) {
+                List<Entry> entries = entriesByAccount.get(entry.key.account.uri);
+                if (entries == null) {
+                    entries = new ArrayList<Entry>();
+                    entriesByAccount.put(entry.key.account.uri, entries);
+                }
+                entries.add(entry);
+            }
+
+            int refreshed = 0;
+            int dropped = 0;
+            for (Map.Entry<Uri, List<Entry>> accountEntries : entriesByAccount.entrySet()) {
+                final Account account = accounts.get(accountEntries.getKey());
+                final Map<Uri, Folder> folders =
+                        account != null ? queryFolders(resolver, account.fullFolderListUri) : null;
+                for (Entry entry : accountEntries.getValue()) {
+                    Folder folder = null;
+                    if (account != null) {
+                        final Uri folderUri = entry.key.folder.folderUri.fullUri;
+                        folder = folders != null ? folders.get(folderUri) : null;
+                        if (folder == null) {
+                            // The folder may not be listed, or the list unavailable.
+                            folder = queryFolder(resolver, folderUri, entry.key.folder);
+                        }
+                    }
+                    // Only the entry that was read is replaced or removed.
+                    if (account != null && folder != null) {
+                        if (mMap.replace(entry.key, entry, new Entry(
+                                new NotificationKey(account, folder), entry.unread,
+                                entry.unseen))) {
+                            refreshed++;
+                        }
+                    } else if (mMap.remove(entry.key, entry)) {
+                        dropped++;
+                    }
+                }
+            }
+            LogUtils.d(LOG_TAG, "Refreshed %d entries of the notification map, dropped %d",
+                    refreshed, dropped);
+            return refreshed > 0 || dropped > 0;
+        }
+
+        /**
+         * Returns the folders of a folder list by their uri, or null if the list is unavailable.
+         */
+        private static Map<Uri, Folder> queryFolders(ContentResolver resolver, Uri folderListUri) {
+            if (folderListUri == null || Uri.EMPTY.equals(folderListUri)) {
+                return null;
+            }
+            final Cursor folderCursor = resolver.query(folderListUri,
+                    UIProvider.FOLDERS_PROJECTION, null, null, null);
+            if (folderCursor == null) {
+                return null;
+            }
+            final Map<Uri, Folder> folders = new HashMap<Uri, Folder>();
+            try {
+                while (folderCursor.moveToNext()) {
+                    final Folder folder = new Folder(folderCursor);
+                    folders.put(folder.folderUri.fullUri, folder);
+                }
+            } finally {
+                folderCursor.close();
+            }
+            return folders;
+        }
+
+        /**
+         * Returns the folder with the uri, null if it no longer exists, or the given folder if
+         * its provider is unavailable.
+         */
+        private static Folder queryFolder(ContentResolver resolver, Uri folderUri,
+                Folder snapshotFolder) {
+            final Cursor folderCursor = resolver.query(folderUri,
+                    UIProvider.FOLDERS_PROJECTION, null, null, null);
+            if (folderCursor == null) {
+                return snapshotFolder;
+            }
+            try {
+                return folderCursor.moveToFirst() ? new Folder(folderCursor) : null;
+            } finally {
+                folderCursor.close();
+            }
         }
     }
 
@@ -381,6 +795,8 @@ public class NotificationUtils {
             NotificationManagerCompat nm = NotificationManagerCompat.from(context);
             nm.cancelAll();
         }
+        // The notifications are rebuilt, e.g. for a new locale.
+        sNotifiedConversations.clear();
         // Re-validate the notifications.
         final NotificationMap notificationMap = getNotificationMap(context);
         final Set<NotificationKey> keys = notificationMap.keySet();
@@ -406,8 +822,7 @@ public class NotificationUtils {
             //final NotificationAction undoableAction =
                     //NotificationActionUtils.sUndoNotifications.get(notificationId);
             //if (undoableAction == null) {
-                validateNotifications(context, folder, notification.account, true,
-                        false, notification, contactFetcher);
+                sScheduler.requestResend(context, notification, true, false, contactFetcher);
             //} else {
                 // Create an undo notification
                 //NotificationActionUtils.createUndoNotification(context, undoableAction);
@@ -469,7 +884,9 @@ public class NotificationUtils {
                 nm.cancel(notificationId);
                 notificationMap.remove(notification);
                 NotificationActionUtils.sUndoNotifications.remove(notificationId);
-                NotificationActionUtils.sNotificationTimestamps.delete(notificationId);
+                synchronized (NotificationActionUtils.sNotificationTimestamps) {
+                    NotificationActionUtils.sNotificationTimestamps.delete(notificationId);
+                }
 
                 cancelConversationNotifications(notification, nm);
             }
@@ -543,13 +960,14 @@ public class NotificationUtils {
         }
 
         if (NotificationActionUtils.sUndoNotifications.get(notificationId) == null) {
-            validateNotifications(context, folder, account, getAttention, ignoreUnobtrusiveSetting,
-                    key, contactFetcher);
+            sScheduler.requestValidation(context, key, unreadCount, unseenCount, getAttention,
+                    ignoreUnobtrusiveSetting, contactFetcher);
         }
     }
 
     /**
-     * Validate the notifications notification.
+     * Validate the notifications notification. Runs on the pool of {@link #sScheduler}, which
+     * never validates the same folder on two threads at once.
      */
     private static void validateNotifications(Context context, final Folder folder,
             final Account account, boolean getAttention, boolean ignoreUnobtrusiveSetting,
@@ -574,19 +992,45 @@ public class NotificationUtils {
         final Integer unseen = notificationMap.getUnseen(key);
         int unseenCount = unseen != null ? unseen.intValue() : 0;
 
+        final int notificationId =
+                getNotificationId(account.getAccountManagerAccount(), folder);
+
+        NotificationKey notificationKey = new NotificationKey(account, folder);
+
+        // The unseen count is capped at the number of unread conversations, and a 0 unseen count
+        // is never replaced by the count of the query, so there is nothing to show.
+        if (unseenCount == 0 || unreadCount == 0) {
+            cancelFolderNotification(nm, account, folder, notificationId, notificationKey);
+            return;
+        }
+
+        final boolean isInbox = folder.folderUri.equals(account.settings.defaultInbox);
+        final FolderPreferences folderPreferences =
+                new FolderPreferences(context, account.getAccountId(), folder, isInbox);
+
+        if (isInbox) {
+            final AccountPreferences accountPreferences =
+                    new AccountPreferences(context, account.getAccountId());
+            moveNotificationSetting(accountPreferences, folderPreferences);
+        }
+
+        if (!folderPreferences.areNotificationsEnabled()) {
+            LogUtils.i(LOG_TAG, "Notifications are disabled for this folder; not notifying");
+            // Don't notify
+            return;
+        }
+
+        final long oldWhen;
+        synchronized (NotificationActionUtils.sNotificationTimestamps) {
+            oldWhen = NotificationActionUtils.sNotificationTimestamps.get(notificationId);
+        }
+        final int settingsHash = getSettingsHash(context, account, folderPreferences);
+
+        final long buildStart = SystemClock.elapsedRealtime();
         Cursor cursor = null;
 
         try {
-            final Uri.Builder uriBuilder = folder.conversationListUri.buildUpon();
-            uriBuilder.appendQueryParameter(
-                    UIProvider.SEEN_QUERY_PARAMETER, Boolean.FALSE.toString());
-            // Do not allow this quick check to disrupt any active network-enabled conversation
-            // cursor.
-            uriBuilder.appendQueryParameter(
-                    UIProvider.ConversationListQueryParameters.USE_NETWORK,
-                    Boolean.FALSE.toString());
-            cursor = context.getContentResolver().query(uriBuilder.build(),
-                    UIProvider.CONVERSATION_PROJECTION, null, null, null);
+            cursor = queryUnseenConversations(context, folder, UIProvider.CONVERSATION_PROJECTION);
             if (cursor == null) {
                 // This folder doesn't exist.
                 LogUtils.i(LOG_TAG,
@@ -594,35 +1038,24 @@ public class NotificationUtils {
                 clearFolderNotification(context, account, folder, false);
                 return;
             }
-            final int cursorUnseenCount = cursor.getCount();
-
-            // Make sure the unseen count matches the number of items in the cursor.  But, we don't
-            // want to overwrite a 0 unseen count that was specified in the intent
-            if (unseenCount != 0 && unseenCount != cursorUnseenCount) {
-                LogUtils.i(LOG_TAG,
-                        "Unseen count doesn't match cursor count.  unseen: %d cursor count: %d",
-                        unseenCount, cursorUnseenCount);
-                unseenCount = cursorUnseenCount;
-            }
+            unseenCount = getNotifiedUnseenCount(unseenCount, unreadCount, cursor.getCount());
 
-            // For the purpose of the notifications, the unseen count should be capped at the num of
-            // unread conversations.
-            if (unseenCount > unreadCount) {
-                unseenCount = unreadCount;
+            if (unseenCount == 0) {
+                cancelFolderNotification(nm, account, folder, notificationId, notificationKey);
+                return;
             }
 
-            final int notificationId =
-                    getNotificationId(account.getAccountManagerAccount(), folder);
-
-            NotificationKey notificationKey = new NotificationKey(account, folder);
+            final NotifiedConversations notified = new NotifiedConversations(unreadCount,
+                    unseenCount, settingsHash, getConversationStates(cursor));
+            cursor.moveToPosition(-1);
 
-            if (unseenCount == 0) {
-                LogUtils.i(LOG_TAG, "validateNotifications - cancelling account %s / folder %s",
+            // If the unseen conversations are the ones already shown, the query above is all that
+            // is needed. Notifications restored after an undo are always rebuilt.
+            final NotifiedConversations previous = sNotifiedConversations.get(notificationKey);
+            if (previous != null && oldWhen == 0 && previous.isUnchanged(notified)) {
+                LogUtils.i(LOG_TAG, "validateNotifications - unchanged for account %s / folder %s",
                         LogUtils.sanitizeName(LOG_TAG, account.getEmailAddress()),
                         LogUtils.sanitizeName(LOG_TAG, folder.persistentId));
-                nm.cancel(notificationId);
-                cancelConversationNotifications(notificationKey, nm);
-
                 return;
             }
 
@@ -632,8 +1065,7 @@ public class NotificationUtils {
             NotificationCompat.Builder notification = new NotificationCompat.Builder(context);
             NotificationCompat.WearableExtender wearableExtender =
                     new NotificationCompat.WearableExtender();
-            Map<Integer, NotificationBuilders> msgNotifications =
-                    new ArrayMap<Integer, NotificationBuilders>();
+            Map<Integer, Notification> msgNotifications = new ArrayMap<Integer, Notification>();
 
             if (com.android.mail.utils.Utils.isRunningLOrLater()) {
                 notification.setColor(
@@ -651,8 +1083,6 @@ public class NotificationUtils {
 
             final long when;
 
-            final long oldWhen =
-                    NotificationActionUtils.sNotificationTimestamps.get(notificationId);
             if (oldWhen != 0) {
                 when = oldWhen;
             } else {
@@ -662,7 +1092,9 @@ public class NotificationUtils {
             notification.setWhen(when);
 
             // The timestamp is now stored in the notification, so we can remove it from here
-            NotificationActionUtils.sNotificationTimestamps.delete(notificationId);
+            synchronized (NotificationActionUtils.sNotificationTimestamps) {
+                NotificationActionUtils.sNotificationTimestamps.delete(notificationId);
+            }
 
             // Dispatch a CLEAR_NEW_MAIL_NOTIFICATIONS intent if the user taps the "X" next to a
             // notification.  Also this intent gets fired when the user taps on a notification as
@@ -680,22 +1112,6 @@ public class NotificationUtils {
 
             boolean eventInfoConfigured = false;
 
-            final boolean isInbox = folder.folderUri.equals(account.settings.defaultInbox);
-            final FolderPreferences folderPreferences =
-                    new FolderPreferences(context, account.getAccountId(), folder, isInbox);
-
-            if (isInbox) {
-                final AccountPreferences accountPreferences =
-                        new AccountPreferences(context, account.getAccountId());
-                moveNotificationSetting(accountPreferences, folderPreferences);
-            }
-
-            if (!folderPreferences.areNotificationsEnabled()) {
-                LogUtils.i(LOG_TAG, "Notifications are disabled for this folder; not notifying");
-                // Don't notify
-                return;
-            }
-
             if (unreadCount > 0) {
                 // How can I order this properly?
                 if (cursor.moveToNext()) {
@@ -809,6 +1225,13 @@ public class NotificationUtils {
                 notification.setPublicVersion(publicNotification);
 
                 nm.notify(notificationId, notification.build());
+                final long firstMapLoadTime = sFirstMapLoadTime;
+                if (firstMapLoadTime >= 0) {
+                    sFirstMapLoadTime = -1;
+                    LogUtils.i(LOG_TAG,
+                            "First notification posted %dms after loading the notification map",
+                            SystemClock.elapsedRealtime() - firstMapLoadTime);
+                }
 
                 if (prevConversationNotifications != null) {
                     Set<Integer> currentNotificationIds = msgNotifications.keySet();
@@ -821,18 +1244,21 @@ public class NotificationUtils {
                     }
                 }
 
-                for (Map.Entry<Integer, NotificationBuilders> entry : msgNotifications.entrySet()) {
-                    NotificationBuilders builders = entry.getValue();
-                    builders.notifBuilder.extend(builders.wearableNotifBuilder);
-                    nm.notify(entry.getKey(), builders.notifBuilder.build());
+                for (Map.Entry<Integer, Notification> entry : msgNotifications.entrySet()) {
+                    nm.notify(entry.getKey(), entry.getValue());
                     LogUtils.d(LOG_TAG, "notifying conversation notification %s", entry.getKey());
                 }
 
                 Set<Integer> conversationNotificationIds = new HashSet<Integer>();
                 conversationNotificationIds.addAll(msgNotifications.keySet());
                 sConversationNotificationMap.put(notificationKey, conversationNotificationIds);
+                sNotifiedConversations.put(notificationKey, notified);
+                LogUtils.i(LOG_TAG, "Posted %d notifications for %d unseen conversations in %dms",
+                        msgNotifications.size() + 1, unseenCount,
+                        SystemClock.elapsedRealtime() - buildStart);
             } else {
                 LogUtils.i(LOG_TAG, "event info not configured - not notifying");
+                sNotifiedConversations.remove(notificationKey);
             }
         } finally {
             if (cursor != null) {
@@ -841,6 +1267,86 @@ public class NotificationUtils {
         }
     }
 
+    private static void cancelFolderNotification(NotificationManagerCompat nm,
+            Account account, Folder folder, int notificationId, NotificationKey notificationKey) {
+        LogUtils.i(LOG_TAG, "validateNotifications - cancelling account %s / folder %s",
+                LogUtils.sanitizeName(LOG_TAG, account.getEmailAddress()),
+                LogUtils.sanitizeName(LOG_TAG, folder.persistentId));
+        nm.cancel(notificationId);
+        cancelConversationNotifications(notificationKey, nm);
+    }
+
+    private static Cursor queryUnseenConversations(Context context, Folder folder,
+            String[] projection) {
+        final Uri.Builder uriBuilder = folder.conversationListUri.buildUpon();
+        uriBuilder.appendQueryParameter(
+                UIProvider.SEEN_QUERY_PARAMETER, Boolean.FALSE.toString());
+        // Do not allow this quick check to disrupt any active network-enabled conversation
+        // cursor.
+        uriBuilder.appendQueryParameter(
+                UIProvider.ConversationListQueryParameters.USE_NETWORK,
+                Boolean.FALSE.toString());
+        return context.getContentResolver().query(uriBuilder.build(), projection, null, null,
+                null);
+    }
+
+    /**
+     * Returns the unseen count to show, given the counts of the notification map and the number
+     * of unseen conversations in the folder.
+     */
+    private static int getNotifiedUnseenCount(int unseenCount, int unreadCount,
+            int cursorUnseenCount) {
+        // Make sure the unseen count matches the number of items in the cursor.  But, we don't
+        // want to overwrite a 0 unseen count that was specified in the intent
+        if (unseenCount != 0 && unseenCount != cursorUnseenCount) {
+            LogUtils.i(LOG_TAG,
+                    "Unseen count doesn't match cursor count.  unseen: %d cursor count: %d",
+                    unseenCount, cursorUnseenCount);
+            unseenCount = cursorUnseenCount;
+        }
+
+        // For the purpose of the notifications, the unseen count should be capped at the num of
+        // unread conversations.
+        return Math.min(unseenCount, unreadCount);
+    }
+
+    /**
+     * Returns the id, date received, read state and a hash of the subject, snippet and senders
+     * of each conversation of a {@link UIProvider#CONVERSATION_PROJECTION} cursor, in order.
+     */
+    @VisibleForTesting
+    static long[] getConversationStates(Cursor cursor) {
+        final long[] states = new long[cursor.getCount() * STATE_SIZE];
+        int i = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext() && i < states.length) {
+            states[i++] = cursor.getLong(UIProvider.CONVERSATION_ID_COLUMN);
+            states[i++] = cursor.getLong(UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN);
+            states[i++] = cursor.getInt(UIProvider.CONVERSATION_READ_COLUMN);
+            states[i++] = ((long) Objects.hashCode(
+                    cursor.getString(UIProvider.CONVERSATION_SUBJECT_COLUMN),
+                    cursor.getString(UIProvider.CONVERSATION_SNIPPET_COLUMN)) << 32)
+                    | (Arrays.hashCode(cursor.getBlob(UIProvider.CONVERSATION_INFO_COLUMN))
+                            & 0xffffffffL);
+        }
+        return states;
+    }
+
+    /**
+     * Returns a hash of the settings that a folder notification is posted with, so that it is
+     * rebuilt when they change.
+     */
+    private static int getSettingsHash(Context context, Account account,
+            FolderPreferences folderPreferences) {
+        final AccountPreferences accountPreferences =
+                new AccountPreferences(context, account.getAccountId());
+        return Objects.hashCode(account.getDisplayName(),
+                accountPreferences.areNotificationsEnabled(),
+                folderPreferences.isNotificationVibrateEnabled(),
+                folderPreferences.getNotificationRingtoneUri(),
+                folderPreferences.isEveryMessageNotificationEnabled());
+    }
+
     /**
      * Build and return a redacted form of a notification using the given information. This redacted
      * form is shown above the lock screen and is devoid of sensitive information.
@@ -948,31 +1454,35 @@ public class NotificationUtils {
     }
 
     private static Bitmap getIcon(final Context context, final int resId) {
-        final Bitmap cachedIcon = sNotificationIcons.get(resId);
-        if (cachedIcon != null) {
-            return cachedIcon;
-        }
+        synchronized (sNotificationIcons) {
+            final Bitmap cachedIcon = sNotificationIcons.get(resId);
+            if (cachedIcon != null) {
+                return cachedIcon;
+            }
 
-        final Bitmap icon = BitmapFactory.decodeResource(context.getResources(), resId);
-        sNotificationIcons.put(resId, icon);
+            final Bitmap icon = BitmapFactory.decodeResource(context.getResources(), resId);
+            sNotificationIcons.put(resId, icon);
 
-        return icon;
+            return icon;
+        }
     }
 
     private static Bitmap getDefaultWearableBg(Context context) {
-        Bitmap bg = sDefaultWearableBg.get();
-        if (bg == null) {
-            bg = BitmapFactory.decodeResource(context.getResources(), R.drawable.bg_email);
-            sDefaultWearableBg = new WeakReference<>(bg);
+        synchronized (sNotificationIcons) {
+            Bitmap bg = sDefaultWearableBg.get();
+            if (bg == null) {
+                bg = BitmapFactory.decodeResource(context.getResources(), R.drawable.bg_email);
+                sDefaultWearableBg = new WeakReference<>(bg);
+            }
+            return bg;
         }
-        return bg;
     }
 
     private static void configureLatestEventInfoFromConversation(final Context context,
             final Account account, final FolderPreferences folderPreferences,
             final NotificationCompat.Builder notificationBuilder,
             final NotificationCompat.WearableExtender wearableExtender,
-            final Map<Integer, NotificationBuilders> msgNotifications,
+            final Map<Integer, Notification> msgNotifications,
             final int summaryNotificationId, final Cursor conversationCursor,
             final PendingIntent clickIntent, final Intent notificationIntent,
             final int unreadCount, final int unseenCount,
@@ -1022,166 +1532,40 @@ public class NotificationUtils {
                 final HashSet<String> senderAddressesSet = new HashSet<String>();
                 notificationBuilder.setGroup(notificationGroupKey).setGroupSummary(true);
 
-                ConfigResult firstResult = null;
-                int numDigestItems = 0;
+                // The contact photos of all of the conversations are loaded first, at once.
+                final List<Conversation> conversations = new ArrayList<Conversation>();
+                final List<String> senders = new ArrayList<String>();
                 do {
                     final Conversation conversation = new Conversation(conversationCursor);
-
                     if (!conversation.read) {
-                        boolean multipleUnreadThread = false;
-                        // TODO(cwren) extract this pattern into a helper
-
-                        Cursor cursor = null;
-                        MessageCursor messageCursor = null;
-                        try {
-                            final Uri.Builder uriBuilder = conversation.messageListUri.buildUpon();
-                            uriBuilder.appendQueryParameter(
-                                    UIProvider.LABEL_QUERY_PARAMETER, notificationLabelName);
-                            cursor = context.getContentResolver().query(uriBuilder.build(),
-                                    UIProvider.MESSAGE_PROJECTION, null, null, null);
-                            messageCursor = new MessageCursor(cursor);
-
-                            String from = "";
-                            String fromAddress = "";
-                            if (messageCursor.moveToPosition(messageCursor.getCount() - 1)) {
-                                final Message message = messageCursor.getMessage();
-                                fromAddress = message.getFrom();
-                                if (fromAddress == null) {
-                                    fromAddress = "";
-                                }
-                                from = getDisplayableSender(fromAddress);
-                                addEmailAddressToSet(fromAddress, senderAddressesSet);
-                                messageForNotification = message;
-                            }
-                            while (messageCursor.moveToPosition(messageCursor.getPosition() - 1)) {
-                                final Message message = messageCursor.getMessage();
-                                if (!message.read &&
-                                        !fromAddress.contentEquals(message.getFrom())) {
-                                    multipleUnreadThread = true;
-                                    addEmailAddressToSet(message.getFrom(), senderAddressesSet);
-                                }
-                            }
-                            final SpannableStringBuilder sendersBuilder;
-                            if (multipleUnreadThread) {
-                                final int sendersLength =
-                                        res.getInteger(R.integer.swipe_senders_length);
+                        conversation.position = conversationCursor.getPosition();
+                        conversations.add(conversation);
+                        addLastSenderAddress(conversation, senders);
+                    }
+                } while (conversations.size() <= maxNumDigestItems
+                        && conversationCursor.moveToNext());
+                if (!senders.isEmpty()) {
+                    NotificationIconLoader.prefetch(context,
+                            account.getAccountManagerAccount().name, senders, contactFetcher);
+                }
 
-                                sendersBuilder = getStyledSenders(context, conversationCursor,
-                                        sendersLength, account);
-                            } else {
-                                sendersBuilder =
-                                        new SpannableStringBuilder(getWrappedFromString(from));
-                            }
-                            final CharSequence digestLine = getSingleMessageInboxLine(context,
-                                    sendersBuilder.toString(),
-                                    ConversationItemView.filterTag(context, conversation.subject),
-                                    conversation.getSnippet());
-                            digest.addLine(digestLine);
-                            numDigestItems++;
-
-                            // Adding conversation notification for Wear.
-                            NotificationCompat.Builder conversationNotif =
-                                    new NotificationCompat.Builder(context);
-                            conversationNotif.setCategory(NotificationCompat.CATEGORY_EMAIL);
-
-                            conversationNotif.setSmallIcon(
-                                    R.drawable.ic_notification_multiple_mail_24dp);
-
-                            if (com.android.mail.utils.Utils.isRunningLOrLater()) {
-                                conversationNotif.setColor(
-                                        context.getResources()
-                                                .getColor(R.color.notification_icon_color));
-                            }
-                            conversationNotif.setContentText(digestLine);
-                            Intent conversationNotificationIntent = createViewConversationIntent(
-                                    context, account, folder, conversationCursor);
-                            PendingIntent conversationClickIntent = createClickPendingIntent(
-                                    context, conversationNotificationIntent);
-                            conversationNotif.setContentIntent(conversationClickIntent);
-                            conversationNotif.setAutoCancel(true);
-
-                            // Conversations are sorted in descending order, but notification sort
-                            // key is in ascending order.  Invert the order key to get the right
-                            // order.  Left pad 19 zeros because it's a long.
-                            String groupSortKey = String.format("%019d",
-                                    (Long.MAX_VALUE - conversation.orderKey));
-                            conversationNotif.setGroup(notificationGroupKey);
-                            conversationNotif.setSortKey(groupSortKey);
-                            conversationNotif.setWhen(conversation.dateMs);
-
-                            int conversationNotificationId = getNotificationId(
-                                    summaryNotificationId, conversation.hashCode());
-
-                            // Add "Mark As Read" Action to each Email in Notification
-                            final Intent markReadNotificationIntent =
-                                    new Intent(MailIntentService.ACTION_MARK_MESSAGE_AS_READ);
-                            markReadNotificationIntent.setPackage(context.getPackageName());
-
-                            markReadNotificationIntent.setData(Utils.appendVersionQueryParameter(context,
-                                    folder.folderUri.fullUri));
-                            markReadNotificationIntent.putExtra(Utils.EXTRA_ACCOUNT, account);
-                            markReadNotificationIntent.putExtra(Utils.EXTRA_FOLDER, folder);
-                            Uri conversationUri = conversation.uri;
-                            markReadNotificationIntent.putExtra(Utils.EXTRA_CONVERSATION, conversationUri);
-
-                            conversationNotif.addAction(R.drawable.ic_archive_wht_24dp, "Mark Read", PendingIntent.getService(
-                                    context, conversationNotificationId, markReadNotificationIntent, 0));
-
-                            // Add "Delete" Action to each Email in Notification
-                            final Intent deleteIntent = new Intent(NotificationActionIntentService.ACTION_DESTRUCT);
-                            deleteIntent.setPackage(context.getPackageName());
-                            deleteIntent.setData(conversation.uri);
-                            final PendingIntent deletePendingIntent = PendingIntent.getService(context,
-                                    conversationNotificationId, deleteIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-
-                            conversationNotif.setDeleteIntent(deletePendingIntent);
-
-                            // Add "Mark as Seen" Action to each Email in Notification
-                            final Intent invisibleNotificationIntent =
-                                    new Intent(MailIntentService.ACTION_MARK_MESSAGE_AS_SEEN);
-                            invisibleNotificationIntent.setPackage(context.getPackageName());
-
-                            invisibleNotificationIntent.setData(Utils.appendVersionQueryParameter(context,
-                                    folder.folderUri.fullUri));
-                            invisibleNotificationIntent.putExtra(Utils.EXTRA_ACCOUNT, account);
-                            invisibleNotificationIntent.putExtra(Utils.EXTRA_FOLDER, folder);
-                            invisibleNotificationIntent.putExtra(Utils.EXTRA_CONVERSATION, conversationUri);
-
-                            conversationNotif.addAction(R.drawable.ic_cancel_wht_24dp, "Mark Seen", PendingIntent.getService(
-                                    context, conversationNotificationId, invisibleNotificationIntent, 0));
-
-                            // Add email ID to notification (when building a multi-email notification)
-                            Bundle bundle = new Bundle();
-                            bundle.putInt(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_ID, conversationCursor.getInt(conversationCursor.getColumnIndex("_id")));
-                            bundle.putString(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_MESSAGE, getQuotedTextForReply(context, messageForNotification));
-                            LogUtils.i(LOG_TAG, "Notification email ID (multiple): " + bundle.getInt(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_ID));
-                            conversationNotif.setExtras(bundle);
-
-                            final NotificationCompat.WearableExtender conversationWearExtender =
-                                    new NotificationCompat.WearableExtender();
-                            final ConfigResult result =
-                                    configureNotifForOneConversation(context, account,
-                                    folderPreferences, conversationNotif, conversationWearExtender,
-                                    conversationCursor, notificationIntent, folder, when, res,
-                                    isInbox, notificationLabelName, conversationNotificationId,
-                                    contactFetcher);
-                            msgNotifications.put(conversationNotificationId,
-                                    NotificationBuilders.of(conversationNotif,
-                                            conversationWearExtender));
-
-                            if (firstResult == null) {
-                                firstResult = result;
-                            }
-                        } finally {
-                            if (messageCursor != null) {
-                                messageCursor.close();
-                            }
-                            if (cursor != null) {
-                                cursor.close();
-                            }
-                        }
+                ConfigResult firstResult = null;
+                for (Conversation conversation : conversations) {
+                    conversationCursor.moveToPosition(conversation.position);
+                    final DigestItem item = createDigestItem(context, account,
+                            folderPreferences, conversation, conversationCursor,
+                            notificationIntent, folder, when, res, isInbox,
+                            notificationLabelName, notificationGroupKey, summaryNotificationId,
+                            contactFetcher);
+
+                    digest.addLine(item.digestLine);
+                    senderAddressesSet.addAll(item.senderAddresses);
+                    msgNotifications.put(item.notificationId, item.notification);
+
+                    if (firstResult == null) {
+                        firstResult = item.result;
                     }
-                } while (numDigestItems <= maxNumDigestItems && conversationCursor.moveToNext());
+                }
 
                 // Tag main digest notification with the senders
                 tagNotificationsWithPeople(notificationBuilder, senderAddressesSet);
@@ -1205,32 +1589,192 @@ public class NotificationUtils {
             seekToLatestUnreadConversation(conversationCursor);
 
             Conversation conversation = new Conversation(conversationCursor);
-            Cursor cursor = null;
-            MessageCursor messageCursor = null;
+            // The messages are queried once, for both the reply text and the notification.
+            final MessageCursor messageCursor =
+                    queryNotifiedMessages(context, conversation, folder);
+            final ConfigResult result;
             try {
-                final Uri.Builder uriBuilder = conversation.messageListUri.buildUpon();
-                uriBuilder.appendQueryParameter(
-                        UIProvider.LABEL_QUERY_PARAMETER, notificationLabelName);
-                cursor = context.getContentResolver().query(uriBuilder.build(),
-                        UIProvider.MESSAGE_PROJECTION, null, null, null);
-                messageCursor = new MessageCursor(cursor);
-
                 if (messageCursor.moveToPosition(messageCursor.getCount() - 1)) {
                     messageForNotification = messageCursor.getMessage();
                 }
+
+                // Add "Mark As Read" Action to Email Notification
+                int conversationNotificationId = getNotificationId(
+                        summaryNotificationId, conversation.hashCode());
+
+                final Intent markReadNotificationIntent =
+                        new Intent(MailIntentService.ACTION_MARK_MESSAGE_AS_READ);
+                markReadNotificationIntent.setPackage(context.getPackageName());
+
+                markReadNotificationIntent.setData(Utils.appendVersionQueryParameter(context,
+                        folder.folderUri.fullUri));
+                markReadNotificationIntent.putExtra(Utils.EXTRA_ACCOUNT, account);
+                markReadNotificationIntent.putExtra(Utils.EXTRA_FOLDER, folder);
+                Uri conversationUri = conversation.uri;
+                markReadNotificationIntent.putExtra(Utils.EXTRA_CONVERSATION, conversationUri);
+
+                notificationBuilder.addAction(R.drawable.ic_archive_wht_24dp, "Mark Read",
+                        PendingIntent.getService(context, conversationNotificationId,
+                                markReadNotificationIntent, 0));
+
+                // Add "Delete" Action to Email Notification
+                final Intent deleteIntent =
+                        new Intent(NotificationActionIntentService.ACTION_DESTRUCT);
+                deleteIntent.setPackage(context.getPackageName());
+                deleteIntent.setData(conversation.uri);
+                final PendingIntent deletePendingIntent = PendingIntent.getService(context,
+                        conversationNotificationId, deleteIntent,
+                        PendingIntent.FLAG_CANCEL_CURRENT);
+
+                notificationBuilder.setDeleteIntent(deletePendingIntent);
+
+                // Add "Mark as Seen" Action to each Email in Notification
+                final Intent invisibleNotificationIntent =
+                        new Intent(MailIntentService.ACTION_MARK_MESSAGE_AS_SEEN);
+                invisibleNotificationIntent.setPackage(context.getPackageName());
+
+                invisibleNotificationIntent.setData(Utils.appendVersionQueryParameter(context,
+                        folder.folderUri.fullUri));
+                invisibleNotificationIntent.putExtra(Utils.EXTRA_ACCOUNT, account);
+                invisibleNotificationIntent.putExtra(Utils.EXTRA_FOLDER, folder);
+                invisibleNotificationIntent.putExtra(Utils.EXTRA_CONVERSATION, conversationUri);
+
+                notificationBuilder.addAction(R.drawable.ic_cancel_wht_24dp, "Mark Seen",
+                        PendingIntent.getService(context, conversationNotificationId,
+                                invisibleNotificationIntent, 0));
+
+                result = configureNotifForOneConversation(context, account,
+                        folderPreferences, notificationBuilder, wearableExtender,
+                        conversationCursor, notificationIntent, folder, when, res, isInbox,
+                        notificationLabelName, summaryNotificationId, contactFetcher,
+                        messageCursor);
             } finally {
-                if (messageCursor != null) {
-                    messageCursor.close();
+                messageCursor.close();
+            }
+            notificationTicker = result.notificationTicker;
+
+            if (result.contactIconInfo != null) {
+                wearableExtender.setBackground(result.contactIconInfo.wearableBg);
+            } else {
+                wearableExtender.setBackground(getDefaultWearableBg(context));
+            }
+
+            // Add email ID to notification (when building a single email notification)
+            Bundle bundle = new Bundle();
+            bundle.putInt(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_ID, conversationCursor.getInt(conversationCursor.getColumnIndex("_id")));
+            bundle.putString(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_MESSAGE, getQuotedTextForReply(context, messageForNotification));
+            LogUtils.i(LOG_TAG, "Notification email ID (single): " + bundle.getInt(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_ID));
+            notificationBuilder.setExtras(bundle);
+        }
+
+        // Build the notification ticker
+        if (notificationLabelName != null && notificationTicker != null) {
+            // This is a per label notification, format the ticker with that information
+            notificationTicker = res.getString(R.string.label_notification_ticker,
+                    notificationLabelName, notificationTicker);
+        }
+
+        if (notificationTicker != null) {
+            // If we didn't generate a notification ticker, it will default to account name
+            notificationBuilder.setTicker(notificationTicker);
+        }
+
+        // Set the number in the notification
+        if (unreadCount > 1) {
+            notificationBuilder.setNumber(unreadCount);
+        }
+
+        notificationBuilder.setContentIntent(clickIntent);
+    }
+
+    /**
+     * Loads the messages of an unread conversation, and builds its line in the digest and its
+     * own notification for Android Wear.
+     */
+    private static DigestItem createDigestItem(final Context context, final Account account,
+            final FolderPreferences folderPreferences, final Conversation conversation,
+            final Cursor conversationCursor, final Intent notificationIntent,
+            final Folder folder, final long when, final Resources res, final boolean isInbox,
+            final String notificationLabelName, final String notificationGroupKey,
+            final int summaryNotificationId, final ContactFetcher contactFetcher) {
+        final DigestItem item = new DigestItem();
+        Message messageForNotification = null;
+        boolean multipleUnreadThread = false;
+
+        // The messages are queried once, for both the digest line and the Wear notification.
+        final MessageCursor messageCursor = queryNotifiedMessages(context, conversation, folder);
+        try {
+            String from = "";
+            String fromAddress = "";
+            if (messageCursor.moveToPosition(messageCursor.getCount() - 1)) {
+                final Message message = messageCursor.getMessage();
+                fromAddress = message.getFrom();
+                if (fromAddress == null) {
+                    fromAddress = "";
                 }
-                if (cursor != null) {
-                    cursor.close();
+                from = getDisplayableSender(fromAddress);
+                addEmailAddressToSet(fromAddress, item.senderAddresses);
+                messageForNotification = message;
+            }
+            while (messageCursor.moveToPosition(messageCursor.getPosition() - 1)) {
+                final Message message = messageCursor.getMessage();
+                if (!message.read &&
+                        !fromAddress.contentEquals(message.getFrom())) {
+                    multipleUnreadThread = true;
+                    addEmailAddressToSet(message.getFrom(), item.senderAddresses);
                 }
             }
+            final SpannableStringBuilder sendersBuilder;
+            if (multipleUnreadThread) {
+                final int sendersLength =
+                        res.getInteger(R.integer.swipe_senders_length);
+
+                sendersBuilder = getStyledSenders(context, conversationCursor,
+                        sendersLength, account);
+            } else {
+                sendersBuilder =
+                        new SpannableStringBuilder(getWrappedFromString(from));
+            }
+            final CharSequence digestLine = getSingleMessageInboxLine(context,
+                    sendersBuilder.toString(),
+                    ConversationItemView.filterTag(context, conversation.subject),
+                    conversation.getSnippet());
+            item.digestLine = digestLine;
+
+            // Adding conversation notification for Wear.
+            NotificationCompat.Builder conversationNotif =
+                    new NotificationCompat.Builder(context);
+            conversationNotif.setCategory(NotificationCompat.CATEGORY_EMAIL);
+
+            conversationNotif.setSmallIcon(
+                    R.drawable.ic_notification_multiple_mail_24dp);
+
+            if (com.android.mail.utils.Utils.isRunningLOrLater()) {
+                conversationNotif.setColor(
+                        context.getResources()
+                                .getColor(R.color.notification_icon_color));
+            }
+            conversationNotif.setContentText(digestLine);
+            Intent conversationNotificationIntent = createViewConversationIntent(
+                    context, account, folder, conversationCursor);
+            PendingIntent conversationClickIntent = createClickPendingIntent(
+                    context, conversationNotificationIntent);
+            conversationNotif.setContentIntent(conversationClickIntent);
+            conversationNotif.setAutoCancel(true);
+
+            // Conversations are sorted in descending order, but notification sort
+            // key is in ascending order.  Invert the order key to get the right
+            // order.  Left pad 19 zeros because it's a long.
+            String groupSortKey = String.format("%019d",
+                    (Long.MAX_VALUE - conversation.orderKey));
+            conversationNotif.setGroup(notificationGroupKey);
+            conversationNotif.setSortKey(groupSortKey);
+            conversationNotif.setWhen(conversation.dateMs);
 
-            // Add "Mark As Read" Action to Email Notification
             int conversationNotificationId = getNotificationId(
                     summaryNotificationId, conversation.hashCode());
 
+            // Add "Mark As Read" Action to each Email in Notification
             final Intent markReadNotificationIntent =
                     new Intent(MailIntentService.ACTION_MARK_MESSAGE_AS_READ);
             markReadNotificationIntent.setPackage(context.getPackageName());
@@ -1242,17 +1786,17 @@ public class NotificationUtils {
             Uri conversationUri = conversation.uri;
             markReadNotificationIntent.putExtra(Utils.EXTRA_CONVERSATION, conversationUri);
 
-            notificationBuilder.addAction(R.drawable.ic_archive_wht_24dp, "Mark Read", PendingIntent.getService(
+            conversationNotif.addAction(R.drawable.ic_archive_wht_24dp, "Mark Read", PendingIntent.getService(
                     context, conversationNotificationId, markReadNotificationIntent, 0));
 
-            // Add "Delete" Action to Email Notification
+            // Add "Delete" Action to each Email in Notification
             final Intent deleteIntent = new Intent(NotificationActionIntentService.ACTION_DESTRUCT);
             deleteIntent.setPackage(context.getPackageName());
             deleteIntent.setData(conversation.uri);
             final PendingIntent deletePendingIntent = PendingIntent.getService(context,
                     conversationNotificationId, deleteIntent, PendingIntent.FLAG_CANCEL_CURRENT);
 
-            notificationBuilder.setDeleteIntent(deletePendingIntent);
+            conversationNotif.setDeleteIntent(deletePendingIntent);
 
             // Add "Mark as Seen" Action to each Email in Notification
             final Intent invisibleNotificationIntent =
@@ -1265,47 +1809,43 @@ public class NotificationUtils {
             invisibleNotificationIntent.putExtra(Utils.EXTRA_FOLDER, folder);
             invisibleNotificationIntent.putExtra(Utils.EXTRA_CONVERSATION, conversationUri);
 
-            notificationBuilder.addAction(R.drawable.ic_cancel_wht_24dp, "Mark Seen", PendingIntent.getService(
+            conversationNotif.addAction(R.drawable.ic_cancel_wht_24dp, "Mark Seen", PendingIntent.getService(
                     context, conversationNotificationId, invisibleNotificationIntent, 0));
 
-            final ConfigResult result = configureNotifForOneConversation(context, account,
-                    folderPreferences, notificationBuilder, wearableExtender, conversationCursor,
-                    notificationIntent, folder, when, res, isInbox, notificationLabelName,
-                    summaryNotificationId, contactFetcher);
-            notificationTicker = result.notificationTicker;
-
-            if (result.contactIconInfo != null) {
-                wearableExtender.setBackground(result.contactIconInfo.wearableBg);
-            } else {
-                wearableExtender.setBackground(getDefaultWearableBg(context));
-            }
-
-            // Add email ID to notification (when building a single email notification)
+            // Add email ID to notification (when building a multi-email notification)
             Bundle bundle = new Bundle();
             bundle.putInt(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_ID, conversationCursor.getInt(conversationCursor.getColumnIndex("_id")));
             bundle.putString(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_MESSAGE, getQuotedTextForReply(context, messageForNotification));
-            LogUtils.i(LOG_TAG, "Notification email ID (single): " + bundle.getInt(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_ID));
-            notificationBuilder.setExtras(bundle);
-        }
-
-        // Build the notification ticker
-        if (notificationLabelName != null && notificationTicker != null) {
-            // This is a per label notification, format the ticker with that information
-            notificationTicker = res.getString(R.string.label_notification_ticker,
-                    notificationLabelName, notificationTicker);
-        }
-
-        if (notificationTicker != null) {
-            // If we didn't generate a notification ticker, it will default to account name
-            notificationBuilder.setTicker(notificationTicker);
-        }
+            LogUtils.i(LOG_TAG, "Notification email ID (multiple): " + bundle.getInt(UIProvider.UpdateNotificationExtras.EXTRA_EMAIL_ID));
+            conversationNotif.setExtras(bundle);
 
-        // Set the number in the notification
-        if (unreadCount > 1) {
-            notificationBuilder.setNumber(unreadCount);
+            final NotificationCompat.WearableExtender conversationWearExtender =
+                    new NotificationCompat.WearableExtender();
+            final ConfigResult result =
+                    configureNotifForOneConversation(context, account,
+                    folderPreferences, conversationNotif, conversationWearExtender,
+                    conversationCursor, notificationIntent, folder, when, res,
+                    isInbox, notificationLabelName, conversationNotificationId,
+                    contactFetcher, messageCursor);
+            conversationNotif.extend(conversationWearExtender);
+            item.notificationId = conversationNotificationId;
+            item.notification = conversationNotif.build();
+            item.result = result;
+        } finally {
+            messageCursor.close();
         }
+        return item;
+    }
 
-        notificationBuilder.setContentIntent(clickIntent);
+    /**
+     * Queries the messages of a conversation that are in the notified folder.
+     */
+    private static MessageCursor queryNotifiedMessages(Context context, Conversation conversation,
+            Folder folder) {
+        final Uri uri = conversation.messageListUri.buildUpon().appendQueryParameter(
+                UIProvider.LABEL_QUERY_PARAMETER, folder.persistentId).build();
+        return new MessageCursor(context.getContentResolver().query(uri,
+                UIProvider.MESSAGE_PROJECTION, null, null, null));
     }
 
     private static String getQuotedTextForReply(Context context, Message refMessage) {
@@ -1350,6 +1890,9 @@ public class NotificationUtils {
     /**
      * Configure the notification for one conversation.  When there are multiple conversations,
      * this method is used to configure bundled notification for Android Wear.
+     *
+     * @param messageCursor the messages of the conversation, from
+     *        {@link #queryNotifiedMessages}
      */
     private static ConfigResult configureNotifForOneConversation(Context context,
             Account account, FolderPreferences folderPreferences,
@@ -1357,7 +1900,7 @@ public class NotificationUtils {
             NotificationCompat.WearableExtender wearExtender, Cursor conversationCursor,
             Intent notificationIntent, Folder folder, long when, Resources res,
             boolean isInbox, String notificationLabelName, int notificationId,
-            final ContactFetcher contactFetcher) {
+            final ContactFetcher contactFetcher, final MessageCursor messageCursor) {
 
         final ConfigResult result = new ConfigResult();
 
@@ -1365,132 +1908,117 @@ public class NotificationUtils {
 
         // Set of all unique senders for unseen messages
         final HashSet<String> senderAddressesSet = new HashSet<String>();
-        Cursor cursor = null;
-        MessageCursor messageCursor = null;
         boolean multipleUnseenThread = false;
         String from = null;
-        try {
-            final Uri uri = conversation.messageListUri.buildUpon().appendQueryParameter(
-                    UIProvider.LABEL_QUERY_PARAMETER, folder.persistentId).build();
-            cursor = context.getContentResolver().query(uri, UIProvider.MESSAGE_PROJECTION,
-                    null, null, null);
-            messageCursor = new MessageCursor(cursor);
-            // Use the information from the last sender in the conversation that triggered
-            // this notification.
 
-            String fromAddress = "";
-            if (messageCursor.moveToPosition(messageCursor.getCount() - 1)) {
-                final Message message = messageCursor.getMessage();
-                fromAddress = message.getFrom();
-                if (fromAddress == null) {
-                    // No sender. Go back to default value.
-                    LogUtils.e(LOG_TAG, "No sender found for message: %d", message.getId());
-                    fromAddress = "";
-                }
-                from = getDisplayableSender(fromAddress);
-                result.contactIconInfo = getContactIcon(
-                        context, account.getAccountManagerAccount().name, from,
-                        getSenderAddress(fromAddress), folder, contactFetcher);
-                addEmailAddressToSet(fromAddress, senderAddressesSet);
-                notificationBuilder.setLargeIcon(result.contactIconInfo.icon);
+        // Use the information from the last sender in the conversation that triggered
+        // this notification.
+
+        String fromAddress = "";
+        if (messageCursor.moveToPosition(messageCursor.getCount() - 1)) {
+            final Message message = messageCursor.getMessage();
+            fromAddress = message.getFrom();
+            if (fromAddress == null) {
+                // No sender. Go back to default value.
+                LogUtils.e(LOG_TAG, "No sender found for message: %d", message.getId());
+                fromAddress = "";
             }
-
-            // Assume that the last message in this conversation is unread
-            int firstUnseenMessagePos = messageCursor.getPosition();
-            while (messageCursor.moveToPosition(messageCursor.getPosition() - 1)) {
-                final Message message = messageCursor.getMessage();
-                final boolean unseen = !message.seen;
-                if (unseen) {
-                    firstUnseenMessagePos = messageCursor.getPosition();
-                    addEmailAddressToSet(message.getFrom(), senderAddressesSet);
-                    if (!multipleUnseenThread
-                            && !fromAddress.contentEquals(message.getFrom())) {
-                        multipleUnseenThread = true;
-                    }
+            from = getDisplayableSender(fromAddress);
+            result.contactIconInfo = getContactIcon(
+                    context, account.getAccountManagerAccount().name, from,
+                    getSenderAddress(fromAddress), folder, contactFetcher);
+            addEmailAddressToSet(fromAddress, senderAddressesSet);
+            notificationBuilder.setLargeIcon(result.contactIconInfo.icon);
+        }
+
+        // Assume that the last message in this conversation is unread
+        int firstUnseenMessagePos = messageCursor.getPosition();
+        while (messageCursor.moveToPosition(messageCursor.getPosition() - 1)) {
+            final Message message = messageCursor.getMessage();
+            final boolean unseen = !message.seen;
+            if (unseen) {
+                firstUnseenMessagePos = messageCursor.getPosition();
+                addEmailAddressToSet(message.getFrom(), senderAddressesSet);
+                if (!multipleUnseenThread
+                        && !fromAddress.contentEquals(message.getFrom())) {
+                    multipleUnseenThread = true;
                 }
             }
+        }
 
-            final String subject = ConversationItemView.filterTag(context, conversation.subject);
-
-            // TODO(skennedy) Can we remove this check?
-            if (Utils.isRunningJellybeanOrLater()) {
-                // For a new-style notification
-
-                if (multipleUnseenThread) {
-                    // The title of a single conversation is the list of senders.
-                    int sendersLength = res.getInteger(R.integer.swipe_senders_length);
+        final String subject = ConversationItemView.filterTag(context, conversation.subject);
 
-                    final SpannableStringBuilder sendersBuilder = getStyledSenders(
-                            context, conversationCursor, sendersLength, account);
+        // TODO(skennedy) Can we remove this check?
+        if (Utils.isRunningJellybeanOrLater()) {
+            // For a new-style notification
 
-                    notificationBuilder.setContentTitle(sendersBuilder);
-                    // For a single new conversation, the ticker is based on the sender's name.
-                    result.notificationTicker = sendersBuilder.toString();
-                } else {
-                    from = getWrappedFromString(from);
-                    // The title of a single message the sender.
-                    notificationBuilder.setContentTitle(from);
-                    // For a single new conversation, the ticker is based on the sender's name.
-                    result.notificationTicker = from;
-                }
+            if (multipleUnseenThread) {
+                // The title of a single conversation is the list of senders.
+                int sendersLength = res.getInteger(R.integer.swipe_senders_length);
 
-                // The notification content will be the subject of the conversation.
-                notificationBuilder.setContentText(getSingleMessageLittleText(context, subject));
+                final SpannableStringBuilder sendersBuilder = getStyledSenders(
+                        context, conversationCursor, sendersLength, account);
 
-                // The notification subtext will be the subject of the conversation for inbox
-                // notifications, or will based on the the label name for user label
-                // notifications.
-                notificationBuilder.setSubText(isInbox ?
-                        account.getDisplayName() : notificationLabelName);
+                notificationBuilder.setContentTitle(sendersBuilder);
+                // For a single new conversation, the ticker is based on the sender's name.
+                result.notificationTicker = sendersBuilder.toString();
+            } else {
+                from = getWrappedFromString(from);
+                // The title of a single message the sender.
+                notificationBuilder.setContentTitle(from);
+                // For a single new conversation, the ticker is based on the sender's name.
+                result.notificationTicker = from;
+            }
 
-                final NotificationCompat.BigTextStyle bigText =
-                        new NotificationCompat.BigTextStyle(notificationBuilder);
+            // The notification content will be the subject of the conversation.
+            notificationBuilder.setContentText(getSingleMessageLittleText(context, subject));
 
-                // Seek the message cursor to the first unread message
-                final Message message;
-                if (messageCursor.moveToPosition(firstUnseenMessagePos)) {
-                    message = messageCursor.getMessage();
-                    bigText.bigText(getSingleMessageBigText(context, subject, message));
-                } else {
-                    LogUtils.e(LOG_TAG, "Failed to load message");
-                    message = null;
-                }
+            // The notification subtext will be the subject of the conversation for inbox
+            // notifications, or will based on the the label name for user label
+            // notifications.
+            notificationBuilder.setSubText(isInbox ?
+                    account.getDisplayName() : notificationLabelName);
 
-                if (message != null) {
-                    final Set<String> notificationActions =
-                            folderPreferences.getNotificationActions(account);
+            final NotificationCompat.BigTextStyle bigText =
+                    new NotificationCompat.BigTextStyle(notificationBuilder);
 
-                    NotificationActionUtils.addNotificationActions(context, notificationIntent,
-                            notificationBuilder, wearExtender, account, conversation, message,
-                            folder, notificationId, when, notificationActions);
-                }
+            // Seek the message cursor to the first unread message
+            final Message message;
+            if (messageCursor.moveToPosition(firstUnseenMessagePos)) {
+                message = messageCursor.getMessage();
+                bigText.bigText(getSingleMessageBigText(context, subject, message));
             } else {
-                // For an old-style notification
-
-                // The title of a single conversation notification is built from both the sender
-                // and subject of the new message.
-                notificationBuilder.setContentTitle(
-                        getSingleMessageNotificationTitle(context, from, subject));
+                LogUtils.e(LOG_TAG, "Failed to load message");
+                message = null;
+            }
 
-                // The notification content will be the subject of the conversation for inbox
-                // notifications, or will based on the the label name for user label
-                // notifications.
-                notificationBuilder.setContentText(
-                        isInbox ? account.getDisplayName() : notificationLabelName);
+            if (message != null) {
+                final Set<String> notificationActions =
+                        folderPreferences.getNotificationActions(account);
 
-                // For a single new conversation, the ticker is based on the sender's name.
-                result.notificationTicker = from;
+                NotificationActionUtils.addNotificationActions(context, notificationIntent,
+                        notificationBuilder, wearExtender, account, conversation, message,
+                        folder, notificationId, when, notificationActions);
             }
+        } else {
+            // For an old-style notification
 
-            tagNotificationsWithPeople(notificationBuilder, senderAddressesSet);
-        } finally {
-            if (messageCursor != null) {
-                messageCursor.close();
-            }
-            if (cursor != null) {
-                cursor.close();
-            }
+            // The title of a single conversation notification is built from both the sender
+            // and subject of the new message.
+            notificationBuilder.setContentTitle(
+                    getSingleMessageNotificationTitle(context, from, subject));
+
+            // The notification content will be the subject of the conversation for inbox
+            // notifications, or will based on the the label name for user label
+            // notifications.
+            notificationBuilder.setContentText(
+                    isInbox ? account.getDisplayName() : notificationLabelName);
+
+            // For a single new conversation, the ticker is based on the sender's name.
+            result.notificationTicker = from;
         }
+
+        tagNotificationsWithPeople(notificationBuilder, senderAddressesSet);
         return result;
     }
 
@@ -1850,6 +2378,26 @@ public class NotificationUtils {
             }
             sConversationNotificationMap.remove(key);
         }
+        sNotifiedConversations.remove(key);
+        sScheduler.forget(key);
+    }
+
+    /**
+     * Adds the address of the participant of a conversation who sent its latest message, whose
+     * contact photo the notification of the conversation shows.
+     */
+    private static void addLastSenderAddress(Conversation conversation, List<String> addresses) {
+        if (conversation.conversationInfo == null) {
+            return;
+        }
+        final List<ParticipantInfo> participants = conversation.conversationInfo.participantInfos;
+        for (int i = participants.size() - 1; i >= 0; i--) {
+            final String email = participants.get(i).email;
+            if (!TextUtils.isEmpty(email)) {
+                addresses.add(email);
+                return;
+            }
+        }
     }
 
     private static ContactIconInfo getContactIcon(final Context context, String accountName,
@@ -1860,42 +2408,19 @@ public class NotificationUtils {
                     "getContactIcon should not be called on the main thread.");
         }
 
-        final ContactIconInfo contactIconInfo;
-        if (TextUtils.isEmpty(senderAddress)) {
-            contactIconInfo = new ContactIconInfo();
-        } else {
-            // Get the ideal size for this icon.
-            final Resources res = context.getResources();
-            final int idealIconHeight =
-                    res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
-            final int idealIconWidth =
-                    res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
-            final int idealWearableBgWidth =
-                    res.getDimensionPixelSize(R.dimen.wearable_background_width);
-            final int idealWearableBgHeight =
-                    res.getDimensionPixelSize(R.dimen.wearable_background_height);
-
-            if (contactFetcher != null) {
-                contactIconInfo = contactFetcher.getContactPhoto(context, accountName,
-                        senderAddress, idealIconWidth, idealIconHeight, idealWearableBgWidth,
-                        idealWearableBgHeight);
-            } else {
-                contactIconInfo = getContactInfo(context, senderAddress, idealIconWidth,
-                        idealIconHeight, idealWearableBgWidth, idealWearableBgHeight);
-            }
+        final ContactIconInfo contactIconInfo = new ContactIconInfo();
+        if (!TextUtils.isEmpty(senderAddress)) {
+            final NotificationIconLoader.Sizes sizes =
+                    new NotificationIconLoader.Sizes(context.getResources());
+            final NotificationIconLoader.Icon icon = NotificationIconLoader.getIcon(context,
+                    accountName, senderAddress, sizes, contactFetcher);
+            contactIconInfo.icon = icon.photo;
+            contactIconInfo.wearableBg = icon.wearableBg;
 
             if (contactIconInfo.icon == null) {
                 // Make a colorful tile!
-                final Dimensions dimensions = new Dimensions(idealIconWidth, idealIconHeight,
-                        Dimensions.SCALE_ONE);
-
-                contactIconInfo.icon = new LetterTileProvider(context.getResources())
-                        .getLetterTile(dimensions, displayName, senderAddress);
-            }
-
-            // Only turn the square photo/letter tile into a circle for L and later
-            if (Utils.isRunningLOrLater()) {
-                contactIconInfo.icon = BitmapUtil.frameBitmapInCircle(contactIconInfo.icon);
+                contactIconInfo.icon = NotificationIconLoader.getLetterTile(context, icon,
+                        displayName, senderAddress, sizes);
             }
         }
 
@@ -1912,75 +2437,30 @@ public class NotificationUtils {
         return contactIconInfo;
     }
 
-    private static ArrayList<Long> findContacts(Context context, Collection<String> addresses) {
-        ArrayList<String> whereArgs = new ArrayList<String>();
-        StringBuilder whereBuilder = new StringBuilder();
-        String[] questionMarks = new String[addresses.size()];
-
-        whereArgs.addAll(addresses);
-        Arrays.fill(questionMarks, "?");
-        whereBuilder.append(Email.DATA1 + " IN (").
-                append(TextUtils.join(",", questionMarks)).
-                append(")");
-
-        ContentResolver resolver = context.getContentResolver();
-        Cursor c = resolver.query(Email.CONTENT_URI,
-                new String[] {Email.CONTACT_ID}, whereBuilder.toString(),
-                whereArgs.toArray(new String[0]), null);
-
-        ArrayList<Long> contactIds = new ArrayList<Long>();
-        if (c == null) {
-            return contactIds;
-        }
-        try {
-            while (c.moveToNext()) {
-                contactIds.add(c.getLong(0));
-            }
-        } finally {
-            c.close();
-        }
-        return contactIds;
-    }
-
     public static ContactIconInfo getContactInfo(
             final Context context, final String senderAddress,
             final int idealIconWidth, final int idealIconHeight,
             final int idealWearableBgWidth, final int idealWearableBgHeight) {
         final ContactIconInfo contactIconInfo = new ContactIconInfo();
-        final List<Long> contactIds = findContacts(context, Arrays.asList(
-                new String[]{senderAddress}));
-
-        if (contactIds != null) {
-            for (final long id : contactIds) {
-                final Uri contactUri = ContentUris.withAppendedId(
-                        ContactsContract.Contacts.CONTENT_URI, id);
-                final InputStream inputStream =
-                        ContactsContract.Contacts.openContactPhotoInputStream(
-                                context.getContentResolver(), contactUri, true /*preferHighres*/);
-
-                if (inputStream != null) {
-                    try {
-                        final Bitmap source = BitmapFactory.decodeStream(inputStream);
-                        if (source != null) {
-                            // We should scale this image to fit the intended size
-                            contactIconInfo.icon = Bitmap.createScaledBitmap(source, idealIconWidth,
-                                    idealIconHeight, true);
-
-                            contactIconInfo.wearableBg = Bitmap.createScaledBitmap(source,
-                                    idealWearableBgWidth, idealWearableBgHeight, true);
-                        }
-
-                        if (contactIconInfo.icon != null) {
-                            break;
-                        }
-                    } finally {
-                        Closeables.closeQuietly(inputStream);
-                    }
-                }
-            }
-        }
-
-        return contactIconInfo;
+        final NegativeContactCache negativeCache =
+                NegativeContactCache.getInstance(context.getContentResolver());
+        if (negativeCache.isKnownMissing(senderAddress)) {
+            contactIconInfo.verified = false;
+            return contactIconInfo;
+        }
+        final Map<String, List<Long>> contacts = NotificationIconLoader.findContacts(context,
+                Arrays.asList(new String[]{senderAddress}));
+        if (contacts == null) {
+            contactIconInfo.verified = false;
+            return contactIconInfo;
+        }
+        final List<Long> contactIds = contacts.get(senderAddress);
+        if (contactIds == null) {
+            negativeCache.addMissing(senderAddress);
+        }
+        return NotificationIconLoader.decodeContactPhoto(context.getContentResolver(),
+                contactIds, idealIconWidth, idealIconHeight, idealWearableBgWidth,
+                idealWearableBgHeight);
     }
 
     private static String getMessageBodyWithoutElidedText(final Message message) {
@@ -2079,7 +2559,8 @@ public class NotificationUtils {
         return summaryNotificationId ^ conversationHashCode;
     }
 
-    private static class NotificationKey {
+    @VisibleForTesting
+    static class NotificationKey {
         public final Account account;
         public final Folder folder;
 
@@ -2188,20 +2669,43 @@ public class NotificationUtils {
         }
     }
 
-    private static class NotificationBuilders {
-        public final NotificationCompat.Builder notifBuilder;
-        public final NotificationCompat.WearableExtender wearableNotifBuilder;
-
-        private NotificationBuilders(NotificationCompat.Builder notifBuilder,
-                NotificationCompat.WearableExtender wearableNotifBuilder) {
-            this.notifBuilder = notifBuilder;
-            this.wearableNotifBuilder = wearableNotifBuilder;
+    /**
+     * A fingerprint of a folder notification when it was last posted: its counts, settings and
+     * what it shows of each unseen conversation. It holds no notifications or bitmaps, and is
+     * dropped when the notification is cancelled.
+     */
+    @VisibleForTesting
+    static class NotifiedConversations {
+        public final int unreadCount;
+        public final int unseenCount;
+        /** See {@link #getSettingsHash}. */
+        public final int settingsHash;
+        /** See {@link #getConversationStates}. */
+        public final long[] states;
+
+        public NotifiedConversations(int unreadCount, int unseenCount, int settingsHash,
+                long[] states) {
+            this.unreadCount = unreadCount;
+            this.unseenCount = unseenCount;
+            this.settingsHash = settingsHash;
+            this.states = states;
+        }
+
+        public boolean isUnchanged(NotifiedConversations other) {
+            return unreadCount == other.unreadCount && unseenCount == other.unseenCount
+                    && settingsHash == other.settingsHash && Arrays.equals(states, other.states);
         }
+    }
 
-        public static NotificationBuilders of(NotificationCompat.Builder notifBuilder,
-                NotificationCompat.WearableExtender wearableNotifBuilder) {
-            return new NotificationBuilders(notifBuilder, wearableNotifBuilder);
-        }
+    /**
+     * The line of an unread conversation in a digest notification, and its Wear notification.
+     */
+    private static class DigestItem {
+        public CharSequence digestLine;
+        public final Set<String> senderAddresses = new HashSet<String>();
+        public int notificationId;
+        public Notification notification;
+        public ConfigResult result;
     }
 
     private static class ConfigResult {
@@ -2212,5 +2716,10 @@ public class NotificationUtils {
     public static class ContactIconInfo {
         public Bitmap icon;
         public Bitmap wearableBg;
+        /**
+         * False if the sender was not looked up, because the {@link NegativeContactCache}
+         * reports it as missing or the query failed. A missing photo is then not cached on disk.
+         */
+        public boolean verified = true;
     }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.widget;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.text.SpannableStringBuilder;
+import android.text.format.DateUtils;
+
+import com.android.mail.providers.Conversation;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.utils.LruCache;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * The conversations that a widget shows, with their senders, date and subject formatted once
+ * per change of its data instead of on every {@code getViewAt()}. A snapshot is not modified
+ * once it is built.
+ * <p>
+ * Widgets that show the same folder of the same account share their snapshot: a widget whose
+ * cursor has the same contents as the shared snapshot uses it instead of formatting its own.
+ * <p>
+ * The relative dates age, so a snapshot is only used, by its widget or shared, for
+ * {@link #MAX_AGE_MS} after it was built.
+ */
+public final class WidgetConversationSnapshot {
+    /** Folders of different accounts that widgets may show at once. */
+    private static final int MAX_SHARED_SNAPSHOTS = 8;
+    /** How long the relative dates of a snapshot are shown before they are formatted again. */
+    public static final long MAX_AGE_MS = DateUtils.MINUTE_IN_MILLIS;
+    /** The values of {@link #getSignature} stored per conversation. */
+    private static final int SIGNATURE_SIZE = 3;
+
+    private static final LruCache<String, WidgetConversationSnapshot> sShared =
+            new LruCache<String, WidgetConversationSnapshot>(MAX_SHARED_SNAPSHOTS);
+
+    public static final WidgetConversationSnapshot EMPTY =
+            new WidgetConversationSnapshot(new Row[0], 0, new long[0]);
+
+    /** A formatted conversation. */
+    public static final class Row {
+        public final Conversation conversation;
+        /** The hash of the cursor row of the conversation, see {@link #getContentHash}. */
+        public final long contentHash;
+        public final SpannableStringBuilder senders;
+        public final CharSequence date;
+        public final String subject;
+
+        public Row(Conversation conversation, long contentHash, SpannableStringBuilder senders,
+                CharSequence date, String subject) {
+            this.conversation = conversation;
+            this.contentHash = contentHash;
+            this.senders = senders;
+            this.date = date;
+            this.subject = subject;
+        }
+    }
+
+    private final Row[] mRows;
+    private final int mCursorCount;
+    private final long[] mSignature;
+    private final long mBuildTime;
+
+    public WidgetConversationSnapshot(Row[] rows, int cursorCount, long[] signature) {
+        this(rows, cursorCount, signature, SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    WidgetConversationSnapshot(Row[] rows, int cursorCount, long[] signature, long buildTime) {
+        mRows = rows;
+        mCursorCount = cursorCount;
+        mSignature = signature;
+        mBuildTime = buildTime;
+    }
+
+    /**
+     * Returns true if the snapshot is older than {@link #MAX_AGE_MS}, and its dates must be
+     * formatted again.
+     */
+    public boolean isExpired() {
+        return isExpired(SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    boolean isExpired(long now) {
+        return now - mBuildTime >= MAX_AGE_MS;
+    }
+
+    public int getRowCount() {
+        return mRows.length;
+    }
+
+    public Row getRow(int position) {
+        return mRows[position];
+    }
+
+    /**
+     * Returns the number of conversations in the cursor, which may be more than were formatted.
+     */
+    public int getCursorCount() {
+        return mCursorCount;
+    }
+
+    /**
+     * Returns the id and date of each of the first conversations of a cursor, and a hash of all
+     * of its columns. Reading the columns is much cheaper than building and formatting the
+     * conversations.
+     */
+    public static long[] getSignature(Cursor cursor, int maxRows) {
+        final int rows = Math.min(cursor.getCount(), maxRows);
+        final long[] signature = new long[rows * SIGNATURE_SIZE];
+        final int columns = cursor.getColumnCount();
+        for (int i = 0; i < rows && cursor.moveToPosition(i); i++) {
+            long hash = 0;
+            for (int column = 0; column < columns; column++) {
+                final int columnHash;
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        columnHash = 0;
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        columnHash = Arrays.hashCode(cursor.getBlob(column));
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        final long value = cursor.getLong(column);
+                        columnHash = (int) (value ^ (value >>> 32));
+                        break;
+                    default:
+                        final String string = cursor.getString(column);
+                        columnHash = string != null ? string.hashCode() : 0;
+                        break;
+                }
+                hash = hash * 31 + columnHash;
+            }
+            signature[i * SIGNATURE_SIZE] = cursor.getLong(UIProvider.CONVERSATION_ID_COLUMN);
+            signature[i * SIGNATURE_SIZE + 1] =
+                    cursor.getLong(UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN);
+            signature[i * SIGNATURE_SIZE + 2] = hash;
+        }
+        return signature;
+    }
+
+    /**
+     * Returns the hash of all the columns of a row of a signature from {@link #getSignature}.
+     */
+    public static long getContentHash(long[] signature, int row) {
+        return signature[row * SIGNATURE_SIZE + 2];
+    }
+
+    /**
+     * Returns the snapshot that another widget built for the same key from a cursor with the
+     * same signature, or null.
+     */
+    public static WidgetConversationSnapshot getShared(String key, int cursorCount,
+            long[] signature) {
+        return getShared(key, cursorCount, signature, SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    static WidgetConversationSnapshot getShared(String key, int cursorCount, long[] signature,
+            long now) {
+        final WidgetConversationSnapshot snapshot = sShared.getElement(key);
+        if (snapshot != null && snapshot.mCursorCount == cursorCount
+                && Arrays.equals(snapshot.mSignature, signature) && !snapshot.isExpired(now)) {
+            return snapshot;
+        }
+        return null;
+    }
+
+    public static void putShared(String key, WidgetConversationSnapshot snapshot) {
+        sShared.putElement(key, snapshot);
+    }
+}
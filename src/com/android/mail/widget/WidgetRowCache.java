@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.widget;
+
+import android.text.TextUtils;
+import android.widget.RemoteViews;
+
+import com.android.mail.utils.LongLruCache;
+
+/**
+ * The {@link RemoteViews} that a widget built for its conversations, by conversation id. When the
+ * widget's data changes, the rows whose conversation has the same contents and date text reuse
+ * their views, wherever they moved in the list, and only the changed rows are built again.
+ * <p>
+ * A cached view is handed to the launcher again as is, so it must not be modified once built.
+ * Not thread safe; a widget uses its cache under its own lock.
+ */
+final class WidgetRowCache {
+    /** Builds the view of a conversation. */
+    interface ViewBuilder {
+        RemoteViews build(WidgetConversationSnapshot.Row row);
+    }
+
+    private static final class Entry {
+        final long contentHash;
+        final CharSequence date;
+        final RemoteViews views;
+
+        Entry(long contentHash, CharSequence date, RemoteViews views) {
+            this.contentHash = contentHash;
+            this.date = date;
+            this.views = views;
+        }
+    }
+
+    private final LongLruCache<Entry> mEntries;
+    private int mBuilt;
+    private int mReused;
+
+    WidgetRowCache(int capacity) {
+        mEntries = new LongLruCache<Entry>(capacity);
+    }
+
+    RemoteViews getViews(WidgetConversationSnapshot.Row row, ViewBuilder builder) {
+        final long id = row.conversation.id;
+        final Entry entry = mEntries.get(id);
+        // The relative date is formatted when the snapshot is built, and ages.
+        if (entry != null && entry.contentHash == row.contentHash
+                && TextUtils.equals(entry.date, row.date)) {
+            mReused++;
+            return entry.views;
+        }
+        final RemoteViews views = builder.build(row);
+        mEntries.put(id, new Entry(row.contentHash, row.date, views));
+        mBuilt++;
+        return views;
+    }
+
+    void clear() {
+        mEntries.evictAll();
+    }
+
+    /** Returns the number of views built, as opposed to reused. */
+    int getBuiltCount() {
+        return mBuilt;
+    }
+
+    int getReusedCount() {
+        return mReused;
+    }
+}
@@ -24,8 +24,10 @@ import android.content.Loader;
 import android.content.Loader.OnLoadCompleteListener;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.net.Uri;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.app.TaskStackBuilder;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
@@ -55,14 +57,10 @@ import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.Utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class WidgetService extends RemoteViewsService {
-    /**
-     * Lock to avoid race condition between widgets.
-     */
-    private static final Object sWidgetLock = new Object();
-
     private static final String LOG_TAG = LogTag.getLogTag();
 
     @Override
@@ -215,8 +213,8 @@ public class WidgetService extends RemoteViewsService {
         private final Uri mFolderConversationListUri;
         private final String mFolderDisplayName;
         private final WidgetConversationListItemViewBuilder mWidgetConversationListItemViewBuilder;
-        private CursorLoader mConversationCursorLoader;
-        private Cursor mConversationCursor;
+        private ConversationCursorLoader mConversationCursorLoader;
+        private SignedCursor mConversationCursor;
         private CursorLoader mFolderLoader;
         private CursorLoader mAccountLoader;
         private FolderUpdateHandler mFolderUpdateHandler;
@@ -226,6 +224,36 @@ public class WidgetService extends RemoteViewsService {
         private final WidgetService mService;
         private String mSendersSplitToken;
         private String mElidedPaddingToken;
+        /** Senders of the conversations shown, so that a refresh only formats changed ones. */
+        private final SendersView.FormatCache mSendersFormatCache =
+                new SendersView.FormatCache(MAX_CONVERSATIONS_COUNT * 2);
+        /**
+         * Guards the cursor and snapshot of this widget. The launcher calls the factories of
+         * different widgets at the same time.
+         */
+        private final Object mLock = new Object();
+        /**
+         * The formatted conversations of the cursor, or null until they are first needed. Built
+         * again once expired, so that the launcher isn't given stale relative dates.
+         */
+        private WidgetConversationSnapshot mSnapshot;
+        /**
+         * The signature of the conversations that the launcher was last told about, to tell it
+         * again only when the conversations that the widget shows changed, or their relative
+         * dates may have. Main thread only.
+         */
+        private long[] mNotifiedSignature;
+        private int mNotifiedCount;
+        private long mNotifiedTime;
+        /** The views of the conversations shown, so that a refresh only builds changed ones. */
+        private final WidgetRowCache mRowCache = new WidgetRowCache(MAX_CONVERSATIONS_COUNT * 2);
+        private final WidgetRowCache.ViewBuilder mRowViewBuilder =
+                new WidgetRowCache.ViewBuilder() {
+                    @Override
+                    public RemoteViews build(WidgetConversationSnapshot.Row row) {
+                        return buildConversationView(row);
+                    }
+                };
 
         public MailFactory(Context context, Intent intent, WidgetService service) {
             mContext = context;
@@ -296,8 +324,8 @@ public class WidgetService extends RemoteViewsService {
                             Boolean.TRUE.toString()).build();
 
             final Resources res = mContext.getResources();
-            mConversationCursorLoader = new CursorLoader(mContext, widgetConversationQueryUri,
-                    UIProvider.CONVERSATION_PROJECTION, null, null, null);
+            mConversationCursorLoader =
+                    new ConversationCursorLoader(mContext, widgetConversationQueryUri);
             mConversationCursorLoader.registerListener(CONVERSATION_CURSOR_LOADER_ID, this);
             mConversationCursorLoader.setUpdateThrottle(
                     res.getInteger(R.integer.widget_refresh_delay_ms));
@@ -319,7 +347,7 @@ public class WidgetService extends RemoteViewsService {
 
         @Override
         public void onDestroy() {
-            synchronized (sWidgetLock) {
+            synchronized (mLock) {
                 if (mConversationCursorLoader != null) {
                     mConversationCursorLoader.reset();
                     mConversationCursorLoader.unregisterListener(this);
@@ -329,6 +357,10 @@ public class WidgetService extends RemoteViewsService {
                 // The Loader should close the cursor, so just unset the reference
                 // to it here.
                 mConversationCursor = null;
+                mSnapshot = null;
+            }
+            synchronized (mRowCache) {
+                mRowCache.clear();
             }
 
             if (mFolderLoader != null) {
@@ -364,27 +396,64 @@ public class WidgetService extends RemoteViewsService {
          */
         @Override
         public int getCount() {
-            synchronized (sWidgetLock) {
-                final int count = getConversationCount();
-                final int cursorCount = mConversationCursor != null ?
-                        mConversationCursor.getCount() : 0;
+            synchronized (mLock) {
+                final WidgetConversationSnapshot snapshot = getSnapshot();
+                final int count = snapshot.getRowCount();
+                final int cursorCount = snapshot.getCursorCount();
                 mShouldShowViewMore = count < cursorCount || count < mFolderCount;
                 return count + (mShouldShowViewMore ? 1 : 0);
             }
         }
 
         /**
-         * Returns the number of conversations that should be shown in the widget.  This method
-         * doesn't update the boolean that indicates that the "show more" item should be included
-         * in the list.
-         * @return count
+         * Returns the formatted conversations of the current cursor, building them or taking
+         * them from another widget of the same folder the first time they are needed after the
+         * cursor changed or the snapshot expired. Must be called with {@link #mLock} held.
          */
-        private int getConversationCount() {
-            synchronized (sWidgetLock) {
-                final int cursorCount = mConversationCursor != null ?
-                        mConversationCursor.getCount() : 0;
-                return Math.min(cursorCount, MAX_CONVERSATIONS_COUNT);
+        private WidgetConversationSnapshot getSnapshot() {
+            if (mSnapshot != null && !mSnapshot.isExpired()) {
+                return mSnapshot;
+            }
+            final SignedCursor cursor = mConversationCursor;
+            if (cursor == null || cursor.isClosed()) {
+                return WidgetConversationSnapshot.EMPTY;
             }
+            final int cursorCount = cursor.getCount();
+            final long[] signature = cursor.signature;
+            final boolean showRecipients = Folder.shouldShowRecipients(mFolderCapabilities);
+            final String key = mAccount.uri + " " + mFolderConversationListUri + " "
+                    + showRecipients;
+            WidgetConversationSnapshot snapshot =
+                    WidgetConversationSnapshot.getShared(key, cursorCount, signature);
+            if (snapshot == null) {
+                final int rowCount = Math.min(cursorCount, MAX_CONVERSATIONS_COUNT);
+                final List<WidgetConversationSnapshot.Row> rows =
+                        new ArrayList<WidgetConversationSnapshot.Row>(rowCount);
+                final ArrayList<SpannableString> senders = new ArrayList<SpannableString>();
+                for (int i = 0; i < rowCount; i++) {
+                    if (!cursor.moveToPosition(i)) {
+                        LogUtils.e(LOG_TAG, "Failed to move to position %d in the cursor.", i);
+                        break;
+                    }
+                    final Conversation conversation = new Conversation(cursor);
+                    // Split the senders and status from the instructions.
+                    senders.clear();
+                    SendersView.format(mContext, conversation.conversationInfo, "",
+                            MAX_SENDERS_LENGTH, senders, null, null, mAccount, showRecipients,
+                            true, mSendersFormatCache);
+                    rows.add(new WidgetConversationSnapshot.Row(conversation,
+                            WidgetConversationSnapshot.getContentHash(signature, i),
+                            elideParticipants(senders),
+                            DateUtils.getRelativeTimeSpanString(mContext, conversation.dateMs),
+                            ConversationItemView.filterTag(mContext, conversation.subject)));
+                }
+                snapshot = new WidgetConversationSnapshot(
+                        rows.toArray(new WidgetConversationSnapshot.Row[rows.size()]),
+                        cursorCount, signature);
+                WidgetConversationSnapshot.putShared(key, snapshot);
+            }
+            mSnapshot = snapshot;
+            return snapshot;
         }
 
         /**
@@ -392,54 +461,44 @@ public class WidgetService extends RemoteViewsService {
          */
         @Override
         public RemoteViews getViewAt(int position) {
-            synchronized (sWidgetLock) {
+            final WidgetConversationSnapshot.Row row;
+            synchronized (mLock) {
+                final WidgetConversationSnapshot snapshot = getSnapshot();
                 // "View more conversations" view.
-                if (mConversationCursor == null || mConversationCursor.isClosed()
-                        || (mShouldShowViewMore && position >= getConversationCount())) {
-                    return getViewMoreConversationsView();
-                }
-
-                if (!mConversationCursor.moveToPosition(position)) {
-                    // If we ever fail to move to a position, return the
-                    // "View More conversations"
-                    // view.
-                    LogUtils.e(LOG_TAG, "Failed to move to position %d in the cursor.", position);
+                if (position >= snapshot.getRowCount()) {
                     return getViewMoreConversationsView();
                 }
+                row = snapshot.getRow(position);
+            }
 
-                Conversation conversation = new Conversation(mConversationCursor);
-                // Split the senders and status from the instructions.
-
-                ArrayList<SpannableString> senders = new ArrayList<SpannableString>();
-                SendersView.format(mContext, conversation.conversationInfo, "",
-                        MAX_SENDERS_LENGTH, senders, null, null, mAccount,
-                        Folder.shouldShowRecipients(mFolderCapabilities), true);
-                final SpannableStringBuilder senderBuilder = elideParticipants(senders);
-
-                // Get styled date.
-                CharSequence date = DateUtils.getRelativeTimeSpanString(mContext,
-                        conversation.dateMs);
+            // The views of a conversation that did not change since they were built are reused.
+            synchronized (mRowCache) {
+                return mRowCache.getViews(row, mRowViewBuilder);
+            }
+        }
 
-                final int ignoreFolderType;
-                if ((mFolderType & FolderType.INBOX) != 0) {
-                    ignoreFolderType = FolderType.INBOX;
-                } else {
-                    ignoreFolderType = -1;
-                }
+        /**
+         * Builds the view of a conversation. Called with {@link #mRowCache} held.
+         */
+        private RemoteViews buildConversationView(WidgetConversationSnapshot.Row row) {
+            final int ignoreFolderType;
+            if ((mFolderType & FolderType.INBOX) != 0) {
+                ignoreFolderType = FolderType.INBOX;
+            } else {
+                ignoreFolderType = -1;
+            }
 
-                // Load up our remote view.
-                RemoteViews remoteViews = mWidgetConversationListItemViewBuilder.getStyledView(
-                        mContext, date, conversation, new FolderUri(mFolderUri), ignoreFolderType,
-                        senderBuilder,
-                        ConversationItemView.filterTag(mContext, conversation.subject));
+            // Load up our remote view.
+            final RemoteViews remoteViews = mWidgetConversationListItemViewBuilder.getStyledView(
+                    mContext, row.date, row.conversation, new FolderUri(mFolderUri),
+                    ignoreFolderType, row.senders, row.subject);
 
-                // On click intent.
-                remoteViews.setOnClickFillInIntent(R.id.widget_conversation_list_item,
-                        Utils.createViewConversationIntent(mContext, conversation, mFolderUri,
-                                mAccount));
+            // On click intent.
+            remoteViews.setOnClickFillInIntent(R.id.widget_conversation_list_item,
+                    Utils.createViewConversationIntent(mContext, row.conversation, mFolderUri,
+                            mAccount));
 
-                return remoteViews;
-            }
+            return remoteViews;
         }
 
         private SpannableStringBuilder elideParticipants(List<SpannableString> parts) {
@@ -571,16 +630,30 @@ public class WidgetService extends RemoteViewsService {
                 appWidgetManager.partiallyUpdateAppWidget(mAppWidgetId, remoteViews);
             } else if (loader == mConversationCursorLoader) {
                 // We want to cache the new cursor
-                synchronized (sWidgetLock) {
-                    if (!isDataValid(data)) {
-                        mConversationCursor = null;
-                    } else {
-                        mConversationCursor = data;
+                final SignedCursor cursor = isDataValid(data) ? (SignedCursor) data : null;
+                final int count = cursor != null ? cursor.getCount() : 0;
+                final long[] signature = cursor != null ? cursor.signature : null;
+                // The loader reloads on every change to the folder, most of which don't touch
+                // the conversations that the widget shows: those keep the current views, unless
+                // their relative dates may have changed since.
+                final long now = SystemClock.elapsedRealtime();
+                final boolean unchanged = signature != null && count == mNotifiedCount
+                        && Arrays.equals(signature, mNotifiedSignature)
+                        && now - mNotifiedTime < WidgetConversationSnapshot.MAX_AGE_MS;
+                synchronized (mLock) {
+                    mConversationCursor = cursor;
+                    if (!unchanged) {
+                        mSnapshot = null;
                     }
                 }
 
-                appWidgetManager.notifyAppWidgetViewDataChanged(mAppWidgetId,
-                        R.id.conversation_list);
+                if (!unchanged) {
+                    mNotifiedSignature = signature;
+                    mNotifiedCount = count;
+                    mNotifiedTime = now;
+                    appWidgetManager.notifyAppWidgetViewDataChanged(mAppWidgetId,
+                            R.id.conversation_list);
+                }
 
                 if (mConversationCursor == null || mConversationCursor.getCount() == 0) {
                     remoteViews.setTextViewText(R.id.empty_conversation_list,
@@ -602,6 +675,36 @@ public class WidgetService extends RemoteViewsService {
             return cursor != null && !cursor.isClosed() && cursor.moveToFirst();
         }
 
+        /**
+         * Loads the conversations of the widget, and their signature, which walks the cursor,
+         * on the loader's thread rather than on the main thread.
+         */
+        private static class ConversationCursorLoader extends CursorLoader {
+            public ConversationCursorLoader(Context context, Uri uri) {
+                super(context, uri, UIProvider.CONVERSATION_PROJECTION, null, null, null);
+            }
+
+            @Override
+            public Cursor loadInBackground() {
+                final Cursor cursor = super.loadInBackground();
+                return cursor != null ? new SignedCursor(cursor) : null;
+            }
+        }
+
+        /**
+         * A cursor with the {@link WidgetConversationSnapshot#getSignature signature} of the
+         * conversations that the widget shows.
+         */
+        private static class SignedCursor extends CursorWrapper {
+            public final long[] signature;
+
+            private SignedCursor(Cursor inner) {
+                super(inner);
+                signature = WidgetConversationSnapshot.getSignature(inner,
+                        MAX_CONVERSATIONS_COUNT);
+            }
+        }
+
         /**
          * A {@link DelayedTaskHandler} to throttle folder update to a reasonable rate.
          */
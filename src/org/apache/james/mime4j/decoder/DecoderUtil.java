@@ -149,6 +149,12 @@ public class DecoderUtil {
      * quoted-printable and 'B' or 'b' for Base64.
      * 
      * ANDROID:  COPIED FROM A NEWER VERSION OF MIME4J
+     *
+     * ANDROID:  Rewritten to decode in a single pass, straight from the body into one byte
+     * buffer and one StringBuilder, instead of creating substrings, byte arrays and streams
+     * for every encoded word. Adjacent encoded words (separated only by whitespace, which is
+     * dropped) in the same charset are decoded together, so a character split across two
+     * words by a sloppy encoder comes out whole.
      * 
      * @param body the string to decode.
      * @return the decoded string.
@@ -164,7 +170,10 @@ public class DecoderUtil {
         int previousEnd = 0;
         boolean previousWasEncoded = false;
 
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = null;
+        // bytes of the current run of adjacent encoded words, all in pendingCharset
+        ByteBuilder pending = null;
+        String pendingCharset = null;
 
         while (true) {
             int begin = body.indexOf("=?", previousEnd);
@@ -189,30 +198,262 @@ public class DecoderUtil {
             }
             end += 2;
 
-            String sep = body.substring(previousEnd, begin);
+            if (sb == null) {
+                sb = new StringBuilder(body.length());
+                pending = new ByteBuilder(body.length());
+            }
 
-            String decoded = decodeEncodedWord(body, begin, end);
-            if (decoded == null) {
-                sb.append(sep);
-                sb.append(body.substring(begin, end));
+            final String charset = getDecodableCharset(body, begin, qm1, qm2, end);
+            if (charset == null) {
+                // not an encoded word we can decode, keep it as is
+                pendingCharset = flush(pending, pendingCharset, sb);
+                sb.append(body, previousEnd, end);
+                previousWasEncoded = false;
             } else {
-                if (!previousWasEncoded || !CharsetUtil.isWhitespace(sep)) {
-                    sb.append(sep);
+                final boolean adjacent =
+                        previousWasEncoded && isWhitespace(body, previousEnd, begin);
+                if (!adjacent || !charset.equals(pendingCharset)) {
+                    pendingCharset = flush(pending, pendingCharset, sb);
+                    if (!adjacent) {
+                        sb.append(body, previousEnd, begin);
+                    }
+                    pendingCharset = charset;
+                }
+                final char encoding = body.charAt(qm1 + 1);
+                if (encoding == 'Q' || encoding == 'q') {
+                    decodeQ(body, qm2 + 1, end - 2, pending);
+                } else {
+                    decodeB(body, qm2 + 1, end - 2, pending);
                 }
-                sb.append(decoded);
+                previousWasEncoded = true;
             }
 
             previousEnd = end;
-            previousWasEncoded = decoded != null;
         }
 
         if (previousEnd == 0)
             return body;
 
-        sb.append(body.substring(previousEnd));
+        flush(pending, pendingCharset, sb);
+        sb.append(body, previousEnd, body.length());
         return sb.toString();
     }
 
+    /**
+     * Checks the parts of the encoded word between begin and end, and returns the Java charset to
+     * decode it with, or null if the word can not be decoded (as for
+     * {@link #decodeEncodedWord(String, int, int)}).
+     */
+    private static String getDecodableCharset(String body, int begin, int qm1, int qm2,
+            int end) {
+        if (qm2 - qm1 != 2 || qm2 + 1 == end - 2) {
+            // encoding is not a single character, or the encoded text is missing
+            return null;
+        }
+        final char encoding = body.charAt(qm1 + 1);
+        if (encoding != 'Q' && encoding != 'q' && encoding != 'B' && encoding != 'b') {
+            return null;
+        }
+        final String charset = CharsetUtil.toJavaCharset(body.substring(begin + 2, qm1));
+        if (charset == null || !CharsetUtil.isDecodingSupported(charset)) {
+            return null;
+        }
+        return charset;
+    }
+
+    private static boolean isWhitespace(String body, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!CharsetUtil.isWhitespace(body.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends the decoded pending bytes to the builder and clears them.
+     * @return null, the new pending charset
+     */
+    private static String flush(ByteBuilder pending, String charset, StringBuilder sb) {
+        if (charset != null && pending.count > 0) {
+            try {
+                sb.append(new String(pending.bytes, 0, pending.count, charset));
+            } catch (UnsupportedEncodingException e) {
+                // should not happen because of isDecodingSupported check
+                log.warn("Unsupported encoding " + charset, e);
+            }
+        }
+        pending.count = 0;
+        return null;
+    }
+
+    /**
+     * Decodes 'Q' encoded text between start and end of body into out. This behaves exactly
+     * like {@link #decodeQ(String, String)}: '_' is a space, and malformed escapes are kept.
+     */
+    private static void decodeQ(String body, int start, int end, ByteBuilder out) {
+        int state = 0;
+        int msdChar = 0;
+        // unescaped whitespace is only written once something other than a line break follows
+        int whitespaceStart = -1;
+        for (int i = start; i < end; i++) {
+            int b = body.charAt(i);
+            if (b == ' ' || b == '\t') {
+                if (whitespaceStart == -1) {
+                    whitespaceStart = i;
+                }
+                continue;
+            }
+            if (b == '\r' || b == '\n') {
+                whitespaceStart = -1;
+            } else if (whitespaceStart != -1) {
+                for (int j = whitespaceStart; j < i; j++) {
+                    state = decodeQByte(body.charAt(j), state, msdChar, out);
+                }
+                whitespaceStart = -1;
+            }
+            if (b == '_') {
+                // same as "=20"
+                state = decodeQByte('=', state, msdChar, out);
+                state = decodeQByte('2', state, msdChar, out);
+                msdChar = '2';
+                state = decodeQByte('0', state, msdChar, out);
+                continue;
+            }
+            if (b > 0x7f) {
+                b = '?';
+            }
+            final int newState = decodeQByte(b, state, msdChar, out);
+            if (newState == 3) {
+                msdChar = b;
+            }
+            state = newState;
+        }
+    }
+
+    /**
+     * One step of the QuotedPrintableInputStream state machine.
+     * @return the new state
+     */
+    private static int decodeQByte(int b, int state, int msdChar, ByteBuilder out) {
+        switch (state) {
+            case 0:
+                if (b != '=') {
+                    out.append(b);
+                    return 0;
+                }
+                return 1;
+            case 1:
+                if (b == '\r') {
+                    return 2;
+                } else if (isHexDigit(b)) {
+                    return 3;
+                } else if (b == '=') {
+                    out.append('=');
+                    return 1;
+                }
+                out.append('=');
+                out.append(b);
+                return 0;
+            case 2:
+                if (b != '\n') {
+                    out.append('=');
+                    out.append('\r');
+                    out.append(b);
+                }
+                return 0;
+            default:
+                if (isHexDigit(b)) {
+                    out.append((hexValue(msdChar) << 4) | hexValue(b));
+                } else {
+                    out.append('=');
+                    out.append(msdChar);
+                    out.append(b);
+                }
+                return 0;
+        }
+    }
+
+    private static boolean isHexDigit(int b) {
+        return (b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f');
+    }
+
+    private static int hexValue(int b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'A' && b <= 'F') {
+            return 0xA + (b - 'A');
+        }
+        return 0xA + (b - 'a');
+    }
+
+    /**
+     * Decodes 'B' encoded text between start and end of body into out. Like Base64InputStream,
+     * characters outside the alphabet are skipped, decoding stops at the first '=' and an
+     * incomplete group at the end without padding is dropped.
+     */
+    private static void decodeB(String body, int start, int end, ByteBuilder out) {
+        int accum = 0;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            final char c = body.charAt(i);
+            if (c == '=') {
+                if (count >= 2) {
+                    accum <<= 6 * (4 - count);
+                    out.append(accum >> 16);
+                    if (count == 3) {
+                        out.append(accum >> 8);
+                    }
+                }
+                return;
+            }
+            final int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                continue;
+            }
+            accum = (accum << 6) | value;
+            if (++count == 4) {
+                out.append(accum >> 16);
+                out.append(accum >> 8);
+                out.append(accum);
+                accum = 0;
+                count = 0;
+            }
+        }
+    }
+
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        java.util.Arrays.fill(BASE64_VALUES, (byte) -1);
+        final String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    /**
+     * Minimal growable byte array, so decoded bytes can be turned into a String without the
+     * copy ByteArrayOutputStream.toByteArray() would make.
+     */
+    private static final class ByteBuilder {
+        byte[] bytes;
+        int count;
+
+        ByteBuilder(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void append(int b) {
+            if (count == bytes.length) {
+                final byte[] grown = new byte[Math.max(16, count * 2)];
+                System.arraycopy(bytes, 0, grown, 0, count);
+                bytes = grown;
+            }
+            bytes[count++] = (byte) b;
+        }
+    }
+
     // return null on error. Begin is index of '=?' in body.
     public static String decodeEncodedWord(String body, int begin, int end) {
         // Skip the '?=' chars in body and scan forward from there for next '?'
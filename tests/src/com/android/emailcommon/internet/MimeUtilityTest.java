@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.android.emailcommon.TempDirectory;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+
+public class MimeUtilityTest extends AndroidTestCase {
+    private static final String MULTI_BYTE_TEXT = "日本語のテキスト ü € 𝄞 end";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    /** Returns the text of a single part message with the given headers and raw body. */
+    private static String getText(String contentType, String transferEncoding, String body)
+            throws Exception {
+        final String raw = "From: a@example.com\r\n"
+                + "Subject: test\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + (transferEncoding != null
+                        ? "Content-Transfer-Encoding: " + transferEncoding + "\r\n" : "")
+                + "\r\n"
+                + body;
+        final MimeMessage message =
+                new MimeMessage(new ByteArrayInputStream(raw.getBytes("US-ASCII")));
+        return MimeUtility.getTextFromPart(message);
+    }
+
+    private static String base64(String text, String charset) throws Exception {
+        return Base64.encodeToString(text.getBytes(charset), Base64.DEFAULT)
+                .replace("\n", "\r\n");
+    }
+
+    @SmallTest
+    public void testBase64Utf8() throws Exception {
+        assertEquals(MULTI_BYTE_TEXT, getText("text/plain; charset=utf-8", "base64",
+                base64(MULTI_BYTE_TEXT, "UTF-8")));
+    }
+
+    @SmallTest
+    public void testBase64ShiftJis() throws Exception {
+        final String text = "日本語のテキスト";
+        assertEquals(text, getText("text/plain; charset=Shift_JIS", "base64",
+                base64(text, "Shift_JIS")));
+    }
+
+    @SmallTest
+    public void testLongBase64Utf8() throws Exception {
+        // Longer than the decode buffers, so that characters straddle their boundaries.
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < 40000) {
+            sb.append(MULTI_BYTE_TEXT).append('\n');
+        }
+        final String text = sb.toString();
+        assertEquals(text, getText("text/plain; charset=utf-8", "base64", base64(text, "UTF-8")));
+    }
+
+    @SmallTest
+    public void testQuotedPrintableUtf8() throws Exception {
+        // "ü €" and a soft line break in the middle of a word.
+        assertEquals("Grüße € and wrapped",
+                getText("text/plain; charset=utf-8", "quoted-printable",
+                        "Gr=C3=BC=C3=9Fe =E2=82=AC and wr=\r\napped"));
+    }
+
+    @SmallTest
+    public void testQuotedPrintableLatin1() throws Exception {
+        assertEquals("café naïve",
+                getText("text/plain; charset=iso-8859-1", "quoted-printable",
+                        "caf=E9 na=EFve"));
+    }
+
+    @SmallTest
+    public void testUnencodedAscii() throws Exception {
+        assertEquals("plain text", getText("text/plain", null, "plain text"));
+    }
+
+    @SmallTest
+    public void testDecodeTextAcrossBufferBoundary() throws Exception {
+        // Offset the text by each byte of a three byte character, so that one of them is split
+        // between two reads of the decode buffer.
+        for (int offset = 0; offset < 3; offset++) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8 * 1024 - 2 + offset; i++) {
+                sb.append('a');
+            }
+            for (int i = 0; i < 100; i++) {
+                sb.append('€');
+            }
+            final String text = sb.toString();
+            final StringBuilder decoded = new StringBuilder("prefix");
+            MimeUtility.decodeText(new ByteArrayInputStream(text.getBytes("UTF-8")),
+                    Charset.forName("UTF-8"), decoded);
+            assertEquals("prefix" + text, decoded.toString());
+        }
+    }
+
+    private static MimeBodyPart sizedPart(int size, String transferEncoding) throws Exception {
+        final MimeBodyPart part = new MimeBodyPart(null, "text/plain");
+        part.setSize(size);
+        if (transferEncoding != null) {
+            part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, transferEncoding);
+        }
+        return part;
+    }
+
+    @SmallTest
+    public void testTextSizeHint() throws Exception {
+        assertEquals(4000, MimeUtility.getTextSizeHint(sizedPart(4000, null)));
+        assertEquals(4000, MimeUtility.getTextSizeHint(sizedPart(4000, "quoted-printable")));
+        // Base64 decodes to three bytes for every four.
+        assertEquals(3000, MimeUtility.getTextSizeHint(sizedPart(4000, "base64")));
+        assertEquals(3000, MimeUtility.getTextSizeHint(sizedPart(4000, "BASE64")));
+        // Huge parts are capped, and parts of unknown size get the decode buffer size.
+        assertEquals(1024 * 1024,
+                MimeUtility.getTextSizeHint(sizedPart(100 * 1024 * 1024, null)));
+        assertEquals(8 * 1024, MimeUtility.getTextSizeHint(sizedPart(0, null)));
+        assertEquals(8 * 1024, MimeUtility.getTextSizeHint(null));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.Random;
+
+public class FormattedDateBuilderTest extends AndroidTestCase {
+    /** Timestamps formatted in the benchmark, spread over this many days before now. */
+    private static final int BENCHMARK_TIMESTAMPS = 10000;
+    private static final int BENCHMARK_DAYS = 500;
+
+    private static long[] createTimestamps(int count, int days) {
+        final Random random = new Random(count);
+        final long now = System.currentTimeMillis();
+        final long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            // Like a mailbox: most mail is recent, some of it from today.
+            final double age = Math.pow(random.nextDouble(), 3);
+            timestamps[i] = now - (long) (age * days * DateUtils.DAY_IN_MILLIS);
+        }
+        return timestamps;
+    }
+
+    @SmallTest
+    public void testShortDateTimeMatchesRelativeTimeSpan() {
+        final FormattedDateBuilder builder = new FormattedDateBuilder(getContext());
+        for (long when : createTimestamps(500, 800)) {
+            final String expected =
+                    DateUtils.getRelativeTimeSpanString(getContext(), when).toString();
+            // Twice, so that the cached string is checked as well.
+            assertEquals(expected, builder.formatShortDateTime(when).toString());
+            assertEquals(expected, builder.formatShortDateTime(when).toString());
+        }
+    }
+
+    @SmallTest
+    public void testDatesAreFormattedOncePerDay() {
+        final FormattedDateBuilder builder = new FormattedDateBuilder(getContext());
+        FormattedDateBuilder.clearCaches();
+        // Noon on each of a few days more than a year ago, so that only the date is shown.
+        final long day = DateUtils.DAY_IN_MILLIS;
+        final long base = (System.currentTimeMillis() / day - 800) * day + day / 2;
+        final int days = 20;
+        int hits = FormattedDateBuilder.getCacheHitCount();
+        int misses = FormattedDateBuilder.getCacheMissCount();
+        for (int i = 0; i < days; i++) {
+            builder.formatShortDateTime(base + i * day);
+        }
+        assertEquals(days, FormattedDateBuilder.getCacheMissCount() - misses);
+        assertEquals(hits, FormattedDateBuilder.getCacheHitCount());
+
+        // Other times of the same days, formatted by another builder, are served from the cache.
+        final FormattedDateBuilder other = new FormattedDateBuilder(getContext());
+        hits = FormattedDateBuilder.getCacheHitCount();
+        misses = FormattedDateBuilder.getCacheMissCount();
+        for (int i = 0; i < days; i++) {
+            other.formatShortDateTime(base + i * day + DateUtils.HOUR_IN_MILLIS);
+        }
+        assertEquals(days, FormattedDateBuilder.getCacheHitCount() - hits);
+        assertEquals(misses, FormattedDateBuilder.getCacheMissCount());
+
+        // Until a clock setting changes.
+        FormattedDateBuilder.clearCaches();
+        misses = FormattedDateBuilder.getCacheMissCount();
+        builder.formatShortDateTime(base);
+        assertEquals(misses + 1, FormattedDateBuilder.getCacheMissCount());
+    }
+
+    @SmallTest
+    public void testTodayTimesAreCachedPerMinute() {
+        final FormattedDateBuilder builder = new FormattedDateBuilder(getContext());
+        final long now = System.currentTimeMillis();
+        final long minuteStart = now - now % DateUtils.MINUTE_IN_MILLIS;
+        final CharSequence first = builder.formatShortDateTime(minuteStart);
+        assertSame(first, builder.formatShortDateTime(minuteStart + 59 * 1000));
+        assertEquals(DateUtils.formatDateTime(getContext(), minuteStart,
+                DateUtils.FORMAT_SHOW_TIME), first.toString());
+    }
+
+    /**
+     * Measures the time per row of formatting the dates of a conversation list the way the list
+     * used to, and with a builder, and how many of the builder's strings came from its cache.
+     */
+    @LargeTest
+    public void testShortDateTimeBenchmark() {
+        final long[] timestamps = createTimestamps(BENCHMARK_TIMESTAMPS, BENCHMARK_DAYS);
+        final FormattedDateBuilder builder = new FormattedDateBuilder(getContext());
+        FormattedDateBuilder.clearCaches();
+        final int hits = FormattedDateBuilder.getCacheHitCount();
+        final int misses = FormattedDateBuilder.getCacheMissCount();
+
+        long start = System.nanoTime();
+        for (long when : timestamps) {
+            DateUtils.getRelativeTimeSpanString(getContext(), when);
+        }
+        final long relativeTimeNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (long when : timestamps) {
+            builder.formatShortDateTime(when);
+        }
+        final long builderTimeNs = System.nanoTime() - start;
+        final int builderHits = FormattedDateBuilder.getCacheHitCount() - hits;
+        final int builderMisses = FormattedDateBuilder.getCacheMissCount() - misses;
+
+        Log.i("FormattedDateBuilderTest", String.format("%d timestamps: "
+                + "getRelativeTimeSpanString %dns per row, FormattedDateBuilder %dns per row, "
+                + "%d cache hits", BENCHMARK_TIMESTAMPS, relativeTimeNs / BENCHMARK_TIMESTAMPS,
+                builderTimeNs / BENCHMARK_TIMESTAMPS, builderHits));
+        assertEquals(BENCHMARK_TIMESTAMPS, builderHits + builderMisses);
+        // Most rows share a day with an earlier one.
+        assertTrue(builderHits > builderMisses);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class NegativeContactCacheTest extends AndroidTestCase {
+    private static final long NOW = 1000000;
+
+    public void testRemembersAddedAddresses() {
+        final NegativeContactCache cache = new NegativeContactCache(NOW);
+        assertFalse(cache.isKnownMissing("noreply@example.com", NOW));
+        cache.addMissing("noreply@example.com", NOW);
+        assertTrue(cache.isKnownMissing("noreply@example.com", NOW));
+        assertEquals(1, cache.getQueriesAvoided());
+    }
+
+    public void testFewFalsePositives() {
+        final NegativeContactCache cache = new NegativeContactCache(NOW);
+        for (int i = 0; i < 2000; i++) {
+            cache.addMissing("sender" + i + "@example.com", NOW);
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(cache.isKnownMissing("sender" + i + "@example.com", NOW));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (cache.isKnownMissing("other" + i + "@example.org", NOW)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 20);
+    }
+
+    public void testEntriesExpire() {
+        final NegativeContactCache cache = new NegativeContactCache(NOW);
+        cache.addMissing("noreply@example.com", NOW);
+        final long halfTtl = NegativeContactCache.TTL_MS / 2;
+        // Still known after the first rotation...
+        assertTrue(cache.isKnownMissing("noreply@example.com", NOW + halfTtl));
+        // ...but not after the second one.
+        assertFalse(cache.isKnownMissing("noreply@example.com", NOW + 2 * halfTtl));
+
+        cache.addMissing("noreply@example.com", NOW + 2 * halfTtl);
+        assertFalse(cache.isKnownMissing("noreply@example.com",
+                NOW + 4 * halfTtl + NegativeContactCache.TTL_MS));
+    }
+
+    public void testClear() {
+        final NegativeContactCache cache = new NegativeContactCache(NOW);
+        cache.addMissing("noreply@example.com", NOW);
+        cache.clear();
+        assertFalse(cache.isKnownMissing("noreply@example.com", NOW));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.bitmap;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.Arrays;
+
+@SmallTest
+public class AvatarDiskCacheTest extends AndroidTestCase {
+    private static final long NOW = 1000000000L;
+    private static final int SIZE = 96;
+    private static final byte[] PHOTO = {1, 2, 3, 4};
+
+    /** A contacts provider that reports contact changes or not. */
+    private static class ContactsProvider extends MockContentProvider {
+        private final boolean mChanged;
+
+        ContactsProvider(boolean changed) {
+            mChanged = changed;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            if (mChanged && uri.equals(ContactsContract.Contacts.CONTENT_URI)) {
+                cursor.addRow(new Object[] {1L});
+            }
+            return cursor;
+        }
+    }
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "avatar_disk_cache_test");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /** Returns a cache on the test directory, as a new process would create it. */
+    private AvatarDiskCache createCache(boolean contactsChanged) {
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, new ContactsProvider(contactsChanged));
+        return new AvatarDiskCache(resolver, mDirectory, true /* canDetectContactChanges */);
+    }
+
+    public void testHitAndMiss() {
+        final AvatarDiskCache cache = createCache(false);
+        assertNull(cache.get("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE));
+
+        cache.put("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE, PHOTO);
+        cache.put("b@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE, null);
+        assertTrue(Arrays.equals(PHOTO,
+                cache.get("A@Example.com ", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE)));
+        assertSame(AvatarDiskCache.NO_PHOTO,
+                cache.get("b@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE));
+
+        // Other sizes and shapes are other entries.
+        assertNull(cache.get("a@example.com", SIZE / 2, SIZE / 2, AvatarDiskCache.SHAPE_SQUARE));
+        assertNull(cache.get("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_CIRCLE));
+    }
+
+    public void testEntriesExpireWhenChangesCannotBeDetected() {
+        final AvatarDiskCache cache = new AvatarDiskCache(new MockContentResolver(), mDirectory,
+                false /* canDetectContactChanges */);
+        cache.put("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE, PHOTO, NOW);
+        final long maxAge = AvatarDiskCache.UNVALIDATED_MAX_AGE_MS;
+        assertNotNull(cache.get("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE,
+                NOW + maxAge));
+        assertNull(cache.get("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE,
+                NOW + maxAge + 1));
+
+        // Entries that are validated against the contacts provider don't expire.
+        final AvatarDiskCache validated = createCache(false);
+        validated.put("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE, PHOTO, NOW);
+        assertNotNull(validated.get("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE,
+                NOW + 2 * maxAge));
+    }
+
+    public void testInvalidatedWhenContactsChangedSinceValidation() {
+        createCache(false).put("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE, PHOTO);
+
+        // The next process finds no contact changes and keeps the entry...
+        assertNotNull(createCache(false).get("a@example.com", SIZE, SIZE,
+                AvatarDiskCache.SHAPE_SQUARE));
+        // ...and the one after that finds some, and drops it.
+        final AvatarDiskCache changed = createCache(true);
+        assertNull(changed.get("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE));
+
+        changed.put("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE, PHOTO);
+        changed.clear();
+        assertNull(changed.get("a@example.com", SIZE, SIZE, AvatarDiskCache.SHAPE_SQUARE));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.bitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.bitmap.BitmapCache;
+import com.android.bitmap.RequestKey;
+import com.android.bitmap.ReusableBitmap;
+import com.android.bitmap.UnrefedBitmapCache;
+import com.android.mail.ContactInfo;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ContactResolverTest extends AndroidTestCase {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static byte[] sPhoto;
+
+    /** Serves a photo for every email, and lets a test hold lookups and decodes. */
+    private static class TestResolver extends ContactResolver {
+        final List<Set<String>> mLookups = Collections.synchronizedList(
+                new ArrayList<Set<String>>());
+        final CountDownLatch mLookupStarted = new CountDownLatch(1);
+        final CountDownLatch mDecodeStarted = new CountDownLatch(1);
+        final CountDownLatch mDecodeFinished = new CountDownLatch(1);
+        volatile CountDownLatch mLookupGate = new CountDownLatch(0);
+        volatile CountDownLatch mDecodeGate = new CountDownLatch(0);
+
+        TestResolver(BitmapCache cache) {
+            super(null /* resolver */, cache);
+        }
+
+        @Override
+        protected ImmutableMap<String, ContactInfo> loadContactPhotos(Set<String> emails) {
+            mLookups.add(new HashSet<String>(emails));
+            mLookupStarted.countDown();
+            await(mLookupGate);
+            final ImmutableMap.Builder<String, ContactInfo> builder = ImmutableMap.builder();
+            for (String email : emails) {
+                builder.put(email, new ContactInfo(null, sPhoto));
+            }
+            return builder.build();
+        }
+
+        @Override
+        protected ReusableBitmap decodePhoto(ContactRequest request, byte[] photo, int width,
+                int height) {
+            mDecodeStarted.countDown();
+            await(mDecodeGate);
+            final ReusableBitmap result = super.decodePhoto(request, photo, width, height);
+            mDecodeFinished.countDown();
+            return result;
+        }
+    }
+
+    /** Records the results delivered to it. */
+    private static class Destination implements ContactResolver.ContactDrawableInterface {
+        final List<ReusableBitmap> mResults = new ArrayList<ReusableBitmap>();
+        final CountDownLatch mDelivered;
+
+        Destination(CountDownLatch delivered) {
+            mDelivered = delivered;
+        }
+
+        @Override
+        public void onDecodeComplete(RequestKey key, ReusableBitmap result) {
+            assertSame(Looper.getMainLooper(), Looper.myLooper());
+            mResults.add(result);
+            mDelivered.countDown();
+        }
+
+        @Override
+        public int getDecodeWidth() {
+            return 48;
+        }
+
+        @Override
+        public int getDecodeHeight() {
+            return 48;
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            fail(e.toString());
+        }
+    }
+
+    /** Runs the runnable on the main thread, where the resolver is used, and waits for it. */
+    private static void runOnMainThread(final Runnable runnable) {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        await(done);
+    }
+
+    private static TestResolver createResolver(final BitmapCache cache) {
+        final TestResolver[] resolver = new TestResolver[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                resolver[0] = new TestResolver(cache);
+            }
+        });
+        return resolver[0];
+    }
+
+    private static BitmapCache createCache() {
+        return new UnrefedBitmapCache(1024 * 1024, 0.1f, 100);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (sPhoto == null) {
+            final Bitmap bitmap = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(Color.BLUE);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            sPhoto = out.toByteArray();
+        }
+    }
+
+    private static void add(final ContactResolver resolver, final List<ContactRequest> requests,
+            final List<Destination> destinations, int first, int count,
+            CountDownLatch delivered) {
+        final List<ContactRequest> added = new ArrayList<ContactRequest>();
+        final List<Destination> addedDestinations = new ArrayList<Destination>();
+        for (int i = first; i < first + count; i++) {
+            added.add(new ContactRequest("Sender " + i, "sender" + i + "@example.com"));
+            addedDestinations.add(new Destination(delivered));
+        }
+        requests.addAll(added);
+        destinations.addAll(addedDestinations);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < added.size(); i++) {
+                    resolver.add(added.get(i), addedDestinations.get(i));
+                }
+            }
+        });
+    }
+
+    @MediumTest
+    public void testRequestsAddedDuringLookupAreMergedAndCached() {
+        final BitmapCache cache = createCache();
+        final TestResolver resolver = createResolver(cache);
+        resolver.mLookupGate = new CountDownLatch(1);
+        final List<ContactRequest> requests = new ArrayList<ContactRequest>();
+        final List<Destination> destinations = new ArrayList<Destination>();
+        final CountDownLatch delivered = new CountDownLatch(15);
+
+        add(resolver, requests, destinations, 0, 5, delivered);
+        await(resolver.mLookupStarted);
+        // These arrive while the first lookup is running, and are looked up together after it.
+        add(resolver, requests, destinations, 5, 10, delivered);
+        resolver.mLookupGate.countDown();
+        await(delivered);
+
+        assertEquals(2, resolver.mLookups.size());
+        assertEquals(5, resolver.mLookups.get(0).size());
+        assertEquals(10, resolver.mLookups.get(1).size());
+        // The decodes ran in parallel, and every result was delivered once and cached.
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(1, destinations.get(i).mResults.size());
+            assertNotNull(destinations.get(i).mResults.get(0));
+            assertNotNull(cache.get(requests.get(i), false /* incrementRefCount */));
+        }
+    }
+
+    @MediumTest
+    public void testRequestRemovedDuringDecodeIsNotDeliveredOrCached() {
+        final BitmapCache cache = createCache();
+        final TestResolver resolver = createResolver(cache);
+        resolver.mDecodeGate = new CountDownLatch(1);
+        final List<ContactRequest> requests = new ArrayList<ContactRequest>();
+        final List<Destination> destinations = new ArrayList<Destination>();
+
+        add(resolver, requests, destinations, 0, 1, new CountDownLatch(1));
+        await(resolver.mDecodeStarted);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                resolver.remove(requests.get(0), destinations.get(0));
+            }
+        });
+        resolver.mDecodeGate.countDown();
+        await(resolver.mDecodeFinished);
+
+        // Resolve another request, so that anything the first decode posted has run.
+        final CountDownLatch delivered = new CountDownLatch(1);
+        add(resolver, requests, destinations, 1, 1, delivered);
+        await(delivered);
+
+        assertTrue(destinations.get(0).mResults.isEmpty());
+        assertNull(cache.get(requests.get(0), false /* incrementRefCount */));
+        assertNotNull(cache.get(requests.get(1), false /* incrementRefCount */));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.bitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Align;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+public class LetterGlyphAtlasTest extends AndroidTestCase {
+    private static final int FONT_SIZE = 48;
+    private static final int TILE_SIZE = 80;
+
+    /** Rows drawn in the benchmark, as in a long fling through the conversation list. */
+    private static final int BENCHMARK_ROWS = 5000;
+    private static final String NAMES = "AbCdEfGhIjKlMnOpQrStUvWxYz0123456789";
+
+    private final char[] mFirstChar = new char[1];
+    private final Rect mTextBounds = new Rect();
+
+    @SmallTest
+    public void testSameAtlasForSameSize() {
+        final LetterGlyphAtlas atlas = LetterGlyphAtlas.get(FONT_SIZE);
+        assertSame(atlas, LetterGlyphAtlas.get(FONT_SIZE));
+        assertNotSame(atlas, LetterGlyphAtlas.get(FONT_SIZE / 2));
+        assertSame(atlas, LetterGlyphAtlas.get(FONT_SIZE));
+    }
+
+    @SmallTest
+    public void testGlyphIsDrawnWhereTextWas() {
+        final Bitmap text = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        final Bitmap atlas = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        final Canvas textCanvas = new Canvas(text);
+        final Canvas atlasCanvas = new Canvas(atlas);
+        final Paint textPaint = createTextPaint();
+        final Paint glyphPaint = new Paint();
+        glyphPaint.setColor(Color.WHITE);
+        glyphPaint.setFilterBitmap(true);
+        final Rect textBounds = new Rect();
+        final Rect atlasBounds = new Rect();
+        for (int i = 0; i < NAMES.length(); i++) {
+            final char c = NAMES.charAt(i);
+            text.eraseColor(Color.BLACK);
+            atlas.eraseColor(Color.BLACK);
+            drawText(textCanvas, c, textPaint);
+            LetterGlyphAtlas.get(FONT_SIZE).drawGlyph(atlasCanvas, c, TILE_SIZE / 2,
+                    TILE_SIZE / 2, glyphPaint);
+            getInkBounds(text, textBounds);
+            getInkBounds(atlas, atlasBounds);
+            assertFalse(textBounds.isEmpty());
+            // Allow for the antialiased edges.
+            assertTrue(c + ": " + textBounds + " " + atlasBounds,
+                    Math.abs(textBounds.left - atlasBounds.left) <= 1
+                    && Math.abs(textBounds.top - atlasBounds.top) <= 1
+                    && Math.abs(textBounds.right - atlasBounds.right) <= 1
+                    && Math.abs(textBounds.bottom - atlasBounds.bottom) <= 1);
+        }
+    }
+
+    /**
+     * Glyphs are copied pixel for pixel, for any font size and center, so that filtering doesn't
+     * change them.
+     */
+    @SmallTest
+    public void testGlyphIsNotResampled() {
+        final Bitmap filtered = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        final Bitmap unfiltered = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE,
+                Bitmap.Config.ARGB_8888);
+        final Paint filteredPaint = new Paint();
+        filteredPaint.setColor(Color.WHITE);
+        filteredPaint.setFilterBitmap(true);
+        final Paint unfilteredPaint = new Paint();
+        unfilteredPaint.setColor(Color.WHITE);
+        // Font sizes 34 and 35 would have odd cells, 32 and 33 even ones.
+        for (int fontSize = 32; fontSize <= 35; fontSize++) {
+            final LetterGlyphAtlas atlas = LetterGlyphAtlas.get(fontSize);
+            for (float center = TILE_SIZE / 2; center < TILE_SIZE / 2 + 1; center += 0.25f) {
+                filtered.eraseColor(Color.BLACK);
+                unfiltered.eraseColor(Color.BLACK);
+                atlas.drawGlyph(new Canvas(filtered), 'M', center, center, filteredPaint);
+                atlas.drawGlyph(new Canvas(unfiltered), 'M', center, center, unfilteredPaint);
+                assertTrue(fontSize + " at " + center, filtered.sameAs(unfiltered));
+            }
+        }
+    }
+
+    /**
+     * Compares the time and allocations per row of drawing a tile's letter from the atlas and
+     * of measuring and drawing it as text, the way the tiles used to.
+     */
+    @LargeTest
+    public void testDrawBenchmark() {
+        final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint textPaint = createTextPaint();
+        final Paint glyphPaint = new Paint();
+        glyphPaint.setColor(Color.WHITE);
+        glyphPaint.setFilterBitmap(true);
+        // Render the atlas and warm up the glyph cache before measuring.
+        final LetterGlyphAtlas atlas = LetterGlyphAtlas.get(FONT_SIZE);
+        for (int i = 0; i < NAMES.length(); i++) {
+            drawText(canvas, NAMES.charAt(i), textPaint);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            drawText(canvas, NAMES.charAt(i % NAMES.length()), textPaint);
+        }
+        final long textTimeNs = System.nanoTime() - start;
+        final int textAllocations = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            atlas.drawGlyph(canvas, NAMES.charAt(i % NAMES.length()), TILE_SIZE / 2,
+                    TILE_SIZE / 2, glyphPaint);
+        }
+        final long atlasTimeNs = System.nanoTime() - start;
+        final int atlasAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        Log.i("LetterGlyphAtlasTest", String.format("%d rows: text %dns %.2f allocations per row, "
+                + "atlas %dns %.2f allocations per row (%d bytes)", BENCHMARK_ROWS,
+                textTimeNs / BENCHMARK_ROWS, (float) textAllocations / BENCHMARK_ROWS,
+                atlasTimeNs / BENCHMARK_ROWS, (float) atlasAllocations / BENCHMARK_ROWS,
+                atlas.getByteCount()));
+        assertEquals(0, atlasAllocations);
+    }
+
+    private static Paint createTextPaint() {
+        final Paint paint = new Paint();
+        paint.setTypeface(Typeface.create("sans-serif-light", Typeface.NORMAL));
+        paint.setTextAlign(Align.CENTER);
+        paint.setAntiAlias(true);
+        paint.setTextSize(FONT_SIZE);
+        paint.setColor(Color.WHITE);
+        return paint;
+    }
+
+    /** Draws a letter the way the tiles did before the atlas. */
+    private void drawText(Canvas canvas, char c, Paint paint) {
+        mFirstChar[0] = Character.toUpperCase(c);
+        paint.getTextBounds(mFirstChar, 0, 1, mTextBounds);
+        canvas.drawText(mFirstChar, 0, 1, TILE_SIZE / 2,
+                TILE_SIZE / 2 + (mTextBounds.bottom - mTextBounds.top) / 2, paint);
+    }
+
+    /** The bounds of the pixels that are mostly ink, ignoring faint antialiasing. */
+    private static void getInkBounds(Bitmap bitmap, Rect out) {
+        out.set(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            for (int x = 0; x < bitmap.getWidth(); x++) {
+                if (Color.red(bitmap.getPixel(x, y)) >= 128) {
+                    out.set(Math.min(out.left, x), Math.min(out.top, y),
+                            Math.max(out.right, x + 1), Math.max(out.bottom, y + 1));
+                }
+            }
+        }
+    }
+}
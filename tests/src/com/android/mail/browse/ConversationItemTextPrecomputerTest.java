@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.MatrixCursor;
+import android.graphics.Typeface;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.style.StyleSpan;
+import android.util.Log;
+
+import com.android.mail.FormattedDateBuilder;
+import com.android.mail.browse.ConversationItemTextPrecomputer.RowText;
+import com.android.mail.providers.Account;
+import com.android.mail.providers.Conversation;
+import com.android.mail.providers.ConversationInfo;
+import com.android.mail.providers.ParticipantInfo;
+import com.android.mail.providers.UIProvider;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+
+public class ConversationItemTextPrecomputerTest extends AndroidTestCase {
+    private static final int BENCHMARK_BINDS = 2000;
+
+    private static Conversation createConversation(long id, String subject, boolean read) {
+        final ConversationInfo info = new ConversationInfo(2, 0, "first", "first unread", "last");
+        info.addParticipant(new ParticipantInfo("Alice", "alice@example.com", 0, read));
+        info.addParticipant(new ParticipantInfo("Bob", "bob@example.com", 0, read));
+
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION, 1);
+        final Object[] values = new Object[UIProvider.CONVERSATION_PROJECTION.length];
+        values[UIProvider.CONVERSATION_ID_COLUMN] = id;
+        values[UIProvider.CONVERSATION_URI_COLUMN] = "content://test/conversation/" + id;
+        values[UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN] = 1400000000000L;
+        values[UIProvider.CONVERSATION_SUBJECT_COLUMN] = subject;
+        values[UIProvider.CONVERSATION_READ_COLUMN] = read ? 1 : 0;
+        values[UIProvider.CONVERSATION_INFO_COLUMN] = info.toBlob();
+        cursor.addRow(values);
+        cursor.moveToFirst();
+        final Conversation conv = new Conversation(cursor);
+        cursor.close();
+        return conv;
+    }
+
+    private static Account createAccount() throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put(UIProvider.AccountColumns.NAME, "Test");
+        json.put(UIProvider.AccountColumns.ACCOUNT_MANAGER_NAME, "test@example.com");
+        json.put(UIProvider.AccountColumns.TYPE, "IMAP");
+        json.put(UIProvider.AccountColumns.PROVIDER_VERSION, 1);
+        json.put(UIProvider.AccountColumns.CAPABILITIES, 0);
+        return Account.builder().buildFrom(json);
+    }
+
+    /** Builds the text of a row the way the precomputer does, without measuring it. */
+    private RowText createRowText(Conversation conv, Account account) {
+        return createRowText(conv, account, FormattedDateBuilder.getShortDateStamp());
+    }
+
+    private RowText createRowText(Conversation conv, Account account, long dateStamp) {
+        final SpannableStringBuilder messageInfo =
+                SendersView.createMessageInfo(getContext(), conv, true);
+        final ArrayList<SpannableString> styledNames = new ArrayList<SpannableString>();
+        final ArrayList<String> displayableNames = new ArrayList<String>();
+        final ConversationItemViewModel.SenderAvatarModel avatar =
+                new ConversationItemViewModel.SenderAvatarModel();
+        SendersView.format(getContext(), conv.conversationInfo, messageInfo.toString(), 100,
+                styledNames, displayableNames, avatar, account, false, true);
+        final SpannableStringBuilder sendersText = new SpannableStringBuilder();
+        for (SpannableString name : styledNames) {
+            sendersText.append(name);
+        }
+        sendersText.append(messageInfo);
+        return new RowText(conv, false, messageInfo, styledNames, displayableNames, avatar,
+                dateStamp, "date", new SpannableString(conv.subject),
+                new SpannableString(conv.getSnippet()), 10f, sendersText, 50f);
+    }
+
+    @SmallTest
+    public void testDateTextFresh() throws Exception {
+        final Conversation conv = createConversation(1, "subject", false);
+        final long dateStamp = FormattedDateBuilder.getShortDateStamp();
+        assertTrue(createRowText(conv, createAccount(), dateStamp).isDateTextFresh());
+        // Text formatted before a day or clock settings change is stale.
+        assertFalse(createRowText(conv, createAccount(), dateStamp - 1).isDateTextFresh());
+    }
+
+    @SmallTest
+    public void testMatches() throws Exception {
+        final Conversation conv = createConversation(1, "subject", false);
+        final RowText rowText = createRowText(conv, createAccount());
+        assertTrue(rowText.matches(conv, false));
+        assertFalse(rowText.matches(conv, true));
+
+        // A reloaded conversation with the same contents still matches.
+        assertTrue(rowText.matches(createConversation(1, "subject", false), false));
+        assertFalse(rowText.matches(createConversation(1, "other subject", false), false));
+        assertFalse(rowText.matches(createConversation(1, "subject", true), false));
+    }
+
+    @SmallTest
+    public void testEachBindGetsItsOwnText() throws Exception {
+        final RowText rowText = createRowText(createConversation(1, "subject", false),
+                createAccount());
+        final ConversationItemViewModel header1 = new ConversationItemViewModel();
+        final ConversationItemViewModel header2 = new ConversationItemViewModel();
+        rowText.applyTo(header1);
+        rowText.applyTo(header2);
+        assertNotSame(header1.messageInfoString, header2.messageInfoString);
+        assertEquals(header1.styledNames.size(), header2.styledNames.size());
+        for (int i = 0; i < header1.styledNames.size(); i++) {
+            assertNotSame(header1.styledNames.get(i), header2.styledNames.get(i));
+            assertEquals(header1.styledNames.get(i).toString(),
+                    header2.styledNames.get(i).toString());
+        }
+
+        // Styling the text of one view leaves the text of the others alone.
+        final Object span = new StyleSpan(Typeface.BOLD);
+        final Spannable subject = rowText.copySubject();
+        subject.setSpan(span, 0, subject.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+        assertEquals(-1, rowText.copySubject().getSpanStart(span));
+        final SpannableStringBuilder sendersText = rowText.copySendersText();
+        sendersText.setSpan(span, 0, sendersText.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+        assertEquals(-1, rowText.copySendersText().getSpanStart(span));
+        header1.styledNames.get(0).setSpan(span, 0, 1, Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+        assertEquals(-1, header2.styledNames.get(0).getSpanStart(span));
+        assertEquals("subject", rowText.copySubject().toString());
+    }
+
+    /**
+     * Times the text part of binding a row with its precomputed text, copies included, against
+     * formatting the text at bind time.
+     */
+    @LargeTest
+    public void testBindBenchmark() throws Exception {
+        final Account account = createAccount();
+        final Conversation conv = createConversation(1, "A subject of average length", false);
+        final RowText rowText = createRowText(conv, account);
+        final ConversationItemViewModel header = new ConversationItemViewModel();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_BINDS; i++) {
+            rowText.applyTo(header);
+            rowText.copySendersText();
+            rowText.copySubject();
+            rowText.copySnippet();
+        }
+        final long precomputedNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_BINDS; i++) {
+            createRowText(conv, account);
+        }
+        final long formattedNs = System.nanoTime() - start;
+
+        Log.i("ConversationItemTextPrecomputerTest", String.format(
+                "%d binds: precomputed %dus per bind, formatted %dus per bind",
+                BENCHMARK_BINDS, precomputedNs / BENCHMARK_BINDS / 1000,
+                formattedNs / BENCHMARK_BINDS / 1000));
+        assertEquals(conv.subject, rowText.copySubject().toString());
+    }
+}
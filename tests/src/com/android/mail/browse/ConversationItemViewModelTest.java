@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.Pair;
+
+import com.android.mail.providers.Conversation;
+import com.android.mail.providers.ConversationInfo;
+import com.android.mail.providers.Folder;
+import com.android.mail.providers.FolderList;
+import com.android.mail.providers.UIProvider;
+
+import java.util.Arrays;
+
+public class ConversationItemViewModelTest extends AndroidTestCase {
+    private static final String ACCOUNT1 = "one@example.com";
+    private static final String ACCOUNT2 = "two@example.com";
+
+    /** Rows bound in the benchmark, and how many distinct conversations they cycle through. */
+    private static final int BENCHMARK_BINDS = 10000;
+    private static final int BENCHMARK_CONVERSATIONS = 40;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ConversationItemViewModel.onAccessibilityUpdated();
+        ConversationItemViewModel.onFolderUpdated(null);
+    }
+
+    @SmallTest
+    public void testSameModelForSameConversation() {
+        final ConversationItemViewModel header =
+                ConversationItemViewModel.forConversationId(ACCOUNT1, 1);
+        assertSame(header, ConversationItemViewModel.forConversationId(ACCOUNT1, 1));
+        assertSame(header, ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, 1));
+        assertNotSame(header, ConversationItemViewModel.forConversationId(ACCOUNT1, 2));
+    }
+
+    @SmallTest
+    public void testAccountsAreSeparate() {
+        final ConversationItemViewModel header1 =
+                ConversationItemViewModel.forConversationId(ACCOUNT1, 1);
+        assertNull(ConversationItemViewModel.forConversationIdOrNull(ACCOUNT2, 1));
+        final ConversationItemViewModel header2 =
+                ConversationItemViewModel.forConversationId(ACCOUNT2, 1);
+        assertNotSame(header1, header2);
+        assertSame(header1, ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, 1));
+    }
+
+    @SmallTest
+    public void testLeastRecentlyUsedIsEvicted() {
+        final int size = ConversationItemViewModel.getCacheSize();
+        final ConversationItemViewModel first =
+                ConversationItemViewModel.forConversationId(ACCOUNT1, 0);
+        for (int i = 1; i < size; i++) {
+            ConversationItemViewModel.forConversationId(ACCOUNT1, i);
+        }
+        // Touch the first model so that the second one becomes the eldest.
+        assertSame(first, ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, 0));
+        ConversationItemViewModel.forConversationId(ACCOUNT1, size);
+        assertSame(first, ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, 0));
+        assertNull(ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, 1));
+    }
+
+    @SmallTest
+    public void testAccountsShareOneLimit() {
+        final int size = ConversationItemViewModel.getCacheSize();
+        final ConversationItemViewModel first =
+                ConversationItemViewModel.forConversationId(ACCOUNT1, 0);
+        for (int i = 1; i < size; i++) {
+            ConversationItemViewModel.forConversationId(ACCOUNT1, i);
+        }
+        // A model of another account evicts the eldest model of the first one.
+        ConversationItemViewModel.forConversationId(ACCOUNT2, 0);
+        assertNull(ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, 0));
+        assertNotSame(first, ConversationItemViewModel.forConversationId(ACCOUNT1, 0));
+        int cached = 0;
+        for (int i = 0; i < size; i++) {
+            if (ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, i) != null) {
+                cached++;
+            }
+            if (ConversationItemViewModel.forConversationIdOrNull(ACCOUNT2, i) != null) {
+                cached++;
+            }
+        }
+        assertEquals(size, cached);
+    }
+
+    @SmallTest
+    public void testFolderUpdateKeepsModels() {
+        final ConversationItemViewModel header =
+                ConversationItemViewModel.forConversationId(ACCOUNT1, 1);
+        ConversationItemViewModel.onFolderUpdated(new Folder.Builder().setId(42)
+                .setUri(Uri.parse("content://test/folder/42")).build());
+        assertSame(header, ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, 1));
+        ConversationItemViewModel.onAccessibilityUpdated();
+        assertNull(ConversationItemViewModel.forConversationIdOrNull(ACCOUNT1, 1));
+    }
+
+    private static Folder createFolder(int id, int type) {
+        return new Folder.Builder().setId(id).setName("Folder " + id).setType(type)
+                .setUri(Uri.parse("content://test/folder/" + id)).build();
+    }
+
+    /** Returns a laid out model of a conversation in the given folders. */
+    private static ConversationItemViewModel createValidModel(long id, Folder... folders) {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION, 1);
+        final Object[] values = new Object[UIProvider.CONVERSATION_PROJECTION.length];
+        values[UIProvider.CONVERSATION_ID_COLUMN] = id;
+        values[UIProvider.CONVERSATION_URI_COLUMN] = "content://test/conversation/" + id;
+        values[UIProvider.CONVERSATION_SUBJECT_COLUMN] = "Subject " + id;
+        values[UIProvider.CONVERSATION_INFO_COLUMN] =
+                new ConversationInfo(1, 0, "first", "first unread", "last").toBlob();
+        cursor.addRow(values);
+        cursor.moveToFirst();
+        final Conversation conversation = new Conversation(cursor);
+        cursor.close();
+        conversation.setRawFolders(FolderList.copyOf(Arrays.asList(folders)));
+
+        final ConversationItemViewModel header =
+                ConversationItemViewModel.forConversation(ACCOUNT1, conversation);
+        header.dateText = "10:00";
+        header.validate();
+        assertTrue(header.isDataValid());
+        return header;
+    }
+
+    @SmallTest
+    public void testFolderUpdateInvalidatesModelsInFolders() {
+        final Folder inbox = createFolder(1, UIProvider.FolderType.INBOX);
+        final Folder work = createFolder(2, UIProvider.FolderType.DEFAULT);
+        final Folder travel = createFolder(3, UIProvider.FolderType.DEFAULT);
+        ConversationItemViewModel.onFolderUpdated(inbox);
+
+        final ConversationItemViewModel inInbox = createValidModel(1, inbox);
+        final ConversationItemViewModel atWork = createValidModel(2, work);
+        final ConversationItemViewModel traveling = createValidModel(3, travel);
+        final ConversationItemViewModel inBoth = createValidModel(4, inbox, travel);
+
+        // Leaving the inbox for work changes the chips of conversations in either folder.
+        ConversationItemViewModel.onFolderUpdated(work);
+        assertFalse(inInbox.isDataValid());
+        assertFalse(atWork.isDataValid());
+        assertTrue(traveling.isDataValid());
+        assertFalse(inBoth.isDataValid());
+
+        // An update of the folder being viewed changes nothing.
+        inInbox.validate();
+        atWork.validate();
+        inBoth.validate();
+        ConversationItemViewModel.onFolderUpdated(work);
+        assertTrue(inInbox.isDataValid());
+        assertTrue(atWork.isDataValid());
+        assertTrue(inBoth.isDataValid());
+    }
+
+    /**
+     * Compares the allocations and time of looking up models while binding rows against the
+     * previous global cache keyed by (account, conversation id) pairs.
+     */
+    @LargeTest
+    public void testBindLookupBenchmark() {
+        // Warm up both caches so that only lookups of cached models are measured.
+        final LruCache<Pair<String, Long>, ConversationItemViewModel> pairCache =
+                new LruCache<Pair<String, Long>, ConversationItemViewModel>(100);
+        for (int i = 0; i < BENCHMARK_CONVERSATIONS; i++) {
+            ConversationItemViewModel.forConversationId(ACCOUNT1, i);
+            pairCache.put(new Pair<String, Long>(ACCOUNT1, (long) i),
+                    new ConversationItemViewModel());
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_BINDS; i++) {
+            assertNotNull(ConversationItemViewModel.forConversationId(ACCOUNT1,
+                    i % BENCHMARK_CONVERSATIONS));
+        }
+        final long cacheTimeNs = System.nanoTime() - start;
+        final int cacheAllocations = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_BINDS; i++) {
+            // What the previous forConversation did: a pair for the lookup, and another one if
+            // the model had to be created.
+            final Pair<String, Long> key =
+                    new Pair<String, Long>(ACCOUNT1, (long) (i % BENCHMARK_CONVERSATIONS));
+            synchronized (pairCache) {
+                assertNotNull(pairCache.get(key));
+            }
+        }
+        final long pairTimeNs = System.nanoTime() - start;
+        final int pairAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        Log.i("ConversationItemViewModelTest", String.format(
+                "%d binds: long keyed cache %d allocations %dus, pair keyed cache %d allocations "
+                + "%dus", BENCHMARK_BINDS, cacheAllocations, cacheTimeNs / 1000,
+                pairAllocations, pairTimeNs / 1000));
+        assertTrue(cacheAllocations < pairAllocations);
+    }
+}
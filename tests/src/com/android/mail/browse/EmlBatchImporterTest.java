@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.test.IsolatedContext;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.text.TextUtils;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.mail.browse.EmlMessageLoaderTest.TestEmlProvider;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EmlBatchImporterTest extends AndroidTestCase {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private TestEmlProvider mTestProvider;
+
+    /** Records the callbacks of an import. */
+    private static class RecordingCallback implements EmlBatchImporter.Callback {
+        final List<Uri> mImported = Collections.synchronizedList(new ArrayList<Uri>());
+        final List<Uri> mFailed = Collections.synchronizedList(new ArrayList<Uri>());
+        final List<ConversationMessage> mMessages =
+                Collections.synchronizedList(new ArrayList<ConversationMessage>());
+        final CountDownLatch mFinished = new CountDownLatch(1);
+        volatile EmlBatchImporter.Stats mStats;
+
+        @Override
+        public void onMessageImported(Uri emlFileUri, ConversationMessage message,
+                long latencyMs) {
+            assertSame(Looper.getMainLooper(), Looper.myLooper());
+            (message != null ? mImported : mFailed).add(emlFileUri);
+            if (message != null) {
+                mMessages.add(message);
+            }
+        }
+
+        @Override
+        public void onImportFinished(EmlBatchImporter.Stats stats) {
+            mStats = stats;
+            mFinished.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final MockContentResolver resolver = new MockContentResolver();
+        final IsolatedContext context = new IsolatedContext(resolver, getContext());
+        final Context wrappedContext = new ContextWrapper(context) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+        };
+        setContext(wrappedContext);
+        mTestProvider = new TestEmlProvider(wrappedContext);
+        resolver.addProvider(TestEmlProvider.AUTHORITY, mTestProvider);
+    }
+
+    private static Uri emlUri(String name) {
+        return TestProvider.uri(new Uri.Builder().scheme("content").authority("eml")
+                .path(name).build());
+    }
+
+    private static byte[] eml(String subject) throws Exception {
+        return ("From: sender@example.com\r\n"
+                + "To: recipient@example.com\r\n"
+                + "Subject: " + subject + "\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "\r\n"
+                + "Body of " + subject + "\r\n").getBytes("UTF-8");
+    }
+
+    /** Returns the write end of the file of the uri, which is read until it is closed. */
+    private OutputStream openEml(Uri uri) throws Exception {
+        return new ParcelFileDescriptor.AutoCloseOutputStream(mTestProvider.makePipeForUri(uri));
+    }
+
+    private Uri addEml(String name) throws Exception {
+        return addEml(name, eml(name));
+    }
+
+    private Uri addEml(String name, byte[] eml) throws Exception {
+        final Uri uri = emlUri(name);
+        final OutputStream out = openEml(uri);
+        out.write(eml);
+        out.close();
+        return uri;
+    }
+
+    /** Waits for the callbacks already posted to the main thread to run. */
+    private static void drainMainThread() throws InterruptedException {
+        final CountDownLatch drained = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static void assertNoTempFilesLeft() {
+        final String[] left = TempDirectory.getTempDirectory().list();
+        if (left != null) {
+            for (String name : left) {
+                assertFalse(name, name.startsWith("emlparse"));
+            }
+        }
+    }
+
+    @MediumTest
+    public void testImportsEveryFile() throws Exception {
+        final List<Uri> uris = new ArrayList<Uri>();
+        for (int i = 0; i < 6; i++) {
+            uris.add(addEml("message" + i));
+        }
+        final Uri missing = emlUri("missing");
+        uris.add(missing);
+
+        final RecordingCallback callback = new RecordingCallback();
+        final EmlBatchImporter importer = new EmlBatchImporter(getContext(), callback, 3);
+        importer.importFiles(uris);
+        assertTrue(callback.mFinished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(6, callback.mImported.size());
+        assertTrue(callback.mImported.containsAll(uris.subList(0, 6)));
+        assertEquals(Arrays.asList(missing), callback.mFailed);
+        assertEquals(6, callback.mStats.imported);
+        assertEquals(1, callback.mStats.failed);
+        assertTrue(importer.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNoTempFilesLeft();
+    }
+
+    @MediumTest
+    public void testCancelDuringParse() throws Exception {
+        // The first file blocks the only thread until it is written, so that the importer is
+        // cancelled halfway through parsing it, with the other files still queued.
+        final Uri blocking = emlUri("blocking");
+        final OutputStream blockingOut = openEml(blocking);
+        final List<Uri> uris = new ArrayList<Uri>();
+        uris.add(blocking);
+        uris.add(addEml("queued1"));
+        uris.add(addEml("queued2"));
+
+        final RecordingCallback callback = new RecordingCallback();
+        final EmlBatchImporter importer = new EmlBatchImporter(getContext(), callback, 1);
+        importer.importFiles(uris);
+        blockingOut.write(eml("blocking"), 0, 20);
+        importer.cancel();
+        blockingOut.write(eml("blocking"), 20, eml("blocking").length - 20);
+        blockingOut.close();
+
+        // The parse of the first file completes, but neither it nor the queued files are
+        // delivered, and the temp files of the parse are removed.
+        assertTrue(importer.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        drainMainThread();
+        assertTrue(callback.mImported.isEmpty());
+        assertTrue(callback.mFailed.isEmpty());
+        assertEquals(1, callback.mFinished.getCount());
+        assertNoTempFilesLeft();
+    }
+
+    @MediumTest
+    public void testImportsHeadersOnly() throws Exception {
+        final Uri uri = addEml("attachment", ("From: sender@example.com\r\n"
+                + "Subject: With attachment\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"b\"\r\n"
+                + "\r\n"
+                + "--b\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "Body text\r\n"
+                + "--b\r\n"
+                + "Content-Type: application/octet-stream; name=\"data.bin\"\r\n"
+                + "Content-Disposition: attachment; filename=\"data.bin\"\r\n"
+                + "\r\n"
+                + "0123456789\r\n"
+                + "--b--\r\n").getBytes("UTF-8"));
+
+        final RecordingCallback callback = new RecordingCallback();
+        final EmlBatchImporter importer = new EmlBatchImporter(getContext(), callback, 1, true);
+        importer.importFiles(Arrays.asList(uri));
+        assertTrue(callback.mFinished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The message lists the file, but its body and attachment were never read.
+        assertEquals(1, callback.mMessages.size());
+        final ConversationMessage message = callback.mMessages.get(0);
+        assertEquals("With attachment", message.subject);
+        assertEquals("sender@example.com", message.getFrom());
+        assertTrue(TextUtils.isEmpty(message.bodyText));
+        assertTrue(message.getAttachments().isEmpty());
+        assertTrue(importer.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNoTempFilesLeft();
+    }
+}
@@ -17,10 +17,20 @@
 
 package com.android.mail.browse;
 
+import android.graphics.Typeface;
+import android.os.Debug;
+import android.support.v4.text.BidiFormatter;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.SpannableString;
+import android.text.TextUtils;
+import android.text.style.CharacterStyle;
+import android.text.style.StyleSpan;
+import android.text.style.TextAppearanceSpan;
+import android.util.Log;
 
+import com.android.mail.R;
 import com.android.mail.providers.Account;
 import com.android.mail.providers.ConversationInfo;
 import com.android.mail.providers.ParticipantInfo;
@@ -36,6 +46,14 @@ import java.util.Map;
 
 @SmallTest
 public class SendersFormattingTests extends AndroidTestCase {
+    /** Conversations formatted in the benchmark, their participants, and how often each. */
+    private static final int BENCHMARK_CONVERSATIONS = 20;
+    private static final int BENCHMARK_PARTICIPANTS = 50;
+    private static final int BENCHMARK_ROUNDS = 50;
+
+    /** The priority to length map that {@link #formatLegacy} reused between calls. */
+    private static final Map<Integer, Integer> sLegacyPriorityToLength =
+            new HashMap<Integer, Integer>();
 
     private static ConversationInfo createConversationInfo() {
         return new ConversationInfo(0, 5, "snippet", "snippet", "snippet");
@@ -267,6 +285,247 @@ public class SendersFormattingTests extends AndroidTestCase {
         assertEquals("Andrew", displayableSenderNames.get(1));
     }
 
+    public void testCachedFormatMatchesUncached() {
+        final ConversationInfo conv = createConversationInfo(BENCHMARK_PARTICIPANTS, 7);
+        final Account account = createAccount();
+        final SendersView.FormatCache cache = new SendersView.FormatCache(4);
+
+        final ArrayList<SpannableString> expected = Lists.newArrayList();
+        final ArrayList<String> expectedNames = Lists.newArrayList();
+        SendersView.format(getContext(), conv, "", 40, expected, expectedNames, null, account,
+                false, true);
+        for (int i = 0; i < 2; i++) {
+            final ArrayList<SpannableString> strings = Lists.newArrayList();
+            final ArrayList<String> names = Lists.newArrayList();
+            SendersView.format(getContext(), conv, "", 40, strings, names, null, account, false,
+                    true, cache);
+            assertEquals(toStrings(expected), toStrings(strings));
+            assertEquals(expectedNames, names);
+        }
+
+        // Reading the conversation changes the styles, so it must not reuse the unread line.
+        conv.markRead(true);
+        final ArrayList<SpannableString> read = Lists.newArrayList();
+        SendersView.format(getContext(), conv, "", 40, read, null, null, account, false, true,
+                cache);
+        final ArrayList<SpannableString> expectedRead = Lists.newArrayList();
+        SendersView.format(getContext(), conv, "", 40, expectedRead, null, null, account, false,
+                true);
+        assertEquals(toStrings(expectedRead), toStrings(read));
+        assertNotSame(expected.get(expected.size() - 1), read.get(read.size() - 1));
+    }
+
+    public void testCachedFormatReturnsCopies() {
+        final ConversationInfo conv = createConversationInfo(BENCHMARK_PARTICIPANTS, 7);
+        final Account account = createAccount();
+        final SendersView.FormatCache cache = new SendersView.FormatCache(4);
+
+        final ArrayList<SpannableString> first = Lists.newArrayList();
+        SendersView.format(getContext(), conv, "", 40, first, null, null, account, false, true,
+                cache);
+        final ArrayList<SpannableString> second = Lists.newArrayList();
+        SendersView.format(getContext(), conv, "", 40, second, null, null, account, false, true,
+                cache);
+        assertEquals(toStrings(first), toStrings(second));
+
+        // Styling the lines of one caller leaves the cached lines alone.
+        final Object span = new StyleSpan(Typeface.BOLD);
+        for (SpannableString sender : first) {
+            if (sender != null) {
+                sender.setSpan(span, 0, sender.length(), 0);
+            }
+        }
+        for (SpannableString sender : second) {
+            if (sender != null) {
+                assertEquals(-1, sender.getSpanStart(span));
+                sender.setSpan(span, 0, sender.length(), 0);
+            }
+        }
+        final ArrayList<SpannableString> third = Lists.newArrayList();
+        SendersView.format(getContext(), conv, "", 40, third, null, null, account, false, true,
+                cache);
+        for (SpannableString sender : third) {
+            if (sender != null) {
+                assertEquals(-1, sender.getSpanStart(span));
+            }
+        }
+    }
+
+    /**
+     * Measures the allocations and time of formatting the senders of conversations with many
+     * participants, as when scrolling back and forth over a list: the way they were formatted
+     * before, and now without and with a cache.
+     */
+    @LargeTest
+    public void testFormatBenchmark() {
+        final Account account = createAccount();
+        final ConversationInfo[] convs = new ConversationInfo[BENCHMARK_CONVERSATIONS];
+        for (int i = 0; i < convs.length; i++) {
+            convs[i] = createConversationInfo(BENCHMARK_PARTICIPANTS, i);
+        }
+        final SendersView.FormatCache cache = new SendersView.FormatCache(convs.length);
+        final ArrayList<SpannableString> strings = Lists.newArrayList();
+        final TextAppearanceSpan unreadStyleSpan =
+                new TextAppearanceSpan(getContext(), R.style.SendersAppearanceUnreadStyle);
+        final TextAppearanceSpan readStyleSpan =
+                new TextAppearanceSpan(getContext(), R.style.SendersAppearanceReadStyle);
+        // Warm up the resources and the scratch space, and check that the old way formats the
+        // same lines.
+        SendersView.format(getContext(), convs[0], "", 25, strings, null, null, account, false,
+                true);
+        final ArrayList<SpannableString> legacyStrings = Lists.newArrayList();
+        formatLegacy(convs[0], "", 25, legacyStrings, unreadStyleSpan, readStyleSpan, false);
+        assertEquals(toStrings(legacyStrings), toStrings(strings));
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (ConversationInfo conv : convs) {
+                strings.clear();
+                formatLegacy(conv, "", 25, strings, unreadStyleSpan, readStyleSpan, false);
+            }
+        }
+        final long legacyTimeNs = System.nanoTime() - start;
+        final int legacyAllocations = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (ConversationInfo conv : convs) {
+                strings.clear();
+                SendersView.format(getContext(), conv, "", 25, strings, null, null, account,
+                        false, true);
+            }
+        }
+        final long uncachedTimeNs = System.nanoTime() - start;
+        final int uncachedAllocations = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (ConversationInfo conv : convs) {
+                strings.clear();
+                SendersView.format(getContext(), conv, "", 25, strings, null, null, account,
+                        false, true, cache);
+            }
+        }
+        final long cachedTimeNs = System.nanoTime() - start;
+        final int cachedAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        final int calls = BENCHMARK_ROUNDS * convs.length;
+        Log.i("SendersFormattingTests", String.format("%d calls with %d participants: "
+                + "before %.1f allocations %dus per call, "
+                + "uncached %.1f allocations %dus per call, cached %.1f allocations %dus per call",
+                calls, BENCHMARK_PARTICIPANTS, (float) legacyAllocations / calls,
+                legacyTimeNs / 1000 / calls, (float) uncachedAllocations / calls,
+                uncachedTimeNs / 1000 / calls, (float) cachedAllocations / calls,
+                cachedTimeNs / 1000 / calls));
+        assertTrue(uncachedAllocations < legacyAllocations);
+        assertTrue(cachedAllocations < uncachedAllocations);
+    }
+
+    /**
+     * The styled senders as {@link SendersView} formatted them before it kept its working state
+     * between calls, as the baseline of {@link #testFormatBenchmark()}.
+     */
+    private static void formatLegacy(ConversationInfo conversationInfo, String messageInfoString,
+            int maxChars, ArrayList<SpannableString> styledSenders,
+            TextAppearanceSpan unreadStyleSpan, CharacterStyle readStyleSpan,
+            boolean showToHeader) {
+        int maxPriorityToInclude = -1; // inclusive
+        int numCharsUsed = messageInfoString.length();
+        int numSendersUsed = 0;
+        int numCharsToRemovePerWord = 0;
+        int maxFoundPriority = 0;
+        if (numCharsUsed > maxChars) {
+            numCharsToRemovePerWord = numCharsUsed - maxChars;
+        }
+
+        sLegacyPriorityToLength.clear();
+        for (ParticipantInfo info : conversationInfo.participantInfos) {
+            final String senderName = info.name;
+            sLegacyPriorityToLength.put(info.priority,
+                    !TextUtils.isEmpty(senderName) ? senderName.length() : 0);
+            maxFoundPriority = Math.max(maxFoundPriority, info.priority);
+        }
+        while (maxPriorityToInclude < maxFoundPriority) {
+            if (sLegacyPriorityToLength.containsKey(maxPriorityToInclude + 1)) {
+                int length = numCharsUsed + sLegacyPriorityToLength.get(maxPriorityToInclude + 1);
+                if (numCharsUsed > 0) {
+                    length += 2;
+                }
+                if (length > maxChars && numSendersUsed >= 2) {
+                    break;
+                }
+                numCharsUsed = length;
+                numSendersUsed++;
+            }
+            maxPriorityToInclude++;
+        }
+
+        SpannableString spannableDisplay;
+        boolean appendedElided = false;
+        final Map<String, Integer> displayHash = new HashMap<String, Integer>();
+        final BidiFormatter bidiFormatter = BidiFormatter.getInstance();
+        for (int i = 0; i < conversationInfo.participantInfos.size(); i++) {
+            final ParticipantInfo currentParticipant = conversationInfo.participantInfos.get(i);
+            final String currentName = currentParticipant.name;
+            String nameString = !TextUtils.isEmpty(currentName) ? currentName : "";
+            if (nameString.length() == 0) {
+                nameString = SendersView.getMe(showToHeader /* useObjectMe */);
+            }
+            if (numCharsToRemovePerWord != 0) {
+                nameString = nameString.substring(0,
+                        Math.max(nameString.length() - numCharsToRemovePerWord, 0));
+            }
+
+            final CharacterStyle style = CharacterStyle.wrap(currentParticipant.readConversation
+                    ? readStyleSpan : unreadStyleSpan);
+            if (currentParticipant.priority <= maxPriorityToInclude) {
+                spannableDisplay = new SpannableString(bidiFormatter.unicodeWrap(nameString));
+                final int oldPos = displayHash.containsKey(currentName)
+                        ? displayHash.get(currentName) : -5;
+                if (oldPos == -5 || !currentParticipant.readConversation) {
+                    if (oldPos != -5 && i > 0 && oldPos == i - 1
+                            && oldPos < styledSenders.size()) {
+                        styledSenders.set(oldPos, null);
+                    }
+                    displayHash.put(currentName, i);
+                    spannableDisplay.setSpan(style, 0, spannableDisplay.length(), 0);
+                    styledSenders.add(spannableDisplay);
+                }
+            } else if (!appendedElided) {
+                spannableDisplay = new SpannableString(SendersView.sElidedString);
+                spannableDisplay.setSpan(style, 0, spannableDisplay.length(), 0);
+                appendedElided = true;
+                styledSenders.add(spannableDisplay);
+            }
+        }
+    }
+
+    private static ConversationInfo createConversationInfo(int participants, int seed) {
+        final ConversationInfo conv = new ConversationInfo(participants, 0, "snippet", "snippet",
+                "snippet");
+        for (int i = 0; i < participants; i++) {
+            // A few senders write more than once, and most messages have been read.
+            final int sender = (i * 7 + seed) % (participants / 2);
+            conv.addParticipant(new ParticipantInfo("Sender " + sender,
+                    "sender" + sender + "@example.com", (i * 13 + seed) % participants,
+                    i % 5 != 0));
+        }
+        return conv;
+    }
+
+    private static ArrayList<String> toStrings(ArrayList<SpannableString> senders) {
+        final ArrayList<String> strings = Lists.newArrayList();
+        for (SpannableString sender : senders) {
+            strings.add(sender == null ? null : sender.toString());
+        }
+        return strings;
+    }
+
     private static Account createAccount() {
         try {
             final Map<String, Object> map = new HashMap<>(2);
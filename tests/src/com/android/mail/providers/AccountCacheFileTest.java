@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.mail.providers.MailAppProvider.AccountCacheEntry;
+import com.android.mail.providers.protos.mock.MockUiProvider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class AccountCacheFileTest extends AndroidTestCase {
+    private static final Uri QUERY_URI = Uri.parse("content://test/accounts");
+    private static final int[] BENCHMARK_ACCOUNT_COUNTS = {1, 10, 50};
+    /** Loads of each account list timed in the benchmark. */
+    private static final int BENCHMARK_LOADS = 20;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "account_cache_test");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    static List<AccountCacheEntry> createAccounts(int count) {
+        final List<AccountCacheEntry> entries = new ArrayList<AccountCacheEntry>(count);
+        for (int i = 0; i < count; i++) {
+            final Map<String, Object> values = MockUiProvider.createAccountDetailsMap(i,
+                    MockUiProvider.getMockAccountUri(i) + "/folder/0");
+            final MatrixCursor cursor = new MatrixCursor(UIProvider.ACCOUNTS_PROJECTION, 1);
+            final MatrixCursor.RowBuilder row = cursor.newRow();
+            for (String column : UIProvider.ACCOUNTS_PROJECTION) {
+                row.add(values.get(column));
+            }
+            cursor.moveToFirst();
+            entries.add(new AccountCacheEntry(Account.builder().buildFrom(cursor), QUERY_URI));
+            cursor.close();
+        }
+        return entries;
+    }
+
+    @SmallTest
+    public void testAccountsAreReadBackLazily() {
+        final List<AccountCacheEntry> written = createAccounts(3);
+        final AccountCacheFile file = new AccountCacheFile(mFile);
+        assertNull(file.read());
+        file.write(written);
+
+        final List<AccountCacheEntry> read = file.read();
+        assertEquals(written.size(), read.size());
+        assertEquals(AccountCacheFile.getContentHash(written),
+                AccountCacheFile.getContentHash(read));
+        for (int i = 0; i < read.size(); i++) {
+            final AccountCacheEntry entry = read.get(i);
+            final Account expected = written.get(i).getAccount();
+            assertEquals(expected.uri, entry.mAccountUri);
+            assertEquals(QUERY_URI, entry.mAccountsQueryUri);
+            // Reading the values doesn't build the account.
+            entry.getValues();
+            assertFalse(entry.isAccountBuilt());
+
+            final Account account = entry.getAccount();
+            assertEquals(expected.getEmailAddress(), account.getEmailAddress());
+            assertEquals(expected.capabilities, account.capabilities);
+            assertEquals(expected.folderListUri, account.folderListUri);
+            assertEquals(expected.settings.defaultInbox, account.settings.defaultInbox);
+            assertEquals(expected.settings.getAutoAdvanceSetting(),
+                    account.settings.getAutoAdvanceSetting());
+        }
+    }
+
+    @SmallTest
+    public void testFileOfOtherFormatIsIgnored() throws Exception {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+        assertNull(new AccountCacheFile(mFile).read());
+    }
+
+    /**
+     * Compares the time to load the cached account list at startup from the JSON that used to be
+     * kept in the preferences and from the cache file, and to list the accounts from it.
+     */
+    @LargeTest
+    public void testColdStartBenchmark() throws Exception {
+        final AccountCacheFile file = new AccountCacheFile(mFile);
+        for (int count : BENCHMARK_ACCOUNT_COUNTS) {
+            final List<AccountCacheEntry> accounts = createAccounts(count);
+            final JSONArray array = new JSONArray();
+            for (AccountCacheEntry entry : accounts) {
+                array.put(new JSONObject().put("acct", entry.getAccount().serialize())
+                        .put("queryUri", QUERY_URI));
+            }
+            final String json = array.toString();
+            file.write(accounts);
+
+            long start = System.nanoTime();
+            for (int load = 0; load < BENCHMARK_LOADS; load++) {
+                final JSONArray parsed = new JSONArray(json);
+                for (int i = 0; i < parsed.length(); i++) {
+                    final AccountCacheEntry entry = new AccountCacheEntry(parsed.getJSONObject(i));
+                    entry.getValues();
+                }
+            }
+            final long jsonTimeNs = (System.nanoTime() - start) / BENCHMARK_LOADS;
+
+            List<AccountCacheEntry> read = null;
+            start = System.nanoTime();
+            for (int load = 0; load < BENCHMARK_LOADS; load++) {
+                read = file.read();
+                for (AccountCacheEntry entry : read) {
+                    entry.getValues();
+                }
+            }
+            final long fileTimeNs = (System.nanoTime() - start) / BENCHMARK_LOADS;
+
+            Log.i("AccountCacheFileTest", String.format("%d accounts: JSON %dus, file %dus",
+                    count, jsonTimeNs / 1000, fileTimeNs / 1000));
+            // What was timed is the whole list, without building any account.
+            assertEquals(AccountCacheFile.getContentHash(accounts),
+                    AccountCacheFile.getContentHash(read));
+            for (AccountCacheEntry entry : read) {
+                assertFalse(entry.isAccountBuilt());
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.EmlAttachmentProvider.ProgressThrottle;
+import com.android.mail.providers.EmlAttachmentProvider.SaveThroughput;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EmlAttachmentProviderTest extends AndroidTestCase {
+    private static final long INTERVAL = 250;
+
+    @SmallTest
+    public void testThrottleLetsOneNotificationThroughPerInterval() {
+        final ProgressThrottle throttle = new ProgressThrottle(INTERVAL);
+        assertTrue(throttle.tryNotify(1000));
+        assertFalse(throttle.tryNotify(1000));
+        assertFalse(throttle.tryNotify(1000 + INTERVAL - 1));
+        assertTrue(throttle.tryNotify(1000 + INTERVAL));
+
+        // A forced notification restarts the interval.
+        throttle.onNotified(2000);
+        assertFalse(throttle.tryNotify(2000 + INTERVAL - 1));
+        assertTrue(throttle.tryNotify(2000 + INTERVAL));
+    }
+
+    @MediumTest
+    public void testConcurrentCallersShareTheThrottle() throws Exception {
+        final ProgressThrottle throttle = new ProgressThrottle(INTERVAL);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger notified = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int attempt = 0; attempt < 1000; attempt++) {
+                            if (throttle.tryNotify(5000)) {
+                                notified.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Counted as not notified.
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(1, notified.get());
+    }
+
+    @SmallTest
+    public void testBytesPerSecond() {
+        assertEquals(0, new EmlAttachmentProvider().getBytesPerSecond());
+
+        final SaveThroughput throughput = new SaveThroughput();
+        assertEquals(0, throughput.getBytesPerSecond());
+        throughput.add(3000, 1000);
+        assertEquals(3000, throughput.getBytesPerSecond());
+        throughput.add(5000, 1000);
+        assertEquals(4000, throughput.getBytesPerSecond());
+        // A save that took no measurable time still counts its bytes.
+        throughput.add(2000, 0);
+        assertEquals(5000, throughput.getBytesPerSecond());
+    }
+
+    @MediumTest
+    public void testConcurrentSavesAddUp() throws Exception {
+        final SaveThroughput throughput = new SaveThroughput();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int save = 0; save < 1000; save++) {
+                            throughput.add(1, 0);
+                        }
+                    } catch (InterruptedException e) {
+                        // The rate below then fails.
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        throughput.add(0, 1000);
+        // Every save of every thread counts.
+        assertEquals(threads * 1000, throughput.getBytesPerSecond());
+    }
+
+    @MediumTest
+    public void testTransferFileReportsEachChunk() throws IOException {
+        // Two full chunks of 1MB and a partial one.
+        final byte[] data = new byte[2 * 1024 * 1024 + 1234];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        final File from = new File(getContext().getCacheDir(), "eml_transfer_from");
+        final File to = new File(getContext().getCacheDir(), "eml_transfer_to");
+        try {
+            final FileOutputStream out = new FileOutputStream(from);
+            out.write(data);
+            out.close();
+
+            final Attachment attachment = new Attachment();
+            final AtomicInteger chunks = new AtomicInteger();
+            final long copied = EmlAttachmentProvider.transferFile(from, to, attachment,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            chunks.incrementAndGet();
+                        }
+                    });
+            assertEquals(data.length, copied);
+            assertEquals(data.length, attachment.downloadedSize);
+            assertEquals(3, chunks.get());
+
+            assertEquals(data.length, to.length());
+            final byte[] read = new byte[data.length];
+            final DataInputStream in = new DataInputStream(new FileInputStream(to));
+            in.readFully(read);
+            in.close();
+            assertTrue(Arrays.equals(data, read));
+        } finally {
+            from.delete();
+            to.delete();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class FolderTests extends AndroidTestCase {
+    private static final Pattern SPLITTER_REGEX = Pattern.compile("\\^\\*\\^");
+    private static final int BENCHMARK_FOLDERS = 10000;
+
+    private static String getFolderUri(int id) {
+        return "content://test/account/0/folder/" + id;
+    }
+
+    private static MatrixCursor createCursor(int count) {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.FOLDERS_PROJECTION, count);
+        for (int id = 1; id <= count; id++) {
+            final String uri = getFolderUri(id);
+            final Object[] values = new Object[UIProvider.FOLDERS_PROJECTION.length];
+            values[UIProvider.FOLDER_ID_COLUMN] = id;
+            values[UIProvider.FOLDER_PERSISTENT_ID_COLUMN] = "label" + id;
+            values[UIProvider.FOLDER_URI_COLUMN] = uri;
+            values[UIProvider.FOLDER_NAME_COLUMN] = "Label " + id;
+            values[UIProvider.FOLDER_HAS_CHILDREN_COLUMN] = 0;
+            values[UIProvider.FOLDER_CAPABILITIES_COLUMN] = 0;
+            values[UIProvider.FOLDER_SYNC_WINDOW_COLUMN] = 30;
+            values[UIProvider.FOLDER_CONVERSATION_LIST_URI_COLUMN] = uri + "/conversations";
+            values[UIProvider.FOLDER_CHILD_FOLDERS_LIST_COLUMN] = null;
+            values[UIProvider.FOLDER_UNSEEN_COUNT_COLUMN] = 0;
+            values[UIProvider.FOLDER_UNREAD_COUNT_COLUMN] = id % 7;
+            values[UIProvider.FOLDER_TOTAL_COUNT_COLUMN] = id % 100;
+            values[UIProvider.FOLDER_REFRESH_URI_COLUMN] = uri + "/refresh";
+            values[UIProvider.FOLDER_SYNC_STATUS_COLUMN] = 0;
+            values[UIProvider.FOLDER_LAST_SYNC_RESULT_COLUMN] = 0;
+            values[UIProvider.FOLDER_TYPE_COLUMN] = UIProvider.FolderType.DEFAULT;
+            values[UIProvider.FOLDER_ICON_RES_ID_COLUMN] = 0;
+            values[UIProvider.FOLDER_NOTIFICATION_ICON_RES_ID_COLUMN] = 0;
+            values[UIProvider.FOLDER_BG_COLOR_COLUMN] = "-16776961";
+            values[UIProvider.FOLDER_FG_COLOR_COLUMN] = "-1";
+            values[UIProvider.FOLDER_LOAD_MORE_URI_COLUMN] = uri + "/more";
+            values[UIProvider.FOLDER_HIERARCHICAL_DESC_COLUMN] = "Label " + id;
+            values[UIProvider.FOLDER_LAST_MESSAGE_TIMESTAMP_COLUMN] = 0L;
+            values[UIProvider.FOLDER_PARENT_URI_COLUMN] = null;
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static List<Folder> loadFolders(MatrixCursor cursor) {
+        final List<Folder> folders = new ArrayList<Folder>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            folders.add(Folder.FACTORY.createFromCursor(cursor));
+        }
+        return folders;
+    }
+
+    /** Returns the folder in the format of {@link Folder#fromString}. */
+    private static String toFolderString(int id) {
+        final String uri = getFolderUri(id);
+        return TextUtils.join(Folder.SPLITTER, new Object[] {id, uri, "Label " + id, 0, 0, 30,
+                uri + "/conversations", "", id % 7, id % 100, uri + "/refresh", 0, 0,
+                UIProvider.FolderType.DEFAULT, 0, "-16776961", "-1", uri + "/more",
+                "Label " + id, ""});
+    }
+
+    @SmallTest
+    public void testSplitMatchesRegex() {
+        final String[] strings = {"", "a", "a^*^b", "a^*^^*^b", "^*^a^*^", "a^*^*^b", "^*^",
+                "a^*b^*^c^", toFolderString(1)};
+        for (String string : strings) {
+            assertTrue(string, Arrays.equals(TextUtils.split(string, SPLITTER_REGEX),
+                    Folder.split(string)));
+        }
+    }
+
+    @SmallTest
+    public void testFromString() {
+        final Folder folder = Folder.fromString(toFolderString(12));
+        assertEquals(12, folder.id);
+        assertEquals(Uri.parse(getFolderUri(12)), folder.folderUri.fullUri);
+        assertEquals("Label 12", folder.name);
+        assertEquals(30, folder.syncWindow);
+        assertEquals(Uri.parse(getFolderUri(12) + "/conversations"), folder.conversationListUri);
+        assertNull(folder.childFoldersListUri);
+        assertEquals(5, folder.unreadCount);
+        assertEquals(12, folder.totalCount);
+        assertEquals("-16776961", folder.bgColor);
+        assertNull(folder.parent);
+        assertNull(Folder.fromString("no splitter"));
+    }
+
+    @SmallTest
+    public void testReloadedFoldersShareUris() {
+        final MatrixCursor cursor = createCursor(3);
+        final List<Folder> first = loadFolders(cursor);
+        final List<Folder> second = loadFolders(cursor);
+        cursor.close();
+        for (int i = 0; i < first.size(); i++) {
+            final Folder a = first.get(i);
+            final Folder b = second.get(i);
+            assertNotSame(a, b);
+            assertEquals(getFolderUri(i + 1), b.folderUri.toString());
+            assertSame(a.folderUri, b.folderUri);
+            assertSame(a.conversationListUri, b.conversationListUri);
+            assertSame(a.refreshUri, b.refreshUri);
+            assertEquals(Uri.EMPTY, b.parent);
+        }
+    }
+
+    /**
+     * Times building folders from a cursor, before and after the uris of the folders are shared,
+     * and from folder strings, split with the regular expression that Folder used to use and with
+     * {@link Folder#split}.
+     */
+    @LargeTest
+    public void testMaterializeBenchmark() {
+        final MatrixCursor cursor = createCursor(BENCHMARK_FOLDERS);
+        long start = System.nanoTime();
+        final List<Folder> firstLoad = loadFolders(cursor);
+        final long firstLoadTimeNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        final List<Folder> reload = loadFolders(cursor);
+        final long reloadTimeNs = System.nanoTime() - start;
+        cursor.close();
+        // Compare the folders as the drawer does, which hashes their uris.
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_FOLDERS; i++) {
+            assertEquals(firstLoad.get(i).folderUri.hashCode(), reload.get(i).folderUri.hashCode());
+        }
+        final long hashTimeNs = System.nanoTime() - start;
+
+        final String[] strings = new String[BENCHMARK_FOLDERS];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = toFolderString(i + 1);
+        }
+        start = System.nanoTime();
+        for (String string : strings) {
+            TextUtils.split(string, SPLITTER_REGEX);
+        }
+        final long regexTimeNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (String string : strings) {
+            Folder.split(string);
+        }
+        final long splitTimeNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (String string : strings) {
+            assertNotNull(Folder.fromString(string));
+        }
+        final long fromStringTimeNs = System.nanoTime() - start;
+
+        Log.i("FolderTests", String.format("%d folders: cursor %dms, reload %dms, hashing %dms; "
+                + "regex split %dms, split %dms, fromString %dms", BENCHMARK_FOLDERS,
+                firstLoadTimeNs / 1000000, reloadTimeNs / 1000000, hashTimeNs / 1000000,
+                regexTimeNs / 1000000, splitTimeNs / 1000000, fromStringTimeNs / 1000000));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.mail.providers.MailAppProvider.AccountCacheEntry;
+import com.android.mail.providers.UIProvider.AccountColumns;
+import com.android.mail.utils.MatrixCursorWithExtra;
+import com.android.mail.utils.RankedComparator;
+import com.google.android.mail.common.base.Function;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+public class MailAppProviderTest extends AndroidTestCase {
+    private static final int BENCHMARK_ACCOUNTS = 10;
+    private static final int BENCHMARK_QUERIES = 2000;
+
+    private static final Comparator<AccountCacheEntry> COMPARATOR =
+            new RankedComparator<AccountCacheEntry, String>(new String[0],
+                    new Function<AccountCacheEntry, String>() {
+                        @Override
+                        public String apply(AccountCacheEntry entry) {
+                            return entry.mAccountsQueryUri.toString();
+                        }
+                    });
+
+    @SmallTest
+    public void testAccountCursorProjection() {
+        final List<AccountCacheEntry> accounts = AccountCacheFileTest.createAccounts(3);
+        final Object[][] rows = MailAppProvider.buildAccountRows(accounts, COMPARATOR);
+        final Bundle extras = new Bundle();
+
+        final Cursor all = MailAppProvider.newAccountCursor(rows,
+                UIProvider.ACCOUNTS_PROJECTION, extras);
+        assertEquals(accounts.size(), all.getCount());
+        assertSame(extras, all.getExtras());
+        final int uriColumn = all.getColumnIndex(AccountColumns.URI);
+        for (int i = 0; all.moveToNext(); i++) {
+            assertEquals(accounts.get(i).mAccountUri.toString(), all.getString(uriColumn));
+        }
+        all.close();
+
+        final String[] projection = {AccountColumns.URI, AccountColumns.CAPABILITIES};
+        final Cursor some = MailAppProvider.newAccountCursor(rows, projection, extras);
+        assertEquals(projection.length, some.getColumnCount());
+        for (int i = 0; some.moveToNext(); i++) {
+            final Account account = accounts.get(i).getAccount();
+            assertEquals(account.uri.toString(), some.getString(0));
+            assertEquals(account.capabilities, some.getInt(1));
+        }
+        some.close();
+    }
+
+    /**
+     * Compares building the accounts cursor from the accounts on each query, the way it used to
+     * be built, with copying the rows that were built once.
+     */
+    @LargeTest
+    public void testQueryBenchmark() {
+        final List<AccountCacheEntry> accounts =
+                AccountCacheFileTest.createAccounts(BENCHMARK_ACCOUNTS);
+        final String[] projection = UIProvider.ACCOUNTS_PROJECTION;
+
+        long start = System.nanoTime();
+        for (int query = 0; query < BENCHMARK_QUERIES; query++) {
+            final List<AccountCacheEntry> accountList = Lists.newArrayList(accounts);
+            Collections.sort(accountList, COMPARATOR);
+            final MatrixCursor cursor =
+                    new MatrixCursorWithExtra(projection, accountList.size(), new Bundle());
+            for (AccountCacheEntry entry : accountList) {
+                final MatrixCursor.RowBuilder builder = cursor.newRow();
+                final Map<String, Object> values = entry.getAccount().getValueMap();
+                for (String column : projection) {
+                    if (values.containsKey(column)) {
+                        builder.add(values.get(column));
+                    } else {
+                        throw new IllegalStateException("Unexpected column: " + column);
+                    }
+                }
+            }
+            cursor.close();
+        }
+        final long valueMapTimeNs = System.nanoTime() - start;
+
+        final Object[][] rows = MailAppProvider.buildAccountRows(accounts, COMPARATOR);
+        start = System.nanoTime();
+        for (int query = 0; query < BENCHMARK_QUERIES; query++) {
+            MailAppProvider.newAccountCursor(rows, projection, new Bundle()).close();
+        }
+        final long rowsTimeNs = System.nanoTime() - start;
+
+        Log.i("MailAppProviderTest", String.format(
+                "%d accounts: %d queries/s from value maps, %d queries/s from rows",
+                BENCHMARK_ACCOUNTS, BENCHMARK_QUERIES * 1000000000L / valueMapTimeNs,
+                BENCHMARK_QUERIES * 1000000000L / rowsTimeNs));
+
+        // The rows are the values cached with the accounts, and queries serve them as they are.
+        final MatrixCursor cursor =
+                MailAppProvider.newAccountCursor(rows, projection, new Bundle());
+        assertEquals(accounts.size(), cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            final Object[] values = accounts.get(i).getValues();
+            assertSame(values, rows[i]);
+            for (int column = 0; column < values.length; column++) {
+                if (values[column] instanceof Integer) {
+                    assertEquals(values[column], cursor.getInt(column));
+                } else {
+                    assertSame(values[column], cursor.getString(column));
+                }
+            }
+        }
+        cursor.close();
+    }
+}
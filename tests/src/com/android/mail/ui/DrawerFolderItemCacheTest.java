@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.mail.drawer.DrawerItem;
+import com.android.mail.providers.Folder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DrawerFolderItemCacheTest extends AndroidTestCase {
+    /** Folders of the synthetic account. */
+    private static final int FOLDER_COUNT = 5000;
+    /** Folders whose unread count changes on each sync. */
+    private static final int CHANGED_PER_SYNC = 3;
+    private static final int SYNCS = 10;
+
+    /** The item of a folder, as the drawer would show it. */
+    private static final class Item {
+        final Folder folder;
+
+        Item(Folder folder) {
+            this.folder = folder;
+        }
+    }
+
+    /** Counts the items it creates. */
+    private static final class CountingFactory implements DrawerFolderItemCache.ItemFactory<Item> {
+        int mCreated;
+
+        @Override
+        public Item newItem(Folder folder, int itemCategory) {
+            mCreated++;
+            return new Item(folder);
+        }
+    }
+
+    private static Folder createFolder(int id, int unreadCount) {
+        return new Folder.Builder().setId(id).setName("Label " + id)
+                .setUri(Uri.parse("content://test/folder/" + id))
+                .setConversationListUri(Uri.parse("content://test/folder/" + id + "/convs"))
+                .setBgColor("-16776961").setUnreadCount(unreadCount).build();
+    }
+
+    /** Returns the folders as a reload of the folder cursor would. */
+    private static List<Folder> loadFolders(int[] unreadCounts) {
+        final List<Folder> folders = new ArrayList<Folder>(unreadCounts.length);
+        for (int i = 0; i < unreadCounts.length; i++) {
+            folders.add(createFolder(i + 1, unreadCounts[i]));
+        }
+        return folders;
+    }
+
+    private static List<Item> update(DrawerFolderItemCache<Item> cache, List<Folder> folders) {
+        final List<Item> items = new ArrayList<Item>(folders.size());
+        cache.beginUpdate();
+        for (Folder folder : folders) {
+            items.add(cache.getItem(folder, DrawerItem.FOLDER_OTHER));
+        }
+        cache.endUpdate();
+        return items;
+    }
+
+    /**
+     * Binds the rows of the items the way the drawer does, and returns how many rows had to be
+     * bound again.
+     */
+    private static int bind(Folder[] boundFolders, List<Item> items) {
+        int bound = 0;
+        for (int i = 0; i < items.size(); i++) {
+            final Folder folder = items.get(i).folder;
+            if (boundFolders[i] == null || !FolderItemView.areSameViews(boundFolders[i], folder)) {
+                boundFolders[i] = folder;
+                bound++;
+            }
+        }
+        return bound;
+    }
+
+    @SmallTest
+    public void testChangedFoldersGetNewItems() {
+        final CountingFactory factory = new CountingFactory();
+        final DrawerFolderItemCache<Item> cache = new DrawerFolderItemCache<Item>(factory);
+        final List<Item> first = update(cache, loadFolders(new int[] {1, 2, 3}));
+        assertEquals(3, factory.mCreated);
+
+        final List<Item> second = update(cache, loadFolders(new int[] {1, 5, 3}));
+        assertEquals(4, factory.mCreated);
+        assertSame(first.get(0), second.get(0));
+        assertNotSame(first.get(1), second.get(1));
+        assertEquals(5, second.get(1).folder.unreadCount);
+        assertSame(first.get(2), second.get(2));
+
+        // A folder that only changed in what the drawer doesn't show still gets a new item, to
+        // hand out the current folder.
+        final List<Folder> synced = loadFolders(new int[] {1, 5, 3});
+        synced.get(0).syncStatus = 1;
+        final List<Item> third = update(cache, synced);
+        assertNotSame(second.get(0), third.get(0));
+        assertTrue(FolderItemView.areSameViews(second.get(0).folder, third.get(0).folder));
+
+        // The same folder in another category has its own item.
+        cache.beginUpdate();
+        assertNotSame(third.get(2), cache.getItem(synced.get(2), DrawerItem.FOLDER_RECENT));
+        cache.endUpdate();
+        assertEquals(6, cache.getCreatedCount());
+    }
+
+    @SmallTest
+    public void testRemovedFoldersAreDropped() {
+        final CountingFactory factory = new CountingFactory();
+        final DrawerFolderItemCache<Item> cache = new DrawerFolderItemCache<Item>(factory);
+        update(cache, loadFolders(new int[] {1, 2}));
+        update(cache, loadFolders(new int[] {1}));
+        update(cache, loadFolders(new int[] {1, 2}));
+        assertEquals(3, factory.mCreated);
+    }
+
+    /**
+     * Syncs the unread counts of a few folders of an account with many folders, and counts the
+     * items created and the rows bound again on each sync.
+     */
+    @MediumTest
+    public void testSyncOfLargeAccount() {
+        final CountingFactory factory = new CountingFactory();
+        final DrawerFolderItemCache<Item> cache = new DrawerFolderItemCache<Item>(factory);
+        final int[] unreadCounts = new int[FOLDER_COUNT];
+        final Folder[] boundFolders = new Folder[FOLDER_COUNT];
+        assertEquals(FOLDER_COUNT, bind(boundFolders, update(cache, loadFolders(unreadCounts))));
+        assertEquals(FOLDER_COUNT, factory.mCreated);
+
+        long updateTimeNs = 0;
+        for (int sync = 0; sync < SYNCS; sync++) {
+            for (int i = 0; i < CHANGED_PER_SYNC; i++) {
+                unreadCounts[(sync * 97 + i * 1013) % FOLDER_COUNT]++;
+            }
+            final List<Folder> folders = loadFolders(unreadCounts);
+            final int created = factory.mCreated;
+            final long start = System.nanoTime();
+            final List<Item> items = update(cache, folders);
+            updateTimeNs += System.nanoTime() - start;
+
+            assertEquals(CHANGED_PER_SYNC, factory.mCreated - created);
+            assertEquals(CHANGED_PER_SYNC, bind(boundFolders, items));
+        }
+        Log.i("DrawerFolderItemCacheTest", String.format(
+                "%d folders: %d items created and %d reused over %d syncs, %dus per update",
+                FOLDER_COUNT, cache.getCreatedCount(), cache.getReusedCount(), SYNCS,
+                updateTimeNs / SYNCS / 1000));
+    }
+}
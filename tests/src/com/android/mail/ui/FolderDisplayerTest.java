@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.mail.providers.Folder;
+import com.google.common.collect.Sets;
+
+import java.util.Arrays;
+import java.util.NavigableSet;
+
+public class FolderDisplayerTest extends AndroidTestCase {
+    private static final int CELL_WIDTH = 200;
+    private static final int LAYOUT_WIDTH = 600;
+    private static final int IN_BETWEEN_PADDING = 6;
+    private static final int HORIZONTAL_PADDING = 8;
+
+    /** Rows laid out in the benchmark, each with this many labels. */
+    private static final int BENCHMARK_ROWS = 2000;
+    private static final int LABELS_PER_ROW = 8;
+
+    private static NavigableSet<Folder> createFolders(String... names) {
+        final NavigableSet<Folder> folders = Sets.newTreeSet();
+        for (int i = 0; i < names.length; i++) {
+            folders.add(new Folder.Builder().setId(i + 1).setName(names[i])
+                    .setUri(Uri.parse("content://test/folder/" + (i + 1))).build());
+        }
+        return folders;
+    }
+
+    private static Paint createPaint() {
+        final Paint paint = new Paint();
+        paint.setTextSize(24);
+        paint.setTypeface(Typeface.DEFAULT);
+        return paint;
+    }
+
+    private static int[] measureCached(NavigableSet<Folder> folders, int maxCount, Paint paint,
+            int[] widths) {
+        final int count = Math.min(maxCount, folders.size());
+        int index = 0;
+        for (Folder folder : folders) {
+            if (index == count) {
+                break;
+            }
+            widths[index++] = FolderDisplayer.getTextWidth(folder, paint);
+        }
+        FolderDisplayer.measureFolderDimen(widths, count, CELL_WIDTH, LAYOUT_WIDTH,
+                IN_BETWEEN_PADDING, HORIZONTAL_PADDING);
+        return Arrays.copyOf(widths, count);
+    }
+
+    @SmallTest
+    public void testCachedMeasurementsMatch() {
+        final Paint paint = createPaint();
+        final NavigableSet<Folder> folders = createFolders("Inbox", "Work",
+                "A rather long label name that will not fit", "Receipts", "x",
+                "Another label that is too long for its chip", "Travel", "Family");
+        final int[] widths = new int[folders.size()];
+        for (int maxCount = 0; maxCount <= folders.size(); maxCount++) {
+            final int[] expected = FolderDisplayer.measureFolderDimen(folders, CELL_WIDTH,
+                    LAYOUT_WIDTH, IN_BETWEEN_PADDING, HORIZONTAL_PADDING, maxCount, paint);
+            assertTrue(Arrays.equals(expected, measureCached(folders, maxCount, paint, widths)));
+            // Again from the cache.
+            assertTrue(Arrays.equals(expected, measureCached(folders, maxCount, paint, widths)));
+        }
+    }
+
+    @SmallTest
+    public void testTextWidthFollowsNameAndFont() {
+        FolderDisplayer.clearTextWidths();
+        final Paint paint = createPaint();
+        final Folder folder = new Folder.Builder().setId(1).setName("Work")
+                .setUri(Uri.parse("content://test/folder/1")).build();
+        final int measured = FolderDisplayer.getTextMeasureCount();
+        assertEquals((int) paint.measureText("Work"), FolderDisplayer.getTextWidth(folder, paint));
+        assertEquals((int) paint.measureText("Work"), FolderDisplayer.getTextWidth(folder, paint));
+        assertEquals(measured + 1, FolderDisplayer.getTextMeasureCount());
+
+        paint.setTextSize(48);
+        assertEquals((int) paint.measureText("Work"), FolderDisplayer.getTextWidth(folder, paint));
+        assertEquals(measured + 2, FolderDisplayer.getTextMeasureCount());
+
+        folder.name = "Work and more work";
+        assertEquals((int) paint.measureText(folder.name),
+                FolderDisplayer.getTextWidth(folder, paint));
+        assertEquals(measured + 3, FolderDisplayer.getTextMeasureCount());
+    }
+
+    /**
+     * Compares the time per row of laying out the chips of eight labels by measuring their
+     * names and from the cached widths, and checks that each name is measured once.
+     */
+    @LargeTest
+    public void testLayoutBenchmark() {
+        final Paint paint = createPaint();
+        final String[] names = new String[LABELS_PER_ROW];
+        for (int i = 0; i < LABELS_PER_ROW; i++) {
+            names[i] = "Label number " + i;
+        }
+        final NavigableSet<Folder> folders = createFolders(names);
+        final int[] widths = new int[LABELS_PER_ROW];
+        FolderDisplayer.clearTextWidths();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            FolderDisplayer.measureFolderDimen(folders, CELL_WIDTH, LAYOUT_WIDTH,
+                    IN_BETWEEN_PADDING, HORIZONTAL_PADDING, LABELS_PER_ROW, paint);
+        }
+        final long measureTimeNs = System.nanoTime() - start;
+
+        final int measured = FolderDisplayer.getTextMeasureCount();
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            measureCached(folders, LABELS_PER_ROW, paint, widths);
+        }
+        final long cachedTimeNs = System.nanoTime() - start;
+        assertEquals(LABELS_PER_ROW, FolderDisplayer.getTextMeasureCount() - measured);
+
+        Log.i("FolderDisplayerTest", String.format("%d labels per row: measured %dns per row, "
+                + "cached %dns per row", LABELS_PER_ROW, measureTimeNs / BENCHMARK_ROWS,
+                cachedTimeNs / BENCHMARK_ROWS));
+    }
+}
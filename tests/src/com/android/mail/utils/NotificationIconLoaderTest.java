@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.mail.NegativeContactCache;
+import com.android.mail.bitmap.AvatarDiskCache;
+import com.android.mail.photo.ContactFetcher;
+import com.android.mail.utils.NotificationIconLoader.Icon;
+import com.android.mail.utils.NotificationIconLoader.Sizes;
+import com.android.mail.utils.NotificationUtils.ContactIconInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@MediumTest
+public class NotificationIconLoaderTest extends AndroidTestCase {
+    private static final String ACCOUNT = "account@example.com";
+
+    /** Finds a photo, in a color of its own, for the senders whose address starts with "p". */
+    private static class TestFetcher implements ContactFetcher {
+        final AtomicInteger mCalls = new AtomicInteger();
+
+        @Override
+        public ContactIconInfo getContactPhoto(Context context, String accountName,
+                String senderAddress, int idealIconWidth, int idealIconHeight,
+                int idealWearableBgWidth, int idealWearableBgHeight) {
+            mCalls.incrementAndGet();
+            final ContactIconInfo info = new ContactIconInfo();
+            if (senderAddress.startsWith("p")) {
+                final int color = 0xff000000 | senderAddress.hashCode();
+                info.icon = Bitmap.createBitmap(idealIconWidth, idealIconHeight,
+                        Bitmap.Config.ARGB_8888);
+                info.icon.eraseColor(color);
+                info.wearableBg = Bitmap.createBitmap(idealWearableBgWidth,
+                        idealWearableBgHeight, Bitmap.Config.ARGB_8888);
+                info.wearableBg.eraseColor(color);
+            }
+            return info;
+        }
+    }
+
+    private Sizes mSizes;
+    private AvatarDiskCache mDiskCache;
+    /** Makes the addresses of each test its own, so that no contact has them. */
+    private String mSuffix;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSizes = new Sizes(getContext().getResources());
+        mDiskCache = AvatarDiskCache.getInstance(getContext());
+        mSuffix = "-" + System.nanoTime() + "@example.invalid";
+        clearCaches();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearCaches();
+        super.tearDown();
+    }
+
+    private void clearCaches() {
+        NotificationIconLoader.clearIcons();
+        mDiskCache.clear();
+    }
+
+    private List<String> getAddresses(String... names) {
+        final List<String> addresses = new ArrayList<String>(names.length);
+        for (String name : names) {
+            addresses.add(name + mSuffix);
+        }
+        return addresses;
+    }
+
+    private Icon getIcon(String address, ContactFetcher fetcher) {
+        return NotificationIconLoader.getIcon(getContext(), ACCOUNT, address, mSizes, fetcher);
+    }
+
+    private boolean isOnDisk(String address) {
+        return mDiskCache.get(address, mSizes.wearableBgWidth, mSizes.wearableBgHeight,
+                AvatarDiskCache.SHAPE_SQUARE) != null;
+    }
+
+    public void testContactsMissDoesNotHideFetcherPhoto() {
+        final String address = getAddresses("photo").get(0);
+        assertNull(getIcon(address, null).photo);
+        assertTrue(isOnDisk(address));
+
+        // The contacts provider has no photo on disk, which must not stop the fetcher.
+        NotificationIconLoader.clearIcons();
+        final TestFetcher fetcher = new TestFetcher();
+        assertNotNull(getIcon(address, fetcher).photo);
+        assertEquals(1, fetcher.mCalls.get());
+
+        // Both are kept apart, in memory and on disk.
+        assertNull(getIcon(address, null).photo);
+        NotificationIconLoader.clearIcons();
+        assertNotNull(getIcon(address, fetcher).photo);
+        assertNull(getIcon(address, null).photo);
+        assertEquals(1, fetcher.mCalls.get());
+    }
+
+    public void testFetcherMissIsNotWrittenToDisk() {
+        final String address = getAddresses("none").get(0);
+        final TestFetcher fetcher = new TestFetcher();
+        assertNull(getIcon(address, fetcher).photo);
+        assertNull(getIcon(address, fetcher).photo);
+        assertEquals(1, fetcher.mCalls.get());
+
+        // The fetcher may have failed, so it is asked again by the next process.
+        NotificationIconLoader.clearIcons();
+        assertNull(getIcon(address, fetcher).photo);
+        assertEquals(2, fetcher.mCalls.get());
+    }
+
+    public void testKnownMissingSendersAreNotWrittenToDisk() {
+        final List<String> addresses = getAddresses("single", "batch", "looked-up");
+        final NegativeContactCache negativeCache =
+                NegativeContactCache.getInstance(getContext().getContentResolver());
+        negativeCache.addMissing(addresses.get(0));
+        negativeCache.addMissing(addresses.get(1));
+
+        assertNull(getIcon(addresses.get(0), null).photo);
+        NotificationIconLoader.prefetch(getContext(), ACCOUNT, addresses.subList(1, 3), null);
+        assertNull(getIcon(addresses.get(1), null).photo);
+        assertNull(getIcon(addresses.get(2), null).photo);
+
+        assertFalse(isOnDisk(addresses.get(0)));
+        assertFalse(isOnDisk(addresses.get(1)));
+        // Only the sender that was looked up is known to have no photo.
+        assertTrue(isOnDisk(addresses.get(2)));
+    }
+
+    public void testPrefetchMatchesGetIcon() {
+        final List<String> addresses = getAddresses("photo1", "none1", "photo2", "none2");
+        final TestFetcher fetcher = new TestFetcher();
+        NotificationIconLoader.prefetch(getContext(), ACCOUNT, addresses, fetcher);
+        final List<Icon> batched = new ArrayList<Icon>();
+        for (String address : addresses) {
+            batched.add(getIcon(address, fetcher));
+        }
+        assertEquals(addresses.size(), fetcher.mCalls.get());
+        final List<Boolean> batchedOnDisk = new ArrayList<Boolean>();
+        for (String address : addresses) {
+            batchedOnDisk.add(isOnDisk(ACCOUNT + '/' + address));
+        }
+
+        clearCaches();
+        for (int i = 0; i < addresses.size(); i++) {
+            final String address = addresses.get(i);
+            final Icon single = getIcon(address, fetcher);
+            final Icon batch = batched.get(i);
+            assertEquals(address, batch.photo == null, single.photo == null);
+            if (single.photo != null) {
+                assertTrue(address, single.photo.sameAs(batch.photo));
+                assertTrue(address, single.wearableBg.sameAs(batch.wearableBg));
+            }
+            assertEquals(address, batchedOnDisk.get(i).booleanValue(),
+                    isOnDisk(ACCOUNT + '/' + address));
+        }
+        assertEquals(2 * addresses.size(), fetcher.mCalls.get());
+    }
+
+    public void testPrefetchFromContactsMatchesGetIcon() {
+        final List<String> addresses = getAddresses("known-missing", "looked-up");
+        final NegativeContactCache negativeCache =
+                NegativeContactCache.getInstance(getContext().getContentResolver());
+        negativeCache.clear();
+        negativeCache.addMissing(addresses.get(0));
+        NotificationIconLoader.prefetch(getContext(), ACCOUNT, addresses, null);
+        final List<Boolean> batchedOnDisk = new ArrayList<Boolean>();
+        for (String address : addresses) {
+            assertNull(getIcon(address, null).photo);
+            batchedOnDisk.add(isOnDisk(address));
+        }
+
+        // The lookup taught the negative cache about the other sender too.
+        clearCaches();
+        negativeCache.clear();
+        negativeCache.addMissing(addresses.get(0));
+        for (int i = 0; i < addresses.size(); i++) {
+            final String address = addresses.get(i);
+            assertNull(getIcon(address, null).photo);
+            assertEquals(address, batchedOnDisk.get(i).booleanValue(), isOnDisk(address));
+        }
+    }
+}
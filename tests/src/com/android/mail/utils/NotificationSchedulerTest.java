@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.photo.ContactFetcher;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class NotificationSchedulerTest extends AndroidTestCase {
+    private static final int THREADS = 2;
+    private static final long DEBOUNCE_MS = 100;
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final int ACCOUNTS = 6;
+    private static final int FOLDERS_PER_ACCOUNT = 3;
+    /** Count updates that each folder receives during the burst. */
+    private static final int UPDATES_PER_FOLDER = 10;
+
+    /** Counts its acquisitions and releases. */
+    private static class CountingKeepAlive implements NotificationScheduler.KeepAlive {
+        int mAcquired;
+        int mReleased;
+
+        @Override
+        public synchronized void acquire(Context context) {
+            mAcquired++;
+        }
+
+        @Override
+        public synchronized void release(Context context) {
+            mReleased++;
+        }
+
+        synchronized boolean isHeld() {
+            return mAcquired > mReleased;
+        }
+    }
+
+    /** Records the validations, and checks that no folder is validated on two threads. */
+    private static class RecordingValidator implements NotificationScheduler.Validator<String> {
+        CountingKeepAlive mKeepAlive;
+        /** Whether a validation ran while the keep alive wasn't held. */
+        boolean mUnprotected;
+        final Map<String, Integer> mValidations = new HashMap<String, Integer>();
+        final Map<String, Boolean> mGetAttention = new HashMap<String, Boolean>();
+        final Set<String> mRunning = new HashSet<String>();
+        int mMaxRunning;
+        boolean mOverlapped;
+
+        @Override
+        public void validate(Context context, String key, boolean getAttention,
+                boolean ignoreUnobtrusiveSetting, ContactFetcher contactFetcher) {
+            synchronized (this) {
+                mUnprotected |= mKeepAlive != null && !mKeepAlive.isHeld();
+                mOverlapped |= !mRunning.add(key);
+                mMaxRunning = Math.max(mMaxRunning, mRunning.size());
+                final Integer count = mValidations.get(key);
+                mValidations.put(key, count == null ? 1 : count + 1);
+                mGetAttention.put(key, getAttention);
+            }
+            // The queries of a validation.
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                mRunning.remove(key);
+            }
+        }
+
+        synchronized int getValidations(String key) {
+            final Integer count = mValidations.get(key);
+            return count == null ? 0 : count;
+        }
+    }
+
+    private RecordingValidator mValidator;
+    private NotificationScheduler<String> mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mValidator = new RecordingValidator();
+        mScheduler = new NotificationScheduler<String>(mValidator, THREADS, DEBOUNCE_MS);
+    }
+
+    private static String getKey(int account, int folder) {
+        return "account" + account + "/folder" + folder;
+    }
+
+    /**
+     * Sends the count updates of a sync of every account, the way MailIntentService receives
+     * them, one after another.
+     */
+    private void sendSyncBurst(boolean getAttention) {
+        for (int update = 0; update < UPDATES_PER_FOLDER; update++) {
+            for (int account = 0; account < ACCOUNTS; account++) {
+                for (int folder = 0; folder < FOLDERS_PER_ACCOUNT; folder++) {
+                    mScheduler.requestValidation(getContext(), getKey(account, folder),
+                            update + 1, update + 1, getAttention && update == 0, false, null);
+                }
+            }
+        }
+    }
+
+    @MediumTest
+    public void testBurstIsCoalescedPerFolder() throws InterruptedException {
+        sendSyncBurst(true);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+
+        final int folders = ACCOUNTS * FOLDERS_PER_ACCOUNT;
+        final NotificationScheduler.Stats stats = mScheduler.getStats();
+        assertEquals(folders * UPDATES_PER_FOLDER, stats.requested);
+        assertEquals(folders, stats.executed);
+        assertEquals(stats.requested - stats.executed, stats.coalesced);
+        assertEquals(0, stats.skipped);
+        for (int account = 0; account < ACCOUNTS; account++) {
+            for (int folder = 0; folder < FOLDERS_PER_ACCOUNT; folder++) {
+                assertEquals(1, mValidator.getValidations(getKey(account, folder)));
+                // The attention of the first update is kept.
+                assertTrue(mValidator.mGetAttention.get(getKey(account, folder)));
+            }
+        }
+        assertFalse(mValidator.mOverlapped);
+        assertTrue(mValidator.mMaxRunning <= THREADS);
+    }
+
+    @SmallTest
+    public void testUnchangedCountsAreSkipped() throws InterruptedException {
+        final String key = getKey(0, 0);
+        mScheduler.requestValidation(getContext(), key, 3, 2, false, false, null);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        mScheduler.requestValidation(getContext(), key, 3, 2, false, false, null);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        assertEquals(1, mValidator.getValidations(key));
+        assertEquals(1, mScheduler.getStats().skipped);
+
+        // New counts, attention, a resend and a cancelled notification are all validated.
+        mScheduler.requestValidation(getContext(), key, 4, 3, false, false, null);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        mScheduler.requestValidation(getContext(), key, 4, 3, true, false, null);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        mScheduler.requestResend(getContext(), key, false, false, null);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        mScheduler.requestValidation(getContext(), key, 4, 3, false, false, null);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        mScheduler.forget(key);
+        mScheduler.requestValidation(getContext(), key, 4, 3, false, false, null);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        assertEquals(6, mValidator.getValidations(key));
+        assertEquals(1, mScheduler.getStats().skipped);
+    }
+
+    @MediumTest
+    public void testRequestsDuringValidationRunAfterIt() throws InterruptedException {
+        final String key = getKey(0, 0);
+        mScheduler.requestValidation(getContext(), key, 1, 1, false, false, null);
+        // Wait for the validation to start, then update the counts while it runs.
+        while (mValidator.getValidations(key) == 0) {
+            Thread.sleep(5);
+        }
+        mScheduler.requestValidation(getContext(), key, 2, 2, false, false, null);
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        assertEquals(2, mValidator.getValidations(key));
+        assertFalse(mValidator.mOverlapped);
+    }
+
+    /**
+     * Sends the updates of a sync as separate intents handled one after another on one thread,
+     * as MailIntentService handles them, each returning as soon as its request is made.
+     */
+    @MediumTest
+    public void testIntentsHandledInTurnAreCoalescedAndKeptAlive() throws Exception {
+        final CountingKeepAlive keepAlive = new CountingKeepAlive();
+        mValidator.mKeepAlive = keepAlive;
+        mScheduler = new NotificationScheduler<String>(mValidator, keepAlive, THREADS,
+                DEBOUNCE_MS);
+        final ExecutorService intentThread = Executors.newSingleThreadExecutor();
+        final int folders = ACCOUNTS * FOLDERS_PER_ACCOUNT;
+        for (int update = 0; update < UPDATES_PER_FOLDER; update++) {
+            for (int folder = 0; folder < folders; folder++) {
+                final String key = getKey(folder / FOLDERS_PER_ACCOUNT,
+                        folder % FOLDERS_PER_ACCOUNT);
+                final int count = update + 1;
+                intentThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mScheduler.requestValidation(getContext(), key, count, count, false,
+                                false, null);
+                    }
+                });
+            }
+        }
+        intentThread.shutdown();
+        assertTrue(intentThread.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // The intents don't wait for the validations, which outlive them.
+        assertTrue(keepAlive.isHeld());
+
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        final NotificationScheduler.Stats stats = mScheduler.getStats();
+        assertEquals(folders * UPDATES_PER_FOLDER, stats.requested);
+        assertEquals(folders, stats.executed);
+        assertTrue(mValidator.mMaxRunning > 1);
+        assertFalse(mValidator.mOverlapped);
+        assertFalse(mValidator.mUnprotected);
+        assertEquals(1, keepAlive.mAcquired);
+        assertEquals(1, keepAlive.mReleased);
+
+        // The next burst keeps the process alive again.
+        mScheduler.requestValidation(getContext(), getKey(0, 0), 20, 20, false, false, null);
+        assertTrue(keepAlive.isHeld());
+        assertTrue(mScheduler.awaitIdle(TIMEOUT_MS));
+        assertEquals(2, keepAlive.mReleased);
+    }
+}
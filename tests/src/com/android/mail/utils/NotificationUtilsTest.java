@@ -16,12 +16,34 @@
 
 package com.android.mail.utils;
 
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
 import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.mail.providers.Account;
+import com.android.mail.providers.Folder;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.providers.protos.mock.MockUiProvider;
 import com.android.mail.utils.NotificationUtils.MailMessagePlainTextConverter;
+import com.android.mail.utils.NotificationUtils.NotificationKey;
+import com.android.mail.utils.NotificationUtils.NotificationMap;
+import com.android.mail.utils.NotificationUtils.NotifiedConversations;
 import com.google.android.mail.common.html.parser.HtmlTree;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 @SmallTest
 public class NotificationUtilsTest extends AndroidTestCase {
     /**
@@ -76,4 +98,219 @@ public class NotificationUtilsTest extends AndroidTestCase {
 
         assertEquals(expectedText, resultText);
     }
+
+    private static long[] getStates(Object[]... rows) {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        final long[] states = NotificationUtils.getConversationStates(cursor);
+        cursor.close();
+        return states;
+    }
+
+    private static Object[] row(long id, String subject, String snippet, byte[] info) {
+        final Object[] row = new Object[UIProvider.CONVERSATION_PROJECTION.length];
+        row[UIProvider.CONVERSATION_ID_COLUMN] = id;
+        row[UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN] = 1000L + id;
+        row[UIProvider.CONVERSATION_READ_COLUMN] = 0;
+        row[UIProvider.CONVERSATION_SUBJECT_COLUMN] = subject;
+        row[UIProvider.CONVERSATION_SNIPPET_COLUMN] = snippet;
+        row[UIProvider.CONVERSATION_INFO_COLUMN] = info;
+        return row;
+    }
+
+    private static NotifiedConversations notified(int unreadCount, int unseenCount,
+            int settingsHash, Object[]... rows) {
+        return new NotifiedConversations(unreadCount, unseenCount, settingsHash, getStates(rows));
+    }
+
+    public void testNotifiedConversationsUnchanged() {
+        final byte[] info = {1, 2, 3};
+        final NotifiedConversations notified =
+                notified(2, 2, 7, row(1, "Hello", "First", info), row(2, "Lunch?", "Noon", info));
+        assertTrue(notified.isUnchanged(notified(2, 2, 7,
+                row(1, "Hello", "First", info), row(2, "Lunch?", "Noon", info.clone()))));
+    }
+
+    public void testNotifiedConversationsChanged() {
+        final byte[] info = {1, 2, 3};
+        final NotifiedConversations notified = notified(1, 1, 7, row(1, "Hello", "First", info));
+        // Counts and settings.
+        assertFalse(notified.isUnchanged(notified(2, 1, 7, row(1, "Hello", "First", info))));
+        assertFalse(notified.isUnchanged(notified(1, 1, 8, row(1, "Hello", "First", info))));
+        // What the digest shows of the conversation.
+        assertFalse(notified.isUnchanged(notified(1, 1, 7, row(1, "Hello!", "First", info))));
+        assertFalse(notified.isUnchanged(notified(1, 1, 7, row(1, "Hello", "Second", info))));
+        assertFalse(notified.isUnchanged(
+                notified(1, 1, 7, row(1, "Hello", "First", new byte[] {1, 2, 4}))));
+        assertFalse(notified.isUnchanged(notified(1, 1, 7, row(1, "Hello", "First", null))));
+        // Another conversation.
+        assertFalse(notified.isUnchanged(notified(1, 1, 7, row(2, "Hello", "First", info))));
+    }
+
+    private static final Uri ACCOUNTS_URI = Uri.parse("content://" + MockUiProvider.AUTHORITY);
+
+    /** Serves the accounts, folder lists and folders given to it, and counts the queries. */
+    private static class FolderProvider extends MockContentProvider {
+        final List<Account> mAccounts = new ArrayList<Account>();
+        final Map<Uri, List<Folder>> mFolderLists = new HashMap<Uri, List<Folder>>();
+        final Map<Uri, Folder> mFolders = new HashMap<Uri, Folder>();
+        int mQueries;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            if (uri.equals(ACCOUNTS_URI)) {
+                for (Account account : mAccounts) {
+                    addAccountRow(cursor, account.uri);
+                }
+            } else if (mFolderLists.containsKey(uri)) {
+                for (Folder folder : mFolderLists.get(uri)) {
+                    addFolderRow(cursor, folder);
+                }
+            } else if (mFolders.containsKey(uri)) {
+                addFolderRow(cursor, mFolders.get(uri));
+            }
+            return cursor;
+        }
+    }
+
+    private static void addAccountRow(MatrixCursor cursor, Uri accountUri) {
+        final int id = Integer.parseInt(accountUri.getLastPathSegment());
+        final Map<String, Object> values = MockUiProvider.createAccountDetailsMap(id,
+                accountUri + "/folder/0");
+        final MatrixCursor.RowBuilder row = cursor.newRow();
+        for (String column : UIProvider.ACCOUNTS_PROJECTION) {
+            row.add(values.get(column));
+        }
+    }
+
+    private static void addFolderRow(MatrixCursor cursor, Folder folder) {
+        final Object[] values = new Object[UIProvider.FOLDERS_PROJECTION.length];
+        values[UIProvider.FOLDER_ID_COLUMN] = folder.id;
+        values[UIProvider.FOLDER_URI_COLUMN] = folder.folderUri.fullUri.toString();
+        values[UIProvider.FOLDER_NAME_COLUMN] = folder.name;
+        values[UIProvider.FOLDER_TYPE_COLUMN] = folder.type;
+        cursor.addRow(values);
+    }
+
+    private static Account createAccount(int id) {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.ACCOUNTS_PROJECTION, 1);
+        addAccountRow(cursor, Uri.parse(MockUiProvider.getMockAccountUri(id)));
+        cursor.moveToFirst();
+        final Account account = Account.builder().buildFrom(cursor);
+        cursor.close();
+        return account;
+    }
+
+    private static Folder createFolder(Account account, int id, String name) {
+        return new Folder.Builder()
+                .setId(id)
+                .setUri(Uri.parse(account.uri + "/folder/" + id))
+                .setName(name)
+                .setConversationListUri(Uri.parse(account.uri + "/folder/" + id + "/convs"))
+                .setUnreadCount(id + 3)
+                .setType(UIProvider.FolderType.INBOX)
+                .setBgColor("-16776961")
+                .setParent(Uri.EMPTY)
+                .setLastMessageTimestamp(1000L + id)
+                .build();
+    }
+
+    private static byte[] writeSnapshot(NotificationMap map, String appVersion)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        map.writeSnapshot(out, appVersion);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static NotificationKey getKey(NotificationMap map, NotificationKey key) {
+        for (NotificationKey mapKey : map.keySet()) {
+            if (mapKey.equals(key)) {
+                return mapKey;
+            }
+        }
+        return null;
+    }
+
+    public void testNotificationMapSnapshotRoundTrip() throws IOException {
+        final Account account = createAccount(0);
+        final NotificationKey inbox = new NotificationKey(account, createFolder(account, 0, "In"));
+        final NotificationKey other =
+                new NotificationKey(account, createFolder(account, 1, "Other"));
+        final NotificationMap map = new NotificationMap();
+        map.put(inbox, 3, 1);
+        map.put(other, 7, 0);
+        final byte[] snapshot = writeSnapshot(map, "100");
+
+        final NotificationMap read = new NotificationMap();
+        assertTrue(read.readSnapshot(
+                new DataInputStream(new ByteArrayInputStream(snapshot)), "100"));
+        assertEquals(2, read.size());
+        assertEquals(3, read.getUnread(inbox).intValue());
+        assertEquals(1, read.getUnseen(inbox).intValue());
+        assertEquals(7, read.getUnread(other).intValue());
+        assertEquals(0, read.getUnseen(other).intValue());
+
+        final NotificationKey readInbox = getKey(read, inbox);
+        assertEquals(account.getAccountManagerAccount(),
+                readInbox.account.getAccountManagerAccount());
+        assertEquals(account.uri, readInbox.account.uri);
+        assertEquals(account.fullFolderListUri, readInbox.account.fullFolderListUri);
+        assertEquals(account.settings.defaultInbox, readInbox.account.settings.defaultInbox);
+        final Folder folder = readInbox.folder;
+        assertEquals(inbox.folder.folderUri, folder.folderUri);
+        assertEquals("In", folder.name);
+        assertEquals(inbox.folder.conversationListUri, folder.conversationListUri);
+        assertNull(folder.childFoldersListUri);
+        assertEquals(3, folder.unreadCount);
+        assertEquals(UIProvider.FolderType.INBOX, folder.type);
+        assertEquals("-16776961", folder.bgColor);
+        assertNull(folder.fgColor);
+        assertEquals(Uri.EMPTY, folder.parent);
+        assertEquals(1000L, folder.lastMessageTimestamp);
+
+        // Another version of the app, whose resource ids may differ, starts over.
+        assertFalse(new NotificationMap().readSnapshot(
+                new DataInputStream(new ByteArrayInputStream(snapshot)), "101"));
+    }
+
+    public void testNotificationMapRefresh() {
+        final Account account = createAccount(0);
+        final Account removedAccount = createAccount(1);
+        final Folder renamed = createFolder(account, 0, "Old name");
+        final Folder removed = createFolder(account, 1, "Removed");
+        final Folder unlisted = createFolder(account, 2, "Unlisted");
+        final NotificationMap map = new NotificationMap();
+        map.put(new NotificationKey(account, renamed), 3, 1);
+        map.put(new NotificationKey(account, removed), 2, 2);
+        map.put(new NotificationKey(account, unlisted), 1, 1);
+        map.put(new NotificationKey(removedAccount, createFolder(removedAccount, 0, "In")), 5, 5);
+
+        final FolderProvider provider = new FolderProvider();
+        provider.mAccounts.add(account);
+        final List<Folder> folderList = new ArrayList<Folder>();
+        folderList.add(createFolder(account, 0, "New name"));
+        provider.mFolderLists.put(account.fullFolderListUri, folderList);
+        // Only found when queried by itself.
+        provider.mFolders.put(unlisted.folderUri.fullUri, unlisted);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(MockUiProvider.AUTHORITY, provider);
+        assertTrue(map.refreshKeys(resolver, ACCOUNTS_URI));
+
+        final NotificationKey renamedKey = new NotificationKey(account, renamed);
+        assertEquals(2, map.size());
+        assertEquals("New name", getKey(map, renamedKey).folder.name);
+        assertEquals(3, map.getUnread(renamedKey).intValue());
+        assertEquals(1, map.getUnseen(renamedKey).intValue());
+        assertTrue(map.containsKey(new NotificationKey(account, unlisted)));
+        // The accounts, the folder list of the account, and each folder missing from it. The
+        // folders of the removed account are not queried.
+        assertEquals(4, provider.mQueries);
+    }
 }
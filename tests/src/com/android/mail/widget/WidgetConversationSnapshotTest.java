@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.widget;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class WidgetConversationSnapshotTest extends AndroidTestCase {
+    private static final long BUILD_TIME = 1000000L;
+    private static final long MAX_AGE = WidgetConversationSnapshot.MAX_AGE_MS;
+    private static final long[] SIGNATURE = {1, 1000, 42};
+
+    private static WidgetConversationSnapshot createSnapshot() {
+        return new WidgetConversationSnapshot(new WidgetConversationSnapshot.Row[0], 1,
+                SIGNATURE, BUILD_TIME);
+    }
+
+    public void testExpiresAfterMaxAge() {
+        final WidgetConversationSnapshot snapshot = createSnapshot();
+        assertFalse(snapshot.isExpired(BUILD_TIME));
+        assertFalse(snapshot.isExpired(BUILD_TIME + MAX_AGE - 1));
+        assertTrue(snapshot.isExpired(BUILD_TIME + MAX_AGE));
+    }
+
+    public void testSharedSnapshotExpires() {
+        final String key = "account folder " + System.nanoTime();
+        final WidgetConversationSnapshot snapshot = createSnapshot();
+        WidgetConversationSnapshot.putShared(key, snapshot);
+
+        assertSame(snapshot, WidgetConversationSnapshot.getShared(key, 1, SIGNATURE.clone(),
+                BUILD_TIME + MAX_AGE - 1));
+        assertNull(WidgetConversationSnapshot.getShared(key, 1, SIGNATURE,
+                BUILD_TIME + MAX_AGE));
+        // Other contents aren't shared at any age.
+        assertNull(WidgetConversationSnapshot.getShared(key, 2, SIGNATURE, BUILD_TIME));
+        assertNull(WidgetConversationSnapshot.getShared(key, 1, new long[] {1, 1000, 43},
+                BUILD_TIME));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.widget;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.SpannableStringBuilder;
+import android.widget.RemoteViews;
+
+import com.android.mail.providers.Conversation;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.providers.protos.mock.MockUiProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WidgetRowCacheTest extends AndroidTestCase {
+    private static final int MAX_ROWS = 25;
+    private static final String DATE = "10:24 AM";
+
+    /** Counts the views it builds. */
+    private class CountingBuilder implements WidgetRowCache.ViewBuilder {
+        int mBuilt;
+
+        @Override
+        public RemoteViews build(WidgetConversationSnapshot.Row row) {
+            mBuilt++;
+            return new RemoteViews(getContext().getPackageName(),
+                    android.R.layout.simple_list_item_1);
+        }
+    }
+
+    private List<Object[]> mConversations;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        MockUiProvider.initializeMockProvider();
+        final MockUiProvider provider = new MockUiProvider();
+
+        final Cursor accounts = provider.query(MockUiProvider.getAccountsUri(),
+                UIProvider.ACCOUNTS_PROJECTION, null, null, null);
+        assertTrue(accounts.moveToFirst());
+        final Uri foldersUri = Uri.parse(accounts.getString(
+                accounts.getColumnIndex(UIProvider.AccountColumns.FOLDER_LIST_URI)));
+        accounts.close();
+
+        final Cursor folders =
+                provider.query(foldersUri, UIProvider.FOLDERS_PROJECTION, null, null, null);
+        assertTrue(folders.moveToFirst());
+        final Uri conversationsUri = Uri.parse(folders.getString(
+                folders.getColumnIndex(UIProvider.FolderColumns.CONVERSATION_LIST_URI)));
+        folders.close();
+
+        final Cursor conversations = provider.query(conversationsUri,
+                UIProvider.CONVERSATION_PROJECTION, null, null, null);
+        mConversations = new ArrayList<Object[]>(conversations.getCount());
+        while (conversations.moveToNext()) {
+            final Object[] values = new Object[conversations.getColumnCount()];
+            for (int column = 0; column < values.length; column++) {
+                switch (conversations.getType(column)) {
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values[column] = conversations.getBlob(column);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[column] = conversations.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        values[column] = conversations.getString(column);
+                        break;
+                    default:
+                        values[column] = null;
+                        break;
+                }
+            }
+            mConversations.add(values);
+        }
+        conversations.close();
+        assertTrue(mConversations.size() > MAX_ROWS);
+    }
+
+    /** Builds the rows that a widget shows for the conversations, the way it formats them. */
+    private WidgetConversationSnapshot.Row[] getRows(List<Object[]> conversations) {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        for (Object[] values : conversations) {
+            cursor.addRow(values);
+        }
+        final long[] signature = WidgetConversationSnapshot.getSignature(cursor, MAX_ROWS);
+        final int count = Math.min(cursor.getCount(), MAX_ROWS);
+        final WidgetConversationSnapshot.Row[] rows = new WidgetConversationSnapshot.Row[count];
+        for (int i = 0; i < count; i++) {
+            cursor.moveToPosition(i);
+            final Conversation conversation = new Conversation(cursor);
+            rows[i] = new WidgetConversationSnapshot.Row(conversation,
+                    WidgetConversationSnapshot.getContentHash(signature, i),
+                    new SpannableStringBuilder(), DATE, conversation.subject);
+        }
+        cursor.close();
+        return rows;
+    }
+
+    /** Gets the views of all of the rows, and returns how many of them were built. */
+    private static int getViews(WidgetRowCache cache, WidgetConversationSnapshot.Row[] rows,
+            CountingBuilder builder) {
+        final int built = builder.mBuilt;
+        for (WidgetConversationSnapshot.Row row : rows) {
+            assertNotNull(cache.getViews(row, builder));
+        }
+        return builder.mBuilt - built;
+    }
+
+    @SmallTest
+    public void testOnlyChangedRowsAreBuilt() {
+        final WidgetRowCache cache = new WidgetRowCache(MAX_ROWS * 2);
+        final CountingBuilder builder = new CountingBuilder();
+
+        final WidgetConversationSnapshot.Row[] rows = getRows(mConversations);
+        assertEquals(MAX_ROWS, getViews(cache, rows, builder));
+        final RemoteViews first = cache.getViews(rows[0], builder);
+
+        // The folder reloaded, unchanged.
+        assertEquals(0, getViews(cache, getRows(mConversations), builder));
+        assertSame(first, cache.getViews(getRows(mConversations)[0], builder));
+
+        // The subject of one conversation changed.
+        final int subjectColumn = UIProvider.CONVERSATION_SUBJECT_COLUMN;
+        final Object[] changed = mConversations.get(3).clone();
+        changed[subjectColumn] = changed[subjectColumn] + " (edited)";
+        mConversations.set(3, changed);
+        assertEquals(1, getViews(cache, getRows(mConversations), builder));
+
+        // Two conversations swapped places.
+        mConversations.add(0, mConversations.remove(1));
+        assertEquals(0, getViews(cache, getRows(mConversations), builder));
+        assertSame(first, cache.getViews(getRows(mConversations)[1], builder));
+
+        // A conversation that was not shown moved to the top, and pushed the last one out.
+        mConversations.add(0, mConversations.remove(mConversations.size() - 1));
+        assertEquals(1, getViews(cache, getRows(mConversations), builder));
+
+        assertEquals(MAX_ROWS + 2, cache.getBuiltCount());
+    }
+
+    @SmallTest
+    public void testAgedDateIsRebuilt() {
+        final WidgetRowCache cache = new WidgetRowCache(MAX_ROWS * 2);
+        final CountingBuilder builder = new CountingBuilder();
+        final WidgetConversationSnapshot.Row row = getRows(mConversations)[0];
+        final RemoteViews views = cache.getViews(row, builder);
+
+        final WidgetConversationSnapshot.Row aged = new WidgetConversationSnapshot.Row(
+                row.conversation, row.contentHash, row.senders, "Yesterday", row.subject);
+        assertNotSame(views, cache.getViews(aged, builder));
+        assertEquals(2, builder.mBuilt);
+        assertEquals(0, cache.getReusedCount());
+    }
+}